@@ -37,3 +37,15 @@ CREATE TABLE msg_metadata
 
 CREATE UNIQUE INDEX MSG_ID_UNIQUE ON msg_metadata (MSG_ID);
 
+
+-- ----------------------------------------------------------------------- 
+-- Indexes for the message list and chart queries. The list is paged newest
+-- first by ID so each filter index ends with ID. The chart counts are read
+-- from the CREATE_DT index without touching the table.
+-- These can also be run against an existing database.
+-- ----------------------------------------------------------------------- 
+
+CREATE INDEX IF NOT EXISTS MSG_CREATE_DT_IDX ON msg_metadata (CREATE_DT, STATE);
+CREATE INDEX IF NOT EXISTS MSG_SENDER_IDX ON msg_metadata (SENDER_ID, ID);
+CREATE INDEX IF NOT EXISTS MSG_RECEIVER_IDX ON msg_metadata (RECEIVER_ID, ID);
+CREATE INDEX IF NOT EXISTS MSG_STATE_IDX ON msg_metadata (STATE, ID);
@@ -18,6 +18,7 @@ import javax.activation.MailcapCommandMap;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -146,6 +147,9 @@ public abstract class BaseSession implements Session {
         for (Map.Entry<String, Map<String, Object>> entry : polledDirectories.entrySet()) {
             Map<String, Object> meta = entry.getValue();
             DirectoryPollingModule poller = (DirectoryPollingModule) meta.get("pollerInstance");
+            if (poller.isRunning()) {
+                continue;
+            }
             LOGGER.trace("Starting directory poller:" + meta);
             poller.start();
         }
@@ -181,6 +185,27 @@ public abstract class BaseSession implements Session {
         }
     }
 
+    public void destroyPartnershipPoller(String partnershipName, String configSource) {
+        Iterator<Map.Entry<String, Map<String, Object>>> it = polledDirectories.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Map<String, Object>> entry = it.next();
+            Map<String, Object> meta = entry.getValue();
+            if (!partnershipName.equals(meta.get("partnershipName")) || !meta.get("configSource").equals(configSource)) {
+                continue;
+            }
+            DirectoryPollingModule poller = (DirectoryPollingModule) meta.get("pollerInstance");
+            try {
+                LOGGER.trace("Destroying poller:" + meta);
+                if (poller.isRunning()) {
+                    poller.stop();
+                }
+            } catch (Exception e) {
+                LOGGER.error("Failed to stop a partnership poller for directory " + entry.getKey() + ": " + meta, e);
+            }
+            it.remove();
+        }
+    }
+
     public DirectoryPollingModule getPartnershipPoller(String partnershipName) {
         for (Map.Entry<String, Map<String, Object>> entry : polledDirectories.entrySet()) {
             Map<String, Object> meta = entry.getValue();
@@ -113,6 +113,14 @@ public interface Session {
     public void startPartnershipPollers() throws OpenAS2Exception;
     public void destroyPartnershipPollers(String configSourceFilter);
 
+    /**
+     * Stops and removes the pollers loaded for a single partnership.
+     *
+     * @param partnershipName - name attribute value for the partnership node
+     * @param configSource - will be "partnership" or "configModule"
+     */
+    public void destroyPartnershipPoller(String partnershipName, String configSource);
+
     String getBaseDirectory();
 
     String getAppVersion();
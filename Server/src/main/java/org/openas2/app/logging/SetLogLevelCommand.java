@@ -40,6 +40,7 @@ public class SetLogLevelCommand extends AliasedLoggingCommand {
         } else {
             System.setProperty(logOverridePropName, (String) params[0]);
         }
+        org.openas2.logging.Log.refreshLevelOverrides();
 
         return new CommandResult(CommandResult.TYPE_OK);
 
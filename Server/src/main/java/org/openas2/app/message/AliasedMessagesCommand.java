@@ -4,6 +4,15 @@ import org.openas2.OpenAS2Exception;
 import org.openas2.cmd.BaseCommand;
 import org.openas2.cmd.CommandResult;
 import org.openas2.message.MessageFactory;
+import org.openas2.processor.ProcessorModule;
+import org.openas2.processor.msgtracking.DbTrackingModule;
+import org.openas2.processor.msgtracking.TrackingModule;
+import org.openas2.processor.sender.AS2SenderModule;
+import org.openas2.processor.sender.SenderModule;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 
 public abstract class AliasedMessagesCommand extends BaseCommand {
@@ -25,4 +34,46 @@ public abstract class AliasedMessagesCommand extends BaseCommand {
 
     protected abstract CommandResult execute(MessageFactory messageFactory, Object[] params) throws OpenAS2Exception;
 
+    /**
+     * @return the DB tracking module or null if none is loaded
+     */
+    protected DbTrackingModule getTrackingModule() throws OpenAS2Exception {
+        List<ProcessorModule> mpl = getSession().getProcessor().getModulesSupportingAction(TrackingModule.DO_TRACK_MSG);
+        for (ProcessorModule module : mpl) {
+            // Assume we only load one DB tracking module - not sure it makes sense if more than 1 was loaded
+            if (module instanceof DbTrackingModule) {
+                return (DbTrackingModule) module;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the AS2 sender module or null if none is loaded
+     */
+    protected AS2SenderModule getSenderModule() throws OpenAS2Exception {
+        List<ProcessorModule> mpl = getSession().getProcessor().getModulesSupportingAction(SenderModule.DO_SEND);
+        for (ProcessorModule module : mpl) {
+            if (module instanceof AS2SenderModule) {
+                return (AS2SenderModule) module;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param params command parameters in name=value form
+     * @return the values keyed by name. Parameters without a value are ignored.
+     */
+    protected Map<String, String> getNamedParams(Object[] params) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (Object param : params) {
+            String[] parts = param.toString().split("=", 2);
+            if (parts.length == 2) {
+                map.put(parts[0].trim(), parts[1]);
+            }
+        }
+        return map;
+    }
+
 }
@@ -6,21 +6,20 @@ import org.openas2.cmd.CommandResult;
 
 import org.openas2.message.MessageFactory;
 import org.openas2.processor.msgtracking.DbTrackingModule;
-import org.openas2.processor.msgtracking.TrackingModule;
-import org.openas2.processor.ProcessorModule;
+import org.openas2.processor.msgtracking.MessageQuery;
+
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 
 /**
- * list messages entries
+ * Message counts per day and state for charts
  *
  * @author cristiam henriquez
  */
 public class GetDataForCharts extends AliasedMessagesCommand {
 
     public String getDefaultDescription() {
-        return "View data for charts.";
+        return "View message counts per day and state for charts.";
     }
 
     public String getDefaultName() {
@@ -28,37 +27,30 @@ public class GetDataForCharts extends AliasedMessagesCommand {
     }
 
     public String getDefaultUsage() {
-        return "data_charts";
+        return "data_charts startDate=<yyyy-MM-dd> endDate=<yyyy-MM-dd> [sender=<as2 id>] [receiver=<as2 id>] [state=<state>] [direction=<SEND|RECEIVE>]";
     }
 
     public CommandResult execute(MessageFactory messageFactory, Object[] params) throws OpenAS2Exception {
 
-        synchronized (messageFactory) {
-            HashMap<String, String> map = new HashMap<String, String>();
-            for (Object object : params) {
-                String name = object.toString().split("=")[0];
-                String value = object.toString().split("=")[1];
-                map.put(name, value);
-            }
-            List<ProcessorModule> mpl = getSession().getProcessor().getModulesSupportingAction(TrackingModule.DO_TRACK_MSG);
-            if (mpl == null || mpl.isEmpty()) {
-                CommandResult cmdRes = new CommandResult(CommandResult.TYPE_ERROR);
-                cmdRes.getResults().add("No DB tracking module available.");
-            }
-            // Assume we only load one DB tracking module - not sure it makes sense if more than 1 was loaded
-            DbTrackingModule db = (DbTrackingModule) mpl.get(0);
-
-            ArrayList<HashMap<String, String>> data = db.getDataCharts(map);
+        MessageQuery query = MessageQuery.fromParams(getNamedParams(params));
+        if (query.getFromDate() == null || query.getToDate() == null) {
+            return new CommandResult(CommandResult.TYPE_INVALID_PARAM_COUNT, getUsage());
+        }
+        DbTrackingModule db = getTrackingModule();
+        if (db == null) {
+            return new CommandResult(CommandResult.TYPE_ERROR, "No DB tracking module available.");
+        }
 
-            CommandResult cmdRes = new CommandResult(CommandResult.TYPE_OK);
+        ArrayList<HashMap<String, String>> data = db.getMessageCounts(query);
 
-            if (data.isEmpty()) {
-                cmdRes.getResults().add("No data definitions available");
-            } else {
-                cmdRes.getResults().addAll(data);
-            }
+        CommandResult cmdRes = new CommandResult(CommandResult.TYPE_OK);
 
-            return cmdRes;
+        if (data.isEmpty()) {
+            cmdRes.getResults().add("No data definitions available");
+        } else {
+            cmdRes.getResults().addAll(data);
         }
+
+        return cmdRes;
     }
 }
@@ -4,14 +4,11 @@ import org.openas2.OpenAS2Exception;
 
 import org.openas2.cmd.CommandResult;
 
+import org.openas2.cmd.PagedCommandResult;
 import org.openas2.message.MessageFactory;
-import org.openas2.processor.ProcessorModule;
 import org.openas2.processor.msgtracking.DbTrackingModule;
-import org.openas2.processor.msgtracking.TrackingModule;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import org.openas2.processor.msgtracking.MessagePage;
+import org.openas2.processor.msgtracking.MessageQuery;
 
 /**
  * list messages entries
@@ -21,7 +18,7 @@ import java.util.List;
 public class ListMessagesCommand extends AliasedMessagesCommand  {
 
     public String getDefaultDescription() {
-        return "List all messages";
+        return "List messages newest first, a page at a time. Pass the returned cursor to get the next page.";
     }
 
 
@@ -30,32 +27,27 @@ public class ListMessagesCommand extends AliasedMessagesCommand  {
     }
 
     public String getDefaultUsage() {
-        return "list";
+        return "list [sender=<as2 id>] [receiver=<as2 id>] [state=<state>] [direction=<SEND|RECEIVE>]"
+                + " [startDate=<yyyy-MM-dd[ HH:mm:ss]>] [endDate=<yyyy-MM-dd[ HH:mm:ss]>]"
+                + " [limit=<1-" + MessageQuery.MAX_LIMIT + ">] [cursor=<cursor>]";
     }
 
     public CommandResult execute(MessageFactory messageFactory, Object[] params) throws OpenAS2Exception {
 
-        synchronized (messageFactory) {
-            
-            List<ProcessorModule> mpl = getSession().getProcessor().getModulesSupportingAction(TrackingModule.DO_TRACK_MSG);
-            if (mpl == null || mpl.isEmpty()) {
-                CommandResult cmdRes = new CommandResult(CommandResult.TYPE_ERROR);
-                cmdRes.getResults().add("No DB tracking module available.");
-            }
-            // Assume we only load one DB tracking module - not sure it makes sense if more than 1 was loaded
-            DbTrackingModule db = (DbTrackingModule) mpl.get(0);
-
-            ArrayList<HashMap<String,String>> messages = db.listMessages();
-
-            CommandResult cmdRes = new CommandResult(CommandResult.TYPE_OK);
+        DbTrackingModule db = getTrackingModule();
+        if (db == null) {
+            return new CommandResult(CommandResult.TYPE_ERROR, "No DB tracking module available.");
+        }
+        MessagePage page = db.listMessages(MessageQuery.fromParams(getNamedParams(params)));
 
-            if(messages.isEmpty()){
-                cmdRes.getResults().add("No messages definitions available");
-            } else {
-                cmdRes.getResults().addAll(messages);
-            }
+        CommandResult cmdRes = new PagedCommandResult(CommandResult.TYPE_OK, page.getNextCursor());
 
-            return cmdRes;
+        if (page.getRows().isEmpty()) {
+            cmdRes.getResults().add("No messages definitions available");
+        } else {
+            cmdRes.getResults().addAll(page.getRows());
         }
+
+        return cmdRes;
     }
 }
@@ -0,0 +1,31 @@
+package org.openas2.app.message;
+
+import org.openas2.OpenAS2Exception;
+import org.openas2.cmd.CommandResult;
+import org.openas2.message.MessageFactory;
+import org.openas2.processor.sender.AS2SenderModule;
+
+/**
+ * Shows how many sent messages are waiting for an asynchronous MDN per partner
+ */
+public class PendingMdnsCommand extends AliasedMessagesCommand {
+    public String getDefaultDescription() {
+        return "Show the number of sent messages waiting for an MDN for each partner.";
+    }
+
+    public String getDefaultName() {
+        return "pendingmdns";
+    }
+
+    public String getDefaultUsage() {
+        return "pendingmdns";
+    }
+
+    protected CommandResult execute(MessageFactory messageFx, Object[] params) throws OpenAS2Exception {
+        AS2SenderModule sender = getSenderModule();
+        if (sender == null) {
+            return new CommandResult(CommandResult.TYPE_ERROR, "No AS2 sender module available.");
+        }
+        return new CommandResult(CommandResult.TYPE_OK, sender.getOutstandingMdnCounts());
+    }
+}
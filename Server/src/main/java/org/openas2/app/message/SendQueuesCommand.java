@@ -0,0 +1,37 @@
+package org.openas2.app.message;
+
+import org.openas2.OpenAS2Exception;
+import org.openas2.cmd.CommandResult;
+import org.openas2.message.MessageFactory;
+import org.openas2.processor.sender.AS2SenderModule;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shows the messages waiting for the per partner send limits and the limiter counters
+ */
+public class SendQueuesCommand extends AliasedMessagesCommand {
+    public String getDefaultDescription() {
+        return "Show the messages waiting to be sent and the send limits for each partner.";
+    }
+
+    public String getDefaultName() {
+        return "sendqueues";
+    }
+
+    public String getDefaultUsage() {
+        return "sendqueues";
+    }
+
+    protected CommandResult execute(MessageFactory messageFx, Object[] params) throws OpenAS2Exception {
+        AS2SenderModule sender = getSenderModule();
+        if (sender == null) {
+            return new CommandResult(CommandResult.TYPE_ERROR, "No AS2 sender module available.");
+        }
+        Map<String, Object> queues = new LinkedHashMap<String, Object>();
+        queues.put("queued", sender.getSendQueueDepths());
+        queues.put("limits", sender.getSendLimiterStats());
+        return new CommandResult(CommandResult.TYPE_OK, queues);
+    }
+}
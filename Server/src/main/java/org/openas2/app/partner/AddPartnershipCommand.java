@@ -12,6 +12,8 @@ import org.openas2.util.XMLUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -101,7 +103,9 @@ public class AddPartnershipCommand extends AliasedPartnershipsCommand {
 
             // Load the partnership into the cached list of partnerships
             try {
-                ((XMLPartnershipFactory) partFx).loadPartnership(partFx.getPartners(), partFx.getPartnerships(), partnershipRoot);
+                List<Partnership> partnerships = new ArrayList<Partnership>(partFx.getPartnerships());
+                ((XMLPartnershipFactory) partFx).loadPartnership(partFx.getPartners(), partnerships, partnershipRoot);
+                partFx.setPartnerships(partnerships);
             } catch (OpenAS2Exception e) {
                 logger.error(e.getMessage(), e);
                 return new CommandResult(CommandResult.TYPE_ERROR, "Failed to load new partnership: " + e.getMessage());
@@ -6,7 +6,9 @@ import org.openas2.partner.Partnership;
 import org.openas2.partner.PartnershipFactory;
 import org.openas2.partner.XMLPartnershipFactory;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * removes a partnership entry in partnership store
@@ -39,7 +41,9 @@ public class DeletePartnershipCommand extends AliasedPartnershipsCommand {
             while (parts.hasNext()) {
                 Partnership part = parts.next();
                 if (part.getName().equals(name)) {
-                    partFx.getPartnerships().remove(part);
+                    List<Partnership> partnerships = new ArrayList<Partnership>(partFx.getPartnerships());
+                    partnerships.remove(part);
+                    partFx.setPartnerships(partnerships);
                     if (!((XMLPartnershipFactory) partFx).deleteElement("/partnerships/partnership[@name='" + name + "']")) {
                         return new CommandResult(CommandResult.TYPE_ERROR, "Partnership delete failed in XML document for partnership name: " + name);
                     }
@@ -26,6 +26,8 @@ import java.security.cert.X509Certificate;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -33,20 +35,29 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
     public static final String PARAM_FILENAME = "filename";
     public static final String PARAM_PASSWORD = "password";
     public static final String PARAM_INTERVAL = "interval";
-    private KeyStore keyStore;
+    // The keystore and everything looked up from it are swapped together so a reload is seen all at once
+    private volatile KeyStoreContext context = new KeyStoreContext(null);
 
     private Log logger = LogFactory.getLog(PKCS12CertificateFactory.class.getSimpleName());
 
     public X509Certificate getCertificate(String alias) throws OpenAS2Exception {
+        if (alias == null) {
+            throw new CertificateNotFoundException(null, alias);
+        }
+        KeyStoreContext ctx = context;
+        X509Certificate cert = ctx.certificates.get(alias);
+        if (cert != null) {
+            return cert;
+        }
         try {
-            KeyStore ks = getKeyStore();
-            X509Certificate cert = (X509Certificate) ks.getCertificate(alias);
+            cert = (X509Certificate) ctx.keyStore.getCertificate(alias);
 
             if (cert == null) {
                 throw new CertificateNotFoundException(null, alias);
             }
+            X509Certificate cached = ctx.certificates.putIfAbsent(alias, cert);
 
-            return cert;
+            return cached == null ? cert : cached;
         } catch (KeyStoreException kse) {
             throw new WrappedException(kse);
         }
@@ -85,11 +96,27 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
     }
 
     public KeyStore getKeyStore() {
-        return keyStore;
+        return context.keyStore;
     }
 
     public void setKeyStore(KeyStore keyStore) {
-        this.keyStore = keyStore;
+        context = new KeyStoreContext(keyStore);
+        invalidateCryptoCache();
+    }
+
+    /**
+     * Drops the certificates and keys looked up so far so changes made to the keystore are picked up.
+     */
+    public void clearCache() {
+        setKeyStore(getKeyStore());
+    }
+
+    private void invalidateCryptoCache() {
+        try {
+            AS2Util.getCryptoHelper().invalidateCache();
+        } catch (Exception e) {
+            logger.warn("Failed to clear the crypto context cache", e);
+        }
     }
 
     public char[] getPassword() throws InvalidParameterException {
@@ -104,13 +131,19 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
         if (alias == null) {
             throw new OpenAS2Exception("Keystore alias cannot be found for method getPrivateKey(alias) call. Check that the x509_alias attribute is set correctly in the partnership.");
         }
-        KeyStore ks = getKeyStore();
+        KeyStoreContext ctx = context;
+        PrivateKey key = ctx.privateKeys.get(alias);
+        if (key != null) {
+            return key;
+        }
         try {
-            PrivateKey key = (PrivateKey) ks.getKey(alias, getPassword());
+            // Decrypting the key from the keystore is expensive so each key is only read once per keystore load
+            key = (PrivateKey) ctx.keyStore.getKey(alias, getPassword());
             if (key == null) {
                 throw new OpenAS2Exception("The private key was not found for alias. Check that the private key has been added to the keystore for the alias: " + alias);
             }
-            return key;
+            PrivateKey cached = ctx.privateKeys.putIfAbsent(alias, key);
+            return cached == null ? key : cached;
         } catch (GeneralSecurityException e) {
             throw new OpenAS2Exception("Unexpected error occured fetching private key: " + e.getMessage(), e);
         }
@@ -149,6 +182,7 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
             }
 
             ks.setCertificateEntry(alias, cert);
+            clearCache();
             save(getFilename(), getPassword());
         } catch (GeneralSecurityException gse) {
             throw new WrappedException(gse);
@@ -175,6 +209,7 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
                 }
             }
             ks.setKeyEntry(alias, key, password.toCharArray(), certChain);
+            clearCache();
 
             save(getFilename(), getPassword());
         } catch (GeneralSecurityException gse) {
@@ -191,6 +226,7 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
             while (aliases.hasMoreElements()) {
                 ks.deleteEntry(aliases.nextElement());
             }
+            clearCache();
 
             save(getFilename(), getPassword());
         } catch (GeneralSecurityException gse) {
@@ -206,11 +242,6 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
         if (pwd != null) {
             setPassword(pwd.toCharArray());
         }
-        try {
-            this.keyStore = AS2Util.getCryptoHelper().getKeyStore();
-        } catch (Exception e) {
-            throw new WrappedException(e);
-        }
         load();
     }
 
@@ -228,15 +259,18 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
 
     public void load(InputStream in, char[] password) throws OpenAS2Exception {
         try {
-            KeyStore ks = getKeyStore();
-
-            synchronized (ks) {
-                ks.load(in, password);
-            }
+            // Load into a new keystore so messages in flight keep using the old one until the new one is complete
+            KeyStore ks = AS2Util.getCryptoHelper().getKeyStore();
+            ks.load(in, password);
+            setKeyStore(ks);
         } catch (IOException ioe) {
             throw new WrappedException(ioe);
         } catch (GeneralSecurityException gse) {
             throw new WrappedException(gse);
+        } catch (OpenAS2Exception oae) {
+            throw oae;
+        } catch (Exception e) {
+            throw new WrappedException(e);
         }
     }
 
@@ -269,6 +303,7 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
             }
 
             ks.deleteEntry(alias);
+            clearCache();
             save(getFilename(), getPassword());
         } catch (GeneralSecurityException gse) {
             throw new WrappedException(gse);
@@ -311,4 +346,14 @@ public class PKCS12CertificateFactory extends BaseCertificateFactory implements
             }
         }.scheduleIfNeed(executor, new File(getFilename()), getRefreshInterval(), TimeUnit.SECONDS);
     }
+
+    private static class KeyStoreContext {
+        private final KeyStore keyStore;
+        private final ConcurrentMap<String, X509Certificate> certificates = new ConcurrentHashMap<String, X509Certificate>();
+        private final ConcurrentMap<String, PrivateKey> privateKeys = new ConcurrentHashMap<String, PrivateKey>();
+
+        KeyStoreContext(KeyStore keyStore) {
+            this.keyStore = keyStore;
+        }
+    }
 }
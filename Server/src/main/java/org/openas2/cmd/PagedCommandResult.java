@@ -0,0 +1,27 @@
+package org.openas2.cmd;
+
+/**
+ * A command result holding one page of a larger list. The cursor is passed back to the command to get the
+ * next page and is null on the last page.
+ */
+public class PagedCommandResult extends CommandResult {
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    private final String nextCursor;
+
+    public PagedCommandResult(String type, String nextCursor) {
+        super(type);
+        this.nextCursor = nextCursor;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public String toString() {
+        if (nextCursor == null) {
+            return super.toString();
+        }
+        return super.toString() + "next cursor=" + nextCursor + "\r\n";
+    }
+}
@@ -9,6 +9,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import org.openas2.cert.AliasedCertificateFactory;
 import org.openas2.cmd.CommandResult;
+import org.openas2.cmd.PagedCommandResult;
 import org.openas2.cmd.processor.RestCommandProcessor;
 
 import javax.annotation.security.RolesAllowed;
@@ -147,6 +148,18 @@ public class ApiResource {
         return output;
     }
 
+    /**
+     * Paged results also return the cursor for the next page in a header so clients can page through a list
+     * without parsing the body.
+     */
+    private Response buildResponse(CommandResult output, String jsonResult) {
+        Response.ResponseBuilder builder = Response.status(200).entity(jsonResult).type(MediaType.APPLICATION_JSON);
+        if (output instanceof PagedCommandResult && ((PagedCommandResult) output).getNextCursor() != null) {
+            builder.header(PagedCommandResult.NEXT_CURSOR_HEADER, ((PagedCommandResult) output).getNextCursor());
+        }
+        return builder.build();
+    }
+
     @RolesAllowed({"ADMIN"})
     @GET
     @Path("/{resource}/{action}{id:(/[^/]+?)?}")
@@ -161,7 +174,7 @@ public class ApiResource {
                 output = processRequest(resource, action, itemId, null);
             }
             String jsonResult = this.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(output);
-            return Response.status(200).entity(jsonResult).type(MediaType.APPLICATION_JSON).build();
+            return buildResponse(output, jsonResult);
         } catch (Exception ex) {
             Logger.getLogger(ApiResource.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
             throw ex;
@@ -187,7 +200,7 @@ public class ApiResource {
                 output = processRequest(resource, action, itemId, formParams);
             }
             String jsonResult = this.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(output);
-            return Response.status(200).entity(jsonResult).type(MediaType.APPLICATION_JSON).build();
+            return buildResponse(output, jsonResult);
         } catch (Exception ex) {
             Logger.getLogger(ApiResource.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
             throw ex;
@@ -1,5 +1,7 @@
 package org.openas2.cmd.processor.restapi;
 
+import org.openas2.cmd.PagedCommandResult;
+
 import jakarta.ws.rs.container.ContainerRequestContext;
 import jakarta.ws.rs.container.ContainerRequestFilter;
 import jakarta.ws.rs.container.ContainerResponseContext;
@@ -26,6 +28,8 @@ public class CORSFilter implements ContainerRequestFilter, ContainerResponseFilt
         // the CORS headers here.
         MultivaluedMap<String, Object> headers = responseContext.getHeaders();
         headers.add("Access-Control-Allow-Origin", requestContext.getHeaderString("Origin")); // for now, allows CORS requests coming from any source
+        // let browser clients read the cursor for the next page of a paged list
+        headers.add("Access-Control-Expose-Headers", PagedCommandResult.NEXT_CURSOR_HEADER);
         if (this.isPreflightRequest(requestContext)) {
 
             headers.add("Access-Control-Allow-Credentials", true);
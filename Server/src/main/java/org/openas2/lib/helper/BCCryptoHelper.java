@@ -12,33 +12,26 @@ import org.bouncycastle.asn1.cms.CMSAttributes;
 import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
 import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
 import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
-import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
-import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.cms.*;
 import org.bouncycastle.cms.bc.BcRSAKeyTransEnvelopedRecipient;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
-import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
 import org.bouncycastle.cms.jcajce.ZlibCompressor;
 import org.bouncycastle.cms.jcajce.ZlibExpanderProvider;
-import org.bouncycastle.crypto.util.PrivateKeyFactory;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.mail.smime.SMIMECompressed;
 import org.bouncycastle.mail.smime.SMIMECompressedGenerator;
+import org.bouncycastle.mail.smime.SMIMECompressedParser;
 import org.bouncycastle.mail.smime.SMIMEEnveloped;
 import org.bouncycastle.mail.smime.SMIMEEnvelopedGenerator;
+import org.bouncycastle.mail.smime.SMIMEEnvelopedParser;
 import org.bouncycastle.mail.smime.SMIMEException;
-import org.bouncycastle.mail.smime.SMIMESigned;
 import org.bouncycastle.mail.smime.SMIMESignedGenerator;
 import org.bouncycastle.mail.smime.SMIMESignedParser;
 import org.bouncycastle.mail.smime.SMIMEUtil;
-import org.bouncycastle.mail.smime.util.CRLFOutputStream;
 import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.OutputCompressor;
 import org.bouncycastle.operator.OutputEncryptor;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
 import org.openas2.DispositionException;
@@ -58,13 +51,11 @@ import javax.mail.MessagingException;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.DigestInputStream;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStore;
@@ -85,6 +76,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class BCCryptoHelper implements ICryptoHelper {
+    private final CryptoContextCache contextCache = new CryptoContextCache();
+
     private Log logger = LogFactory.getLog(BCCryptoHelper.class.getSimpleName());
 
     public boolean isEncrypted(MimeBodyPart part) throws MessagingException {
@@ -144,61 +137,46 @@ public class BCCryptoHelper implements ICryptoHelper {
     }
 
     public String calculateMIC(MimeBodyPart part, String digest, boolean includeHeaders, boolean noCanonicalize) throws GeneralSecurityException, MessagingException, IOException {
-        String micAlg = convertAlgorithm(digest, true);
-
         if (logger.isDebugEnabled()) {
             logger.debug("Calc MIC called with digest: " + digest + " ::: Incl headers? " + includeHeaders + " ::: Prevent canonicalization: " + noCanonicalize + " ::: Encoding: " + part.getEncoding());
         }
-        MessageDigest md = MessageDigest.getInstance(micAlg, "BC");
-
         if (includeHeaders && logger.isTraceEnabled()) {
             logger.trace("Calculating MIC on MIMEPART Headers: " + AS2Util.printHeaders(part.getAllHeaders()));
         }
-        // convert the Mime data to a byte array, then to an InputStream
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        MicCalculator calculator = createMicCalculator(part, digest, noCanonicalize);
+        writeMicContent(part, includeHeaders, calculator.getOutputStream());
+        return calculator.getMic();
+    }
 
+    public MicCalculator createMicCalculator(MimeBodyPart part, String digest, boolean noCanonicalize) throws GeneralSecurityException, MessagingException {
+        MessageDigest md = MessageDigest.getInstance(convertAlgorithm(digest, true), "BC");
         // Canonicalize the data if not binary content transfer encoding
-        OutputStream os = null;
         String encoding = part.getEncoding();
         // Default encoding in case the bodypart does not have a transfer encoding set
         if (encoding == null) {
             encoding = Session.DEFAULT_CONTENT_TRANSFER_ENCODING;
         }
-        if ("binary".equals(encoding) || noCanonicalize) {
-            os = bOut;
-        } else {
-            os = new CRLFOutputStream(bOut);
-        }
+        return new MicCalculator(md, digest, !("binary".equals(encoding) || noCanonicalize));
+    }
 
+    public void writeMicContent(MimeBodyPart part, boolean includeHeaders, OutputStream out) throws MessagingException, IOException {
         if (includeHeaders) {
-            part.writeTo(os);
+            part.writeTo(out);
         } else {
-            IOUtils.copy(part.getInputStream(), os);
-        }
-
-        byte[] data = bOut.toByteArray();
-
-        InputStream bIn = trimCRLFPrefix(data);
-
-        // calculate the hash of the data and mime header
-        DigestInputStream digIn = new DigestInputStream(bIn, md);
-
-        byte[] buf = new byte[4096];
-
-        while (digIn.read(buf) >= 0) {
+            InputStream in = part.getInputStream();
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                in.close();
+            }
         }
-
-        bOut.close();
-
-        byte[] mic = digIn.getMessageDigest().digest();
-        String micString = new String(Base64.encode(mic));
-        StringBuffer micResult = new StringBuffer(micString);
-        micResult.append(", ").append(digest);
-
-        return micResult.toString();
     }
 
     public MimeBodyPart decrypt(MimeBodyPart part, Certificate cert, Key key) throws GeneralSecurityException, MessagingException, CMSException, IOException, SMIMEException {
+        return decrypt(part, cert, key, null);
+    }
+
+    public MimeBodyPart decrypt(MimeBodyPart part, Certificate cert, Key key, File spoolFile) throws GeneralSecurityException, MessagingException, CMSException, IOException, SMIMEException {
         // Make sure the data is encrypted
         if (!isEncrypted(part)) {
             throw new GeneralSecurityException("Content-Type indicates data isn't encrypted");
@@ -207,17 +185,21 @@ public class BCCryptoHelper implements ICryptoHelper {
         // Cast parameters to what BC needs
         X509Certificate x509Cert = castCertificate(cert);
 
-        // Parse the MIME body into an SMIME envelope object
-        SMIMEEnveloped envelope = new SMIMEEnveloped(part);
+        // Parse the MIME body into an SMIME envelope object. The parser reads the encrypted content as a
+        // stream rather than loading the whole envelope
+        RecipientInformationStore recipientInfoStore;
+        if (spoolFile == null) {
+            recipientInfoStore = new SMIMEEnveloped(part).getRecipientInfos();
+        } else {
+            recipientInfoStore = new SMIMEEnvelopedParser(part).getRecipientInfos();
+        }
 
         // Get the recipient object for decryption
         if (logger.isDebugEnabled()) {
             logger.debug("Extracted X500 info::  PRINCIPAL : " + x509Cert.getIssuerX500Principal() + " ::  NAME : " + x509Cert.getIssuerX500Principal().getName());
         }
 
-        X500Name x500Name = new X500Name(x509Cert.getIssuerX500Principal().getName());
-        KeyTransRecipientId certRecId = new KeyTransRecipientId(x500Name, x509Cert.getSerialNumber());
-        RecipientInformationStore recipientInfoStore = envelope.getRecipientInfos();
+        KeyTransRecipientId certRecId = contextCache.getRecipientId(x509Cert);
 
         Collection<RecipientInformation> recipients = recipientInfoStore.getRecipients();
 
@@ -227,7 +209,6 @@ public class BCCryptoHelper implements ICryptoHelper {
         //RecipientInformation recipientInfo  = recipientInfoStore.get(recId);
         //Object recipient = null;
 
-        boolean foundRecipient = false;
         for (Iterator<RecipientInformation> iterator = recipients.iterator(); iterator.hasNext(); ) {
             RecipientInformation recipientInfo = iterator.next();
             //recipient = iterator.next();
@@ -235,12 +216,15 @@ public class BCCryptoHelper implements ICryptoHelper {
                 // X509CertificateHolder x509CertHolder = new X509CertificateHolder(x509Cert.getEncoded());
 
                 //RecipientId rid = recipientInfo.getRID();
-                if (certRecId.match(recipientInfo) && !foundRecipient) {
-                    foundRecipient = true;
+                if (certRecId.match(recipientInfo)) {
                     // byte[] decryptedData = recipientInfo.getContent(new JceKeyTransEnvelopedRecipient((PrivateKey)key).setProvider("BC"));
-                    byte[] decryptedData = recipientInfo.getContent(new BcRSAKeyTransEnvelopedRecipient(PrivateKeyFactory.createKey(PrivateKeyInfo.getInstance(key.getEncoded()))));
-
-                    return SMIMEUtil.toMimeBodyPart(decryptedData);
+                    BcRSAKeyTransEnvelopedRecipient recipient = new BcRSAKeyTransEnvelopedRecipient(contextCache.getKeyParameter(key));
+                    if (spoolFile == null) {
+                        byte[] decryptedData = recipientInfo.getContent(recipient);
+                        return SMIMEUtil.toMimeBodyPart(decryptedData);
+                    }
+                    // Decrypt straight into the spool file as the encrypted content is read
+                    return SMIMEUtil.toMimeBodyPart(recipientInfo.getContentStream(recipient), spoolFile);
                 } else {
                     if (logger.isDebugEnabled()) {
                         logger.debug("Failed match on recipient ID's:: RID type from msg:" + recipientInfo.getRID().getType() + "  RID type from priv cert: " + certRecId.getType());
@@ -255,6 +239,18 @@ public class BCCryptoHelper implements ICryptoHelper {
     }
 
     public void deinitialize() {
+        contextCache.invalidate();
+    }
+
+    public void invalidateCache() {
+        contextCache.invalidate();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Crypto context cache cleared");
+        }
+    }
+
+    public CryptoContextCache getContextCache() {
+        return contextCache;
     }
 
     public MimeBodyPart encrypt(MimeBodyPart part, Certificate cert, String algorithm, String contentTxfrEncoding) throws GeneralSecurityException, SMIMEException, MessagingException {
@@ -268,7 +264,7 @@ public class BCCryptoHelper implements ICryptoHelper {
             logger.debug("Encrypting on MIME part containing the following headers: " + AS2Util.printHeaders(part.getAllHeaders()));
         }
 
-        gen.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(x509Cert).setProvider("BC"));
+        gen.addRecipientInfoGenerator(contextCache.getRecipientInfoGenerator(x509Cert));
 
         return gen.generate(part, getOutputEncryptor(algorithm));
     }
@@ -301,8 +297,7 @@ public class BCCryptoHelper implements ICryptoHelper {
             }
             // Standardise identifier and remove the dash for SHA based digest for signing call
             digest = standardiseAlgorithmIdentifier(digest, false);
-            JcaSimpleSignerInfoGeneratorBuilder jSig = new JcaSimpleSignerInfoGeneratorBuilder().setProvider("BC");
-            sig = jSig.build(digest + "with" + encryptAlg, privKey, x509Cert);
+            sig = contextCache.getSignerInfoGeneratorBuilder().build(digest + "with" + encryptAlg, privKey, x509Cert);
             // Some AS2 systems cannot handle certain OID's ...
             if (isRemoveCmsAlgorithmProtectionAttr) {
                 final CMSAttributeTableGenerator sAttrGen = sig.getSignedAttributeTableGenerator();
@@ -339,12 +334,11 @@ public class BCCryptoHelper implements ICryptoHelper {
         X509Certificate x509Cert = castCertificate(cert);
 
         MimeMultipart mainParts = (MimeMultipart) part.getContent();
+        // The signed content is the first part. The parser digests it as it is read from the multipart
+        MimeBodyPart signedContent = (MimeBodyPart) mainParts.getBodyPart(0);
 
-        SMIMESigned signedPart = new SMIMESigned(mainParts);
-        //SignerInformationStore  signers = signedPart.getSignerInfos();
-
-        DigestCalculatorProvider dcp = new JcaDigestCalculatorProviderBuilder().setProvider("BC").build();
-        String contentTxfrEnc = signedPart.getContent().getEncoding();
+        DigestCalculatorProvider dcp = contextCache.getDigestCalculatorProvider();
+        String contentTxfrEnc = signedContent.getEncoding();
         if (contentTxfrEnc == null || contentTxfrEnc.length() < 1) {
             contentTxfrEnc = Session.DEFAULT_CONTENT_TRANSFER_ENCODING;
         }
@@ -364,7 +358,7 @@ public class BCCryptoHelper implements ICryptoHelper {
         }
 
         Iterator<SignerInformation> it = sis.getSigners().iterator();
-        SignerInformationVerifier signerInfoVerifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(x509Cert);
+        SignerInformationVerifier signerInfoVerifier = contextCache.getVerifier(x509Cert);
         while (it.hasNext()) {
             SignerInformation signer = it.next();
             if (logger.isTraceEnabled()) {
@@ -396,7 +390,7 @@ public class BCCryptoHelper implements ICryptoHelper {
                 // normal check
                 if (signer.verify(signerInfoVerifier)) {
                     logSignerInfo("Verified signature for signer info", signer, part, x509Cert);
-                    return signedPart.getContent();
+                    return signedContent;
                 }
             } catch (CMSVerifierCertificateNotValidException ex) {
                 String as2SignIgnoreTimeIssue = Properties.getProperty("as2_sign_allow_expired_certificate", "false");
@@ -405,7 +399,7 @@ public class BCCryptoHelper implements ICryptoHelper {
                     // if flag is enabled log only issue
                     if (signer.verify(signerInfoVerifier)) {
                         logSignerWarn("Verified signature for signer info EXCLUDING certificate date verification (OUTDATED CERTIFICATE)", signer, part, x509Cert);
-                        return signedPart.getContent();
+                        return signedContent;
                     }
                 }
             }
@@ -439,13 +433,24 @@ public class BCCryptoHelper implements ICryptoHelper {
     }
 
     public void decompress(AS2Message msg) throws DispositionException {
+        decompress(msg, null);
+    }
+
+    public void decompress(AS2Message msg, File spoolFile) throws DispositionException {
         try {
             if (logger.isDebugEnabled()) {
                 logger.debug("Decompressing a compressed message");
             }
-            SMIMECompressed compressed = new SMIMECompressed(msg.getData());
             // decompression step MimeBodyPart
-            MimeBodyPart recoveredPart = SMIMEUtil.toMimeBodyPart(compressed.getContent(new ZlibExpanderProvider()));
+            MimeBodyPart recoveredPart;
+            if (spoolFile == null) {
+                SMIMECompressed compressed = new SMIMECompressed(msg.getData());
+                recoveredPart = SMIMEUtil.toMimeBodyPart(compressed.getContent(new ZlibExpanderProvider()));
+            } else {
+                // Inflate straight into the spool file as the compressed content is read
+                SMIMECompressedParser compressed = new SMIMECompressedParser(msg.getData());
+                recoveredPart = SMIMEUtil.toMimeBodyPart(compressed.getContent(new ZlibExpanderProvider()), spoolFile);
+            }
             // Update the message object
             msg.setData(recoveredPart);
         } catch (Exception ex) {
@@ -638,25 +643,6 @@ public class BCCryptoHelper implements ICryptoHelper {
         return oe;
     }
 
-    protected InputStream trimCRLFPrefix(byte[] data) {
-        ByteArrayInputStream bIn = new ByteArrayInputStream(data);
-
-        int scanPos = 0;
-        int len = data.length;
-
-        while (scanPos < (len - 1)) {
-            if (new String(data, scanPos, 2).equals("\r\n")) {
-                bIn.read();
-                bIn.read();
-                scanPos += 2;
-            } else {
-                return bIn;
-            }
-        }
-
-        return bIn;
-    }
-
     public KeyStore getKeyStore() throws KeyStoreException, NoSuchProviderException {
         return KeyStore.getInstance("PKCS12", "BC");
     }
@@ -0,0 +1,119 @@
+package org.openas2.lib.helper;
+
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cms.KeyTransRecipientId;
+import org.bouncycastle.cms.SignerInformationVerifier;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.util.PrivateKeyFactory;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.IOException;
+import java.security.Key;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the Bouncy Castle objects derived from certificates and private keys so they are built once per key
+ * rather than once per message: the shared signer and digest builders, the decoded private key parameters
+ * used for decryption, the signature verifiers, the recipient info generators used for encryption and the
+ * recipient IDs matched on decryption.
+ * <p>
+ * Everything held here is safe to share between threads. The verifiers and generators create a fresh
+ * Signature, Cipher or MessageDigest for each use. All entries are dropped in one step by {@link #invalidate()}
+ * when the keystore is reloaded so no message is processed with a mix of old and new keys.
+ */
+public class CryptoContextCache {
+    private volatile Entries entries = new Entries();
+    private volatile DigestCalculatorProvider digestCalculatorProvider;
+    private volatile JcaSimpleSignerInfoGeneratorBuilder signerInfoGeneratorBuilder;
+    private final JcaSimpleSignerInfoVerifierBuilder verifierBuilder = new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC");
+
+    /**
+     * Drops everything derived from the current certificates and keys.
+     */
+    public void invalidate() {
+        entries = new Entries();
+    }
+
+    public DigestCalculatorProvider getDigestCalculatorProvider() throws OperatorCreationException {
+        DigestCalculatorProvider provider = digestCalculatorProvider;
+        if (provider == null) {
+            provider = new JcaDigestCalculatorProviderBuilder().setProvider("BC").build();
+            digestCalculatorProvider = provider;
+        }
+        return provider;
+    }
+
+    /**
+     * @return a signer info generator builder. Its build method only reads its configuration and creates a
+     * new content signer each time so one instance can be shared.
+     */
+    public JcaSimpleSignerInfoGeneratorBuilder getSignerInfoGeneratorBuilder() throws OperatorCreationException {
+        JcaSimpleSignerInfoGeneratorBuilder builder = signerInfoGeneratorBuilder;
+        if (builder == null) {
+            builder = new JcaSimpleSignerInfoGeneratorBuilder().setProvider("BC");
+            signerInfoGeneratorBuilder = builder;
+        }
+        return builder;
+    }
+
+    public AsymmetricKeyParameter getKeyParameter(Key key) throws IOException {
+        ConcurrentMap<Key, AsymmetricKeyParameter> cache = entries.keyParameters;
+        AsymmetricKeyParameter param = cache.get(key);
+        if (param == null) {
+            param = PrivateKeyFactory.createKey(PrivateKeyInfo.getInstance(key.getEncoded()));
+            cache.putIfAbsent(key, param);
+        }
+        return param;
+    }
+
+    public SignerInformationVerifier getVerifier(X509Certificate cert) throws OperatorCreationException {
+        ConcurrentMap<X509Certificate, SignerInformationVerifier> cache = entries.verifiers;
+        SignerInformationVerifier verifier = cache.get(cert);
+        if (verifier == null) {
+            verifier = verifierBuilder.build(cert);
+            cache.putIfAbsent(cert, verifier);
+        }
+        return verifier;
+    }
+
+    public JceKeyTransRecipientInfoGenerator getRecipientInfoGenerator(X509Certificate cert) throws CertificateEncodingException {
+        ConcurrentMap<X509Certificate, JceKeyTransRecipientInfoGenerator> cache = entries.recipientInfoGenerators;
+        JceKeyTransRecipientInfoGenerator generator = cache.get(cert);
+        if (generator == null) {
+            generator = new JceKeyTransRecipientInfoGenerator(cert).setProvider("BC");
+            cache.putIfAbsent(cert, generator);
+        }
+        return generator;
+    }
+
+    public KeyTransRecipientId getRecipientId(X509Certificate cert) {
+        ConcurrentMap<X509Certificate, KeyTransRecipientId> cache = entries.recipientIds;
+        KeyTransRecipientId recipientId = cache.get(cert);
+        if (recipientId == null) {
+            recipientId = new KeyTransRecipientId(new X500Name(cert.getIssuerX500Principal().getName()), cert.getSerialNumber());
+            cache.putIfAbsent(cert, recipientId);
+        }
+        return recipientId;
+    }
+
+    public int size() {
+        Entries current = entries;
+        return current.keyParameters.size() + current.verifiers.size() + current.recipientInfoGenerators.size() + current.recipientIds.size();
+    }
+
+    private static class Entries {
+        private final ConcurrentMap<Key, AsymmetricKeyParameter> keyParameters = new ConcurrentHashMap<Key, AsymmetricKeyParameter>();
+        private final ConcurrentMap<X509Certificate, SignerInformationVerifier> verifiers = new ConcurrentHashMap<X509Certificate, SignerInformationVerifier>();
+        private final ConcurrentMap<X509Certificate, JceKeyTransRecipientInfoGenerator> recipientInfoGenerators = new ConcurrentHashMap<X509Certificate, JceKeyTransRecipientInfoGenerator>();
+        private final ConcurrentMap<X509Certificate, KeyTransRecipientId> recipientIds = new ConcurrentHashMap<X509Certificate, KeyTransRecipientId>();
+    }
+}
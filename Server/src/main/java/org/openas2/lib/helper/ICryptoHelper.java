@@ -7,7 +7,9 @@ import org.openas2.message.AS2Message;
 import org.openas2.message.Message;
 
 import javax.mail.internet.MimeBodyPart;
+import java.io.File;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
@@ -54,8 +56,14 @@ public interface ICryptoHelper {
 
     String calculateMIC(MimeBodyPart part, String digest, boolean includeHeaders, boolean noCanonicalize) throws Exception;
 
+    MicCalculator createMicCalculator(MimeBodyPart part, String digest, boolean noCanonicalize) throws Exception;
+
+    void writeMicContent(MimeBodyPart part, boolean includeHeaders, OutputStream out) throws Exception;
+
     MimeBodyPart decrypt(MimeBodyPart part, Certificate cert, Key key) throws Exception;
 
+    MimeBodyPart decrypt(MimeBodyPart part, Certificate cert, Key key, File spoolFile) throws Exception;
+
     MimeBodyPart encrypt(MimeBodyPart part, Certificate cert, String algorithm, String contentTxfrEncoding) throws Exception;
 
     void initialize() throws Exception;
@@ -67,4 +75,8 @@ public interface ICryptoHelper {
     MimeBodyPart compress(Message msg, MimeBodyPart mbp, String compressionType, String contentTxfrEncoding) throws SMIMEException, OpenAS2Exception;
 
     void decompress(AS2Message msg) throws DispositionException;
+
+    void decompress(AS2Message msg, File spoolFile) throws DispositionException;
+
+    void invalidateCache();
 }
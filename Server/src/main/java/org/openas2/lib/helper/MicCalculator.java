@@ -0,0 +1,119 @@
+package org.openas2.lib.helper;
+
+import org.bouncycastle.mail.smime.util.CRLFOutputStream;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Calculates a MIC over whatever is written to its output stream in a single pass and in constant memory.
+ * <p>
+ * The data is canonicalised to CRLF line endings when required and any leading CRLF pairs are dropped as
+ * it is written, then fed straight into the digest. The stream can be written to directly or teed off
+ * another stream so the MIC is worked out while the same data is being written somewhere else.
+ */
+public class MicCalculator {
+    private final MessageDigest messageDigest;
+    private final String digest;
+    private final OutputStream out;
+    private final LeadingCRLFTrimmer trimmer;
+    private String mic;
+
+    /**
+     * @param messageDigest the digest to calculate the MIC with
+     * @param digest        the digest name as it should appear in the MIC
+     * @param canonicalize  true to convert line endings to CRLF before digesting
+     */
+    public MicCalculator(MessageDigest messageDigest, String digest, boolean canonicalize) {
+        this.messageDigest = messageDigest;
+        this.digest = digest;
+        this.trimmer = new LeadingCRLFTrimmer(messageDigest);
+        this.out = canonicalize ? new CRLFOutputStream(trimmer) : trimmer;
+    }
+
+    /**
+     * @return the stream to write the data to. Closing it does not close anything else.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Completes the digest. Nothing more may be written afterwards.
+     *
+     * @return the MIC in the form "base64 digest, digest name"
+     */
+    public String getMic() throws IOException {
+        if (mic == null) {
+            out.flush();
+            trimmer.finish();
+            mic = new String(Base64.encode(messageDigest.digest())) + ", " + digest;
+        }
+        return mic;
+    }
+
+    /**
+     * Drops CRLF pairs at the start of the data and passes everything after them to the digest.
+     */
+    private static class LeadingCRLFTrimmer extends FilterOutputStream {
+        private final MessageDigest md;
+        private boolean trimming = true;
+        private boolean pendingCR;
+
+        LeadingCRLFTrimmer(MessageDigest md) {
+            super(null);
+            this.md = md;
+        }
+
+        @Override
+        public void write(int b) {
+            if (trimming) {
+                if (pendingCR) {
+                    pendingCR = false;
+                    if (b == '\n') {
+                        return;
+                    }
+                    trimming = false;
+                    md.update((byte) '\r');
+                } else if (b == '\r') {
+                    pendingCR = true;
+                    return;
+                } else {
+                    trimming = false;
+                }
+            }
+            md.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (trimming && len > 0) {
+                write(b[off++]);
+                len--;
+            }
+            if (len > 0) {
+                md.update(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void finish() {
+            if (pendingCR) {
+                // A lone CR at the end is data not part of a CRLF prefix
+                pendingCR = false;
+                trimming = false;
+                md.update((byte) '\r');
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@ import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.SharedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
@@ -66,6 +67,18 @@ public class MimeUtil {
         return part;
     }
 
+    /**
+     * Creates a MimeBodyPart whose content is read on demand from a shared stream such as a spool file
+     * instead of being loaded into memory.
+     *
+     * @param headers The MIME headers for the body part
+     * @param content The raw (still transfer encoded) content of the body part
+     * @return the body part
+     */
+    public static MimeBodyPart createMimeBodyPart(InternetHeaders headers, SharedInputStream content) {
+        return new SharedStreamMimeBodyPart(headers, content);
+    }
+
     public static MimeBodyPart createMimeBodyPart(MimeMultipart multipart) throws MessagingException {
         MimeBodyPart part = new MimeBodyPart();
         part.setContent(multipart);
@@ -112,4 +125,11 @@ public class MimeUtil {
         return os.toString();
     }
 
+    private static class SharedStreamMimeBodyPart extends MimeBodyPart {
+        SharedStreamMimeBodyPart(InternetHeaders headers, SharedInputStream content) {
+            super();
+            this.headers = headers;
+            this.contentStream = (InputStream) content;
+        }
+    }
 }
@@ -5,20 +5,29 @@ import org.openas2.util.Properties;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 
 public abstract class BaseFormatter implements Formatter {
 
     protected String dateFormat = Properties.getProperty("log_date_format", "yyyy-MM-dd HH:mm:ss.SSS");
 
+    public void format(Level level, String msg, OutputStream out) {
+        format(level, msg, System.currentTimeMillis(), out);
+    }
+
     @Override
     public void setDateFormat(String dateFormat) {
         this.dateFormat = dateFormat;
     }
 
     public String format(Level level, String msg) {
+        return format(level, msg, System.currentTimeMillis());
+    }
+
+    public String format(Level level, String msg, long timestamp) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        format(level, msg, baos);
+        format(level, msg, timestamp, baos);
 
         String output = new String(baos.toByteArray());
 
@@ -8,9 +8,21 @@ import org.openas2.message.Message;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+/**
+ * Base for the configured loggers.
+ * <p>
+ * The level parameter sets the lowest level the logger writes. It is checked before the log text is built.
+ * With dispatch set to async the entries are handed to the logger by a background thread shared by all
+ * async loggers instead of on the logging thread. Only the text, the message's log ID and the time of the entry
+ * are kept while it is queued since the message may change before the entry is written.
+ */
 public abstract class BaseLogger extends BaseComponent implements Logger {
     public static final String PARAM_EXCEPTIONS = "exceptions";
     public static final String PARAM_SHOW = "show";
+    public static final String PARAM_LEVEL = "level";
+    public static final String PARAM_DISPATCH = "dispatch";
+    public static final String VALUE_DISPATCH_SYNC = "sync";
+    public static final String VALUE_DISPATCH_ASYNC = "async";
     public static final String VALUE_SHOW_ALL = "all"; // all exceptions (terminated or not) and info
     public static final String VALUE_SHOW_TERMINATED = "terminated"; // all terminated exceptions
     public static final String VALUE_SHOW_EXCEPTIONS = "exceptions"; // all non-terminated exceptions
@@ -18,10 +30,33 @@ public abstract class BaseLogger extends BaseComponent implements Logger {
     private Formatter formatter;
 
     private boolean logExceptionTrace = true;
+    private int levelThreshold = Log.LOG_LEVEL_ALL;
+    private LogDispatcher dispatcher = null;
 
     public void init(Session session, Map<String, String> parameters) throws OpenAS2Exception {
         super.init(session, parameters);
         logExceptionTrace = "true".equalsIgnoreCase(parameters.getOrDefault("log_exception_trace", "true"));
+        String level = getParameter(PARAM_LEVEL, false);
+        if (level != null && level.length() > 0) {
+            levelThreshold = Log.getIntLogLevel(level);
+            if (levelThreshold < 0) {
+                throw new OpenAS2Exception("Invalid " + PARAM_LEVEL + " \"" + level + "\". Must be one of: all, trace, debug, info, warn, error, off");
+            }
+        }
+        String dispatch = getParameter(PARAM_DISPATCH, false);
+        if (VALUE_DISPATCH_ASYNC.equalsIgnoreCase(dispatch)) {
+            setDispatcher(LogDispatcher.getInstance());
+        } else if (dispatch != null && dispatch.length() > 0 && !VALUE_DISPATCH_SYNC.equalsIgnoreCase(dispatch)) {
+            throw new OpenAS2Exception("Invalid " + PARAM_DISPATCH + " \"" + dispatch + "\". Must be one of: " + VALUE_DISPATCH_SYNC + ", " + VALUE_DISPATCH_ASYNC);
+        }
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.getValue() >= levelThreshold;
+    }
+
+    void setDispatcher(LogDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
     }
 
     public boolean isLogExceptionTrace() {
@@ -49,13 +84,13 @@ public abstract class BaseLogger extends BaseComponent implements Logger {
             OpenAS2Exception e = (OpenAS2Exception) t;
             if (isLogging(e)) {
                 if (terminated && isShowing(VALUE_SHOW_TERMINATED)) {
-                    doLog(e, terminated);
+                    dispatchLog(e, terminated);
                 } else if (!terminated && isShowing(VALUE_SHOW_EXCEPTIONS)) {
-                    doLog(e, terminated);
+                    dispatchLog(e, terminated);
                 }
             }
         } else if (t != null) {
-            doLog(t, terminated);
+            dispatchLog(t, terminated);
 
         }
     }
@@ -64,9 +99,28 @@ public abstract class BaseLogger extends BaseComponent implements Logger {
      * level msgText message
      */
     public void log(Level level, String msgText, Message message, Throwable t) {
-        doLog(level, msgText, message);
+        if (dispatcher == null || !dispatcher.dispatch(this, level, msgText, message)) {
+            doLog(level, msgText, message);
+        }
         if (t != null && isLogExceptionTrace()) {
-            doLog(t, false);
+            dispatchLog(t, false);
+        }
+    }
+
+    /**
+     * Writes an entry that was queued for the dispatch thread. Loggers that stamp entries with the time should
+     * override this to use the time the entry was logged.
+     *
+     * @param logMsgId  the log ID of the message when the entry was logged or an empty string
+     * @param timestamp the time the entry was logged in milliseconds since the epoch
+     */
+    protected void doLog(Level level, String msgText, String logMsgId, long timestamp) {
+        doLog(level, msgText + logMsgId, null);
+    }
+
+    private void dispatchLog(Throwable t, boolean terminated) {
+        if (dispatcher == null || !dispatcher.dispatch(this, t, terminated)) {
+            doLog(t, terminated);
         }
     }
 
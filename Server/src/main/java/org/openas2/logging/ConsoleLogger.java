@@ -5,8 +5,13 @@ import org.openas2.message.Message;
 
 public class ConsoleLogger extends BaseLogger {
     public void doLog(Level level, String msgText, Message as2Msg) {
+        doLog(level, msgText, as2Msg == null ? "" : as2Msg.getLogMsgID(), System.currentTimeMillis());
+    }
+
+    @Override
+    protected void doLog(Level level, String msgText, String logMsgId, long timestamp) {
         if (System.out != null) {
-            getFormatter().format(level, msgText + (as2Msg == null ? "" : as2Msg.getLogMsgID()), System.out);
+            getFormatter().format(level, msgText + logMsgId, timestamp, System.out);
         }
     }
 
@@ -7,6 +7,7 @@ import org.openas2.util.DateUtil;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -35,11 +36,11 @@ public class DefaultFormatter extends BaseFormatter {
         return buf.toString();
     }
 
-    public void format(Level level, String msg, OutputStream out) {
+    public void format(Level level, String msg, long timestamp, OutputStream out) {
         PrintWriter writer = new PrintWriter(out);
 
         // Write timestamp
-        writer.print(DateUtil.formatDate(dateFormat));
+        writer.print(DateUtil.formatDate(dateFormat, new Date(timestamp)));
 
         // Write log level
         writer.print(" ");
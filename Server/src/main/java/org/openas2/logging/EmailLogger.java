@@ -23,10 +23,25 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emails errors to an administrator.
+ * <p>
+ * Errors are queued and sent by a background thread so logging never waits on the mail server. Errors
+ * logged within the digest window are grouped by partnership and error type and sent as a single email
+ * listing how often each occurred with the first few examples. After repeated failures to reach the mail
+ * server no emails are attempted for an increasing period and the errors are kept for the next digest.
+ * Errors logged while the queue is full are dropped.
+ */
 public class EmailLogger extends BaseLogger {
     public static final String PARAM_FROM_DISPLAY = "from_display";
     public static final String PARAM_FROM = "from";
@@ -38,10 +53,49 @@ public class EmailLogger extends BaseLogger {
     public static final String PARAM_BODY = "body";
     public static final String PARAM_BODYTEMPLATE = "bodytemplate";
     public static final String PARAM_ONLY_ACTIVE_MSG_TRANSFER_ERRORS = "only_active_msg_transfer_errors";
+    public static final String PARAM_QUEUE_SIZE = "queue_size";
+    public static final String PARAM_DIGEST_WINDOW = "digest_window_ms";
+    public static final String PARAM_MAX_EXAMPLES = "max_examples";
+    public static final String PARAM_CIRCUIT_FAILURE_THRESHOLD = "circuit_failure_threshold";
+    public static final String PARAM_CIRCUIT_OPEN = "circuit_open_ms";
+    public static final String PARAM_CIRCUIT_MAX_OPEN = "circuit_max_open_ms";
+
+    private static final int MAX_BATCH_ENTRIES = 256;
+    private static final int MAX_GROUPS = 50;
+    private static final int MAX_ERROR_TYPE_LENGTH = 200;
+    private static final long IDLE_WAIT_MS = 1000;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final String NO_PARTNERSHIP = "none";
 
     private Properties props = new Properties();
     private boolean isDebugOn = false;
     private boolean onlyActiveMsgTransferErrors = false;
+    private String subjectTemplate = null;
+    private String bodyText = null;
+    private String templateText = null;
+
+    private long digestWindow;
+    private int maxExamples;
+    private int circuitFailureThreshold;
+    private long circuitOpenDelay;
+    private long circuitMaxOpenDelay;
+    private LogRingBuffer<ErrorEvent> buffer = null;
+    private Thread senderThread = null;
+    private Thread shutdownHook = null;
+
+    // Only used by the sender thread
+    private Digest digest = null;
+    private int consecutiveFailures = 0;
+    private long openDelay = 0;
+    private long nextSendTime = 0;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong reportedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong circuitOpenedCount = new AtomicLong();
+    private volatile long pendingCount = 0;
+    private volatile boolean circuitOpen = false;
 
     public void init(Session session, Map<String, String> parameters) throws OpenAS2Exception {
         super.init(session, parameters);
@@ -77,6 +131,23 @@ public class EmailLogger extends BaseLogger {
                 }
             }
         }
+        isDebugOn = "true".equalsIgnoreCase(System.getProperty("maillogger.debug.enabled", "false"));
+        subjectTemplate = getParameter(PARAM_SUBJECT, false);
+        bodyText = getParameter(PARAM_BODY, false);
+        if (getParameter(PARAM_BODYTEMPLATE, false) != null) {
+            templateText = getTemplateText();
+        }
+
+        int queueSize = getParameterInt(PARAM_QUEUE_SIZE, false, 1000);
+        if (queueSize < 1) {
+            throw new OpenAS2Exception(PARAM_QUEUE_SIZE + " must be greater than zero: " + queueSize);
+        }
+        digestWindow = getParameterInt(PARAM_DIGEST_WINDOW, false, 300000);
+        maxExamples = getParameterInt(PARAM_MAX_EXAMPLES, false, 5);
+        circuitFailureThreshold = Math.max(1, getParameterInt(PARAM_CIRCUIT_FAILURE_THRESHOLD, false, 3));
+        circuitOpenDelay = Math.max(1, getParameterInt(PARAM_CIRCUIT_OPEN, false, 60000));
+        circuitMaxOpenDelay = Math.max(circuitOpenDelay, getParameterInt(PARAM_CIRCUIT_MAX_OPEN, false, 900000));
+        startSender(queueSize);
     }
 
     public void doLog(Level level, String msgText, Message as2Msg) {
@@ -87,17 +158,16 @@ public class EmailLogger extends BaseLogger {
             return;
         }
 
-        isDebugOn = "true".equalsIgnoreCase(System.getProperty("maillogger.debug.enabled", "false"));
         try {
-            String subject = getParameter(PARAM_SUBJECT, false);
+            String subject = subjectTemplate;
 
             if (subject == null) {
-                subject = getSubject(null);
+                subject = getSubject(level, msgText);
             }
             subject = parseText(null, false, subject);
-            sendMessage(subject, getFormatter().format(level, msgText + (as2Msg == null ? "" : as2Msg.getLogMsgID())));
+            queue(new ErrorEvent(getPartnershipName(as2Msg), getErrorType(msgText), subject, getFormatter().format(level, msgText + (as2Msg == null ? "" : as2Msg.getLogMsgID()))));
         } catch (Exception e) {
-            System.out.println("Failed to send email: " + org.openas2.logging.Log.getExceptionMsg(e));
+            System.out.println("Failed to queue email: " + org.openas2.logging.Log.getExceptionMsg(e));
             e.printStackTrace();
         }
     }
@@ -106,9 +176,8 @@ public class EmailLogger extends BaseLogger {
         if (onlyActiveMsgTransferErrors) {
             return;
         }
-        isDebugOn = "true".equalsIgnoreCase(System.getProperty("maillogger.debug.enabled", "false"));
         try {
-            String subject = getParameter(PARAM_SUBJECT, false);
+            String subject = subjectTemplate;
 
             if (subject == null) {
                 subject = getSubject(t);
@@ -118,25 +187,161 @@ public class EmailLogger extends BaseLogger {
 
             StringBuffer body = new StringBuffer();
 
-            if (getParameter(PARAM_BODY, false) != null) {
-                body.append(parseText(t, terminated, getParameter(PARAM_BODY, false)));
+            if (bodyText != null) {
+                body.append(parseText(t, terminated, bodyText));
             }
 
             body.append(System.getProperty("line.separator"));
 
-            if (getParameter(PARAM_BODYTEMPLATE, false) != null) {
-                body.append(parseText(t, terminated, getTemplateText()));
+            if (templateText != null) {
+                body.append(parseText(t, terminated, templateText));
             } else {
                 body.append(getFormatter().format(t, terminated));
             }
 
-            sendMessage(subject, body.toString());
+            Message msg = null;
+            if (t instanceof OpenAS2Exception) {
+                msg = (Message) ((OpenAS2Exception) t).getSource(OpenAS2Exception.SOURCE_MESSAGE);
+            }
+            Throwable source = t instanceof WrappedException ? ((WrappedException) t).getSource() : t;
+            queue(new ErrorEvent(getPartnershipName(msg), source.getClass().getName(), subject, body.toString()));
         } catch (Exception e) {
-            System.out.println("Failed to send email: " + org.openas2.logging.Log.getExceptionMsg(e));
+            System.out.println("Failed to queue email: " + org.openas2.logging.Log.getExceptionMsg(e));
             e.printStackTrace();
         }
     }
 
+    /**
+     * Stops the sender thread after it has tried to send the errors not yet emailed.
+     */
+    @Override
+    public void destroy() throws Exception {
+        stopSender();
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down
+            }
+            shutdownHook = null;
+        }
+    }
+
+    /**
+     * @return the queue depth, errors waiting for the next digest and counts of digests sent and failed
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("queued", buffer == null ? 0L : buffer.size());
+        stats.put("pending", pendingCount);
+        stats.put("dropped", droppedCount.get());
+        stats.put("reported", reportedCount.get());
+        stats.put("sent", sentCount.get());
+        stats.put("failed", failedCount.get());
+        stats.put("circuitOpened", circuitOpenedCount.get());
+        stats.put("circuitOpen", circuitOpen ? 1L : 0L);
+        return stats;
+    }
+
+    private void queue(ErrorEvent event) {
+        if (buffer == null || !buffer.offer(event)) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private String getPartnershipName(Message msg) {
+        if (msg == null || msg.getPartnership() == null || msg.getPartnership().getName() == null) {
+            return NO_PARTNERSHIP;
+        }
+        return msg.getPartnership().getName();
+    }
+
+    private String getErrorType(String msgText) {
+        if (msgText == null) {
+            return "";
+        }
+        int end = msgText.indexOf('\n');
+        if (end < 0) {
+            end = msgText.length();
+        }
+        return msgText.substring(0, Math.min(end, MAX_ERROR_TYPE_LENGTH)).trim();
+    }
+
+    private void startSender(int queueSize) {
+        buffer = new LogRingBuffer<ErrorEvent>(queueSize);
+        senderThread = new Thread(new DigestSender(), "EmailLoggerSender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+        // Loggers are not destroyed with the session so try to send what is left on exit
+        shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopSender();
+            }
+        }, "EmailLoggerShutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private void stopSender() {
+        LogRingBuffer<ErrorEvent> ringBuffer = buffer;
+        Thread sender = senderThread;
+        if (ringBuffer == null || sender == null) {
+            return;
+        }
+        ringBuffer.close();
+        try {
+            sender.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void addToDigest(ErrorEvent event) {
+        if (digest == null) {
+            digest = new Digest(event.timestamp);
+        }
+        digest.add(event, maxExamples);
+        pendingCount = digest.total;
+    }
+
+    private void sendDigest() {
+        Digest toSend = digest;
+        try {
+            if (toSend.total == 1) {
+                ErrorEvent event = toSend.groups.values().iterator().next().examples.get(0);
+                sendMessage(event.subject, event.body);
+            } else {
+                sendMessage(toSend.getSubject(), toSend.getText());
+            }
+        } catch (Exception e) {
+            failedCount.incrementAndGet();
+            consecutiveFailures++;
+            long now = System.currentTimeMillis();
+            if (consecutiveFailures >= circuitFailureThreshold) {
+                // Stop trying the mail server for a while and keep collecting errors for the next attempt
+                openDelay = openDelay == 0 ? circuitOpenDelay : Math.min(openDelay * 2, circuitMaxOpenDelay);
+                nextSendTime = now + openDelay;
+                if (!circuitOpen) {
+                    circuitOpen = true;
+                    circuitOpenedCount.incrementAndGet();
+                }
+                System.out.println("Failed to send email, not trying again for " + openDelay + "ms: " + org.openas2.logging.Log.getExceptionMsg(e));
+            } else {
+                nextSendTime = now + RETRY_DELAY_MS;
+                System.out.println("Failed to send email: " + org.openas2.logging.Log.getExceptionMsg(e));
+            }
+            return;
+        }
+        sentCount.incrementAndGet();
+        reportedCount.addAndGet(toSend.total);
+        consecutiveFailures = 0;
+        openDelay = 0;
+        nextSendTime = 0;
+        circuitOpen = false;
+        digest = null;
+        pendingCount = 0;
+    }
+
     protected String getShowDefaults() {
         return (VALUE_SHOW_EXCEPTIONS + "," + VALUE_SHOW_TERMINATED);
     }
@@ -361,13 +566,142 @@ public class EmailLogger extends BaseLogger {
                 Transport.send(m);
             }
         } catch (MessagingException me) {
-            me.printStackTrace();
-        } catch (InvalidParameterException ipe) {
-            ipe.printStackTrace();
+            throw new OpenAS2Exception("Failed to send email: " + me.getMessage(), me);
         } finally {
             if (isDebugOn) {
                 System.out.println("Mail Logger EXIT...:::");
             }
         }
     }
+
+    private class DigestSender implements Runnable {
+        @Override
+        public void run() {
+            List<ErrorEvent> batch = new ArrayList<ErrorEvent>(MAX_BATCH_ENTRIES);
+            LogRingBuffer<ErrorEvent> ringBuffer = buffer;
+            while (true) {
+                boolean closing = ringBuffer.isClosed();
+                while (ringBuffer.drainTo(batch, MAX_BATCH_ENTRIES) > 0) {
+                    for (ErrorEvent event : batch) {
+                        addToDigest(event);
+                    }
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (digest != null && (closing || now - digest.start >= digestWindow)) {
+                    if (now >= nextSendTime) {
+                        sendDigest();
+                    } else if (closing) {
+                        // Mail server unavailable while shutting down so give up on what is left
+                        droppedCount.addAndGet(digest.total);
+                        digest = null;
+                        pendingCount = 0;
+                    }
+                }
+                if (closing && ringBuffer.isEmpty() && digest == null) {
+                    break;
+                }
+                long wait = IDLE_WAIT_MS;
+                if (digest != null) {
+                    wait = Math.max(1, Math.min(IDLE_WAIT_MS, Math.max(digest.start + digestWindow, nextSendTime) - now));
+                }
+                ringBuffer.awaitEntries(wait);
+            }
+        }
+    }
+
+    private static class ErrorEvent {
+        private final long timestamp = System.currentTimeMillis();
+        private final String partnership;
+        private final String errorType;
+        private final String subject;
+        private final String body;
+
+        ErrorEvent(String partnership, String errorType, String subject, String body) {
+            this.partnership = partnership;
+            this.errorType = errorType;
+            this.subject = subject;
+            this.body = body;
+        }
+    }
+
+    private static class ErrorGroup {
+        private final String partnership;
+        private final String errorType;
+        private final List<ErrorEvent> examples = new ArrayList<ErrorEvent>();
+        private long count = 0;
+        private long first;
+        private long last;
+
+        ErrorGroup(String partnership, String errorType) {
+            this.partnership = partnership;
+            this.errorType = errorType;
+        }
+    }
+
+    /**
+     * Errors collected since the last email, grouped by partnership and error type.
+     */
+    private static class Digest {
+        private final long start;
+        private final Map<String, ErrorGroup> groups = new LinkedHashMap<String, ErrorGroup>();
+        private long total = 0;
+        private long end;
+
+        Digest(long start) {
+            this.start = start;
+        }
+
+        void add(ErrorEvent event, int maxExamples) {
+            String key = event.partnership + "\u0000" + event.errorType;
+            ErrorGroup group = groups.get(key);
+            if (group == null) {
+                if (groups.size() >= MAX_GROUPS) {
+                    key = "";
+                    group = groups.get(key);
+                    if (group == null) {
+                        group = new ErrorGroup("various", "other errors");
+                        groups.put(key, group);
+                    }
+                } else {
+                    group = new ErrorGroup(event.partnership, event.errorType);
+                    groups.put(key, group);
+                }
+            }
+            if (group.count == 0) {
+                group.first = event.timestamp;
+            }
+            group.count++;
+            group.last = event.timestamp;
+            if (group.examples.size() < Math.max(1, maxExamples)) {
+                group.examples.add(event);
+            }
+            total++;
+            end = event.timestamp;
+        }
+
+        String getSubject() {
+            ErrorEvent first = groups.values().iterator().next().examples.get(0);
+            return "OpenAS2 Log Digest: " + total + " errors, first: " + first.subject;
+        }
+
+        String getText() {
+            String nl = System.getProperty("line.separator");
+            StringBuilder text = new StringBuilder();
+            text.append(total).append(" errors were logged from ").append(Instant.ofEpochMilli(start)).append(" to ").append(Instant.ofEpochMilli(end)).append('.').append(nl);
+            for (ErrorGroup group : groups.values()) {
+                text.append(nl).append("Partnership: ").append(group.partnership).append(nl);
+                text.append("Error: ").append(group.errorType).append(nl);
+                text.append("Occurrences: ").append(group.count).append(" (first ").append(Instant.ofEpochMilli(group.first));
+                text.append(", last ").append(Instant.ofEpochMilli(group.last)).append(')').append(nl);
+                for (ErrorEvent example : group.examples) {
+                    text.append(nl).append(example.subject).append(nl).append(example.body).append(nl);
+                }
+                if (group.count > group.examples.size()) {
+                    text.append(nl).append(group.count - group.examples.size()).append(" more not shown").append(nl);
+                }
+            }
+            return text.toString();
+        }
+    }
 }
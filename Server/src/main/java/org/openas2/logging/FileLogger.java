@@ -7,20 +7,93 @@ import org.openas2.params.CompositeParameters;
 import org.openas2.params.DateParameters;
 import org.openas2.params.ParameterParser;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Writes log entries to a file named from the filename parameter. The file name may contain $date.xxx$
+ * parameters and a new file is started when the resolved name changes.
+ * <p>
+ * By default entries are queued in a ring buffer and written in batches by a dedicated writer thread
+ * that keeps the file open. The overflow_policy parameter decides what happens when the buffer is full:
+ * block (wait for space), drop_debug (drop debug and trace entries, wait for others) or drop_all.
+ * The fsync_policy parameter decides when written data is forced to disk: none (left to the OS),
+ * batch (after every batch) or interval (at most every fsync_interval_ms).
+ */
 public class FileLogger extends BaseLogger {
     public static final String PARAM_FILENAME = "filename";
+    public static final String PARAM_ASYNC = "async";
+    public static final String PARAM_QUEUE_SIZE = "queue_size";
+    public static final String PARAM_OVERFLOW_POLICY = "overflow_policy";
+    public static final String PARAM_FSYNC_POLICY = "fsync_policy";
+    public static final String PARAM_FSYNC_INTERVAL = "fsync_interval_ms";
+
+    public static final String OVERFLOW_BLOCK = "block";
+    public static final String OVERFLOW_DROP_DEBUG = "drop_debug";
+    public static final String OVERFLOW_DROP_ALL = "drop_all";
+
+    public static final String FSYNC_NONE = "none";
+    public static final String FSYNC_BATCH = "batch";
+    public static final String FSYNC_INTERVAL = "interval";
+
+    private static final int MAX_BATCH_ENTRIES = 512;
+    private static final long IDLE_WAIT_MS = 1000;
 
     private final Object fileWriteLock = new Object();
+    private String overflowPolicy;
+    private String fsyncPolicy;
+    private long fsyncInterval;
+
+    private LogRingBuffer<LogEntry> buffer = null;
+    private Thread writerThread = null;
+    private Thread shutdownHook = null;
+
+    // Only used while holding fileWriteLock
+    private FileChannel channel = null;
+    private String channelFilename = null;
+    private String resolvedFilename = null;
+    private long resolvedSecond = -1;
+    private long lastFsyncTime = 0;
+    private boolean unsyncedWrites = false;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong droppedDebugCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writeErrorCount = new AtomicLong();
+    private final AtomicLong rolloverCount = new AtomicLong();
 
     public void init(Session session, Map<String, String> parameters) throws OpenAS2Exception {
         super.init(session, parameters);
         // check if log file can be created
         getLogFile();
+        overflowPolicy = getParameter(PARAM_OVERFLOW_POLICY, OVERFLOW_BLOCK);
+        if (!OVERFLOW_BLOCK.equals(overflowPolicy) && !OVERFLOW_DROP_DEBUG.equals(overflowPolicy) && !OVERFLOW_DROP_ALL.equals(overflowPolicy)) {
+            throw new OpenAS2Exception("Invalid " + PARAM_OVERFLOW_POLICY + " \"" + overflowPolicy + "\". Must be one of: " + OVERFLOW_BLOCK + ", " + OVERFLOW_DROP_DEBUG + ", " + OVERFLOW_DROP_ALL);
+        }
+        fsyncPolicy = getParameter(PARAM_FSYNC_POLICY, FSYNC_NONE);
+        if (!FSYNC_NONE.equals(fsyncPolicy) && !FSYNC_BATCH.equals(fsyncPolicy) && !FSYNC_INTERVAL.equals(fsyncPolicy)) {
+            throw new OpenAS2Exception("Invalid " + PARAM_FSYNC_POLICY + " \"" + fsyncPolicy + "\". Must be one of: " + FSYNC_NONE + ", " + FSYNC_BATCH + ", " + FSYNC_INTERVAL);
+        }
+        fsyncInterval = getParameterInt(PARAM_FSYNC_INTERVAL, false, 1000);
+        if ("true".equalsIgnoreCase(getParameter(PARAM_ASYNC, "true"))) {
+            int queueSize = getParameterInt(PARAM_QUEUE_SIZE, false, 8192);
+            if (queueSize < 1) {
+                throw new OpenAS2Exception(PARAM_QUEUE_SIZE + " must be greater than zero: " + queueSize);
+            }
+            startWriter(queueSize);
+        }
     }
 
     protected String getShowDefaults() {
@@ -28,15 +101,33 @@ public class FileLogger extends BaseLogger {
     }
 
     protected void appendToFile(String text) {
+        appendToFile(Level.ERROR, text);
+    }
 
-        final byte[] msg = text.getBytes();
-        // one thread might have to wait a long time (several seconds) if it is busy.
-        synchronized (fileWriteLock) {
-            try (FileOutputStream fos = new FileOutputStream(getLogFile(), true)) {
-                fos.write(msg);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    /**
+     * Queues the text for the writer thread or writes it directly if the logger is not asynchronous.
+     *
+     * @param level the level of the entry, used to decide if it can be dropped when the queue is full
+     * @param text  the formatted log entry
+     */
+    protected void appendToFile(Level level, String text) {
+        LogRingBuffer<LogEntry> ringBuffer = buffer;
+        if (ringBuffer == null || ringBuffer.isClosed()) {
+            writeEntries(Collections.singletonList(new LogEntry(level, text)));
+            return;
+        }
+        LogEntry entry = new LogEntry(level, text);
+        if (ringBuffer.offer(entry)) {
+            return;
+        }
+        if (OVERFLOW_DROP_ALL.equals(overflowPolicy) || (OVERFLOW_DROP_DEBUG.equals(overflowPolicy) && entry.isDebug())) {
+            (entry.isDebug() ? droppedDebugCount : droppedCount).incrementAndGet();
+            return;
+        }
+        blockedCount.incrementAndGet();
+        if (Thread.currentThread() == writerThread || !ringBuffer.offer(entry, -1)) {
+            // Closed while waiting or interrupted so write it here rather than lose it
+            writeEntries(Collections.singletonList(entry));
         }
     }
 
@@ -78,11 +169,221 @@ public class FileLogger extends BaseLogger {
     }
 
     protected void doLog(Throwable t, boolean terminated) {
-        appendToFile(getFormatter().format(t, terminated));
+        appendToFile(Level.ERROR, getFormatter().format(t, terminated));
     }
 
     public void doLog(Level level, String msgText, Message as2Msg) {
-        appendToFile(getFormatter().format(level, msgText + (as2Msg == null ? "" : as2Msg.getLogMsgID())));
+        doLog(level, msgText, as2Msg == null ? "" : as2Msg.getLogMsgID(), System.currentTimeMillis());
+    }
+
+    @Override
+    protected void doLog(Level level, String msgText, String logMsgId, long timestamp) {
+        appendToFile(level, getFormatter().format(level, msgText + logMsgId, timestamp));
+    }
+
+    /**
+     * Stops the writer thread after it has written all queued entries and closes the log file.
+     * Entries logged after this are written directly to the file.
+     */
+    @Override
+    public void destroy() throws Exception {
+        stopWriter();
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down
+            }
+            shutdownHook = null;
+        }
+        synchronized (fileWriteLock) {
+            closeChannel();
+        }
+    }
+
+    /**
+     * @return counts of entries written, dropped and waited for since the logger was started
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        LogRingBuffer<LogEntry> ringBuffer = buffer;
+        stats.put("queued", ringBuffer == null ? 0L : ringBuffer.size());
+        stats.put("capacity", ringBuffer == null ? 0L : ringBuffer.capacity());
+        stats.put("written", writtenCount.get());
+        stats.put("blocked", blockedCount.get());
+        stats.put("droppedDebug", droppedDebugCount.get());
+        stats.put("dropped", droppedCount.get());
+        stats.put("writeErrors", writeErrorCount.get());
+        stats.put("rollovers", rolloverCount.get());
+        return stats;
     }
 
+    private void startWriter(int queueSize) {
+        buffer = new LogRingBuffer<LogEntry>(queueSize);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<LogEntry> batch = new ArrayList<LogEntry>(MAX_BATCH_ENTRIES);
+                LogRingBuffer<LogEntry> ringBuffer = buffer;
+                while (!ringBuffer.isClosed() || !ringBuffer.isEmpty()) {
+                    if (ringBuffer.drainTo(batch, MAX_BATCH_ENTRIES) > 0) {
+                        writeEntries(batch);
+                        batch.clear();
+                    } else {
+                        synchronized (fileWriteLock) {
+                            syncIfDue(false);
+                        }
+                        ringBuffer.awaitEntries(IDLE_WAIT_MS);
+                    }
+                }
+                synchronized (fileWriteLock) {
+                    syncIfDue(true);
+                }
+            }
+        }, "FileLoggerWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        // Loggers are not destroyed with the session so make sure queued entries reach the file on exit
+        shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopWriter();
+            }
+        }, "FileLoggerShutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private void stopWriter() {
+        LogRingBuffer<LogEntry> ringBuffer = buffer;
+        Thread writer = writerThread;
+        if (ringBuffer == null || writer == null) {
+            return;
+        }
+        ringBuffer.close();
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeEntries(List<LogEntry> entries) {
+        ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(entries.size() * 128);
+        for (LogEntry entry : entries) {
+            byte[] bytes = entry.text.getBytes(Charset.defaultCharset());
+            batchBytes.write(bytes, 0, bytes.length);
+        }
+        synchronized (fileWriteLock) {
+            for (int attempt = 1; attempt <= 2; attempt++) {
+                try {
+                    FileChannel fileChannel = getChannel();
+                    ByteBuffer data = ByteBuffer.wrap(batchBytes.toByteArray());
+                    while (data.hasRemaining()) {
+                        fileChannel.write(data);
+                    }
+                    writtenCount.addAndGet(entries.size());
+                    unsyncedWrites = true;
+                    syncIfDue(FSYNC_BATCH.equals(fsyncPolicy));
+                    return;
+                } catch (Exception e) {
+                    // Reopen the file in case it was removed or the channel was closed underneath us
+                    closeChannel();
+                    if (attempt == 2) {
+                        writeErrorCount.incrementAndGet();
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Must be called holding fileWriteLock.
+     * Returns the channel for the current log file name, switching files when the name changes.
+     */
+    private FileChannel getChannel() throws IOException, OpenAS2Exception {
+        String filename = getResolvedFilename();
+        if (channel != null && filename.equals(channelFilename)) {
+            return channel;
+        }
+        if (channel != null) {
+            rolloverCount.incrementAndGet();
+            closeChannel();
+        }
+        File logFile = new File(filename);
+        File parentDir = logFile.getAbsoluteFile().getParentFile();
+        if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs()) {
+            throw new OpenAS2Exception("Could not create log directories for file \"" + logFile.getAbsolutePath() + "\"");
+        }
+        channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channelFilename = filename;
+        return channel;
+    }
+
+    /*
+     * Must be called holding fileWriteLock.
+     * The file name only depends on the date so it is resolved at most once a second.
+     */
+    private String getResolvedFilename() throws OpenAS2Exception {
+        long second = System.currentTimeMillis() / 1000;
+        if (resolvedFilename == null || second != resolvedSecond) {
+            resolvedFilename = ParameterParser.parse(getParameter(PARAM_FILENAME, true), createParser());
+            resolvedSecond = second;
+        }
+        return resolvedFilename;
+    }
+
+    /*
+     * Must be called holding fileWriteLock.
+     */
+    private void syncIfDue(boolean force) {
+        if (channel == null || !unsyncedWrites || FSYNC_NONE.equals(fsyncPolicy)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (force || now - lastFsyncTime >= fsyncInterval) {
+            try {
+                channel.force(false);
+                unsyncedWrites = false;
+                lastFsyncTime = now;
+            } catch (IOException e) {
+                writeErrorCount.incrementAndGet();
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Must be called holding fileWriteLock.
+     */
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (unsyncedWrites && !FSYNC_NONE.equals(fsyncPolicy)) {
+                channel.force(false);
+            }
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+        channelFilename = null;
+        unsyncedWrites = false;
+    }
+
+    private static class LogEntry {
+        private final Level level;
+        private final String text;
+
+        LogEntry(Level level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+
+        boolean isDebug() {
+            return level == Level.FINER || level == Level.FINEST;
+        }
+    }
 }
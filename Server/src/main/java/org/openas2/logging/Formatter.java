@@ -7,10 +7,17 @@ public interface Formatter {
 
     String format(Level level, String msg);
 
+    /**
+     * @param timestamp the time the entry was logged in milliseconds since the epoch
+     */
+    String format(Level level, String msg, long timestamp);
+
     String format(Throwable t, boolean terminated);
 
     void format(Level level, String msg, OutputStream out);
 
+    void format(Level level, String msg, long timestamp, OutputStream out);
+
     void format(Throwable t, boolean terminated, OutputStream out);
 
     void setDateFormat(String dateFormat);
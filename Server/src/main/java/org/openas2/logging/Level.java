@@ -1,16 +1,26 @@
 package org.openas2.logging;
 
 public class Level {
-    public static final Level FINE = new Level("fine");
-    public static final Level FINER = new Level("finer");
-    public static final Level FINEST = new Level("finest");
-    public static final Level ERROR = new Level("error");
-    public static final Level WARNING = new Level("warning");
+    public static final Level FINE = new Level("fine", Log.LOG_LEVEL_INFO);
+    public static final Level FINER = new Level("finer", Log.LOG_LEVEL_DEBUG);
+    public static final Level FINEST = new Level("finest", Log.LOG_LEVEL_TRACE);
+    public static final Level ERROR = new Level("error", Log.LOG_LEVEL_ERROR);
+    public static final Level WARNING = new Level("warning", Log.LOG_LEVEL_WARN);
     private String name;
+    private final int value;
 
     public Level(String name) {
+        this(name, Log.LOG_LEVEL_ALL);
+    }
+
+    /**
+     * @param name  the name written to the log
+     * @param value the severity using the Log.LOG_LEVEL_* values so loggers can compare it to their threshold
+     */
+    public Level(String name, int value) {
         super();
         this.name = name;
+        this.value = value;
     }
 
     public void setName(String string) {
@@ -20,4 +30,8 @@ public class Level {
     public String getName() {
         return name;
     }
+
+    public int getValue() {
+        return value;
+    }
 }
@@ -8,6 +8,7 @@ import org.openas2.Session;
 
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -50,6 +51,15 @@ public class Log implements org.apache.commons.logging.Log {
     /** The current log level */
     protected volatile int currentLogLevel;
 
+    /** Incremented when the level override system properties change */
+    private static final AtomicInteger overrideVersion = new AtomicInteger();
+
+    /** The override version the cached override level was read for */
+    private volatile int cachedOverrideVersion = -1;
+
+    /** The level override from the system properties or -1 if there is none */
+    private volatile int overrideLogLevel = -1;
+
     static {
         // Load properties file, if found.
         // Override with system properties.
@@ -99,7 +109,7 @@ public class Log implements org.apache.commons.logging.Log {
 
     }
 
-    private static int getIntLogLevel(String lvl) {
+    static int getIntLogLevel(String lvl) {
         if ("all".equalsIgnoreCase(lvl)) {
             return (Log.LOG_LEVEL_ALL);
         } else if ("trace".equalsIgnoreCase(lvl)) {
@@ -156,21 +166,39 @@ public class Log implements org.apache.commons.logging.Log {
         return currentLogLevel;
     }
 
+    /**
+     * Makes all logs read the level override system properties again the next time a level is checked.
+     * Must be called after changing the properties so level checks do not have to read them on every call.
+     */
+    public static void refreshLevelOverrides() {
+        overrideVersion.incrementAndGet();
+    }
+
     protected boolean isLevelEnabled(int logLevel) {
+        int version = overrideVersion.get();
+        if (version != cachedOverrideVersion) {
+            overrideLogLevel = readOverrideLevel();
+            cachedOverrideVersion = version;
+        }
+        int overrideLevel = overrideLogLevel;
+        if (overrideLevel >= 0) {
+            return logLevel >= overrideLevel;
+        }
+        // log level are numerically ordered so can use simple numeric
+        // comparison
+        return logLevel >= currentLogLevel;
+    }
+
+    private int readOverrideLevel() {
         String overrideSetting = System.getProperty(Session.LOG_LEVEL_OVERRIDE_KEY + "." + clazzname, "");
 
         if ("".equals(overrideSetting)) {
             overrideSetting = System.getProperty(Session.LOG_LEVEL_OVERRIDE_KEY, "");
         }
         if (!"".equals(overrideSetting)) {
-            int overrideLevel = getIntLogLevel(overrideSetting);
-            if (overrideLevel >= 0) {
-                return logLevel >= overrideLevel;
-            }
+            return getIntLogLevel(overrideSetting);
         }
-        // log level are numerically ordered so can use simple numeric
-        // comparison
-        return logLevel >= currentLogLevel;
+        return -1;
     }
 
     /* (non-Javadoc)
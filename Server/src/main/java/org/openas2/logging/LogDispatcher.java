@@ -0,0 +1,161 @@
+package org.openas2.logging;
+
+import org.openas2.message.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background stage that hands log entries to loggers configured with dispatch="async".
+ * <p>
+ * One thread is shared by all such loggers so entries keep the order they were logged in. Logging threads
+ * only queue the entry and return. When the queue is full the entry is passed straight to the logger on the
+ * calling thread so nothing is lost and the caller never waits longer than a synchronous logger would.
+ */
+class LogDispatcher {
+    private static final int DEFAULT_QUEUE_SIZE = 8192;
+    private static final int MAX_BATCH_ENTRIES = 256;
+    private static final long IDLE_WAIT_MS = 1000;
+
+    private final LogRingBuffer<LogEvent> buffer;
+    private volatile Thread dispatchThread = null;
+
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    LogDispatcher(int queueSize) {
+        buffer = new LogRingBuffer<LogEvent>(queueSize);
+    }
+
+    static LogDispatcher getInstance() {
+        return SharedDispatcher.INSTANCE;
+    }
+
+    synchronized void start(String threadName) {
+        if (dispatchThread != null) {
+            return;
+        }
+        dispatchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<LogEvent> batch = new ArrayList<LogEvent>(MAX_BATCH_ENTRIES);
+                while (!buffer.isClosed() || !buffer.isEmpty()) {
+                    if (buffer.drainTo(batch, MAX_BATCH_ENTRIES) > 0) {
+                        for (LogEvent event : batch) {
+                            event.dispatch();
+                        }
+                        dispatchedCount.addAndGet(batch.size());
+                        batch.clear();
+                    } else {
+                        buffer.awaitEntries(IDLE_WAIT_MS);
+                    }
+                }
+            }
+        }, threadName);
+        dispatchThread.setDaemon(true);
+        dispatchThread.start();
+    }
+
+    /**
+     * Stops accepting entries and waits for the queued ones to be passed to their loggers.
+     */
+    void stop(long timeoutMs) {
+        buffer.close();
+        Thread thread;
+        synchronized (this) {
+            thread = dispatchThread;
+        }
+        if (thread != null) {
+            try {
+                thread.join(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return false if the entry was not queued and must be logged by the caller
+     */
+    boolean dispatch(BaseLogger logger, Level level, String msgText, Message message) {
+        // The message may change or be used by another thread before the entry is written so only its log ID is kept
+        return queue(new LogEvent(logger, level, msgText, message == null ? "" : message.getLogMsgID(), null, false));
+    }
+
+    /**
+     * @return false if the entry was not queued and must be logged by the caller
+     */
+    boolean dispatch(BaseLogger logger, Throwable t, boolean terminated) {
+        return queue(new LogEvent(logger, null, null, null, t, terminated));
+    }
+
+    /**
+     * @return the queue depth and counts of entries dispatched and logged on the calling thread
+     */
+    Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("queued", (long) buffer.size());
+        stats.put("capacity", (long) buffer.capacity());
+        stats.put("dispatched", dispatchedCount.get());
+        stats.put("overflow", overflowCount.get());
+        return stats;
+    }
+
+    private boolean queue(LogEvent event) {
+        if (dispatchThread != null && buffer.offer(event)) {
+            return true;
+        }
+        overflowCount.incrementAndGet();
+        return false;
+    }
+
+    private static class LogEvent {
+        private final BaseLogger logger;
+        private final Level level;
+        private final String msgText;
+        private final String logMsgId;
+        private final long timestamp = System.currentTimeMillis();
+        private final Throwable throwable;
+        private final boolean terminated;
+
+        LogEvent(BaseLogger logger, Level level, String msgText, String logMsgId, Throwable throwable, boolean terminated) {
+            this.logger = logger;
+            this.level = level;
+            this.msgText = msgText;
+            this.logMsgId = logMsgId;
+            this.throwable = throwable;
+            this.terminated = terminated;
+        }
+
+        void dispatch() {
+            try {
+                if (throwable == null) {
+                    logger.doLog(level, msgText, logMsgId, timestamp);
+                } else {
+                    logger.doLog(throwable, terminated);
+                }
+            } catch (RuntimeException e) {
+                // A failing logger must not stop the entries for the other loggers
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class SharedDispatcher {
+        private static final LogDispatcher INSTANCE = new LogDispatcher(DEFAULT_QUEUE_SIZE);
+
+        static {
+            INSTANCE.start("LogDispatcher");
+            // Loggers are not destroyed with the session so make sure queued entries are logged on exit
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    INSTANCE.stop(5000);
+                }
+            }, "LogDispatcherShutdown"));
+        }
+    }
+}
@@ -6,8 +6,15 @@ import javax.annotation.Nonnull;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
+/**
+ * Passes log entries to the configured loggers.
+ * <p>
+ * Loggers are held in a copy on write list so logging threads never lock while iterating them. The
+ * log text is only built once and only if at least one logger accepts the level.
+ */
 public class LogManager {
     /**
      * A default logger. It used when no loggers are configured in config.xml
@@ -15,7 +22,7 @@ public class LogManager {
     private final static ConsoleLogger DEFAULT_LOGGER = new ConsoleLogger();
     private static boolean registeredWithApache = false;
     private final List<String> requestors = Collections.synchronizedList(new ArrayList<String>());
-    private List<Logger> loggers = Collections.synchronizedList(new ArrayList<Logger>());
+    private volatile List<Logger> loggers = new CopyOnWriteArrayList<Logger>();
 
     public static LogManager getLogManager() {
         return DefaultManager.INSTANCE;
@@ -31,7 +38,7 @@ public class LogManager {
     }
 
     public void setLoggers(List<Logger> listeners) {
-        this.loggers = listeners;
+        this.loggers = new CopyOnWriteArrayList<Logger>(listeners);
     }
 
     public void addLogger(Logger logger) {
@@ -39,11 +46,14 @@ public class LogManager {
     }
 
     public void log(@Nonnull Throwable e, boolean terminated) {
-        if (loggers.isEmpty()) {
+        List<Logger> currentLoggers = loggers;
+        if (currentLoggers.isEmpty()) {
             DEFAULT_LOGGER.log(e, Level.ERROR, terminated);
         } else {
-            for (Logger logger : loggers) {
-                logger.log(e, Level.ERROR, terminated); // might want to pass LEVEL in from caller
+            for (Logger logger : currentLoggers) {
+                if (logger.isEnabled(Level.ERROR)) {
+                    logger.log(e, Level.ERROR, terminated); // might want to pass LEVEL in from caller
+                }
             }
         }
     }
@@ -56,16 +66,21 @@ public class LogManager {
      * @param msg       - the logging object to create the message from
      */
     public void log(Level level, String clazzName, @Nonnull Object msg, Throwable t) {
-        if (loggers.isEmpty()) {
+        List<Logger> currentLoggers = loggers;
+        if (currentLoggers.isEmpty()) {
             //System.out.println("\n\t    WARNING!!!!\n\tNo loggers configured. Using default logger.");
             DEFAULT_LOGGER.log(level, clazzName + ": " + msg.toString(), null, t);
         } else {
-            for (Logger logger : loggers) {
-                if (msg instanceof Message) {
-                    logger.log(level, clazzName + ": " + ((Message) msg).getLogMsg(), (Message) msg, t);
-                } else {
-                    logger.log(level, clazzName + ": " + msg.toString(), null, t);
+            Message as2Msg = msg instanceof Message ? (Message) msg : null;
+            String text = null;
+            for (Logger logger : currentLoggers) {
+                if (!logger.isEnabled(level)) {
+                    continue;
+                }
+                if (text == null) {
+                    text = clazzName + ": " + (as2Msg == null ? msg.toString() : as2Msg.getLogMsg());
                 }
+                logger.log(level, text, as2Msg, t);
             }
         }
     }
@@ -0,0 +1,52 @@
+package org.openas2.logging;
+
+/**
+ * Log message that is only built when a logger writes it.
+ * <p>
+ * Each {} in the pattern is replaced by the next argument. The text is built the first time
+ * {@link #toString()} is called so passing a LogMessage instead of a concatenated string costs
+ * almost nothing when no logger is interested in the level.
+ * <pre>
+ * logger.info(LogMessage.format("Connecting to: {}{}", url, msg.getLogMsgID()));
+ * </pre>
+ */
+public class LogMessage {
+    private static final String PLACEHOLDER = "{}";
+
+    private final String pattern;
+    private final Object[] args;
+    private String text = null;
+
+    private LogMessage(String pattern, Object[] args) {
+        this.pattern = pattern;
+        this.args = args;
+    }
+
+    public static LogMessage format(String pattern, Object... args) {
+        return new LogMessage(pattern, args);
+    }
+
+    @Override
+    public String toString() {
+        if (text == null) {
+            text = build();
+        }
+        return text;
+    }
+
+    private String build() {
+        if (args == null || args.length == 0) {
+            return pattern;
+        }
+        StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+        int start = 0;
+        int argIndex = 0;
+        int pos;
+        while (argIndex < args.length && (pos = pattern.indexOf(PLACEHOLDER, start)) >= 0) {
+            sb.append(pattern, start, pos).append(args[argIndex++]);
+            start = pos + PLACEHOLDER.length();
+        }
+        sb.append(pattern, start, pattern.length());
+        return sb.toString();
+    }
+}
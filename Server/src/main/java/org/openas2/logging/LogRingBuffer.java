@@ -0,0 +1,179 @@
+package org.openas2.logging;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock free queue of log entries with many producers and a single consumer.
+ * <p>
+ * Each slot carries a sequence number that tells producers and the consumer whether the slot is free or
+ * filled for the current lap of the ring so logging threads only contend on a single compare and set and
+ * never wait on a lock held by the writer thread.
+ * Only one thread may call the consumer methods {@link #poll()}, {@link #drainTo(Collection, int)} and
+ * {@link #awaitEntries(long)}.
+ *
+ * @param <E> the type of the queued entries
+ */
+class LogRingBuffer<E> {
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private volatile Thread waitingConsumer = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity the minimum number of entries the buffer can hold. Rounded up to a power of two.
+     */
+    LogRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        slots = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an entry without waiting.
+     *
+     * @param entry the entry to queue
+     * @return false if the buffer is full or closed
+     */
+    boolean offer(E entry) {
+        if (closed) {
+            return false;
+        }
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(index, entry);
+                    sequences.set(index, pos + 1);
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds an entry waiting for space to become available.
+     *
+     * @param entry     the entry to queue
+     * @param timeoutMs how long to wait for space. Waits until space is available or the buffer is closed if negative.
+     * @return false if no space became available in time or the buffer was closed
+     */
+    boolean offer(E entry, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!offer(entry)) {
+            if (closed || Thread.currentThread().isInterrupted() || (timeoutMs >= 0 && System.nanoTime() - deadline >= 0)) {
+                return false;
+            }
+            LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest entry or null if the buffer is empty
+     */
+    E poll() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        E entry = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, pos + mask + 1);
+        head = pos + 1;
+        return entry;
+    }
+
+    /**
+     * Moves up to maxEntries entries to the given collection in the order they were queued.
+     *
+     * @return the number of entries moved
+     */
+    int drainTo(Collection<? super E> target, int maxEntries) {
+        int count = 0;
+        E entry;
+        while (count < maxEntries && (entry = poll()) != null) {
+            target.add(entry);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Waits until entries are queued, the buffer is closed or the timeout expires.
+     *
+     * @param timeoutMs the maximum time to wait
+     * @return true if there are entries to take
+     */
+    boolean awaitEntries(long timeoutMs) {
+        if (!isEmpty()) {
+            return true;
+        }
+        waitingConsumer = Thread.currentThread();
+        try {
+            // Check again now that producers can see the waiting thread
+            if (isEmpty() && !closed) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return !isEmpty();
+    }
+
+    /**
+     * Stops accepting entries and wakes the consumer so it can take what is left.
+     */
+    void close() {
+        closed = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of entries queued. Approximate while producers are adding entries.
+     */
+    int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
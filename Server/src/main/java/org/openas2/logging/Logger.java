@@ -14,6 +14,14 @@ public interface Logger extends Component {
      */
     void log(Level level, String msgText, Message message, Throwable t);
 
+    /**
+     * Checked before the log text is built so entries the logger would discard cost nothing.
+     *
+     * @param level the level of the entry
+     * @return true if the logger writes entries of this level
+     */
+    boolean isEnabled(Level level);
+
     Formatter getFormatter();
 
     void setFormatter(Formatter formatter);
@@ -1,17 +1,33 @@
 package org.openas2.logging;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.openas2.OpenAS2Exception;
 import org.openas2.Session;
 import org.openas2.message.Message;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * class to write log meesage to a socket
+ * <p>
+ * Entries are queued and sent in batches by a background thread over a single connection that is
+ * re-established with an increasing delay when the log collector cannot be reached. Entries logged while the
+ * queue is full are dropped so a slow or missing collector never holds up message processing.
+ * Setting framing to ndjson sends each entry as one line of JSON instead of the formatted log text.
  *
  * @author joseph mcverry
  * @since october 2007.
@@ -20,10 +36,38 @@ public class SocketLogger extends BaseLogger {
 
     public final static String PARAM_PORTID = "portid";
     public final static String PARAM_IPADDDR = "ipaddr";
+    public final static String PARAM_QUEUE_SIZE = "queue_size";
+    public final static String PARAM_FRAMING = "framing";
+    public final static String PARAM_CONNECT_TIMEOUT = "connect_timeout_ms";
+    public final static String PARAM_RECONNECT_MAX_DELAY = "reconnect_max_delay_ms";
+    public final static String FRAMING_RAW = "raw";
+    public final static String FRAMING_NDJSON = "ndjson";
     public final static int iQUEUESIZE = 100;
 
+    private static final int MAX_BATCH_ENTRIES = 256;
+    private static final long RECONNECT_MIN_DELAY = 500;
+
     private int port = 0;
     private String ipAddr = null;
+    private boolean ndjson = false;
+    private int connectTimeout;
+    private long reconnectMaxDelay;
+
+    private LogRingBuffer<SocketEvent> buffer = null;
+    private Thread senderThread = null;
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    // Only used by the sender thread
+    private Socket socket = null;
+    private OutputStream out = null;
+    private long reconnectDelay = 0;
+    private long nextConnectTime = 0;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong connectCount = new AtomicLong();
+    private final AtomicLong failedConnectCount = new AtomicLong();
+    private volatile boolean connected = false;
 
     public void init(Session session, Map<String, String> parameters) throws OpenAS2Exception {
         super.init(session, parameters);
@@ -34,41 +78,185 @@ public class SocketLogger extends BaseLogger {
         } catch (NumberFormatException nfe) {
             throw new OpenAS2Exception(PARAM_PORTID + " is not a valid integer value, see \"" + portID + "\"", nfe);
         }
-
+        String framing = getParameter(PARAM_FRAMING, FRAMING_RAW);
+        if (!FRAMING_RAW.equals(framing) && !FRAMING_NDJSON.equals(framing)) {
+            throw new OpenAS2Exception("Invalid " + PARAM_FRAMING + " \"" + framing + "\". Must be one of: " + FRAMING_RAW + ", " + FRAMING_NDJSON);
+        }
+        ndjson = FRAMING_NDJSON.equals(framing);
+        connectTimeout = getParameterInt(PARAM_CONNECT_TIMEOUT, false, 5000);
+        reconnectMaxDelay = getParameterInt(PARAM_RECONNECT_MAX_DELAY, false, 30000);
+        int queueSize = getParameterInt(PARAM_QUEUE_SIZE, false, iQUEUESIZE);
+        if (queueSize < 1) {
+            throw new OpenAS2Exception(PARAM_QUEUE_SIZE + " must be greater than zero: " + queueSize);
+        }
+        buffer = new LogRingBuffer<SocketEvent>(queueSize);
+        senderThread = new Thread(new SocketSender(), "SocketLoggerSender");
+        senderThread.setDaemon(true);
+        senderThread.start();
     }
 
     public void doLog(Level level, String msgText, Message as2Msg) {
-        sendToSocket(getFormatter().format(level, msgText + (as2Msg == null ? "" : as2Msg.getLogMsgID())));
+        String text = ndjson ? msgText : getFormatter().format(level, msgText + (as2Msg == null ? "" : as2Msg.getLogMsgID()));
+        queue(new SocketEvent(level, text, as2Msg == null ? null : as2Msg.getMessageID()));
     }
 
     public void sendToSocket(String msgText) {
+        queue(new SocketEvent(null, msgText, null));
+    }
 
+    protected String getShowDefaults() {
+        return VALUE_SHOW_ALL;
+    }
 
-        try {
-            Socket sckt = new Socket(ipAddr, port);
-            OutputStream os = sckt.getOutputStream();
-            os.write(msgText.getBytes());
-            os.flush();
-            os.close();
-            sckt.close();
+    protected void doLog(Throwable t, boolean terminated) {
+        queue(new SocketEvent(Level.ERROR, getFormatter().format(t, terminated), null));
+    }
 
-        } catch (UnknownHostException e) {
+    /**
+     * Stops the sender thread after it has tried to send the queued entries and closes the connection.
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (buffer != null) {
+            buffer.close();
+        }
+        if (senderThread != null) {
+            senderThread.join(10000);
+        }
+    }
 
-            // don't do anything.
+    /**
+     * @return the queue depth and counts of entries sent and dropped and of connection attempts
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("queued", buffer == null ? 0L : buffer.size());
+        stats.put("capacity", buffer == null ? 0L : buffer.capacity());
+        stats.put("sent", sentCount.get());
+        stats.put("dropped", droppedCount.get());
+        stats.put("connects", connectCount.get());
+        stats.put("failedConnects", failedConnectCount.get());
+        stats.put("connected", connected ? 1L : 0L);
+        return stats;
+    }
 
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    private void queue(SocketEvent event) {
+        if (buffer == null || !buffer.offer(event)) {
+            droppedCount.incrementAndGet();
         }
+    }
 
+    private byte[] encode(SocketEvent event) throws IOException {
+        if (!ndjson) {
+            return event.text.getBytes(StandardCharsets.UTF_8);
+        }
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("timestamp", Instant.ofEpochMilli(event.timestamp).toString());
+        if (event.level != null) {
+            json.put("level", event.level.getName());
+        }
+        json.put("message", event.text);
+        if (event.messageId != null) {
+            json.put("messageId", event.messageId);
+        }
+        byte[] line = jsonMapper.writeValueAsBytes(json);
+        byte[] framed = new byte[line.length + 1];
+        System.arraycopy(line, 0, framed, 0, line.length);
+        framed[line.length] = '\n';
+        return framed;
     }
 
-    protected String getShowDefaults() {
-        return VALUE_SHOW_ALL;
+    private boolean connect() {
+        long now = System.currentTimeMillis();
+        if (now < nextConnectTime) {
+            return false;
+        }
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(new InetSocketAddress(ipAddr, port), connectTimeout);
+            newSocket.setKeepAlive(true);
+            socket = newSocket;
+            out = new BufferedOutputStream(newSocket.getOutputStream(), 8192);
+            connected = true;
+            reconnectDelay = 0;
+            connectCount.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            try {
+                newSocket.close();
+            } catch (IOException ce) {
+                // ignore
+            }
+            failedConnectCount.incrementAndGet();
+            reconnectDelay = reconnectDelay == 0 ? RECONNECT_MIN_DELAY : Math.min(reconnectDelay * 2, reconnectMaxDelay);
+            nextConnectTime = System.currentTimeMillis() + reconnectDelay;
+            return false;
+        }
     }
 
-    protected void doLog(Throwable t, boolean terminated) {
-        sendToSocket(getFormatter().format(t, terminated));
+    private void disconnect() {
+        connected = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        socket = null;
+        out = null;
     }
 
+    private class SocketSender implements Runnable {
+        @Override
+        public void run() {
+            List<SocketEvent> batch = new ArrayList<SocketEvent>(MAX_BATCH_ENTRIES);
+            while (true) {
+                if (batch.isEmpty()) {
+                    if (buffer.isClosed() && buffer.isEmpty()) {
+                        break;
+                    }
+                    if (buffer.drainTo(batch, MAX_BATCH_ENTRIES) == 0) {
+                        buffer.awaitEntries(1000);
+                        continue;
+                    }
+                }
+                if (out == null && !connect()) {
+                    if (buffer.isClosed()) {
+                        // Collector unavailable while shutting down so give up on what is left
+                        droppedCount.addAndGet(batch.size() + buffer.size());
+                        break;
+                    }
+                    // Leave entries queued until the collector is back, new ones are dropped once the queue is full
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(1, Math.min(200, nextConnectTime - System.currentTimeMillis()))));
+                    continue;
+                }
+                try {
+                    for (SocketEvent event : batch) {
+                        out.write(encode(event));
+                    }
+                    out.flush();
+                    sentCount.addAndGet(batch.size());
+                    batch.clear();
+                } catch (IOException e) {
+                    // The batch is sent again on the new connection
+                    disconnect();
+                }
+            }
+            disconnect();
+        }
+    }
+
+    private static class SocketEvent {
+        private final long timestamp = System.currentTimeMillis();
+        private final Level level;
+        private final String text;
+        private final String messageId;
+
+        SocketEvent(Level level, String text, String messageId) {
+            this.level = level;
+            this.text = text;
+            this.messageId = messageId;
+        }
+    }
 }
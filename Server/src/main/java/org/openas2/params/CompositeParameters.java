@@ -59,9 +59,21 @@ public class CompositeParameters extends ParameterParser {
     }
 
     public String getParameter(String key) throws InvalidParameterException {
-        StringTokenizer keyParts = new StringTokenizer(key, ".", false);
+        String[] parts = splitKey(key);
+        if (parts == null) {
+            throw new InvalidParameterException("Invalid key format", this, key, null);
+        }
+        return getParameter(key, parts[0], parts[1]);
+    }
 
-        String parserID = keyParts.nextToken();
+    /**
+     * @param key      the full key
+     * @param parserID the ID of the parser to use as returned by {@link #splitKey(String)}
+     * @param subKey   the key passed on to that parser as returned by {@link #splitKey(String)}
+     * @return the parameter value
+     * @throws InvalidParameterException - the key is invalid or has no value
+     */
+    String getParameter(String key, String parserID, String subKey) throws InvalidParameterException {
         // support "properties" key for all parser calls
         if ("properties".equals(parserID)) {
             // The property value could be a period separated string so get the original and drop "properties."
@@ -78,18 +90,11 @@ public class CompositeParameters extends ParameterParser {
         ParameterParser parser = getParameterParsers().get(parserID);
 
         if (parser != null) {
-            if (!keyParts.hasMoreTokens()) {
+            if (subKey == null) {
                 throw new InvalidParameterException("Invalid key format", this, key, null);
             }
 
-            StringBuffer keyBuf = new StringBuffer(keyParts.nextToken());
-
-            while (keyParts.hasMoreTokens()) {
-                keyBuf.append(".");
-                keyBuf.append(keyParts.nextToken());
-            }
-
-            return parser.getParameter(keyBuf.toString());
+            return parser.getParameter(subKey);
         } else if (!getReturnEmptyStringForMissingParsers()) {
             if (logger.isInfoEnabled()) {
                 logger.info("Failed to find a parser for: " + key + "  ::: Available parser list: " + getParameterParsers().keySet().toString());
@@ -100,6 +105,33 @@ public class CompositeParameters extends ParameterParser {
         }
     }
 
+    /**
+     * Splits a key like "msg.sender.as2_id" into the parser ID "msg" and the key "sender.as2_id" for that parser.
+     *
+     * @param key the full key
+     * @return the parser ID and the key for the parser, which is null if there is none, or null if the key is
+     * only periods
+     */
+    static String[] splitKey(String key) {
+        StringTokenizer keyParts = new StringTokenizer(key, ".", false);
+        if (!keyParts.hasMoreTokens()) {
+            return null;
+        }
+
+        String parserID = keyParts.nextToken();
+        if (!keyParts.hasMoreTokens()) {
+            return new String[]{parserID, null};
+        }
+
+        StringBuilder keyBuf = new StringBuilder(keyParts.nextToken());
+
+        while (keyParts.hasMoreTokens()) {
+            keyBuf.append(".");
+            keyBuf.append(keyParts.nextToken());
+        }
+        return new String[]{parserID, keyBuf.toString()};
+    }
+
     public void setParameterParsers(Map<String, ParameterParser> parameterParsers) {
         this.parameterParsers = parameterParsers;
     }
@@ -126,44 +126,11 @@ public abstract class ParameterParser {
      * @throws InvalidParameterException - error in the parameter format string
      */
     public String format(String format) throws InvalidParameterException {
-        StringBuffer result = new StringBuffer();
-
-        for (int next = 0; next < format.length(); ++next) {
-            int prev = next;
-
-            // Find start of $xxx$ sequence.
-            next = format.indexOf(parameterDelimiterString, prev);
-            if (next == -1) {
-                result.append(format.substring(prev));
-                break;
-            }
-
-            // Save text before $xxx$ sequence, if there is any
-            if (next > prev) {
-                result.append(format, prev, next);
-            }
-
-            // Find end of $xxx$ sequence
-            prev = next + 1;
-            next = format.indexOf(parameterDelimiterString, prev);
-            if (next == -1) {
-                throw new InvalidParameterException("Invalid key (missing closing '" + parameterDelimiterString + "') parsing this string: " + format);
-            }
-
-            // If we have just $$ then output $, else we have $xxx$, lookup xxx
-            if (next == prev) {
-                result.append(parameterDelimiterString);
-            } else {
-                String newString = getParameter(format.substring(prev, next));
-                if ("".equals(newString) && getReturnEmptyStringForMissingParsers() && isReturnParamStringForMissingParsers()) {
-                    result.append(parameterDelimiterString).append(format.substring(prev, next)).append(parameterDelimiterString);
-                } else {
-                    result.append(newString);
-                }
-            }
+        if (format.indexOf(parameterDelimiterString) == -1) {
+            // Nothing to fill in so do not take up a place in the template cache
+            return format;
         }
-
-        return result.toString();
+        return ParameterTemplate.compile(format).format(this);
     }
 
     protected List<String> parseKeys(String format) {
@@ -0,0 +1,133 @@
+package org.openas2.params;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A format string like <code>$msg.sender.as2_id$-$date.yyyyMMdd$.edi</code> parsed once into its literal text and
+ * the parameters to fill in.
+ * <p>
+ * Templates are immutable and cached by format string so the same file name, message ID, URL or log file
+ * format is only parsed the first time it is used. The key of each parameter is also split up front into the
+ * parser ID and the key passed on to that parser so a {@link CompositeParameters} can look up the parser
+ * directly instead of splitting the key on every use.
+ */
+public final class ParameterTemplate {
+    // Format strings mostly come from the configuration. The limit stops a stream of distinct formats filling the heap
+    private static final int MAX_CACHED_TEMPLATES = 1024;
+    private static final ConcurrentMap<String, ParameterTemplate> templates = new ConcurrentHashMap<String, ParameterTemplate>();
+
+    private final String format;
+    // Literal text before each parameter with the text after the last parameter at the end
+    private final String[] literals;
+    private final String[] keys;
+    private final String[] parserIDs;
+    private final String[] subKeys;
+
+    private ParameterTemplate(String format, List<String> literals, List<String> keys) {
+        this.format = format;
+        this.literals = literals.toArray(new String[0]);
+        this.keys = keys.toArray(new String[0]);
+        this.parserIDs = new String[this.keys.length];
+        this.subKeys = new String[this.keys.length];
+        for (int i = 0; i < this.keys.length; i++) {
+            String[] parts = CompositeParameters.splitKey(this.keys[i]);
+            if (parts != null) {
+                parserIDs[i] = parts[0];
+                subKeys[i] = parts[1];
+            }
+        }
+    }
+
+    /**
+     * @param format the format string
+     * @return the parsed template, shared with every other caller using the same format
+     * @throws InvalidParameterException - error in the parameter format string
+     */
+    public static ParameterTemplate compile(String format) throws InvalidParameterException {
+        ParameterTemplate template = templates.get(format);
+        if (template == null) {
+            template = parse(format);
+            if (templates.size() < MAX_CACHED_TEMPLATES) {
+                templates.putIfAbsent(format, template);
+            }
+        }
+        return template;
+    }
+
+    private static ParameterTemplate parse(String format) throws InvalidParameterException {
+        String delimiter = ParameterParser.parameterDelimiterString;
+        List<String> literals = new ArrayList<String>();
+        List<String> keys = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+
+        for (int next = 0; next < format.length(); ++next) {
+            int prev = next;
+
+            // Find start of $xxx$ sequence.
+            next = format.indexOf(delimiter, prev);
+            if (next == -1) {
+                literal.append(format, prev, format.length());
+                break;
+            }
+
+            // Save text before $xxx$ sequence, if there is any
+            literal.append(format, prev, next);
+
+            // Find end of $xxx$ sequence
+            prev = next + 1;
+            next = format.indexOf(delimiter, prev);
+            if (next == -1) {
+                throw new InvalidParameterException("Invalid key (missing closing '" + delimiter + "') parsing this string: " + format);
+            }
+
+            // If we have just $$ then output $, else we have $xxx$
+            if (next == prev) {
+                literal.append(delimiter);
+            } else {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                keys.add(format.substring(prev, next));
+            }
+        }
+        literals.add(literal.toString());
+        return new ParameterTemplate(format, literals, keys);
+    }
+
+    /**
+     * Fill in the template with information from a ParameterParser
+     *
+     * @param parser the place to get the parameter values
+     * @return the filled in format string
+     * @throws InvalidParameterException - a parameter could not be resolved
+     */
+    public String format(ParameterParser parser) throws InvalidParameterException {
+        if (keys.length == 0) {
+            return literals[0];
+        }
+        StringBuilder result = new StringBuilder(format.length() + 32);
+        CompositeParameters composite = parser instanceof CompositeParameters ? (CompositeParameters) parser : null;
+        for (int i = 0; i < keys.length; i++) {
+            result.append(literals[i]);
+            String value;
+            if (composite != null && parserIDs[i] != null) {
+                value = composite.getParameter(keys[i], parserIDs[i], subKeys[i]);
+            } else {
+                value = parser.getParameter(keys[i]);
+            }
+            if ("".equals(value) && parser.getReturnEmptyStringForMissingParsers() && parser.isReturnParamStringForMissingParsers()) {
+                result.append(ParameterParser.parameterDelimiterString).append(keys[i]).append(ParameterParser.parameterDelimiterString);
+            } else {
+                result.append(value);
+            }
+        }
+        result.append(literals[keys.length]);
+        return result.toString();
+    }
+
+    public String getFormat() {
+        return format;
+    }
+}
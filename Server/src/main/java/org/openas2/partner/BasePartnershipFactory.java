@@ -8,7 +8,6 @@ import org.openas2.message.MessageMDN;
 import org.openas2.params.MessageParameters;
 import org.openas2.params.ParameterParser;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -16,7 +15,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public abstract class BasePartnershipFactory extends BaseComponent implements PartnershipFactory {
-    private List<Partnership> partnerships;
+    private volatile PartnershipIndex partnershipIndex = PartnershipIndex.EMPTY;
 
     public Partnership getPartnership(Partnership p, boolean reverseLookup) throws OpenAS2Exception {
         Partnership ps = (p.getName() == null) ? null : getPartnership(p.getName());
@@ -36,16 +35,22 @@ public abstract class BasePartnershipFactory extends BaseComponent implements Pa
         return ps;
     }
 
+    /**
+     * Replaces the loaded partnerships. The lookup index is rebuilt from the list and swapped in as a whole
+     * so concurrent lookups see either the old or the new set of partnerships.
+     * Later changes to the passed list are not seen by lookups.
+     *
+     * @param list the partnerships in priority order
+     */
     public void setPartnerships(List<Partnership> list) {
-        partnerships = list;
+        partnershipIndex = new PartnershipIndex(list);
     }
 
+    /**
+     * @return an unmodifiable snapshot of the loaded partnerships. Use setPartnerships() to change them.
+     */
     public List<Partnership> getPartnerships() {
-        if (partnerships == null) {
-            partnerships = new ArrayList<Partnership>();
-        }
-
-        return partnerships;
+        return partnershipIndex.getPartnerships();
     }
 
     public void updatePartnership(Message msg, boolean overwrite) throws OpenAS2Exception {
@@ -105,7 +110,17 @@ public abstract class BasePartnershipFactory extends BaseComponent implements Pa
     }
 
     public Partnership getPartnership(Map<String, Object> senderIDs, Map<String, Object> receiverIDs) {
-        Iterator<Partnership> psIt = getPartnerships().iterator();
+        PartnershipIndex index = partnershipIndex;
+        Object senderAS2Id = senderIDs.get(Partnership.PID_AS2);
+        Object receiverAS2Id = receiverIDs.get(Partnership.PID_AS2);
+        // Any match must have the same AS2 IDs so only those candidates need a full compare
+        List<Partnership> candidates;
+        if (senderAS2Id != null && receiverAS2Id != null) {
+            candidates = index.getByAS2Ids(senderAS2Id, receiverAS2Id);
+        } else {
+            candidates = index.getPartnerships();
+        }
+        Iterator<Partnership> psIt = candidates.iterator();
         Partnership currentPs;
         Map<String, Object> currentSids;
         Map<String, Object> currentRids;
@@ -141,7 +156,7 @@ public abstract class BasePartnershipFactory extends BaseComponent implements Pa
     }
 
     protected Partnership getPartnership(String name) throws OpenAS2Exception {
-        return getPartnership(getPartnerships(), name);
+        return partnershipIndex.getByName(name);
     }
 
     // returns true if all values in searchIds match values in partnerIds
@@ -54,6 +54,7 @@ public class Partnership implements Serializable {
     public static final String PA_AS2_MDN_OPTIONS = "as2_mdn_options"; // Requested options for returned MDN
     public static final String PA_AS2_RECEIPT_OPTION = "as2_receipt_option"; // URL destination for an async MDN
     public static final String PA_RESEND_MAX_RETRIES = "resend_max_retries";  // format to use for message-id if not default
+    public static final String PA_MDN_TIMEOUT_ACTION = "mdn_timeout_action"; // "fail" or "resend" a message when its async MDN does not arrive in time
     public static final String PA_CUSTOM_MIME_HEADERS = "custom_mime_headers"; // list of nme/value pairs for setting custom mime headers
     public static final String PA_ADD_CUSTOM_MIME_HEADERS_TO_HTTP = "add_custom_mime_headers_to_http"; // Add the custom mime headers (if any) to HTTP header if "true"
     public static final String PA_CUSTOM_MIME_HEADER_NAMES_FROM_FILENAME = "custom_mime_header_names_from_filename"; // List of header names to be set from parsed filename
@@ -68,6 +69,13 @@ public class Partnership implements Serializable {
     public static final String PA_SPLIT_FILE_THRESHOLD_SIZE_IN_BYTES = "split_file_threshold_size_in_bytes";
     public static final String PA_SPLIT_FILE_CONTAINS_HEADER_ROW = "split_file_contains_header_row";
     public static final String PA_SPLIT_FILE_NAME_PREFIX = "split_file_name_prefix";
+    public static final String PA_SPLIT_FILE_PARALLEL_WRITERS = "split_file_parallel_writers"; // Number of split files written at the same time
+    public static final String PA_SEND_MAX_CONCURRENCY = "send_max_concurrency"; // Maximum number of messages sent to the partner at the same time
+    public static final String PA_SEND_RATE_LIMIT = "send_rate_limit"; // Maximum number of messages started per second for the partner
+    public static final String PA_SEND_RATE_BURST = "send_rate_burst"; // Number of messages that can be started at once before the rate limit applies
+    public static final String PA_SEND_ADAPTIVE_CONCURRENCY = "send_adaptive_concurrency"; // Lower the concurrent sends when the partner responds with 5xx or times out if "true"
+    public static final String PA_SEND_ADMISSION_TIMEOUT = "send_admission_timeout_seconds"; // Seconds a message waits for the send limits before it is resent later
+    public static final String PA_SEND_LIMIT_SCOPE = "send_limit_scope"; // Apply the send limits per "partnership" or per "url"
     // A hopefully temporary key to maintain backwards compatibility
     public static final String USE_NEW_CERTIFICATE_LOOKUP_MODE = "use_new_certificate_lookup_mode";
 
@@ -0,0 +1,100 @@
+package org.openas2.partner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the loaded partnerships with lookup tables by partnership name and by
+ * the sender and receiver AS2 ID pair.
+ * <p>
+ * A new index is built whenever the partnership list changes and is swapped in as a whole so that
+ * lookups never need to lock and never see a partially loaded list.
+ * Partnerships that share the same AS2 ID pair are kept in list order so the first one configured
+ * is still found first.
+ */
+final class PartnershipIndex {
+    static final PartnershipIndex EMPTY = new PartnershipIndex(Collections.<Partnership>emptyList());
+
+    private final List<Partnership> partnerships;
+    private final Map<String, Partnership> byName;
+    private final Map<AS2IdPair, List<Partnership>> byAS2Ids;
+
+    PartnershipIndex(List<Partnership> list) {
+        List<Partnership> copy = new ArrayList<Partnership>(list);
+        Map<String, Partnership> names = new HashMap<String, Partnership>();
+        Map<AS2IdPair, List<Partnership>> as2Ids = new HashMap<AS2IdPair, List<Partnership>>();
+        for (Partnership partnership : copy) {
+            String name = partnership.getName();
+            if (name != null && !names.containsKey(name)) {
+                names.put(name, partnership);
+            }
+            Object senderId = partnership.getSenderIDs().get(Partnership.PID_AS2);
+            Object receiverId = partnership.getReceiverIDs().get(Partnership.PID_AS2);
+            if (senderId != null && receiverId != null) {
+                AS2IdPair key = new AS2IdPair(senderId, receiverId);
+                List<Partnership> matches = as2Ids.get(key);
+                if (matches == null) {
+                    matches = new ArrayList<Partnership>(1);
+                    as2Ids.put(key, matches);
+                }
+                matches.add(partnership);
+            }
+        }
+        this.partnerships = Collections.unmodifiableList(copy);
+        this.byName = names;
+        this.byAS2Ids = as2Ids;
+    }
+
+    List<Partnership> getPartnerships() {
+        return partnerships;
+    }
+
+    Partnership getByName(String name) {
+        return name == null ? null : byName.get(name);
+    }
+
+    /**
+     * @param senderId   the sender AS2 ID
+     * @param receiverId the receiver AS2 ID
+     * @return the partnerships, in configured order, with the given AS2 ID pair; empty if there are none
+     */
+    List<Partnership> getByAS2Ids(Object senderId, Object receiverId) {
+        List<Partnership> matches = byAS2Ids.get(new AS2IdPair(senderId, receiverId));
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        return matches;
+    }
+
+    private static final class AS2IdPair {
+        private final Object senderId;
+        private final Object receiverId;
+        private final int hash;
+
+        AS2IdPair(Object senderId, Object receiverId) {
+            this.senderId = senderId;
+            this.receiverId = receiverId;
+            this.hash = 31 * senderId.hashCode() + receiverId.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof AS2IdPair)) {
+                return false;
+            }
+            AS2IdPair other = (AS2IdPair) obj;
+            return senderId.equals(other.senderId) && receiverId.equals(other.receiverId);
+        }
+    }
+}
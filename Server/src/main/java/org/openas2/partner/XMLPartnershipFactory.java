@@ -34,11 +34,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -62,9 +68,24 @@ public class XMLPartnershipFactory extends BasePartnershipFactory implements Has
 
     private Map<String, Object> partners;
 
+    // The configuration of the running partnership pollers keyed by partnership name used to find changed pollers
+    private final Map<String, String> pollerConfigs = new ConcurrentHashMap<String, String>();
+    // The documents the running partnership pollers were loaded from so they can be loaded again if a reload fails
+    private final Map<String, Document> pollerDocuments = new ConcurrentHashMap<String, Document>();
+
+    private volatile Map<String, Long> lastReloadStats = createEmptyReloadStats();
+
     private Log logger = LogFactory.getLog(XMLPartnershipFactory.class.getSimpleName());
 
 
+    private static Map<String, Long> createEmptyReloadStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        for (String key : new String[]{"reloads", "lastReloadMillis", "maxReloadMillis", "totalReloadMillis", "added", "removed", "changed", "unchanged"}) {
+            stats.put(key, 0L);
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
     private int getRefreshInterval() throws InvalidParameterException {
         return getParameterInt(PARAM_INTERVAL, false);
     }
@@ -109,17 +130,25 @@ public class XMLPartnershipFactory extends BasePartnershipFactory implements Has
         }
     }
 
+    /**
+     * Loads the partnerships from the XML document and applies only the differences to what is loaded.
+     * Partnerships that have not changed keep their existing objects and pollers. Changed and removed
+     * partnerships have their pollers stopped and changed and added ones get new pollers, which are started by
+     * the next call to {@link Session#startPartnershipPollers()}. The lookup index is swapped in as a whole once
+     * the pollers are updated. Nothing is changed if the document contains an invalid partnership and the
+     * pollers that were stopped are loaded again if a new poller fails to load.
+     */
     void refreshConfig() throws OpenAS2Exception {
-        getSession().destroyPartnershipPollers(Session.PARTNERSHIP_POLLER);
+        long startTime = System.currentTimeMillis();
+        Map<String, Object> newPartners = new HashMap<String, Object>();
+        List<Partnership> newPartnerships = new ArrayList<Partnership>();
+        Map<String, Document> newPollerConfigs = new HashMap<String, Document>();
         try {
             Element root = getPartnershipsXml().getDocumentElement();
             NodeList rootNodes = root.getChildNodes();
             Node rootNode;
             String nodeName;
 
-            Map<String, Object> newPartners = new HashMap<String, Object>();
-            List<Partnership> newPartnerships = new ArrayList<Partnership>();
-
             for (int i = 0; i < rootNodes.getLength(); i++) {
                 rootNode = rootNodes.item(i);
 
@@ -128,17 +157,156 @@ public class XMLPartnershipFactory extends BasePartnershipFactory implements Has
                 if (nodeName.equals("partner")) {
                     loadPartner(newPartners, rootNode);
                 } else if (nodeName.equals("partnership")) {
-                    loadPartnership(newPartners, newPartnerships, rootNode);
+                    Partnership partnership = parsePartnership(newPartners, newPartnerships, rootNode);
+                    newPartnerships.add(partnership);
+                    Document pollerConfig = createPollerConfig(rootNode, partnership);
+                    if (pollerConfig != null) {
+                        newPollerConfigs.put(partnership.getName(), pollerConfig);
+                    }
                 }
             }
-
-            synchronized (this) {
-                setPartners(newPartners);
-                setPartnerships(newPartnerships);
-            }
+        } catch (OpenAS2Exception e) {
+            throw e;
         } catch (Exception e) {
             throw new WrappedException(e);
         }
+
+        synchronized (this) {
+            Map<String, Partnership> oldPartnerships = new HashMap<String, Partnership>();
+            for (Partnership partnership : getPartnerships()) {
+                oldPartnerships.put(partnership.getName(), partnership);
+            }
+            long added = 0;
+            long changed = 0;
+            long unchanged = 0;
+            List<String> pollersToLoad = new ArrayList<String>();
+            Map<String, Document> stoppedPollers = new LinkedHashMap<String, Document>();
+            List<String> loadedPollers = new ArrayList<String>();
+            try {
+                for (int i = 0; i < newPartnerships.size(); i++) {
+                    Partnership partnership = newPartnerships.get(i);
+                    String name = partnership.getName();
+                    Partnership oldPartnership = oldPartnerships.remove(name);
+                    boolean samePoller = isSame(pollerConfigs.get(name), toPollerKey(newPollerConfigs.get(name)));
+                    if (oldPartnership == null) {
+                        added++;
+                    } else if (samePoller && isSameDefinition(oldPartnership, partnership)) {
+                        // Keep the existing object so anything holding on to it stays current
+                        newPartnerships.set(i, oldPartnership);
+                        unchanged++;
+                    } else {
+                        changed++;
+                    }
+                    if (!samePoller) {
+                        stopPoller(name, stoppedPollers);
+                        if (newPollerConfigs.containsKey(name)) {
+                            pollersToLoad.add(name);
+                        }
+                    }
+                }
+                for (String name : oldPartnerships.keySet()) {
+                    stopPoller(name, stoppedPollers);
+                }
+                for (String name : pollersToLoad) {
+                    loadPoller(name, newPollerConfigs.get(name));
+                    loadedPollers.add(name);
+                }
+            } catch (OpenAS2Exception e) {
+                restorePollers(stoppedPollers, loadedPollers);
+                throw e;
+            }
+            setPartners(newPartners);
+            setPartnerships(newPartnerships);
+
+            long elapsed = System.currentTimeMillis() - startTime;
+            Map<String, Long> stats = new HashMap<String, Long>();
+            stats.put("reloads", lastReloadStats.get("reloads") + 1);
+            stats.put("lastReloadMillis", elapsed);
+            stats.put("maxReloadMillis", Math.max(elapsed, lastReloadStats.get("maxReloadMillis")));
+            stats.put("totalReloadMillis", lastReloadStats.get("totalReloadMillis") + elapsed);
+            stats.put("added", added);
+            stats.put("removed", (long) oldPartnerships.size());
+            stats.put("changed", changed);
+            stats.put("unchanged", unchanged);
+            lastReloadStats = Collections.unmodifiableMap(stats);
+            logger.info("Partnerships loaded in " + elapsed + "ms: " + added + " added, " + oldPartnerships.size() + " removed, " + changed + " changed, " + unchanged + " unchanged");
+        }
+    }
+
+    /**
+     * @return the number of reloads, the time taken by the last, slowest and all reloads and the number of
+     * partnerships added, removed, changed and left alone by the last reload
+     */
+    public Map<String, Long> getReloadStats() {
+        return lastReloadStats;
+    }
+
+    private boolean isSameDefinition(Partnership oldPartnership, Partnership newPartnership) {
+        return oldPartnership.getSenderIDs().equals(newPartnership.getSenderIDs())
+                && oldPartnership.getReceiverIDs().equals(newPartnership.getReceiverIDs())
+                && oldPartnership.getAttributes().equals(newPartnership.getAttributes());
+    }
+
+    private boolean isSame(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private String toPollerKey(Document pollerConfig) throws OpenAS2Exception {
+        if (pollerConfig == null) {
+            return null;
+        }
+        try {
+            return XMLUtil.toString(pollerConfig.getDocumentElement(), true);
+        } catch (TransformerException e) {
+            throw new OpenAS2Exception("Failed to read the poller configuration: " + e.getMessage(), e);
+        }
+    }
+
+    private void loadPoller(String partnershipName, Document pollerConfig) throws OpenAS2Exception {
+        String key = toPollerKey(pollerConfig);
+        // Now launch a directory poller module for this config
+        getSession().loadPartnershipPoller(pollerConfig.getDocumentElement(), partnershipName, Session.PARTNERSHIP_POLLER);
+        pollerConfigs.put(partnershipName, key);
+        pollerDocuments.put(partnershipName, pollerConfig);
+    }
+
+    private Document destroyPoller(String partnershipName) {
+        Document pollerConfig = pollerDocuments.remove(partnershipName);
+        if (pollerConfigs.remove(partnershipName) != null) {
+            getSession().destroyPartnershipPoller(partnershipName, Session.PARTNERSHIP_POLLER);
+        }
+        return pollerConfig;
+    }
+
+    private void stopPoller(String partnershipName, Map<String, Document> stoppedPollers) {
+        Document pollerConfig = destroyPoller(partnershipName);
+        if (pollerConfig != null && !stoppedPollers.containsKey(partnershipName)) {
+            stoppedPollers.put(partnershipName, pollerConfig);
+        }
+    }
+
+    /**
+     * Puts the pollers back the way they were before a failed reload: the pollers that were loaded from the new
+     * file are destroyed and the ones that were stopped are loaded and started again from their previous config.
+     */
+    private void restorePollers(Map<String, Document> stoppedPollers, List<String> loadedPollers) {
+        for (String name : loadedPollers) {
+            destroyPoller(name);
+        }
+        for (Map.Entry<String, Document> entry : stoppedPollers.entrySet()) {
+            try {
+                loadPoller(entry.getKey(), entry.getValue());
+            } catch (OpenAS2Exception e) {
+                logger.error("Failed to restore the poller for partnership " + entry.getKey(), e);
+            }
+        }
+        if (!stoppedPollers.isEmpty()) {
+            try {
+                getSession().startPartnershipPollers();
+            } catch (OpenAS2Exception e) {
+                logger.error("Failed to start the restored partnership pollers", e);
+            }
+        }
     }
 
     private void loadAttributes(Node node, Partnership partnership) throws OpenAS2Exception {
@@ -191,6 +359,17 @@ public class XMLPartnershipFactory extends BasePartnershipFactory implements Has
     }
 
     public void loadPartnership(Map<String, Object> partners, List<Partnership> partnerships, Node node) throws OpenAS2Exception {
+        Partnership partnership = parsePartnership(partners, partnerships, node);
+        // add the partnership to the list of available partnerships
+        partnerships.add(partnership);
+
+        Document pollerConfig = createPollerConfig(node, partnership);
+        if (pollerConfig != null) {
+            loadPoller(partnership.getName(), pollerConfig);
+        }
+    }
+
+    private Partnership parsePartnership(Map<String, Object> partners, List<Partnership> partnerships, Node node) throws OpenAS2Exception {
         Partnership partnership = new Partnership();
         String[] requiredAttributes = {"name"};
 
@@ -218,9 +397,14 @@ public class XMLPartnershipFactory extends BasePartnershipFactory implements Has
                 throw new OpenAS2Exception("Partnership failed to be set up correctly for dynamic Content-Type lookup: " + getName());
             }
         }
-        // add the partnership to the list of available partnerships
-        partnerships.add(partnership);
-        
+        return partnership;
+    }
+
+    /**
+     * @return the configuration for the directory poller of the partnership or null if it does not have one
+     */
+    private Document createPollerConfig(Node node, Partnership partnership) throws OpenAS2Exception {
+        String name = partnership.getName();
         // Now check if we need to add a directory polling module
         Node pollerCfgNode = XMLUtil.findChildNode(node, Partnership.PCFG_POLLER);
         if (pollerCfgNode != null) {
@@ -260,10 +444,10 @@ public class XMLPartnershipFactory extends BasePartnershipFactory implements Has
                 }); 
                 // replace the $partnertship.* placeholders
                 replacePartnershipPlaceHolders(pollerDoc, partnership);
-                // Now launch a directory poller module for this config
-                getSession().loadPartnershipPoller(pollerConfigElem, name, Session.PARTNERSHIP_POLLER);
+                return pollerDoc;
             }
         }
+        return null;
     }
 
     /**
@@ -321,9 +505,9 @@ public class XMLPartnershipFactory extends BasePartnershipFactory implements Has
         logger.info("Backing up " + fn + " to " + f.getName());
 
         File fr = new File(fn);
-        fr.renameTo(f);
-
-        try (FileWriter writer = new FileWriter(new File(getFilename()))) {
+        // Write the new file beside the old one and swap it in so the file monitor never reads a partly written file
+        File tmp = new File(fn + ".tmp");
+        try (FileWriter writer = new FileWriter(tmp)) {
             TransformerFactory transformerFactory = TransformerFactory.newInstance();
             Transformer transformer = transformerFactory.newTransformer();
             transformer.setOutputProperty(OutputKeys.INDENT, "yes");
@@ -332,6 +516,19 @@ public class XMLPartnershipFactory extends BasePartnershipFactory implements Has
             StreamResult result = new StreamResult(writer);
             transformer.transform(source, result);
         } catch (IOException | TransformerException e) {
+            tmp.delete();
+            throw new WrappedException(e);
+        }
+        try {
+            if (fr.exists()) {
+                Files.copy(fr.toPath(), f.toPath());
+            }
+            try {
+                Files.move(tmp.toPath(), fr.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), fr.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
             throw new WrappedException(e);
         }
     }
@@ -183,5 +183,12 @@ public class DefaultProcessor extends BaseComponent implements Processor {
     @Override
     public void destroy() throws Exception {
         stopActiveModules();
+        for (ProcessorModule module : getModules()) {
+            try {
+                module.destroy();
+            } catch (Exception e) {
+                logger.warn("Failed to destroy module " + ClassUtils.getSimpleName(module.getClass()), e);
+            }
+        }
     }
 }
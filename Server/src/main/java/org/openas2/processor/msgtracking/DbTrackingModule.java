@@ -8,20 +8,22 @@ import org.openas2.message.Message;
 import org.openas2.params.ComponentParameters;
 import org.openas2.params.CompositeParameters;
 import org.openas2.params.ParameterParser;
-import org.openas2.util.DateUtil;
+import org.openas2.processor.msgtracking.TrackingEventQueue.TrackingRecord;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DbTrackingModule extends BaseMsgTrackingModule {
     public static final String PARAM_TCP_SERVER_START = "tcp_server_start";
@@ -39,6 +41,19 @@ public class DbTrackingModule extends BaseMsgTrackingModule {
     public static final String PARAM_SQL_ESCAPE_CHARACTER = "sql_escape_character";
     public static final String PARAM_USE_EMBEDDED_DB = "use_embedded_db";
     public static final String PARAM_FORCE_LOAD_JDBC_DRIVER = "force_load_jdbc_driver";
+    public static final String PARAM_ASYNC_WRITE = "async_write";
+    public static final String PARAM_QUEUE_CAPACITY = "queue_capacity";
+    public static final String PARAM_QUEUE_OFFER_TIMEOUT = "queue_offer_timeout_ms";
+    public static final String PARAM_BATCH_SIZE = "batch_size";
+    public static final String PARAM_FLUSH_INTERVAL = "flush_interval_ms";
+    public static final String PARAM_POOL_MIN_SIZE = "pool_min_size";
+    public static final String PARAM_POOL_MAX_SIZE = "pool_max_size";
+    public static final String PARAM_POOL_BORROW_TIMEOUT = "pool_borrow_timeout_ms";
+    public static final String PARAM_POOL_VALIDATE_AFTER_IDLE = "pool_validate_after_idle_ms";
+    public static final String PARAM_POOL_IDLE_TIMEOUT = "pool_idle_timeout_secs";
+    public static final String PARAM_POOL_STATEMENT_CACHE_SIZE = "pool_statement_cache_size";
+
+    private static final long WRITER_SHUTDOWN_TIMEOUT_MS = 30000;
 
     private String dbUser = null;
     private String dbPwd = null;
@@ -46,11 +61,24 @@ public class DbTrackingModule extends BaseMsgTrackingModule {
     private String configBaseDir = null;
     private String jdbcDriver = null;
     private boolean isRunning = false;
-    private String sqlEscapeChar = "'";
     private boolean useEmbeddedDB = true;
     private boolean forceLoadJdbcDriver = false;
     private String dbPlatform = "h2";
     private String tableName = null;
+    private boolean asyncWrite = true;
+    private int queueCapacity = 10000;
+    private long queueOfferTimeout = 5000;
+    private int batchSize = 100;
+    private long flushInterval = 1000;
+    private TrackingEventQueue eventQueue = null;
+    private Thread writerThread = null;
+    // Column label to SQL type of the tracking table in table order
+    private volatile Map<String, Integer> tableColumns = null;
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private long lastReportedDroppedCount = 0;
+    private long lastReportedBorrowTimeouts = 0;
     IDBHandler dbHandler = null;
 
     private Log logger = LogFactory.getLog(DbTrackingModule.class.getSimpleName());
@@ -67,10 +95,17 @@ public class DbTrackingModule extends BaseMsgTrackingModule {
         jdbcConnectString = ParameterParser.parse(jdbcConnectString, paramParser);
         dbPlatform = jdbcConnectString.replaceAll(".*jdbc:([^:]*):.*", "$1");
         jdbcDriver = getParameter(PARAM_JDBC_DRIVER, false);
-        sqlEscapeChar = getParameter(PARAM_SQL_ESCAPE_CHARACTER, "'");
         useEmbeddedDB = "true".equals(getParameter(PARAM_USE_EMBEDDED_DB, "true"));
         forceLoadJdbcDriver = "true".equals(getParameter(PARAM_FORCE_LOAD_JDBC_DRIVER, "false"));
         tableName = getParameter(PARAM_TABLE_NAME, "msg_metadata");
+        asyncWrite = "true".equalsIgnoreCase(getParameter(PARAM_ASYNC_WRITE, "true"));
+        queueCapacity = getParameterInt(PARAM_QUEUE_CAPACITY, false, 10000);
+        queueOfferTimeout = getParameterInt(PARAM_QUEUE_OFFER_TIMEOUT, false, 5000);
+        batchSize = getParameterInt(PARAM_BATCH_SIZE, false, 100);
+        flushInterval = getParameterInt(PARAM_FLUSH_INTERVAL, false, 1000);
+        if (queueCapacity < 1 || batchSize < 1 || flushInterval < 1) {
+            throw new OpenAS2Exception("Tracking queue capacity, batch size and flush interval must be greater than zero.");
+        }
         if (!useEmbeddedDB && forceLoadJdbcDriver) {
             try {
 
@@ -94,236 +129,199 @@ public class DbTrackingModule extends BaseMsgTrackingModule {
     }
 
     protected void persist(Message msg, Map<String, String> map) {
-        Connection conn = null;
+        if (eventQueue == null) {
+            // Written on the message thread when asynchronous writes are disabled
+            List<TrackingRecord> records = new ArrayList<TrackingRecord>(1);
+            records.add(new TrackingRecord(map.get(FIELDS.MSG_ID), map, System.currentTimeMillis()));
+            writeRecords(records);
+            return;
+        }
         try {
-            if (useEmbeddedDB) {
-                conn = dbHandler.getConnection();
-            } else {
-                conn = DriverManager.getConnection(jdbcConnectString, dbUser, dbPwd);
+            if (!eventQueue.offer(map, queueOfferTimeout)) {
+                msg.setLogMsg("Tracking event dropped because the tracking queue is full or stopped. Dropped so far: " + eventQueue.getDroppedCount() + " ::: Data map: " + map);
+                logger.warn(msg);
             }
-            Statement s = conn.createStatement();
-            String msgIdField = FIELDS.MSG_ID;
-            ResultSet rs = s.executeQuery(
-                    "SELECT * FROM " + tableName + " WHERE " + msgIdField + " = '" + map.get(msgIdField) + "'");
-            ResultSetMetaData meta = rs.getMetaData();
-            boolean isUpdate = rs.next(); // Record already exists so update
-            if (logger.isTraceEnabled()) {
-                logger.trace(
-                        "\t\t *** Tracking record found: " + isUpdate + "\n\t\t *** Tracking record metadata: " + meta);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            msg.setLogMsg("Interrupted waiting for space in the tracking queue. Tracking event not recorded: " + map);
+            logger.warn(msg);
+        }
+    }
+
+    /**
+     * Writes the records in a single transaction using batched prepared statements.
+     * The existing rows are read with one query to decide between insert and update for each record.
+     * If the batch fails each record is retried on its own so one bad record does not lose the others.
+     *
+     * @param records the records to write. Each message ID must only appear once.
+     */
+    void writeRecords(List<TrackingRecord> records) {
+        Connection conn = null;
+        Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>();
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(false);
+            Map<String, Integer> columns = getTableColumns(conn);
+            Map<String, Map<String, String>> existingRows = selectExistingRows(conn, columns, records);
+            for (TrackingRecord record : records) {
+                addToBatch(conn, statements, columns, record, existingRows.get(record.getMsgId()));
             }
-            StringBuffer fieldStmt = new StringBuffer();
-            StringBuffer valuesStmt = new StringBuffer();
-            for (int i = 0; i < meta.getColumnCount(); i++) {
-                String colName = meta.getColumnLabel(i + 1);
-                if (colName.equalsIgnoreCase("id")) {
-                    continue;
-                } else if (colName.equalsIgnoreCase(FIELDS.UPDATE_DT)) {
-                    // Ignore if not update mode
-                    if (isUpdate) {
-                        appendFieldForUpdate(colName, DateUtil.getSqlTimestamp(), fieldStmt, meta.getColumnType(i + 1));
-                    }
-                } else if (colName.equalsIgnoreCase(FIELDS.CREATE_DT)) {
-                    if (isUpdate) {
-                        map.remove(FIELDS.CREATE_DT);
-                    } else {
-                        appendFieldForInsert(colName, DateUtil.getSqlTimestamp(), fieldStmt, valuesStmt,
-                                meta.getColumnType(i + 1));
-                    }
-                } else if (isUpdate) {
-                    /*
-                     * Only write unchanged field values. Map is field names in LOWER case so
-                     * convert in case DB server returns column names in uppercase
-                     */
-                    String mapVal = map.get(colName.toLowerCase());
-                    if (mapVal == null) {
-                        continue;
-                    }
-                    String dbVal = rs.getString(colName);
-                    if (dbVal != null && mapVal.equals(dbVal)) {
-                        // Unchanged value so remove from map
-                        continue;
-                    }
-                    appendFieldForUpdate(colName, mapVal, fieldStmt, meta.getColumnType(i + 1));
-                } else {
-                    // For new record add every field that is not NULL
-                    String mapVal = map.get(colName.toLowerCase());
-                    if (mapVal == null) {
-                        continue;
-                    }
-                    appendFieldForInsert(colName, mapVal, fieldStmt, valuesStmt, meta.getColumnType(i + 1));
-                }
+            for (PreparedStatement ps : statements.values()) {
+                ps.executeBatch();
             }
-            if (fieldStmt.length() > 0) {
-                String stmt = "";
-                if (isUpdate) {
-                    stmt = "UPDATE " + tableName + " SET " + fieldStmt.toString() + " WHERE " + FIELDS.MSG_ID + " = '"
-                            + map.get(msgIdField) + "'";
-                } else {
-                    stmt = "INSERT INTO " + tableName + " (" + fieldStmt.toString() + ") VALUES ("
-                            + valuesStmt.toString() + ")";
-                }
-                if (s.executeUpdate(stmt) > 0) {
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("Tracking record SQL statement: " + stmt);
-                    }
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Tracking record successfully persisted to database: " + map);
-                    }
-                } else {
-                    throw new OpenAS2Exception("Failed to persist tracking record to DB: " + map);
-                }
-            } else {
-                if (logger.isInfoEnabled()) {
-                    logger.info("No change from existing record in DB. Tracking record not updated: " + map);
-                }
+            conn.commit();
+            writtenCount.addAndGet(records.size());
+            batchCount.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Tracking records successfully persisted to database: " + records.size());
             }
         } catch (Exception e) {
-            msg.setLogMsg("Failed to persist a tracking event: " + org.openas2.logging.Log.getExceptionMsg(e)
-                    + " ::: Data map: " + map);
-            logger.error(msg, e);
-        } finally {
             if (conn != null) {
                 try {
-                    conn.close();
-                } catch (SQLException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+                    conn.rollback();
+                } catch (SQLException e1) {
+                    // The connection is discarded below
                 }
             }
-        }
-
-    }
-
-    public ArrayList<HashMap<String, String>> listMessages() {
-
-        Connection conn = null;
-        ArrayList<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>();
-
-        try {
-            if (useEmbeddedDB) {
-                conn = dbHandler.getConnection();
+            if (records.size() > 1) {
+                logger.warn("Failed to persist a batch of " + records.size() + " tracking records. Retrying individually: " + org.openas2.logging.Log.getExceptionMsg(e));
+                closeQuietly(statements, conn);
+                conn = null;
+                for (TrackingRecord record : records) {
+                    List<TrackingRecord> single = new ArrayList<TrackingRecord>(1);
+                    single.add(record);
+                    writeRecords(single);
+                }
             } else {
-                conn = DriverManager.getConnection(jdbcConnectString, dbUser, dbPwd);
+                failedCount.addAndGet(records.size());
+                logger.error("Failed to persist a tracking event: " + org.openas2.logging.Log.getExceptionMsg(e) + " ::: Data map: " + records.get(0).getFields(), e);
             }
+        } finally {
+            closeQuietly(statements, conn);
+        }
+    }
 
-            Statement s = conn.createStatement();
-            ResultSet rs = s.executeQuery("SELECT " + FIELDS.MSG_ID
-                    + ",CREATE_DT,SENDER_ID,RECEIVER_ID,MSG_ID,FILE_NAME,ENCRYPTION_ALGORITHM,SIGNATURE_ALGORITHM,MDN_MODE,STATE FROM "
-                    + tableName);
-            ResultSetMetaData meta = rs.getMetaData();
-
-            while (rs.next()) {
-                HashMap<String, String> row = new HashMap<String, String>();
+    private Map<String, Integer> getTableColumns(Connection conn) throws SQLException {
+        Map<String, Integer> columns = tableColumns;
+        if (columns == null) {
+            columns = new LinkedHashMap<String, Integer>();
+            try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery("SELECT * FROM " + tableName + " WHERE 1=0")) {
+                ResultSetMetaData meta = rs.getMetaData();
                 for (int i = 1; i <= meta.getColumnCount(); i++) {
-                    String key = meta.getColumnName(i);
-                    String value = rs.getString(key);
-                    row.put(key, value);
+                    columns.put(meta.getColumnLabel(i), meta.getColumnType(i));
                 }
-                rows.add(row);
             }
+            tableColumns = columns;
+        }
+        return columns;
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
+    private Map<String, Map<String, String>> selectExistingRows(Connection conn, Map<String, Integer> columns, List<TrackingRecord> records) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT * FROM ").append(tableName).append(" WHERE ").append(FIELDS.MSG_ID).append(" IN (");
+        for (int i = 0; i < records.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(")");
+        Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < records.size(); i++) {
+                ps.setString(i + 1, records.get(i).getMsgId());
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, String> row = new HashMap<String, String>();
+                    for (String colName : columns.keySet()) {
+                        row.put(colName.toLowerCase(), rs.getString(colName));
+                    }
+                    rows.put(row.get(FIELDS.MSG_ID), row);
                 }
             }
         }
-
         return rows;
-
     }
 
-    public HashMap<String, String> showMessage(String msg_id) {
-
-        Connection conn = null;
-        HashMap<String, String> row = new HashMap<String, String>();
-
-        try {
-            if (useEmbeddedDB) {
-                conn = dbHandler.getConnection();
+    private void addToBatch(Connection conn, Map<String, PreparedStatement> statements, Map<String, Integer> columns, TrackingRecord record, Map<String, String> existingRow) throws SQLException {
+        boolean isUpdate = existingRow != null;
+        Map<String, String> map = record.getFields();
+        List<String> colNames = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        for (String colName : columns.keySet()) {
+            String fieldName = colName.toLowerCase();
+            if (fieldName.equals("id")) {
+                continue;
+            } else if (fieldName.equals(FIELDS.UPDATE_DT)) {
+                // A new record that has already been through several states has also been updated
+                if (isUpdate || record.getEventCount() > 1) {
+                    colNames.add(colName);
+                    values.add(new Timestamp(record.getLastEventTime()));
+                }
+            } else if (fieldName.equals(FIELDS.CREATE_DT)) {
+                if (!isUpdate) {
+                    colNames.add(colName);
+                    values.add(new Timestamp(record.getFirstEventTime()));
+                }
             } else {
-                conn = DriverManager.getConnection(jdbcConnectString, dbUser, dbPwd);
-            }
-            PreparedStatement s = conn
-                    .prepareStatement("SELECT * FROM " + tableName + " WHERE " + FIELDS.MSG_ID + " = ?");
-            s.setString(1, msg_id);
-            ResultSet rs = s.executeQuery();
-            ResultSetMetaData meta = rs.getMetaData();
-            while (rs.next()) {
-                for (int i = 1; i <= meta.getColumnCount(); i++) {
-                    String key = meta.getColumnName(i);
-                    String value = rs.getString(key);
-                    row.put(key, value);
+                /*
+                 * Only write values that are set and for updates only if they changed.
+                 * Map is field names in LOWER case so convert in case DB server returns column names in uppercase
+                 */
+                String mapVal = map.get(fieldName);
+                if (mapVal == null) {
+                    continue;
                 }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
+                if (isUpdate && mapVal.equals(existingRow.get(fieldName))) {
+                    continue;
                 }
+                colNames.add(colName);
+                values.add(mapVal);
             }
         }
-
-        return row;
-
-    }
-
-    public ArrayList<HashMap<String, String>> getDataCharts(HashMap<String, String> map) {
-
-        Connection conn = null;
-        ArrayList<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>();
-
-        try {
-            if (useEmbeddedDB) {
-                conn = dbHandler.getConnection();
-            } else {
-                conn = DriverManager.getConnection(jdbcConnectString, dbUser, dbPwd);
+        if (colNames.isEmpty()) {
+            if (logger.isInfoEnabled()) {
+                logger.info("No change from existing record in DB. Tracking record not updated: " + map);
             }
-
-            Statement s = conn.createStatement();
-            ResultSet rs = s.executeQuery("SELECT " + FIELDS.MSG_ID + ",STATE,STATUS,CREATE_DT FROM " + tableName
-                    + " WHERE CREATE_DT BETWEEN TIMESTAMP '" + map.get("startDate").toString()
-                    + " 00:00:00' AND TIMESTAMP '" + map.get("endDate").toString() + " 23:59:59'");
-            ResultSetMetaData meta = rs.getMetaData();
-            while (rs.next()) {
-                HashMap<String, String> row = new HashMap<String, String>();
-                for (int i = 1; i <= meta.getColumnCount(); i++) {
-                    String key = meta.getColumnName(i);
-                    String value = rs.getString(key);
-                    row.put(key, value);
-                }
-                rows.add(row);
+            return;
+        }
+        StringBuilder sql = new StringBuilder();
+        if (isUpdate) {
+            sql.append("UPDATE ").append(tableName).append(" SET ");
+            for (int i = 0; i < colNames.size(); i++) {
+                sql.append(i == 0 ? "" : ",").append(colNames.get(i)).append("=?");
             }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+            sql.append(" WHERE ").append(FIELDS.MSG_ID).append("=?");
+        } else {
+            sql.append("INSERT INTO ").append(tableName).append(" (");
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < colNames.size(); i++) {
+                sql.append(i == 0 ? "" : ",").append(colNames.get(i));
+                placeholders.append(i == 0 ? "?" : ",?");
             }
+            sql.append(") VALUES (").append(placeholders).append(")");
+        }
+        String stmt = sql.toString();
+        PreparedStatement ps = statements.get(stmt);
+        if (ps == null) {
+            ps = conn.prepareStatement(stmt);
+            statements.put(stmt, ps);
+        }
+        for (int i = 0; i < colNames.size(); i++) {
+            setParameter(ps, i + 1, values.get(i), columns.get(colNames.get(i)));
+        }
+        if (isUpdate) {
+            ps.setString(colNames.size() + 1, record.getMsgId());
+        }
+        ps.addBatch();
+        if (logger.isTraceEnabled()) {
+            logger.trace("Tracking record SQL statement: " + stmt + " :: Values: " + values);
         }
-
-        return rows;
-
     }
 
-    private String formatField(String value, int dataType) {
-        if (value == null) {
-            return "NULL";
+    private void setParameter(PreparedStatement ps, int index, Object value, int dataType) throws SQLException {
+        if (value instanceof Timestamp) {
+            ps.setTimestamp(index, (Timestamp) value);
+            return;
         }
+        String strVal = (String) value;
         switch (dataType) {
         case Types.BIGINT:
         case Types.DECIMAL:
@@ -333,105 +331,348 @@ public class DbTrackingModule extends BaseMsgTrackingModule {
         case Types.NUMERIC:
         case Types.REAL:
         case Types.SMALLINT:
-        case Types.BINARY:
         case Types.TINYINT:
-            // case Types.ROWID:
-            return value;
-        case Types.TIME_WITH_TIMEZONE:
+            try {
+                ps.setLong(index, Long.parseLong(strVal.trim()));
+            } catch (NumberFormatException e) {
+                ps.setNull(index, dataType);
+            }
+            return;
         case Types.TIMESTAMP_WITH_TIMEZONE:
         case Types.DATE:
-        case Types.TIME:
         case Types.TIMESTAMP:
-            if ("oracle".equalsIgnoreCase(dbPlatform)) {
-                if (value.length() > 19) {
-                    return ("TO_TIMESTAMP('" + value + "','YYYY-MM-DD HH24:MI:SS.FF')");
-                } else {
-                    return ("TO_DATE('" + value + "','YYYY-MM-DD HH24:MI:SS')");
-                }
-            } else if ("mssql".equalsIgnoreCase(dbPlatform)) {
-                return ("CAST('" + value + "' AS DATETIME)");
-            } else {
-                return "'" + value + "'";
+            try {
+                ps.setTimestamp(index, Timestamp.valueOf(strVal));
+            } catch (IllegalArgumentException e) {
+                ps.setString(index, strVal);
             }
+            return;
+        default:
+            ps.setString(index, strVal);
+        }
+    }
 
+    private void closeQuietly(Map<String, PreparedStatement> statements, Connection conn) {
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                // Nothing more can be done
+            }
+        }
+        statements.clear();
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                logger.warn("Failed to close tracking DB connection: " + e.getMessage());
+            }
         }
-        // Must be some kind of string value if it gets here
-        return "'" + value.replaceAll("'", sqlEscapeChar + "'") + "'";
+    }
 
+    private Connection getConnection() throws SQLException, OpenAS2Exception {
+        if (dbHandler == null) {
+            throw new OpenAS2Exception("Tracking DB connection pool not started.");
+        }
+        return dbHandler.getConnection();
     }
 
-    private void appendFieldForUpdate(String name, String value, StringBuffer sb, int dataType) {
-        if (sb.length() > 0) {
-            sb.append(",");
+    /**
+     * @return the counters of the tracking DB connection pool
+     */
+    public Map<String, Long> getDbPoolStats() {
+        if (dbHandler == null) {
+            return new LinkedHashMap<String, Long>();
         }
+        return dbHandler.getPoolStats();
+    }
 
-        sb.append(name).append("=").append(formatField(value, dataType));
+    /**
+     * @return the counters of the asynchronous tracking writer
+     */
+    public Map<String, Long> getWriterStats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        if (eventQueue != null) {
+            stats.put("queued", (long) eventQueue.size());
+            stats.put("enqueued", eventQueue.getEnqueuedCount());
+            stats.put("coalesced", eventQueue.getCoalescedCount());
+            stats.put("backpressure", eventQueue.getBackpressureCount());
+            stats.put("dropped", eventQueue.getDroppedCount());
+        }
+        stats.put("written", writtenCount.get());
+        stats.put("batches", batchCount.get());
+        stats.put("failed", failedCount.get());
+        return stats;
+    }
 
+    /**
+     * Lists one page of tracked messages newest first.
+     *
+     * @param query the filters and the cursor of the page to read
+     * @return the rows of the page keyed by upper case column name and the cursor for the next page
+     * @throws OpenAS2Exception if the tracking database cannot be queried
+     */
+    public MessagePage listMessages(MessageQuery query) throws OpenAS2Exception {
+        List<Object> values = new ArrayList<Object>();
+        StringBuilder sql = new StringBuilder("SELECT ID,").append(FIELDS.MSG_ID)
+                .append(",CREATE_DT,SENDER_ID,RECEIVER_ID,DIRECTION,FILE_NAME,ENCRYPTION_ALGORITHM,SIGNATURE_ALGORITHM,MDN_MODE,STATE FROM ")
+                .append(tableName);
+        appendFilters(sql, values, query);
+        if (query.getAfterId() != null) {
+            sql.append(values.isEmpty() ? " WHERE " : " AND ").append("ID < ?");
+            values.add(query.getAfterId());
+        }
+        sql.append(" ORDER BY ID DESC");
+        ArrayList<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>();
+        boolean hasMore = false;
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            bindValues(ps, values);
+            // One extra row tells us whether there is another page without counting the matches
+            ps.setMaxRows(query.getLimit() + 1);
+            try (ResultSet rs = ps.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                while (rs.next()) {
+                    if (rows.size() == query.getLimit()) {
+                        hasMore = true;
+                        break;
+                    }
+                    HashMap<String, String> row = new HashMap<String, String>();
+                    for (int i = 1; i <= meta.getColumnCount(); i++) {
+                        row.put(meta.getColumnLabel(i).toUpperCase(), rs.getString(i));
+                    }
+                    rows.add(row);
+                }
+            }
+        } catch (SQLException e) {
+            throw new OpenAS2Exception("Failed to list tracked messages: " + e.getMessage(), e);
+        }
+        String nextCursor = hasMore ? rows.get(rows.size() - 1).get("ID") : null;
+        return new MessagePage(rows, nextCursor);
     }
 
-    private void appendFieldForInsert(String name, String value, StringBuffer names, StringBuffer values,
-            int dataType) {
-        if (names.length() > 0) {
-            names.append(",");
-            values.append(",");
+    public HashMap<String, String> showMessage(String msg_id) {
+
+        HashMap<String, String> row = new HashMap<String, String>();
+
+        try (Connection conn = getConnection(); PreparedStatement s = conn
+                .prepareStatement("SELECT * FROM " + tableName + " WHERE " + FIELDS.MSG_ID + " = ?")) {
+            s.setString(1, msg_id);
+            try (ResultSet rs = s.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                while (rs.next()) {
+                    for (int i = 1; i <= meta.getColumnCount(); i++) {
+                        String key = meta.getColumnName(i);
+                        String value = rs.getString(key);
+                        row.put(key, value);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
 
-        names.append(name);
-        values.append(formatField(value, dataType));
+        return row;
 
     }
 
-    public boolean isRunning() {
-        if (useEmbeddedDB) {
-            return isRunning;
-        } else {
-            return true;
+    /**
+     * Counts the tracked messages in each state for each day they were created. The counting is done by the
+     * database so the result size depends on the date range and not on the number of messages.
+     *
+     * @param query the filters. The cursor and limit are ignored.
+     * @return a row per day and state with the DAY (yyyy-MM-dd), STATE and COUNT
+     * @throws OpenAS2Exception if the tracking database cannot be queried
+     */
+    public ArrayList<HashMap<String, String>> getMessageCounts(MessageQuery query) throws OpenAS2Exception {
+        // Oracle keeps the time in a DATE so it has to be truncated instead
+        String dayExpr = "oracle".equals(dbPlatform) ? "TRUNC(CREATE_DT)" : "CAST(CREATE_DT AS DATE)";
+        List<Object> values = new ArrayList<Object>();
+        StringBuilder sql = new StringBuilder("SELECT ").append(dayExpr).append(", STATE, COUNT(*) FROM ").append(tableName);
+        appendFilters(sql, values, query);
+        sql.append(" GROUP BY ").append(dayExpr).append(", STATE ORDER BY 1");
+        ArrayList<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>();
+        try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            bindValues(ps, values);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    java.sql.Date day = rs.getDate(1);
+                    if (day == null) {
+                        // Rows written before the creation date was recorded
+                        continue;
+                    }
+                    HashMap<String, String> row = new HashMap<String, String>();
+                    row.put("DAY", day.toString());
+                    row.put("STATE", rs.getString(2));
+                    row.put("COUNT", Long.toString(rs.getLong(3)));
+                    rows.add(row);
+                }
+            }
+        } catch (SQLException e) {
+            throw new OpenAS2Exception("Failed to count tracked messages: " + e.getMessage(), e);
         }
+        return rows;
     }
 
-    public void start() throws OpenAS2Exception {
-        if (!useEmbeddedDB) {
-            return;
+    private void appendFilters(StringBuilder sql, List<Object> values, MessageQuery query) {
+        List<String> conditions = new ArrayList<String>();
+        if (query.getSenderId() != null) {
+            conditions.add("SENDER_ID = ?");
+            values.add(query.getSenderId());
+        }
+        if (query.getReceiverId() != null) {
+            conditions.add("RECEIVER_ID = ?");
+            values.add(query.getReceiverId());
+        }
+        if (query.getState() != null) {
+            conditions.add("STATE = ?");
+            values.add(query.getState());
+        }
+        if (query.getDirection() != null) {
+            conditions.add("DIRECTION = ?");
+            values.add(query.getDirection());
         }
+        if (query.getFromDate() != null) {
+            conditions.add("CREATE_DT >= ?");
+            values.add(query.getFromDate());
+        }
+        if (query.getToDate() != null) {
+            conditions.add("CREATE_DT < ?");
+            values.add(query.getToDate());
+        }
+        for (int i = 0; i < conditions.size(); i++) {
+            sql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
+        }
+    }
 
-        dbHandler = new EmbeddedDBHandler();
+    private void bindValues(PreparedStatement ps, List<Object> values) throws SQLException {
+        for (int i = 0; i < values.size(); i++) {
+            Object value = values.get(i);
+            if (value instanceof Timestamp) {
+                ps.setTimestamp(i + 1, (Timestamp) value);
+            } else if (value instanceof Long) {
+                ps.setLong(i + 1, (Long) value);
+            } else {
+                ps.setString(i + 1, (String) value);
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    public void start() throws OpenAS2Exception {
+        if (useEmbeddedDB) {
+            dbHandler = new EmbeddedDBHandler();
+        } else {
+            dbHandler = new PooledDBHandler();
+        }
         dbHandler.start(jdbcConnectString, dbUser, dbPwd, getParameters());
         isRunning = true;
+        if (asyncWrite) {
+            eventQueue = new TrackingEventQueue(queueCapacity);
+            writerThread = new Thread(new TrackingWriter(eventQueue), "DbTrackingWriter");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
     }
 
     public void stop() {
-        if (!useEmbeddedDB) {
-            return;
+        if (eventQueue != null) {
+            // Write out everything that was queued before the database goes away
+            eventQueue.close();
+            try {
+                writerThread.join(WRITER_SHUTDOWN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (writerThread.isAlive()) {
+                logger.warn("Tracking writer did not finish within " + WRITER_SHUTDOWN_TIMEOUT_MS + "ms. Unwritten tracking records: " + eventQueue.size());
+            }
         }
-
-        dbHandler.stop();
+        if (dbHandler != null) {
+            dbHandler.stop();
+        }
+        isRunning = false;
     }
 
     @Override
     public boolean healthcheck(List<String> failures) {
-        Connection conn = null;
-        try {
-            if (useEmbeddedDB) {
-                conn = dbHandler.getConnection();
-            } else {
-                conn = DriverManager.getConnection(jdbcConnectString, dbUser, dbPwd);
-            }
-            Statement s = conn.createStatement();
-            s.executeQuery("SELECT COUNT(*) FROM " + tableName);
+        try (Connection conn = getConnection(); Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM " + tableName)) {
+            // Only checks that the table can be read
         } catch (Exception e) {
             failures.add(this.getClass().getSimpleName() + " - Failed to check DB tracking module connection to DB: "
                     + e.getMessage() + " :: Connect String: " + jdbcConnectString);
             return false;
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (Exception e) {
-                }
+        }
+        Map<String, Long> poolStats = getDbPoolStats();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Tracking DB pool stats: " + poolStats + " :: Writer stats: " + getWriterStats());
+        }
+        Long borrowTimeouts = poolStats.get("borrowTimeouts");
+        if (borrowTimeouts != null) {
+            long newTimeouts = borrowTimeouts - lastReportedBorrowTimeouts;
+            lastReportedBorrowTimeouts = borrowTimeouts;
+            if (newTimeouts > 0) {
+                failures.add(this.getClass().getSimpleName() + " - Timed out waiting for a tracking DB connection " + newTimeouts + " times since last check. Pool stats: " + poolStats);
+                return false;
+            }
+        }
+        if (eventQueue != null) {
+            if (!writerThread.isAlive() && !eventQueue.isClosed()) {
+                failures.add(this.getClass().getSimpleName() + " - Tracking writer thread is not running. Queued tracking records: " + eventQueue.size());
+                return false;
+            }
+            long droppedCount = eventQueue.getDroppedCount();
+            long newlyDropped = droppedCount - lastReportedDroppedCount;
+            lastReportedDroppedCount = droppedCount;
+            if (newlyDropped > 0) {
+                failures.add(this.getClass().getSimpleName() + " - Tracking events dropped since last check: " + newlyDropped + " :: Writer stats: " + getWriterStats());
+                return false;
             }
         }
 
         return true;
     }
 
+    /**
+     * Writes queued tracking records to the database in batches until the queue is closed and empty.
+     */
+    private class TrackingWriter implements Runnable {
+        private final TrackingEventQueue queue;
+
+        TrackingWriter(TrackingEventQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<TrackingRecord> records;
+                try {
+                    records = queue.take(batchSize, batchSize, flushInterval);
+                } catch (InterruptedException e) {
+                    logger.warn("Tracking writer interrupted. Unwritten tracking records: " + queue.size());
+                    return;
+                }
+                if (records.isEmpty()) {
+                    if (queue.isClosed()) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    writeRecords(records);
+                } catch (RuntimeException e) {
+                    failedCount.addAndGet(records.size());
+                    logger.error("Unexpected error writing tracking records: " + e.getMessage(), e);
+                }
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Tracking writer stats: " + getWriterStats());
+                }
+            }
+        }
+    }
+
 }
@@ -8,6 +8,7 @@ import javax.annotation.Nullable;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -86,6 +87,16 @@ class EmbeddedDBHandler extends DbTrackingModule implements IDBHandler {
         return cp.getConnection();
     }
 
+    public Map<String, Long> getPoolStats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        JdbcConnectionPool pool = cp;
+        if (pool != null) {
+            stats.put("active", (long) pool.getActiveConnections());
+            stats.put("max", (long) pool.getMaxConnections());
+        }
+        return stats;
+    }
+
     public boolean shutdown(String connectString) throws SQLException, OpenAS2Exception {
         // Wait briefly if there are active connections
         int waitCount = 0;
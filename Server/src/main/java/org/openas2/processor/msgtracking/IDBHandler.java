@@ -19,4 +19,9 @@ interface IDBHandler {
     void start(String jdbcConnectString, String dbUser, String dbPwd, Map<String, String> params) throws OpenAS2Exception;
 
     void stop();
+
+    /**
+     * @return connection pool counters keyed by name for monitoring
+     */
+    Map<String, Long> getPoolStats();
 }
@@ -0,0 +1,28 @@
+package org.openas2.processor.msgtracking;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * One page of tracked messages and the cursor for the page after it.
+ */
+public class MessagePage {
+    private final List<HashMap<String, String>> rows;
+    private final String nextCursor;
+
+    public MessagePage(List<HashMap<String, String>> rows, String nextCursor) {
+        this.rows = rows;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<HashMap<String, String>> getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the cursor to pass to the next query or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,175 @@
+package org.openas2.processor.msgtracking;
+
+import org.openas2.OpenAS2Exception;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Filters and page position for querying the message tracking table.
+ * <p>
+ * Pages are returned newest first and the cursor is the ID of the last row of the previous page so reading
+ * a page costs the same however far into the table it is. Dates are either a day (yyyy-MM-dd), in which
+ * case the end date includes the whole day, or a timestamp (yyyy-MM-dd HH:mm:ss).
+ */
+public class MessageQuery {
+    public static final String PARAM_SENDER = "sender";
+    public static final String PARAM_RECEIVER = "receiver";
+    public static final String PARAM_STATE = "state";
+    public static final String PARAM_DIRECTION = "direction";
+    public static final String PARAM_START_DATE = "startDate";
+    public static final String PARAM_END_DATE = "endDate";
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_CURSOR = "cursor";
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    private static final String DAY_FORMAT = "yyyy-MM-dd";
+    private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    private String senderId;
+    private String receiverId;
+    private String state;
+    private String direction;
+    // Inclusive start and exclusive end of the creation date range
+    private Timestamp fromDate;
+    private Timestamp toDate;
+    private int limit = DEFAULT_LIMIT;
+    private Long afterId;
+
+    /**
+     * Builds a query from the named parameters of a command. Unknown names are ignored.
+     *
+     * @param params the parameter values keyed by name
+     * @return the query
+     * @throws OpenAS2Exception if a date, limit or cursor cannot be parsed
+     */
+    public static MessageQuery fromParams(Map<String, String> params) throws OpenAS2Exception {
+        MessageQuery query = new MessageQuery();
+        query.senderId = emptyToNull(params.get(PARAM_SENDER));
+        query.receiverId = emptyToNull(params.get(PARAM_RECEIVER));
+        query.state = emptyToNull(params.get(PARAM_STATE));
+        query.direction = emptyToNull(params.get(PARAM_DIRECTION));
+        String startDate = emptyToNull(params.get(PARAM_START_DATE));
+        if (startDate != null) {
+            query.fromDate = parseDate(startDate, false);
+        }
+        String endDate = emptyToNull(params.get(PARAM_END_DATE));
+        if (endDate != null) {
+            query.toDate = parseDate(endDate, true);
+        }
+        String limit = emptyToNull(params.get(PARAM_LIMIT));
+        if (limit != null) {
+            try {
+                query.setLimit(Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                throw new OpenAS2Exception("Invalid message query limit: " + limit);
+            }
+        }
+        String cursor = emptyToNull(params.get(PARAM_CURSOR));
+        if (cursor != null) {
+            try {
+                query.afterId = Long.valueOf(cursor);
+            } catch (NumberFormatException e) {
+                throw new OpenAS2Exception("Invalid message query cursor: " + cursor);
+            }
+        }
+        return query;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private static Timestamp parseDate(String value, boolean isEnd) throws OpenAS2Exception {
+        try {
+            if (value.length() <= DAY_FORMAT.length()) {
+                Date day = new SimpleDateFormat(DAY_FORMAT).parse(value);
+                if (!isEnd) {
+                    return new Timestamp(day.getTime());
+                }
+                Calendar cal = Calendar.getInstance();
+                cal.setTime(day);
+                cal.add(Calendar.DAY_OF_MONTH, 1);
+                return new Timestamp(cal.getTimeInMillis());
+            }
+            Date time = new SimpleDateFormat(TIMESTAMP_FORMAT).parse(value);
+            // A timestamp end date includes the second it names
+            return new Timestamp(isEnd ? time.getTime() + 1000 : time.getTime());
+        } catch (ParseException e) {
+            throw new OpenAS2Exception("Invalid message query date: " + value + " Expected " + DAY_FORMAT + " or " + TIMESTAMP_FORMAT);
+        }
+    }
+
+    public String getSenderId() {
+        return senderId;
+    }
+
+    public void setSenderId(String senderId) {
+        this.senderId = senderId;
+    }
+
+    public String getReceiverId() {
+        return receiverId;
+    }
+
+    public void setReceiverId(String receiverId) {
+        this.receiverId = receiverId;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public void setDirection(String direction) {
+        this.direction = direction;
+    }
+
+    public Timestamp getFromDate() {
+        return fromDate;
+    }
+
+    public void setFromDate(Timestamp fromDate) {
+        this.fromDate = fromDate;
+    }
+
+    public Timestamp getToDate() {
+        return toDate;
+    }
+
+    public void setToDate(Timestamp toDate) {
+        this.toDate = toDate;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit the maximum number of rows in a page. Values outside 1 to {@link #MAX_LIMIT} are clamped.
+     */
+    public void setLimit(int limit) {
+        this.limit = Math.max(1, Math.min(MAX_LIMIT, limit));
+    }
+
+    public Long getAfterId() {
+        return afterId;
+    }
+
+    public void setAfterId(Long afterId) {
+        this.afterId = afterId;
+    }
+}
@@ -0,0 +1,511 @@
+package org.openas2.processor.msgtracking;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openas2.OpenAS2Exception;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection pool for external tracking databases accessed through a JDBC driver.
+ * <p>
+ * Connections handed out are proxies whose close() returns the physical connection to the pool.
+ * Connections that have been idle longer than the validation interval are checked with
+ * {@link Connection#isValid(int)} before reuse and connections beyond the minimum pool size are closed once
+ * they have been idle longer than the idle timeout, checked whenever a connection is returned and by a timer.
+ * Statements created through a connection are closed when it is returned to the pool if the caller has not
+ * closed them. Each physical connection keeps a small LRU cache of prepared statements so statements that are prepared
+ * for every tracking write are only parsed by the database once per connection.
+ */
+class PooledDBHandler implements IDBHandler {
+    private static final int VALIDATION_TIMEOUT_SECS = 5;
+    private static final long MIN_EVICTION_INTERVAL_MS = 1000;
+    private static final long MAX_EVICTION_INTERVAL_MS = 60000;
+
+    private Log logger = LogFactory.getLog(PooledDBHandler.class.getSimpleName());
+
+    private String connectString = null;
+    private String userName = null;
+    private String pwd = null;
+    private int minSize = 1;
+    private int maxSize = 10;
+    private long borrowTimeoutMs = 30000;
+    private long validateAfterIdleMs = 5000;
+    private long idleTimeoutMs = 600000;
+    private int statementCacheSize = 50;
+
+    // Most recently used connection first so surplus connections age at the end of the deque
+    private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+    private int totalCount = 0;
+    private int waitingCount = 0;
+    private boolean closed = true;
+    private Timer evictionTimer = null;
+
+    private final AtomicLong borrowedCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong borrowTimeoutCount = new AtomicLong();
+    private final AtomicLong validationFailureCount = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    public void start(String connectString, String userName, String pwd, Map<String, String> params) throws OpenAS2Exception {
+        minSize = getIntParam(params, DbTrackingModule.PARAM_POOL_MIN_SIZE, minSize);
+        maxSize = getIntParam(params, DbTrackingModule.PARAM_POOL_MAX_SIZE, maxSize);
+        borrowTimeoutMs = getIntParam(params, DbTrackingModule.PARAM_POOL_BORROW_TIMEOUT, (int) borrowTimeoutMs);
+        validateAfterIdleMs = getIntParam(params, DbTrackingModule.PARAM_POOL_VALIDATE_AFTER_IDLE, (int) validateAfterIdleMs);
+        idleTimeoutMs = getIntParam(params, DbTrackingModule.PARAM_POOL_IDLE_TIMEOUT, (int) (idleTimeoutMs / 1000)) * 1000L;
+        statementCacheSize = getIntParam(params, DbTrackingModule.PARAM_POOL_STATEMENT_CACHE_SIZE, statementCacheSize);
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new OpenAS2Exception("Invalid tracking DB pool size. Minimum: " + minSize + " Maximum: " + maxSize);
+        }
+        createConnectionPool(connectString, userName, pwd);
+    }
+
+    public void createConnectionPool(String connectString, String userName, String pwd) throws OpenAS2Exception {
+        synchronized (this) {
+            if (!closed) {
+                throw new OpenAS2Exception("Connection pool already initialized. Cannot create a new connection pool. Stop current one first. DB connect string:" + connectString + " :: Active pool connect string: " + this.connectString);
+            }
+            this.connectString = connectString;
+            this.userName = userName;
+            this.pwd = pwd;
+            closed = false;
+            long interval = Math.max(MIN_EVICTION_INTERVAL_MS, Math.min(MAX_EVICTION_INTERVAL_MS, idleTimeoutMs / 2));
+            evictionTimer = new Timer("TrackingDBPoolEvictor", true);
+            evictionTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, interval, interval);
+        }
+        // Fill the pool up to the minimum size. The database may not be up yet so failures are not fatal.
+        while (true) {
+            synchronized (this) {
+                if (closed || totalCount >= minSize) {
+                    return;
+                }
+                totalCount++;
+            }
+            try {
+                PooledConnection pc = new PooledConnection(DriverManager.getConnection(connectString, userName, pwd));
+                createdCount.incrementAndGet();
+                synchronized (this) {
+                    idle.addLast(pc);
+                    notifyAll();
+                }
+            } catch (SQLException e) {
+                synchronized (this) {
+                    totalCount--;
+                }
+                logger.warn("Failed to open initial connection to tracking DB: " + e.getMessage() + " :: Connect String: " + connectString);
+                return;
+            }
+        }
+    }
+
+    public void destroyConnectionPool() {
+        Deque<PooledConnection> toClose;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (evictionTimer != null) {
+                evictionTimer.cancel();
+                evictionTimer = null;
+            }
+            toClose = new ArrayDeque<PooledConnection>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        // Leased connections are closed when they are returned
+        for (PooledConnection pc : toClose) {
+            destroy(pc);
+        }
+    }
+
+    public Connection getConnection() throws SQLException, OpenAS2Exception {
+        long deadline = System.currentTimeMillis() + borrowTimeoutMs;
+        while (true) {
+            PooledConnection pc = null;
+            synchronized (this) {
+                checkOpen();
+                while (idle.isEmpty() && totalCount >= maxSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        borrowTimeoutCount.incrementAndGet();
+                        throw new SQLException("Timed out after " + borrowTimeoutMs + "ms waiting for a tracking DB connection. Pool stats: " + getPoolStats());
+                    }
+                    waitingCount++;
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for a tracking DB connection.");
+                    } finally {
+                        waitingCount--;
+                    }
+                    checkOpen();
+                }
+                if (!idle.isEmpty()) {
+                    pc = idle.pollFirst();
+                } else {
+                    // Reserve the slot so the connection can be opened without holding the lock
+                    totalCount++;
+                }
+            }
+            if (pc == null) {
+                try {
+                    pc = new PooledConnection(DriverManager.getConnection(connectString, userName, pwd));
+                    createdCount.incrementAndGet();
+                } catch (SQLException e) {
+                    synchronized (this) {
+                        totalCount--;
+                        notifyAll();
+                    }
+                    throw e;
+                }
+            } else if (System.currentTimeMillis() - pc.lastUsed > validateAfterIdleMs && !pc.isValid()) {
+                validationFailureCount.incrementAndGet();
+                logger.warn("Discarding tracking DB connection that failed validation.");
+                destroy(pc);
+                continue;
+            }
+            borrowedCount.incrementAndGet();
+            return pc.lease();
+        }
+    }
+
+    public boolean shutdown(String connectString) throws SQLException, OpenAS2Exception {
+        // The external database is not owned by OpenAS2 so only the pool is closed
+        destroyConnectionPool();
+        return true;
+    }
+
+    public void stop() {
+        destroyConnectionPool();
+    }
+
+    public synchronized Map<String, Long> getPoolStats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("total", (long) totalCount);
+        stats.put("idle", (long) idle.size());
+        stats.put("active", (long) (totalCount - idle.size()));
+        stats.put("waiting", (long) waitingCount);
+        stats.put("max", (long) maxSize);
+        stats.put("borrowed", borrowedCount.get());
+        stats.put("created", createdCount.get());
+        stats.put("destroyed", destroyedCount.get());
+        stats.put("borrowTimeouts", borrowTimeoutCount.get());
+        stats.put("validationFailures", validationFailureCount.get());
+        stats.put("statementCacheHits", statementCacheHits.get());
+        stats.put("statementCacheMisses", statementCacheMisses.get());
+        return stats;
+    }
+
+    private void checkOpen() throws OpenAS2Exception {
+        if (closed) {
+            throw new OpenAS2Exception("Connection pool not initialized.");
+        }
+    }
+
+    private void release(PooledConnection pc) {
+        boolean broken = false;
+        try {
+            pc.reset();
+        } catch (SQLException e) {
+            logger.warn("Discarding tracking DB connection that could not be reset: " + e.getMessage());
+            broken = true;
+        }
+        PooledConnection expired = null;
+        synchronized (this) {
+            if (!closed && !broken) {
+                long now = System.currentTimeMillis();
+                pc.lastUsed = now;
+                idle.addFirst(pc);
+                pc = null;
+                PooledConnection oldest = idle.peekLast();
+                if (totalCount > minSize && oldest != null && now - oldest.lastUsed > idleTimeoutMs) {
+                    expired = idle.pollLast();
+                }
+                notifyAll();
+            }
+        }
+        if (pc != null) {
+            destroy(pc);
+        }
+        if (expired != null) {
+            destroy(expired);
+        }
+    }
+
+    /**
+     * Closes connections beyond the minimum pool size that have been idle longer than the idle timeout so they
+     * are released even when no connection is returned to the pool for a while.
+     */
+    void evictIdle() {
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            while (!closed && totalCount - expired.size() > minSize) {
+                PooledConnection oldest = idle.peekLast();
+                if (oldest == null || now - oldest.lastUsed <= idleTimeoutMs) {
+                    break;
+                }
+                expired.add(idle.pollLast());
+            }
+        }
+        for (PooledConnection pc : expired) {
+            destroy(pc);
+        }
+    }
+
+    private void destroy(PooledConnection pc) {
+        try {
+            pc.physical.close();
+        } catch (SQLException e) {
+            // The connection is being discarded anyway
+        }
+        destroyedCount.incrementAndGet();
+        synchronized (this) {
+            totalCount--;
+            notifyAll();
+        }
+    }
+
+    private static int getIntParam(Map<String, String> params, String key, int defaultValue) throws OpenAS2Exception {
+        String value = params.get(key);
+        if (value == null || value.length() < 1) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new OpenAS2Exception("Invalid value for tracking DB pool parameter " + key + ": " + value);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool and its cache of prepared statements.
+     */
+    private class PooledConnection {
+        private final Connection physical;
+        private final LinkedHashMap<String, CachedStatement> statementCache;
+        private long lastUsed = System.currentTimeMillis();
+        private ConnectionLease currentLease = null;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statementCache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    // A statement still in use is kept until the next insert rather than closed under the caller
+                    if (size() > statementCacheSize && !eldest.getValue().inUse) {
+                        eldest.getValue().closePhysical();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Connection lease() {
+            currentLease = new ConnectionLease(this);
+            currentLease.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, currentLease);
+            return currentLease.proxy;
+        }
+
+        boolean isValid() {
+            try {
+                return physical.isValid(VALIDATION_TIMEOUT_SECS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void reset() throws SQLException {
+            if (currentLease != null) {
+                currentLease.closeStatements();
+            }
+            currentLease = null;
+            for (CachedStatement cs : statementCache.values()) {
+                cs.inUse = false;
+            }
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+        }
+
+        PreparedStatement prepareCached(String sql, ConnectionLease lease) throws SQLException {
+            CachedStatement cs = statementCache.get(sql);
+            if (cs != null && !cs.inUse) {
+                statementCacheHits.incrementAndGet();
+            } else {
+                statementCacheMisses.incrementAndGet();
+                PreparedStatement ps = physical.prepareStatement(sql);
+                if (cs != null) {
+                    // Same SQL prepared twice before the first was closed; hand out an uncached statement
+                    lease.track(ps);
+                    return ps;
+                }
+                cs = new CachedStatement(ps);
+                statementCache.put(sql, cs);
+            }
+            cs.inUse = true;
+            StatementHandler handler = new StatementHandler(cs, lease);
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, handler);
+        }
+    }
+
+    private static class CachedStatement {
+        private final PreparedStatement physical;
+        private boolean inUse = false;
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                // Nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * Handles calls on the connection handed out for one borrow from the pool.
+     */
+    private class ConnectionLease implements InvocationHandler {
+        private final PooledConnection pc;
+        private Connection proxy;
+        // Uncached statements handed out by this lease so they can be closed when the connection is returned
+        private final List<Statement> statements = new ArrayList<Statement>();
+        private boolean closed = false;
+
+        ConnectionLease(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        void track(Statement statement) {
+            statements.add(statement);
+        }
+
+        void closeStatements() {
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // The statement is being discarded anyway
+                }
+            }
+            statements.clear();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    release(pc);
+                }
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return closed || pc.physical.isClosed();
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return "Pooled" + pc.physical.toString();
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed.");
+            }
+            if ("prepareStatement".equals(name) && args.length == 1 && statementCacheSize > 0) {
+                return pc.prepareCached((String) args[0], this);
+            }
+            Object result = PooledDBHandler.invoke(pc.physical, method, args);
+            if (result instanceof Statement) {
+                track((Statement) result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Handles calls on a cached prepared statement. Closing it makes it available for reuse on the same connection.
+     */
+    private static class StatementHandler implements InvocationHandler {
+        private final CachedStatement cs;
+        private final ConnectionLease lease;
+        private boolean closed = false;
+
+        StatementHandler(CachedStatement cs, ConnectionLease lease) {
+            this.cs = cs;
+            this.lease = lease;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed && !lease.closed) {
+                    closed = true;
+                    try {
+                        cs.physical.clearParameters();
+                        cs.physical.clearBatch();
+                    } finally {
+                        cs.inUse = false;
+                    }
+                }
+                closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return closed || lease.closed;
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("getConnection".equals(name)) {
+                return lease.proxy;
+            }
+            if (closed || lease.closed) {
+                throw new SQLException("Statement is closed.");
+            }
+            return PooledDBHandler.invoke(cs.physical, method, args);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.openas2.processor.msgtracking;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded queue of tracking records waiting to be written to the tracking database.
+ * <p>
+ * Events for a message ID that is already queued are merged into the queued record so a message that
+ * passes through several states before the next flush only results in one database write.
+ * When the queue is full callers wait up to the offer timeout for space and the event is dropped if none
+ * becomes available so that message processing is never blocked indefinitely by a slow database.
+ */
+class TrackingEventQueue {
+
+    private final int capacity;
+    private final LinkedHashMap<String, TrackingRecord> pending = new LinkedHashMap<String, TrackingRecord>();
+    private boolean closed = false;
+
+    private long enqueuedCount = 0;
+    private long coalescedCount = 0;
+    private long backpressureCount = 0;
+    private long droppedCount = 0;
+
+    TrackingEventQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues the field values of a tracking event.
+     *
+     * @param fields    the tracking fields keyed by lower case column name
+     * @param timeoutMs how long to wait for space if the queue is full
+     * @return false if the event was dropped because the queue is full or closed
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    synchronized boolean offer(Map<String, String> fields, long timeoutMs) throws InterruptedException {
+        if (closed) {
+            droppedCount++;
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        String msgId = fields.get(BaseMsgTrackingModule.FIELDS.MSG_ID);
+        TrackingRecord record = pending.get(msgId);
+        if (record != null) {
+            record.merge(fields, now);
+            coalescedCount++;
+            return true;
+        }
+        if (pending.size() >= capacity) {
+            backpressureCount++;
+            long deadline = now + timeoutMs;
+            long remaining = timeoutMs;
+            while (pending.size() >= capacity && remaining > 0 && !closed) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            // The writer may have taken a queued record for this message while waiting
+            record = pending.get(msgId);
+            if (record != null) {
+                record.merge(fields, System.currentTimeMillis());
+                coalescedCount++;
+                return true;
+            }
+            if (pending.size() >= capacity || closed) {
+                droppedCount++;
+                return false;
+            }
+        }
+        pending.put(msgId, new TrackingRecord(msgId, fields, System.currentTimeMillis()));
+        enqueuedCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits until at least minCount records are queued or the wait time has elapsed and then removes up to
+     * maxCount records in the order they were first queued.
+     * Returns immediately with whatever is queued once the queue is closed.
+     *
+     * @param minCount the number of queued records that triggers an immediate flush
+     * @param maxCount the maximum number of records to return
+     * @param waitMs   the maximum time to wait for minCount records
+     * @return the records to be written. Empty if nothing was queued in the wait time.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized List<TrackingRecord> take(int minCount, int maxCount, long waitMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMs;
+        long remaining = waitMs;
+        while (!closed && pending.size() < minCount && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        List<TrackingRecord> records = new ArrayList<TrackingRecord>(Math.min(maxCount, pending.size()));
+        Iterator<TrackingRecord> it = pending.values().iterator();
+        while (it.hasNext() && records.size() < maxCount) {
+            records.add(it.next());
+            it.remove();
+        }
+        if (!records.isEmpty()) {
+            notifyAll();
+        }
+        return records;
+    }
+
+    /**
+     * Stops accepting new events. Records already queued can still be taken.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    synchronized long getEnqueuedCount() {
+        return enqueuedCount;
+    }
+
+    synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    synchronized long getBackpressureCount() {
+        return backpressureCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * The merged field values of all tracking events received for a message since it was last written.
+     */
+    static class TrackingRecord {
+        private final String msgId;
+        private final Map<String, String> fields;
+        private final long firstEventTime;
+        private long lastEventTime;
+        private int eventCount = 1;
+
+        TrackingRecord(String msgId, Map<String, String> fields, long eventTime) {
+            this.msgId = msgId;
+            this.fields = fields;
+            this.firstEventTime = eventTime;
+            this.lastEventTime = eventTime;
+        }
+
+        /*
+         * Later values replace earlier ones but a missing value never clears a known one,
+         * the same as applying each event as a separate update.
+         */
+        void merge(Map<String, String> newFields, long eventTime) {
+            for (Map.Entry<String, String> entry : newFields.entrySet()) {
+                if (entry.getValue() != null) {
+                    fields.put(entry.getKey(), entry.getValue());
+                }
+            }
+            lastEventTime = eventTime;
+            eventCount++;
+        }
+
+        String getMsgId() {
+            return msgId;
+        }
+
+        Map<String, String> getFields() {
+            return fields;
+        }
+
+        long getFirstEventTime() {
+            return firstEventTime;
+        }
+
+        long getLastEventTime() {
+            return lastEventTime;
+        }
+
+        int getEventCount() {
+            return eventCount;
+        }
+    }
+}
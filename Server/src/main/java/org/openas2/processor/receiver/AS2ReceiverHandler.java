@@ -1,5 +1,6 @@
 package org.openas2.processor.receiver;
 
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openas2.DispositionException;
@@ -39,6 +40,7 @@ import org.openas2.util.ProfilerStub;
 import org.openas2.util.Properties;
 
 import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
 import javax.mail.MessagingException;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetHeaders;
@@ -46,7 +48,9 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
 import javax.mail.internet.ParseException;
+import javax.mail.util.SharedFileInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.Socket;
@@ -83,6 +87,11 @@ public class AS2ReceiverHandler implements NetModuleHandler {
         AS2Message msg = createMessage(s);
 
         byte[] data = null;
+        long dataLength = -1;
+        DeferredFileOutputStream spool = null;
+        File spoolFile = null;
+        SharedFileInputStream spoolIn = null;
+        DecodedPartSpool decodedSpool = null;
         BufferedOutputStream out;
 
         msg.setOption(FIELDS.DIRECTION, "RECEIVE");
@@ -100,18 +109,35 @@ public class AS2ReceiverHandler implements NetModuleHandler {
             ProfilerStub transferStub = Profiler.startProfile();
             // Read in the message request, headers, and data
             try {
-                data = HTTPUtil.readData(s.getInputStream(), s.getOutputStream(), msg);
+                spool = createSpool();
+                if (spool == null) {
+                    data = HTTPUtil.readData(s.getInputStream(), s.getOutputStream(), msg);
+                    dataLength = (data == null) ? -1 : data.length;
+                } else {
+                    try {
+                        dataLength = HTTPUtil.readData(s.getInputStream(), s.getOutputStream(), msg, spool);
+                    } finally {
+                        spool.close();
+                        if (!spool.isInMemory()) {
+                            spoolFile = spool.getFile();
+                        }
+                    }
+                    if (dataLength >= 0 && spoolFile == null) {
+                        data = spool.getData();
+                    }
+                }
 
             } catch (Throwable e) {
                 msg.setLogMsg("HTTP connection error on inbound message. Error is: " + e.getMessage());
                 LOG.error(msg, e);
                 NetException ne = new NetException(s.getInetAddress(), s.getPort(), e);
                 ne.log();
+                dataLength = -1;
             }
             Profiler.endProfile(transferStub);
 
             String mic = null;
-            if (data == null) {
+            if (dataLength < 0) {
                 if ("true".equalsIgnoreCase(msg.getAttribute("isHealthCheck"))) {
                     if (LOG.isDebugEnabled()) {
                         LOG.debug("Healthcheck ping detected" + " [" + getClientInfo(s) + "]" + msg.getLogMsgID());
@@ -131,7 +157,10 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                 }
             } else {
                 if (LOG.isInfoEnabled()) {
-                    LOG.info("received " + IOUtil.getTransferRate(data.length, transferStub) + getClientInfo(s) + msg.getLogMsgID());
+                    LOG.info("received " + IOUtil.getTransferRate(dataLength, transferStub) + getClientInfo(s) + msg.getLogMsgID());
+                }
+                if (LOG.isDebugEnabled() && spoolFile != null) {
+                    LOG.debug("Received data spooled to file: " + spoolFile.getAbsolutePath() + msg.getLogMsgID());
                 }
 
                 if (LOG.isTraceEnabled()) {
@@ -149,7 +178,17 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                             receivedContentType = new ContentType(msg.getHeader(MimeUtil.MIME_CONTENT_TYPE_KEY));
 
                             receivedPart = new MimeBodyPart();
-                            receivedPart.setDataHandler(new DataHandler(new ByteArrayDataSource(data, receivedContentType.toString(), null)));
+                            if (spoolFile == null) {
+                                receivedPart.setDataHandler(new DataHandler(new ByteArrayDataSource(data, receivedContentType.toString(), null)));
+                            } else {
+                                final String spoolContentType = receivedContentType.toString();
+                                receivedPart.setDataHandler(new DataHandler(new FileDataSource(spoolFile) {
+                                    @Override
+                                    public String getContentType() {
+                                        return spoolContentType;
+                                    }
+                                }));
+                            }
                             // Set "Content-Type" and "Content-Transfer-Encoding" to what is received in the
                             // HTTP header since it may not be set in the received mime body part
                             receivedPart.setHeader(MimeUtil.MIME_CONTENT_TYPE_KEY, receivedContentType.toString());
@@ -171,7 +210,13 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                         // We only need the Content-Type to rebuild the mime body part.
                             InternetHeaders ih = new InternetHeaders();
                             ih.setHeader(MimeUtil.MIME_CONTENT_TYPE_KEY, msg.getHeader(MimeUtil.MIME_CONTENT_TYPE_KEY));
-                            receivedPart = new MimeBodyPart(ih, data);
+                            if (spoolFile == null) {
+                                receivedPart = new MimeBodyPart(ih, data);
+                            } else {
+                                // Content is read from the spool file on demand rather than loaded into memory
+                                spoolIn = new SharedFileInputStream(spoolFile);
+                                receivedPart = MimeUtil.createMimeBodyPart(ih, spoolIn);
+                            }
                         }
                         if (LOG.isTraceEnabled() && "true".equalsIgnoreCase(System.getProperty("logRxdMsgMimeBodyParts", "false"))) {
                             LOG.trace("Received MimeBodyPart for inbound message: " + msg.getLogMsgID() + "\n" + MimeUtil.toString(receivedPart, true));
@@ -206,8 +251,12 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                     // Log significant msg state
                     msg.setOption("STATE", Message.MSG_STATE_RECEIVE_START);
                     msg.trackMsgState(getModule().getSession());
-                    // Decrypt and verify signature of the data, and attach data to the message
-                    mic = decryptAndVerify(msg);
+                    // Decrypt and verify signature of the data, and attach data to the message.
+                    // Data too big to receive in memory is also decrypted and decompressed to disk
+                    if (spoolFile != null) {
+                        decodedSpool = new DecodedPartSpool(spoolFile.getParentFile());
+                    }
+                    mic = decryptAndVerify(msg, decodedSpool);
                     try {
                         // Extract and Store the received filename of the payload
                         String filename = msg.extractPayloadFilename();
@@ -295,6 +344,45 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                     LOG.error(msg, e);
                 }
             }
+            if (decodedSpool != null) {
+                decodedSpool.cleanup();
+            }
+            cleanupSpool(msg, spoolIn, spoolFile);
+        }
+    }
+
+    /**
+     * Creates the stream that received data is written to when streaming receive mode is enabled by setting
+     * the spool directory on the module. Data is kept in memory up to the configured threshold and
+     * then written to a temporary file so the heap used per connection does not depend on the payload size.
+     *
+     * @return the spool stream or null if streaming receive mode is not enabled
+     * @throws OpenAS2Exception - the spool directory is invalid
+     * @throws IOException      - the spool directory could not be created
+     */
+    protected DeferredFileOutputStream createSpool() throws OpenAS2Exception, IOException {
+        String spoolDirName = getModule().getParameter(AS2ReceiverModule.PARAM_SPOOL_DIRECTORY, false);
+        if (spoolDirName == null) {
+            return null;
+        }
+        int threshold = getModule().getParameterInt(AS2ReceiverModule.PARAM_SPOOL_THRESHOLD, false, AS2ReceiverModule.DEFAULT_SPOOL_THRESHOLD);
+        return DeferredFileOutputStream.builder().setThreshold(threshold).setPrefix("as2rx").setSuffix(".tmp").setDirectory(IOUtil.getDirectoryFile(spoolDirName)).get();
+    }
+
+    private void cleanupSpool(AS2Message msg, SharedFileInputStream spoolIn, File spoolFile) {
+        if (spoolIn != null) {
+            try {
+                spoolIn.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close the received data spool file." + msg.getLogMsgID(), e);
+            }
+        }
+        if (spoolFile != null) {
+            try {
+                IOUtil.deleteFile(spoolFile);
+            } catch (IOException e) {
+                LOG.warn("Failed to delete the received data spool file: " + spoolFile.getAbsolutePath() + msg.getLogMsgID(), e);
+            }
         }
     }
 
@@ -310,7 +398,30 @@ public class AS2ReceiverHandler implements NetModuleHandler {
         return msg;
     }
 
+    private MimeBodyPart decrypt(MimeBodyPart part, X509Certificate cert, PrivateKey key, DecodedPartSpool decodedSpool) throws Exception {
+        if (decodedSpool == null) {
+            return AS2Util.getCryptoHelper().decrypt(part, cert, key);
+        }
+        return decodedSpool.track(AS2Util.getCryptoHelper().decrypt(part, cert, key, decodedSpool.createFile()));
+    }
+
+    private void decompress(AS2Message msg, DecodedPartSpool decodedSpool) throws Exception {
+        if (decodedSpool == null) {
+            AS2Util.getCryptoHelper().decompress(msg);
+        } else {
+            AS2Util.getCryptoHelper().decompress(msg, decodedSpool.createFile());
+            decodedSpool.track(msg.getData());
+        }
+    }
+
     protected String decryptAndVerify(AS2Message msg) throws OpenAS2Exception {
+        return decryptAndVerify(msg, null);
+    }
+
+    /**
+     * @param decodedSpool where to stream the decrypted and decompressed layers or null to decode in memory
+     */
+    private String decryptAndVerify(AS2Message msg, DecodedPartSpool decodedSpool) throws OpenAS2Exception {
         CertificateFactory certFx = getModule().getSession().getCertificateFactory();
         ICryptoHelper ch;
         String mic = null;
@@ -335,7 +446,7 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                 X509Certificate receiverCert = certFx.getCertificate(x509_alias);
                 PrivateKey receiverKey = certFx.getPrivateKey(x509_alias);
                 try {
-                    msg.setData(AS2Util.getCryptoHelper().decrypt(msg.getData(), receiverCert, receiverKey));
+                    msg.setData(decrypt(msg.getData(), receiverCert, receiverKey, decodedSpool));
                     msg.setReceiverX509Alias(x509_alias);
                 } catch (Exception e) {
                     // Something went wrong - possibly a certificate change so try the backup if configured
@@ -346,7 +457,7 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                     }
                     receiverCert = certFx.getCertificate(x509_alias_fallback);
                     receiverKey = certFx.getPrivateKey(x509_alias_fallback);
-                    msg.setData(AS2Util.getCryptoHelper().decrypt(msg.getData(), receiverCert, receiverKey));
+                    msg.setData(decrypt(msg.getData(), receiverCert, receiverKey, decodedSpool));
                     // success so the sender must have updated the receiver certificate
                     msg.setReceiverX509Alias(x509_alias_fallback);
                     // TODO: Automatically switch the alias in the partnerships.xml file and remove the fallback
@@ -368,7 +479,7 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                 if (LOG.isTraceEnabled()) {
                     LOG.trace("Decompressing received message before checking signature...");
                 }
-                AS2Util.getCryptoHelper().decompress(msg);
+                decompress(msg, decodedSpool);
                 isDecompressed = true;
                 if (LOG.isTraceEnabled() && "true".equalsIgnoreCase(System.getProperty("logRxdMsgMimeBodyParts", "false"))) {
                     LOG.trace("Received MimeBodyPart for inbound message after decompression: " + msg.getLogMsgID() + "\n" + MimeUtil.toString(msg.getData(), true));
@@ -468,7 +579,7 @@ public class AS2ReceiverHandler implements NetModuleHandler {
                 if (LOG.isTraceEnabled()) {
                     LOG.trace("Decompressing received message after decryption...");
                 }
-                AS2Util.getCryptoHelper().decompress(msg);
+                decompress(msg, decodedSpool);
             }
         } catch (Exception e) {
             msg.setLogMsg("Unexepcted error checking for compressed message after signing");
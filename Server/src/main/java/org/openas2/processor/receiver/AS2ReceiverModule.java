@@ -6,6 +6,11 @@ import org.openas2.partner.Partnership;
 
 
 public class AS2ReceiverModule extends NetModule {
+    // When set, received bodies larger than the threshold are streamed to a file in this directory instead of memory
+    public static final String PARAM_SPOOL_DIRECTORY = "spooldir";
+    public static final String PARAM_SPOOL_THRESHOLD = "spool_threshold";
+    public static final int DEFAULT_SPOOL_THRESHOLD = 1024 * 1024;
+
     // Macros for responses
     public static final String MSG_SENDER = "$" + MessageParameters.KEY_SENDER + "." + Partnership.PID_AS2 + "$";
     public static final String MSG_RECEIVER = "$" + MessageParameters.KEY_RECEIVER + "." + Partnership.PID_AS2 + "$";
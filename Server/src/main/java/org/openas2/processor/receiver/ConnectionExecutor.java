@@ -0,0 +1,171 @@
+package org.openas2.processor.receiver;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs connection handlers for a {@link NetModule} with a fixed upper limit on concurrent handlers and on
+ * connections waiting for a handler. Connections beyond both limits are rejected so the caller can answer
+ * them straight away instead of starting an unbounded number of threads.
+ * <p>
+ * With virtual threads each connection gets its own virtual thread and the limits are enforced with
+ * permits. Virtual threads are only available from Java 21 and are looked up by reflection so the module
+ * still runs on older versions.
+ */
+class ConnectionExecutor {
+    private final ExecutorService executor;
+    private final int maxWorkers;
+    private final int maxQueue;
+    private final boolean virtualThreads;
+    // Only used with virtual threads
+    private final Semaphore admissionPermits;
+    private final Semaphore workerPermits;
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param name           prefix for the names of the worker threads
+     * @param maxWorkers     the maximum number of connections handled at the same time
+     * @param maxQueue       the maximum number of connections waiting for a worker
+     * @param idleTimeout    seconds an idle platform worker thread is kept
+     * @param virtualThreads use virtual threads if the JVM supports them
+     */
+    ConnectionExecutor(final String name, int maxWorkers, int maxQueue, int idleTimeout, boolean virtualThreads) {
+        this.maxWorkers = maxWorkers;
+        this.maxQueue = maxQueue;
+        ExecutorService virtualExecutor = virtualThreads ? createVirtualThreadExecutor() : null;
+        this.virtualThreads = virtualExecutor != null;
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            admissionPermits = new Semaphore(maxWorkers + maxQueue);
+            workerPermits = new Semaphore(maxWorkers);
+        } else {
+            BlockingQueue<Runnable> queue = maxQueue > 0 ? new ArrayBlockingQueue<Runnable>(maxQueue) : new SynchronousQueue<Runnable>();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxWorkers, maxWorkers, idleTimeout, TimeUnit.SECONDS, queue, new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, name + "-" + threadCount.incrementAndGet());
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            admissionPermits = null;
+            workerPermits = null;
+        }
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task or null if the JVM has no virtual threads
+     */
+    static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hands the connection handler to a worker.
+     *
+     * @param handler the connection handler
+     * @throws RejectedExecutionException if all workers are busy and the queue is full or the executor is shut down
+     */
+    void execute(final Runnable handler) {
+        queuedCount.incrementAndGet();
+        if (virtualThreads && !admissionPermits.tryAcquire()) {
+            queuedCount.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Too many connections");
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean haveWorkerPermit = false;
+                    try {
+                        if (virtualThreads) {
+                            workerPermits.acquireUninterruptibly();
+                            haveWorkerPermit = true;
+                        }
+                        queuedCount.decrementAndGet();
+                        activeCount.incrementAndGet();
+                        try {
+                            handler.run();
+                        } finally {
+                            activeCount.decrementAndGet();
+                            completedCount.incrementAndGet();
+                        }
+                    } finally {
+                        if (haveWorkerPermit) {
+                            workerPermits.release();
+                        }
+                        if (virtualThreads) {
+                            admissionPermits.release();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queuedCount.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            if (virtualThreads) {
+                admissionPermits.release();
+            }
+            throw e;
+        }
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    int getActiveCount() {
+        return activeCount.get();
+    }
+
+    int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return the current and configured limits and counters keyed by name
+     */
+    Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("active", (long) activeCount.get());
+        stats.put("queued", (long) queuedCount.get());
+        stats.put("maxWorkers", (long) maxWorkers);
+        stats.put("maxQueue", (long) maxQueue);
+        stats.put("completed", completedCount.get());
+        stats.put("rejected", rejectedCount.get());
+        return stats;
+    }
+}
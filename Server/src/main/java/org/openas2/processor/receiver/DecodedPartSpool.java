@@ -0,0 +1,70 @@
+package org.openas2.processor.receiver;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.mail.smime.util.FileBackedMimeBodyPart;
+import org.openas2.util.IOUtil;
+
+import javax.mail.internet.MimeBodyPart;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the temporary files written while a spooled inbound message is decrypted and decompressed.
+ * Each layer is streamed into its own file in the receiver spool directory and read back from there by the
+ * next layer, the MIC calculation and the storage module, so none of the layers is held in memory.
+ * All files are removed by {@link #cleanup()} once the message has been processed.
+ */
+class DecodedPartSpool {
+    private final File directory;
+    private final List<File> files = new ArrayList<File>();
+    private final List<FileBackedMimeBodyPart> parts = new ArrayList<FileBackedMimeBodyPart>();
+
+    private Log logger = LogFactory.getLog(DecodedPartSpool.class.getSimpleName());
+
+    DecodedPartSpool(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return a new empty file for the next decoded layer
+     */
+    File createFile() throws IOException {
+        File file = File.createTempFile("as2rx", ".tmp", directory);
+        files.add(file);
+        return file;
+    }
+
+    /**
+     * Registers a decoded part so the file it holds open is closed on cleanup.
+     *
+     * @return the part passed in
+     */
+    MimeBodyPart track(MimeBodyPart part) {
+        if (part instanceof FileBackedMimeBodyPart) {
+            parts.add((FileBackedMimeBodyPart) part);
+        }
+        return part;
+    }
+
+    void cleanup() {
+        for (FileBackedMimeBodyPart part : parts) {
+            try {
+                part.dispose();
+            } catch (IOException e) {
+                logger.warn("Failed to close a decoded spool file.", e);
+            }
+        }
+        parts.clear();
+        for (File file : files) {
+            try {
+                IOUtil.deleteFile(file);
+            } catch (IOException e) {
+                logger.warn("Failed to delete the decoded spool file: " + file.getAbsolutePath(), e);
+            }
+        }
+        files.clear();
+    }
+}
@@ -6,6 +6,8 @@ import org.openas2.OpenAS2Exception;
 import org.openas2.Session;
 import org.openas2.message.Message;
 import org.openas2.params.InvalidParameterException;
+import org.openas2.params.MessageParameters;
+import org.openas2.partner.Partnership;
 import org.openas2.util.IOUtil;
 
 import java.io.File;
@@ -16,8 +18,10 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,13 +34,24 @@ public abstract class DirectoryPollingModule extends PollingModule {
     public static final String PARAM_FILE_NAME_EXCLUDE_FILTER = "filenameexcluderegexfilter";
     public static final String PARAM_PROCESS_IN_PARALLEL = "process_files_in_paralllel";
     public static final String PARAM_MAX_PARALLEL_FILES = "max_parallel_files";
-    private Map<String, Long> trackedFiles;
+    public static final String PARAM_MAX_QUEUED_FILES = "max_queued_files";
+    public static final String PARAM_FIFO_PER_RECEIVER = "fifo_per_receiver";
+    // Files found in the directory that are not finished yet. A file stays tracked until it has been
+    // processed so it can never be handed out a second time while it is queued or being sent.
+    private final Map<String, TrackedFile> trackedFiles = new ConcurrentHashMap<String, TrackedFile>();
+    // Ready files waiting for their receiver's previous file to finish when fifo_per_receiver is set
+    private final Map<String, Deque<TrackedFile>> receiverLanes = new HashMap<String, Deque<TrackedFile>>();
+    private final AtomicInteger dispatchedCount = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
     private String errorDir = null;
     private String sentDir = null;
     private boolean processFilesAsThreads = false;
     private int maxProcessingThreads = 20;
-    // support fixed size thread group to run file processing as threads 
-    private ExecutorService executorService = null;
+    private int maxQueuedFiles = 1000;
+    private boolean fifoPerReceiver = false;
+    // Sends the files on the polling engine's shared send threads
+    private PollingEngine.SendLane sendLane = null;
     private List<String> allowExtensions;
     private List<String> excludeExtensions;
     private String excludeFilenameRegexFilter = null;
@@ -58,10 +73,8 @@ public abstract class DirectoryPollingModule extends PollingModule {
             }
             processFilesAsThreads = getParameter(PARAM_PROCESS_IN_PARALLEL, "false").equalsIgnoreCase("true");
             maxProcessingThreads = getParameterInt(PARAM_MAX_PARALLEL_FILES, false, maxProcessingThreads);
-            if (processFilesAsThreads) {
-                // Create the thread pool
-                executorService = Executors.newFixedThreadPool(maxProcessingThreads);
-            }
+            maxQueuedFiles = getParameterInt(PARAM_MAX_QUEUED_FILES, false, maxQueuedFiles);
+            fifoPerReceiver = getParameter(PARAM_FIFO_PER_RECEIVER, "false").equalsIgnoreCase("true");
             
             String pendingInfoFolder = getSession().getProcessor().getParameters().get("pendingmdninfo");
             IOUtil.getDirectoryFile(pendingInfoFolder);
@@ -94,6 +107,9 @@ public abstract class DirectoryPollingModule extends PollingModule {
 
     @Override
     public boolean healthcheck(List<String> failures) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Directory poller pipeline for " + getOutboxDir() + ": " + getPipelineStats() + " polling: " + getPollStats());
+        }
         try {
             IOUtil.getDirectoryFile(getOutboxDir());
         } catch (IOException e) {
@@ -107,7 +123,60 @@ public abstract class DirectoryPollingModule extends PollingModule {
         return true;
     }
 
-    public void poll() {
+    @Override
+    public void doStart() throws OpenAS2Exception {
+        // Files are sent off the polling threads so a slow partner never holds up the scans of the other
+        // directories. A lane of one keeps the files in order.
+        sendLane = PollingEngine.getInstance().createSendLane(getProcessingThreads());
+        super.doStart();
+    }
+
+    @Override
+    public void doStop() throws OpenAS2Exception {
+        super.doStop();
+        if (sendLane != null) {
+            sendLane.shutdown();
+            try {
+                if (!sendLane.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warn("Files still being processed after 30 seconds for directory: " + getOutboxDir());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sendLane = null;
+        }
+        synchronized (receiverLanes) {
+            receiverLanes.clear();
+        }
+        // Anything not yet processed is still in the directory and is picked up again on the next start
+        trackedFiles.clear();
+        dispatchedCount.set(0);
+    }
+
+    /**
+     * @return the number of files in each stage of the pipeline and the totals processed since the module started
+     */
+    public Map<String, Long> getPipelineStats() {
+        long stabilising = 0;
+        long waiting = 0;
+        for (TrackedFile trackedFile : trackedFiles.values()) {
+            if (trackedFile.stage == Stage.STABILISING) {
+                stabilising++;
+            } else if (trackedFile.stage == Stage.READY) {
+                waiting++;
+            }
+        }
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("tracked", (long) trackedFiles.size());
+        stats.put("stabilising", stabilising);
+        stats.put("waiting", waiting);
+        stats.put("dispatched", (long) dispatchedCount.get());
+        stats.put("completed", completedCount.get());
+        stats.put("failed", failedCount.get());
+        return stats;
+    }
+
+    public synchronized void poll() {
         try {
             // update tracking info. if a file is ready, process it
             updateTracking();
@@ -121,6 +190,47 @@ public abstract class DirectoryPollingModule extends PollingModule {
         }
     }
 
+    /**
+     * Polls using the files the watch service reported as changed instead of listing the whole directory.
+     */
+    @Override
+    public synchronized void poll(Collection<Path> changedFiles) {
+        try {
+            updateTracking();
+
+            for (Path changed : changedFiles) {
+                if (isAllowedFile(changed)) {
+                    File currentFile = changed.toFile();
+                    if (!trackedFiles.containsKey(currentFile.getAbsolutePath()) && checkFile(currentFile)) {
+                        trackFile(currentFile);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unexpected error occurred polling directory for files to send: " + getOutboxDir(), e);
+        }
+    }
+
+    @Override
+    protected Path getWatchDirectory() throws OpenAS2Exception {
+        try {
+            return IOUtil.getDirectoryFile(getOutboxDir()).getAbsoluteFile().toPath();
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Failed to access the directory to be polled: " + getOutboxDir(), e);
+        }
+    }
+
+    @Override
+    protected boolean hasPendingFiles() {
+        // Tracked files need polling to see when they stop changing or when there is room in the work queue
+        return !trackedFiles.isEmpty();
+    }
+
+    @Override
+    protected int getBacklog() {
+        return trackedFiles.size();
+    }
+
     protected void scanDirectory(String directory) throws IOException, InvalidParameterException {
 
         /* Claudio.Degioanni - Versione modificata 20210628 2.11 - Start */
@@ -134,30 +244,7 @@ public abstract class DirectoryPollingModule extends PollingModule {
         }
         File directoryAsFile = IOUtil.getDirectoryFile(directory);
         // Wrap in try-with-resources block to ensure close() is called
-        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(directoryAsFile.toPath(), entry -> {
-                String name = entry.getFileName().toString();
-                if (Files.isDirectory(entry)) {
-                    return false;
-                }
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Polling module file name found: " + name);
-                }
-                String extension = name.substring(name.lastIndexOf(".") + 1);
-                boolean isAllowed = true;
-                if (!allowExtensions.isEmpty()) {
-                    isAllowed = allowExtensions.contains(extension);
-                }
-                // Check for the excluded filters if not already disallowed
-                if (isAllowed && !excludeExtensions.isEmpty()) {
-                    isAllowed = !excludeExtensions.contains(extension);
-                }
-                // Check if there are filename regex exclusions if not already disallowed
-                if (isAllowed && excludeFilenameRegexFilter != null) {
-                    isAllowed = !name.matches(excludeFilenameRegexFilter);
-                }
-                return isAllowed;
-
-            })) {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(directoryAsFile.toPath(), entry -> isAllowedFile(entry))) {
 
             for (Path dir : dirs) {
                 File currentFile = dir.toFile();
@@ -171,6 +258,33 @@ public abstract class DirectoryPollingModule extends PollingModule {
         }
     }
 
+    /**
+     * Applies the extension and file name filters configured for the poller.
+     */
+    private boolean isAllowedFile(Path entry) {
+        String name = entry.getFileName().toString();
+        if (Files.isDirectory(entry)) {
+            return false;
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Polling module file name found: " + name);
+        }
+        String extension = name.substring(name.lastIndexOf(".") + 1);
+        boolean isAllowed = true;
+        if (!allowExtensions.isEmpty()) {
+            isAllowed = allowExtensions.contains(extension);
+        }
+        // Check for the excluded filters if not already disallowed
+        if (isAllowed && !excludeExtensions.isEmpty()) {
+            isAllowed = !excludeExtensions.contains(extension);
+        }
+        // Check if there are filename regex exclusions if not already disallowed
+        if (isAllowed && excludeFilenameRegexFilter != null) {
+            isAllowed = !name.matches(excludeFilenameRegexFilter);
+        }
+        return isAllowed;
+    }
+
     protected boolean checkFile(File file) {
         if (file.exists() && file.isFile()) {
             try {
@@ -194,17 +308,18 @@ public abstract class DirectoryPollingModule extends PollingModule {
     }
 
     private void trackFile(File file) {
-        Map<String, Long> trackedFiles = getTrackedFiles();
         String filePath = file.getAbsolutePath();
-        if (trackedFiles.get(filePath) == null) {
-            trackedFiles.put(filePath, file.length());
+        if (!trackedFiles.containsKey(filePath)) {
+            trackedFiles.put(filePath, new TrackedFile(file, filePath));
         }
     }
 
     protected void processSingleFile(File file, String fileEntryKey) {
         try {
             processFile(file);
+            completedCount.incrementAndGet();
         } catch (OpenAS2Exception e) {
+            failedCount.incrementAndGet();
             e.log();
             try {
                 IOUtil.handleArchive(file, errorDir);
@@ -218,43 +333,136 @@ public abstract class DirectoryPollingModule extends PollingModule {
         }        
     }
 
+    /**
+     * Stable size stage: a tracked file is ready once its size and modification time have not changed
+     * since the previous poll. Ready files are dispatched oldest first while there is room in the work queue
+     * and stay ready for the next poll when there is not. Only the checks run on the polling thread.
+     */
     private void updateTracking() {
-        // clone the trackedFiles map, iterator through the clone and modify the
-        // original to avoid iterator exceptions
-        // is there a better way to do this?
-        Map<String, Long> trackedFiles = getTrackedFiles();
-        Map<String, Long> trackedFilesClone = new HashMap<String, Long>(trackedFiles);
-
-        for (Map.Entry<String, Long> fileEntry : trackedFilesClone.entrySet()) {
-            // get the file and it's stored length
-            String fileEntryKey = fileEntry.getKey();
-            File file = new File(fileEntry.getKey());
-            long fileLength = fileEntry.getValue().longValue();
-
+        List<TrackedFile> readyFiles = new ArrayList<TrackedFile>();
+        for (TrackedFile trackedFile : trackedFiles.values()) {
+            if (trackedFile.stage == Stage.DISPATCHED) {
+                continue;
+            }
+            File file = trackedFile.file;
             // if the file no longer exists, remove it from the tracker
             if (!checkFile(file)) {
-                trackedFiles.remove(fileEntryKey);
+                trackedFiles.remove(trackedFile.key);
+                continue;
+            }
+            long newLength = file.length();
+            long newLastModified = file.lastModified();
+            if (newLength != trackedFile.length || newLastModified != trackedFile.lastModified) {
+                // still being written so check again on the next poll
+                trackedFile.length = newLength;
+                trackedFile.lastModified = newLastModified;
+                trackedFile.stage = Stage.STABILISING;
+            } else {
+                trackedFile.stage = Stage.READY;
+                readyFiles.add(trackedFile);
+            }
+        }
+        Collections.sort(readyFiles);
+        for (TrackedFile trackedFile : readyFiles) {
+            if (dispatchedCount.get() >= getProcessingThreads() + maxQueuedFiles) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Work queue full for directory " + getOutboxDir() + ". " + (readyFiles.size() - readyFiles.indexOf(trackedFile)) + " ready file(s) will be dispatched on a later poll.");
+                }
+                break;
             } else {
-                // if the file length has changed, update the tracker
-                long newLength = file.length();
-                if (newLength != fileLength) {
-                    trackedFiles.put(fileEntryKey, Long.valueOf(newLength));
-                } else {
-                    // if the file length has stayed the same, process the file
-                    // and then stop tracking it
-                    if (processFilesAsThreads) {
-                        executorService.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                processSingleFile(file, fileEntryKey);
-                            }
-                        });
-
-                    } else {
-                        processSingleFile(file, fileEntryKey);
+                dispatch(trackedFile);
+            }
+        }
+    }
+
+    private int getProcessingThreads() {
+        return processFilesAsThreads ? maxProcessingThreads : 1;
+    }
+
+    private void dispatch(final TrackedFile trackedFile) {
+        trackedFile.stage = Stage.DISPATCHED;
+        dispatchedCount.incrementAndGet();
+        if (!fifoPerReceiver) {
+            executeTask(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processSingleFile(trackedFile.file, trackedFile.key);
+                    } finally {
+                        dispatchedCount.decrementAndGet();
+                    }
+                }
+            }, trackedFile);
+            return;
+        }
+        final String receiver = getOrderingKey(trackedFile.file);
+        synchronized (receiverLanes) {
+            Deque<TrackedFile> lane = receiverLanes.get(receiver);
+            if (lane != null) {
+                // A file for this receiver is already being processed so run after it
+                lane.addLast(trackedFile);
+                return;
+            }
+            receiverLanes.put(receiver, new ArrayDeque<TrackedFile>());
+        }
+        executeTask(new Runnable() {
+            @Override
+            public void run() {
+                TrackedFile next = trackedFile;
+                while (next != null) {
+                    try {
+                        processSingleFile(next.file, next.key);
+                    } finally {
+                        dispatchedCount.decrementAndGet();
+                    }
+                    synchronized (receiverLanes) {
+                        Deque<TrackedFile> lane = receiverLanes.get(receiver);
+                        next = lane == null ? null : lane.pollFirst();
+                        if (next == null) {
+                            receiverLanes.remove(receiver);
+                        }
                     }
                 }
             }
+        }, trackedFile);
+    }
+
+    private void executeTask(Runnable task, TrackedFile trackedFile) {
+        try {
+            sendLane.execute(task);
+        } catch (RuntimeException e) {
+            // Shutting down. The file is still in the directory so leave it for the next start.
+            dispatchedCount.decrementAndGet();
+            trackedFiles.remove(trackedFile.key);
+            synchronized (receiverLanes) {
+                receiverLanes.clear();
+            }
+        }
+    }
+
+    /**
+     * Identifies the receiver the file will be sent to without building the full message so that files for
+     * the same receiver can be sent in the order they were found.
+     *
+     * @param file the file to be sent
+     * @return the receiver AS2 ID or an empty string if it cannot be determined from the poller configuration
+     */
+    protected String getOrderingKey(File file) {
+        try {
+            Message msg = createMessage();
+            MessageParameters params = new MessageParameters(msg);
+            String defaults = getParameter(PARAM_DEFAULTS, false);
+            if (defaults != null) {
+                params.setParameters(defaults);
+            }
+            String format = getParameter(PARAM_FORMAT, false);
+            if (format != null) {
+                params.setParameters(format, getParameter(PARAM_DELIMITERS, ".-"), file.getName(), "true".equalsIgnoreCase(getParameter(PARAM_MERGE_EXTRA, "false")));
+            }
+            String receiver = msg.getPartnership().getReceiverID(Partnership.PID_AS2);
+            return receiver == null ? "" : receiver;
+        } catch (OpenAS2Exception e) {
+            return "";
         }
     }
 
@@ -275,10 +483,30 @@ public abstract class DirectoryPollingModule extends PollingModule {
         }
     }
 
-    private Map<String, Long> getTrackedFiles() {
-        if (trackedFiles == null) {
-            trackedFiles = new HashMap<String, Long>();
+    private enum Stage {
+        STABILISING, READY, DISPATCHED
+    }
+
+    private static class TrackedFile implements Comparable<TrackedFile> {
+        private final File file;
+        private final String key;
+        private volatile long length;
+        private volatile long lastModified;
+        private volatile Stage stage = Stage.STABILISING;
+
+        TrackedFile(File file, String key) {
+            this.file = file;
+            this.key = key;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public int compareTo(TrackedFile o) {
+            if (lastModified != o.lastModified) {
+                return lastModified < o.lastModified ? -1 : 1;
+            }
+            return key.compareTo(o.key);
         }
-        return trackedFiles;
     }
-}
\ No newline at end of file
+}
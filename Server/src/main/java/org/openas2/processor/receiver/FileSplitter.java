@@ -2,6 +2,7 @@ package org.openas2.processor.receiver;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -16,6 +17,8 @@ public class FileSplitter implements Runnable {
     private boolean containsHeaderRow;
     private String newFileBaseName;
     private String filenamePrefix;
+    private Executor executor;
+    private int parallelism = 1;
 
     private static final Log logger = LogFactory.getLog(FileUtil.class.getSimpleName());
 
@@ -28,12 +31,21 @@ public class FileSplitter implements Runnable {
        this.filenamePrefix = filenamePrefix;
     }
 
+    /**
+     * Writes up to the given number of split files at the same time using the executor for the extra writers
+     */
+    public FileSplitter(File sourceFile, String outputDir, long maxFileSize, boolean containsHeaderRow, String newFileBaseName, String filenamePrefix, Executor executor, int parallelism) {
+       this(sourceFile, outputDir, maxFileSize, containsHeaderRow, newFileBaseName, filenamePrefix);
+       this.executor = executor;
+       this.parallelism = parallelism;
+    }
+
     public void run(){
         if (logger.isDebugEnabled()) {
             logger.debug("File splitter thread invoked for file: " + this.sourceFile.getAbsolutePath());
         }
         try {
-            FileUtil.splitLineBasedFile(this.sourceFile, this.outputDir, this.maxFileSize, this.containsHeaderRow, this.newFileBaseName, this.filenamePrefix);
+            FileUtil.splitLineBasedFile(this.sourceFile, this.outputDir, this.maxFileSize, this.containsHeaderRow, this.newFileBaseName, this.filenamePrefix, this.executor, this.parallelism);
             if (logger.isDebugEnabled()) {
                 logger.debug("Successfully split the file: " + this.sourceFile.getAbsolutePath());
             }
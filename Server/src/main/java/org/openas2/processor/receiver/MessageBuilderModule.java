@@ -38,6 +38,11 @@ import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,6 +59,9 @@ public abstract class MessageBuilderModule extends BaseReceiverModule {
     public static final String PARAM_DEFAULTS = "defaults";
     public static final String PARAM_MIMETYPE = "mimetype";
     public static final String PARAM_RESEND_MAX_RETRIES = "resend_max_retries";
+    public static final String PARAM_MAX_SPLIT_THREADS = "max_split_threads";
+
+    private ExecutorService splitExecutor;
 
     private Log logger = LogFactory.getLog(MessageBuilderModule.class.getSimpleName());
 
@@ -61,6 +69,49 @@ public abstract class MessageBuilderModule extends BaseReceiverModule {
         super.init(session, options);
     }
 
+    public void stop() throws OpenAS2Exception {
+        try {
+            super.stop();
+        } finally {
+            stopSplitExecutor();
+        }
+    }
+
+    /**
+     * @return the pool running the file splitters for this module, created when the first file is split
+     */
+    protected synchronized ExecutorService getSplitExecutor() throws OpenAS2Exception {
+        if (splitExecutor == null) {
+            splitExecutor = Executors.newFixedThreadPool(getParameterInt(PARAM_MAX_SPLIT_THREADS, false, 2), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, getName() + "-split-" + threadCount.incrementAndGet());
+                }
+            });
+        }
+        return splitExecutor;
+    }
+
+    private void stopSplitExecutor() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = splitExecutor;
+            splitExecutor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warn("Files still being split after 30 seconds for module: " + getName());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     protected CompositeParameters createParser(Message msg) {
         return new CompositeParameters(false).add("date", new DateParameters()).add("rand", new RandomParameters()).add("msg", new MessageParameters(msg));
     }
@@ -97,8 +148,14 @@ public abstract class MessageBuilderModule extends BaseReceiverModule {
             } catch (IOException e1) {
                 throw new OpenAS2Exception("Failed to move file for split processing: " + fileToSend.getAbsolutePath(), e1);
             }
-            FileSplitter fileSplitter = new FileSplitter(movedFile, fileToSend.getParent(), fileSizeThreshold, containsHeaderRow, filename, newFileNamePrefix);
-            new Thread(fileSplitter).start();
+            int parallelism = 1;
+            String parallelismStr = msg.getPartnership().getAttribute(Partnership.PA_SPLIT_FILE_PARALLEL_WRITERS);
+            if (parallelismStr != null && parallelismStr.length() > 0) {
+                parallelism = Integer.parseInt(parallelismStr);
+            }
+            ExecutorService executor = getSplitExecutor();
+            FileSplitter fileSplitter = new FileSplitter(movedFile, fileToSend.getParent(), fileSizeThreshold, containsHeaderRow, filename, newFileNamePrefix, executor, parallelism);
+            executor.execute(fileSplitter);
             return null;
         } else {
             addMessageMetadata(msg, filename);
@@ -26,6 +26,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -35,12 +36,17 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.apache.commons.lang3.StringUtils.defaultIfBlank;
 
@@ -55,8 +61,14 @@ public abstract class NetModule extends BaseReceiverModule {
     public static final String PARAM_ERROR_DIRECTORY = "errordir";
     public static final String PARAM_ERRORS = "errors";
     public static final String DEFAULT_ERRORS = "$date.yyyyMMddhhmmss$";
+    public static final String PARAM_MAX_WORKERS = "max_workers";
+    public static final String PARAM_MAX_QUEUED_CONNECTIONS = "max_queued_connections";
+    public static final String PARAM_WORKER_IDLE_TIMEOUT = "worker_idle_timeout_secs";
+    public static final String PARAM_RETRY_AFTER = "busy_retry_after_secs";
+    public static final String PARAM_VIRTUAL_THREADS = "use_virtual_threads";
 
     private HTTPServerThread mainThread;
+    private long lastRejectedCount = 0;
     private Log logger = LogFactory.getLog(NetModule.class.getSimpleName());
 
     public void doStart() throws OpenAS2Exception {
@@ -91,8 +103,35 @@ public abstract class NetModule extends BaseReceiverModule {
 
     }
 
+    /**
+     * @return the active, queued and rejected connection counts of the listener or an empty map if it is not running
+     */
+    public Map<String, Long> getConnectionStats() {
+        HTTPServerThread serverThread = mainThread;
+        if (serverThread == null) {
+            return new HashMap<String, Long>();
+        }
+        return serverThread.getConnectionThreads().getStats();
+    }
+
     @Override
     public boolean healthcheck(List<String> failures) {
+        Map<String, Long> connectionStats = getConnectionStats();
+        if (!connectionStats.isEmpty()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Connection handler stats for " + getClass().getSimpleName() + ": " + connectionStats);
+            }
+            long rejected = connectionStats.get("rejected");
+            if (rejected > lastRejectedCount) {
+                failures.add(this.getClass().getSimpleName() + " - Rejected " + (rejected - lastRejectedCount)
+                        + " connection(s) since the last check because all workers were busy. Active: "
+                        + connectionStats.get("active") + " of " + connectionStats.get("maxWorkers")
+                        + " Queued: " + connectionStats.get("queued") + " of " + connectionStats.get("maxQueue")
+                        + " Total rejected: " + rejected);
+                lastRejectedCount = rejected;
+                return false;
+            }
+        }
         try {
             String hcHost = getParameter(PARAM_ADDRESS, Properties.getProperty("ssl_host_name", "localhost"));
             String hcPort = getParameter(PARAM_PORT, true);
@@ -185,9 +224,13 @@ public abstract class NetModule extends BaseReceiverModule {
     }
 
     protected class HTTPServerThread extends Thread {
+        private static final int REJECTION_THREADS = 2;
+        private static final int REJECTION_QUEUE_SIZE = 32;
         private final NetModule owner;
         private final ServerSocket socket;
-        private final ExecutorService connectionThreads;
+        private final ConnectionExecutor connectionThreads;
+        private final ThreadPoolExecutor rejectionThreads;
+        private final int retryAfter;
         private final AtomicBoolean terminated = new AtomicBoolean();
 
         HTTPServerThread(NetModule owner, @Nullable String address, int port) throws IOException {
@@ -276,7 +319,42 @@ public abstract class NetModule extends BaseReceiverModule {
                     socket.bind(new InetSocketAddress(port));
                 }
             }
-            connectionThreads = Executors.newCachedThreadPool();
+            int maxWorkers;
+            int maxQueue;
+            int idleTimeout;
+            boolean virtualThreads;
+            try {
+                maxWorkers = owner.getParameterInt(PARAM_MAX_WORKERS, false, 100);
+                maxQueue = owner.getParameterInt(PARAM_MAX_QUEUED_CONNECTIONS, false, 50);
+                idleTimeout = owner.getParameterInt(PARAM_WORKER_IDLE_TIMEOUT, false, 60);
+                retryAfter = owner.getParameterInt(PARAM_RETRY_AFTER, false, 30);
+                virtualThreads = "true".equalsIgnoreCase(owner.getParameter(PARAM_VIRTUAL_THREADS, "false"));
+            } catch (InvalidParameterException | NumberFormatException e) {
+                socket.close();
+                throw new IOException("Invalid connection handler parameter: " + e.getMessage(), e);
+            }
+            if (maxWorkers < 1 || maxQueue < 0) {
+                socket.close();
+                throw new IOException(PARAM_MAX_WORKERS + " must be greater than zero and " + PARAM_MAX_QUEUED_CONNECTIONS + " cannot be negative.");
+            }
+            connectionThreads = new ConnectionExecutor(getName() + "-conn", maxWorkers, maxQueue, idleTimeout, virtualThreads);
+            // Busy responses are written off the accept thread since for HTTPS the first write runs the TLS handshake
+            final String rejectThreadName = getName() + "-reject-";
+            rejectionThreads = new ThreadPoolExecutor(REJECTION_THREADS, REJECTION_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(REJECTION_QUEUE_SIZE), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, rejectThreadName + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            rejectionThreads.allowCoreThreadTimeOut(true);
+            if (virtualThreads && !connectionThreads.isVirtualThreads()) {
+                logger.warn("Virtual threads are not supported by this Java version. Using a pool of " + maxWorkers + " platform threads for " + getName());
+            }
         }
 
         NetModule getOwner() {
@@ -287,6 +365,10 @@ public abstract class NetModule extends BaseReceiverModule {
             return socket;
         }
 
+        ConnectionExecutor getConnectionThreads() {
+            return connectionThreads;
+        }
+
         public boolean isTerminated() {
             return terminated.get();
         }
@@ -303,6 +385,7 @@ public abstract class NetModule extends BaseReceiverModule {
                 owner.forceStop(e);
             }
             connectionThreads.shutdown();
+            rejectionThreads.shutdown();
         }
 
         @Override
@@ -311,13 +394,75 @@ public abstract class NetModule extends BaseReceiverModule {
                 try {
                     Socket conn = socket.accept();
                     conn.setSoLinger(true, 60);
-                    connectionThreads.execute(new ConnectionHandler(getOwner(), conn));
+                    try {
+                        connectionThreads.execute(new ConnectionHandler(getOwner(), conn));
+                    } catch (RejectedExecutionException ree) {
+                        rejectConnection(conn);
+                    }
                 } catch (IOException e) {
                     logger.error("Failed transferring data over HTTP connection: " + e.getMessage(), e);
                 }
             }
         }
 
+        /**
+         * Tells the client to try again later without reading the request so the accept thread is not held up.
+         * The response is written by a small pool of its own. If that pool is also saturated the connection is reset.
+         */
+        private void rejectConnection(final Socket conn) {
+            if (isTerminated()) {
+                closeQuietly(conn);
+                return;
+            }
+            logger.warn("Rejected connection from " + conn.getInetAddress().getHostAddress()
+                    + " because all connection handlers are busy and the wait queue is full: " + connectionThreads.getStats());
+            try {
+                rejectionThreads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendBusyResponse(conn);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                resetQuietly(conn);
+            }
+        }
+
+        private void sendBusyResponse(Socket conn) {
+            try {
+                conn.setSoLinger(true, 1);
+                conn.setSoTimeout(1000);
+                HTTPUtil.sendHTTPResponse(conn.getOutputStream(), HttpURLConnection.HTTP_UNAVAILABLE, null,
+                        Collections.enumeration(Collections.singletonList("Retry-After: " + retryAfter)));
+                conn.getOutputStream().flush();
+                conn.shutdownOutput();
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to send busy response: " + e.getMessage());
+                }
+            } finally {
+                closeQuietly(conn);
+            }
+        }
+
+        private void resetQuietly(Socket conn) {
+            try {
+                // A zero linger time closes with a reset instead of waiting to send anything
+                conn.setSoLinger(true, 0);
+            } catch (IOException e) {
+                // closed below anyway
+            }
+            closeQuietly(conn);
+        }
+
+        private void closeQuietly(Socket conn) {
+            try {
+                conn.close();
+            } catch (IOException e) {
+                // nothing more can be done
+            }
+        }
+
 
     }
 }
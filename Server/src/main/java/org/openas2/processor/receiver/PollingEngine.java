@@ -0,0 +1,431 @@
+package org.openas2.processor.receiver;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openas2.util.Properties;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls all running polling modules from one small pool of threads instead of a timer thread per module.
+ * <p>
+ * Directories are registered with a {@link WatchService} where the file system supports it so that an idle
+ * directory costs nothing on an interval tick and only the files reported as changed are looked at. A full
+ * scan still runs every reconcile interval to pick up anything the watch service missed, whenever the
+ * watch service reports lost events and on every interval for directories that cannot be watched.
+ * <p>
+ * The engine starts its threads when the first module registers and stops them when the last one leaves.
+ * <p>
+ * Files found by the modules are processed on one shared pool of send threads so the number of threads does not
+ * grow with the number of polled directories. Each module sends through its own {@link SendLane} which limits how
+ * many of its files are processed at once, so a slow partner only holds up its own directory. Send threads are
+ * released after they have been idle for a while.
+ */
+public class PollingEngine {
+    public static final String PROP_POLLER_THREADS = "poller_engine_threads";
+    public static final String PROP_SEND_THREADS = "poller_engine_send_threads";
+
+    private static final int DEFAULT_SEND_THREADS = 20;
+    private static final long SEND_THREAD_KEEP_ALIVE_SECS = 60;
+
+    private static PollingEngine instance;
+
+    private final Map<PollingModule, PolledDirectory> registrations = new ConcurrentHashMap<PollingModule, PolledDirectory>();
+    private final Map<WatchKey, List<PolledDirectory>> watchedDirectories = new ConcurrentHashMap<WatchKey, List<PolledDirectory>>();
+    private ScheduledExecutorService scheduler;
+    private WatchService watchService;
+    private ThreadPoolExecutor sendExecutor;
+
+    private Log logger = LogFactory.getLog(PollingEngine.class.getSimpleName());
+
+    public static synchronized PollingEngine getInstance() {
+        if (instance == null) {
+            instance = new PollingEngine();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts polling the module. The first poll is a full poll and runs straight away.
+     *
+     * @param module            the module to poll
+     * @param intervalMillis    the time between the end of one poll and the start of the next
+     * @param reconcileMillis   the time between full scans of a watched directory
+     * @param watchDirectory    the directory to watch for changes or null to always do a full poll
+     */
+    public synchronized void register(PollingModule module, long intervalMillis, long reconcileMillis, Path watchDirectory) {
+        if (registrations.containsKey(module)) {
+            return;
+        }
+        if (scheduler == null) {
+            startThreads();
+        }
+        PolledDirectory polled = new PolledDirectory(module, watchDirectory, reconcileMillis);
+        if (watchDirectory != null && watchService != null) {
+            try {
+                polled.watchKey = watchDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                List<PolledDirectory> sharing = watchedDirectories.get(polled.watchKey);
+                if (sharing == null) {
+                    sharing = new CopyOnWriteArrayList<PolledDirectory>();
+                    watchedDirectories.put(polled.watchKey, sharing);
+                }
+                sharing.add(polled);
+            } catch (IOException e) {
+                logger.warn("Directory cannot be watched for changes and will be fully scanned every interval: " + watchDirectory, e);
+            }
+        }
+        registrations.put(module, polled);
+        polled.future = scheduler.scheduleWithFixedDelay(polled, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling the module. A poll already in progress is allowed to finish.
+     *
+     * @param module the module to stop polling
+     */
+    public synchronized void unregister(PollingModule module) {
+        PolledDirectory polled = registrations.remove(module);
+        if (polled == null) {
+            return;
+        }
+        polled.future.cancel(false);
+        if (polled.watchKey != null) {
+            List<PolledDirectory> sharing = watchedDirectories.get(polled.watchKey);
+            if (sharing != null) {
+                sharing.remove(polled);
+                if (sharing.isEmpty()) {
+                    watchedDirectories.remove(polled.watchKey);
+                    polled.watchKey.cancel();
+                }
+            }
+        }
+        if (registrations.isEmpty()) {
+            stopThreads();
+        }
+    }
+
+    public boolean isRegistered(PollingModule module) {
+        return registrations.containsKey(module);
+    }
+
+    /**
+     * @param module a registered module
+     * @return the poll statistics for the module or an empty map if it is not registered
+     */
+    public Map<String, Long> getStats(PollingModule module) {
+        PolledDirectory polled = registrations.get(module);
+        if (polled == null) {
+            return new HashMap<String, Long>();
+        }
+        return polled.getStats();
+    }
+
+    /**
+     * @return the poll statistics of every registered module keyed by the watched directory or the module name
+     */
+    public Map<String, Map<String, Long>> getStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+        for (PolledDirectory polled : registrations.values()) {
+            stats.put(polled.getLabel(), polled.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Creates a lane for sending the files found by one module on the shared send threads.
+     *
+     * @param maxRunning the maximum number of files of the lane processed at the same time. Files are processed
+     *                   in the order they were handed to the lane when this is 1.
+     * @return the lane
+     */
+    public SendLane createSendLane(int maxRunning) {
+        return new SendLane(getSendExecutor(), maxRunning);
+    }
+
+    /**
+     * @return the maximum number of send threads shared by all the modules
+     */
+    public synchronized int getMaxSendThreads() {
+        return getSendExecutor().getMaximumPoolSize();
+    }
+
+    private synchronized ThreadPoolExecutor getSendExecutor() {
+        if (sendExecutor == null) {
+            int threads = Math.max(1, Integer.parseInt(Properties.getProperty(PROP_SEND_THREADS, Integer.toString(DEFAULT_SEND_THREADS))));
+            // The lanes limit how much each module queues so the shared queue does not need a bound of its own
+            sendExecutor = new ThreadPoolExecutor(threads, threads, SEND_THREAD_KEEP_ALIVE_SECS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PollingEngine-send-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            sendExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sendExecutor;
+    }
+
+    private void startThreads() {
+        int threads = Math.max(1, Integer.parseInt(Properties.getProperty(PROP_POLLER_THREADS, Integer.toString(Math.max(4, Runtime.getRuntime().availableProcessors())))));
+        scheduler = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "PollingEngine-" + threadCount.incrementAndGet());
+            }
+        });
+        try {
+            final WatchService service = FileSystems.getDefault().newWatchService();
+            watchService = service;
+            Thread watchThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watchForChanges(service);
+                }
+            }, "PollingEngine-watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        } catch (IOException e) {
+            logger.warn("File system watch service is not available. Directories will be fully scanned every interval.", e);
+            watchService = null;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Polling engine started with " + threads + " thread(s)");
+        }
+    }
+
+    private void stopThreads() {
+        scheduler.shutdown();
+        scheduler = null;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the file system watch service", e);
+            }
+            watchService = null;
+        }
+        watchedDirectories.clear();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Polling engine stopped");
+        }
+    }
+
+    /**
+     * Records the changes reported by the watch service against each directory. The files are looked at by
+     * the directory's next poll so a burst of events for one file only costs one check.
+     */
+    private void watchForChanges(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            List<PolledDirectory> targets = watchedDirectories.get(key);
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (targets == null) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    for (PolledDirectory polled : targets) {
+                        polled.fullScanRequested = true;
+                    }
+                } else {
+                    Path changed = directory.resolve((Path) event.context());
+                    for (PolledDirectory polled : targets) {
+                        polled.changedFiles.add(changed);
+                        polled.eventCount.incrementAndGet();
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Runs the tasks of one module on the shared send threads, at most a fixed number at a time and the rest in
+     * the order they were handed over. Tasks already handed over still run after {@link #shutdown()}.
+     */
+    public static class SendLane implements Executor {
+        private final Executor sharedExecutor;
+        private final int maxRunning;
+        private final Deque<Runnable> waiting = new ArrayDeque<Runnable>();
+        private int running = 0;
+        private boolean shutdown = false;
+
+        SendLane(Executor sharedExecutor, int maxRunning) {
+            this.sharedExecutor = sharedExecutor;
+            this.maxRunning = Math.max(1, maxRunning);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Send lane is shut down");
+                }
+                if (running >= maxRunning) {
+                    waiting.addLast(task);
+                    return;
+                }
+                running++;
+            }
+            submit(task);
+        }
+
+        public synchronized void shutdown() {
+            shutdown = true;
+        }
+
+        /**
+         * @return true if every task handed to the lane finished before the timeout
+         */
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (running > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+
+        private void submit(final Runnable task) {
+            // Each task goes back to the shared queue so lanes with a backlog take turns with the other lanes
+            sharedExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        }
+
+        private void finished() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.pollFirst();
+                if (next == null) {
+                    running--;
+                    notifyAll();
+                    return;
+                }
+            }
+            submit(next);
+        }
+    }
+
+    private class PolledDirectory implements Runnable {
+        private final PollingModule module;
+        private final Path directory;
+        private final long reconcileMillis;
+        private final Set<Path> changedFiles = ConcurrentHashMap.newKeySet();
+        private volatile WatchKey watchKey;
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean fullScanRequested = true;
+        private long nextFullScan;
+
+        private final AtomicLong pollCount = new AtomicLong();
+        private final AtomicLong fullScanCount = new AtomicLong();
+        private final AtomicLong eventCount = new AtomicLong();
+        private volatile long lastPollMillis;
+        private volatile long maxPollMillis;
+
+        PolledDirectory(PollingModule module, Path directory, long reconcileMillis) {
+            this.module = module;
+            this.directory = directory;
+            this.reconcileMillis = reconcileMillis;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long now = System.currentTimeMillis();
+                boolean fullScan = watchKey == null || fullScanRequested || now >= nextFullScan;
+                List<Path> changes = new ArrayList<Path>();
+                for (Iterator<Path> it = changedFiles.iterator(); it.hasNext(); ) {
+                    changes.add(it.next());
+                    it.remove();
+                }
+                if (!fullScan && changes.isEmpty() && !module.hasPendingFiles()) {
+                    // Nothing changed and nothing waiting so there is no need to touch the file system
+                    return;
+                }
+                long start = System.nanoTime();
+                if (fullScan) {
+                    // Clear the request first so lost events reported during the scan trigger another one
+                    fullScanRequested = false;
+                    nextFullScan = now + reconcileMillis;
+                    fullScanCount.incrementAndGet();
+                    module.poll();
+                } else {
+                    module.poll(changes);
+                }
+                lastPollMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                maxPollMillis = Math.max(maxPollMillis, lastPollMillis);
+                pollCount.incrementAndGet();
+            } catch (Throwable t) {
+                // Never let an exception escape or the scheduler silently stops polling this module
+                logger.error("Unexpected error polling " + getLabel(), t);
+            }
+        }
+
+        String getLabel() {
+            return directory == null ? module.getName() : directory.toString();
+        }
+
+        Map<String, Long> getStats() {
+            Map<String, Long> stats = new HashMap<String, Long>();
+            stats.put("polls", pollCount.get());
+            stats.put("fullScans", fullScanCount.get());
+            stats.put("events", eventCount.get());
+            stats.put("lastPollMillis", lastPollMillis);
+            stats.put("maxPollMillis", maxPollMillis);
+            stats.put("backlog", (long) (module.getBacklog() + changedFiles.size()));
+            stats.put("watched", watchKey == null ? 0L : 1L);
+            return stats;
+        }
+    }
+}
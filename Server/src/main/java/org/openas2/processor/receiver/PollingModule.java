@@ -4,15 +4,16 @@ import org.openas2.OpenAS2Exception;
 import org.openas2.Session;
 import org.openas2.params.InvalidParameterException;
 
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 
 public abstract class PollingModule extends MessageBuilderModule {
     protected final String PARAM_POLLING_INTERVAL = "interval";
-    private Timer timer;
-    private boolean busy;
+    // Seconds between full scans of a directory that is watched for changes
+    public static final String PARAM_RECONCILE_INTERVAL = "reconcile_interval";
+    public static final String PARAM_USE_WATCH_SERVICE = "use_watch_service";
     private String outboxDir;
 
     public String getOutboxDir() {
@@ -34,36 +35,55 @@ public abstract class PollingModule extends MessageBuilderModule {
 
     public abstract void poll();
 
-    public void doStart() throws OpenAS2Exception {
-        timer = new Timer(getName(), false);
-        timer.scheduleAtFixedRate(new PollTask(), 0, getInterval() * 1000);
+    /**
+     * Polls after the watch service reported changes in the directory instead of doing a full scan.
+     * Modules that cannot make use of the changed files do a full poll.
+     *
+     * @param changedFiles the files created or modified since the previous poll
+     */
+    public void poll(Collection<Path> changedFiles) {
+        poll();
     }
 
-    public void doStop() throws OpenAS2Exception {
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
-        }
+    /**
+     * @return the directory to watch for changes or null if the module must be fully polled every interval
+     */
+    protected Path getWatchDirectory() throws OpenAS2Exception {
+        return null;
+    }
+
+    /**
+     * @return true if the next interval needs a poll even when nothing in the directory changed
+     */
+    protected boolean hasPendingFiles() {
+        return true;
     }
 
-    private boolean isBusy() {
-        return busy;
+    /**
+     * @return the number of files found by the module that have not finished processing yet
+     */
+    protected int getBacklog() {
+        return 0;
     }
 
-    private void setBusy(boolean b) {
-        busy = b;
+    /**
+     * @return the poll count, latency and backlog reported by the shared polling engine
+     */
+    public Map<String, Long> getPollStats() {
+        return PollingEngine.getInstance().getStats(this);
     }
 
-    private class PollTask extends TimerTask {
-        public void run() {
-            if (!isBusy()) {
-                setBusy(true);
-                poll();
-                setBusy(false);
-            } else {
-                System.out.println("Miss tick: " + getOutboxDir());
-            }
+    public void doStart() throws OpenAS2Exception {
+        long reconcileMillis = getParameterInt(PARAM_RECONCILE_INTERVAL, false, 300) * 1000L;
+        Path watchDirectory = null;
+        if ("true".equalsIgnoreCase(getParameter(PARAM_USE_WATCH_SERVICE, "true"))) {
+            watchDirectory = getWatchDirectory();
         }
+        PollingEngine.getInstance().register(this, getInterval() * 1000L, reconcileMillis, watchDirectory);
+    }
+
+    public void doStop() throws OpenAS2Exception {
+        PollingEngine.getInstance().unregister(this);
     }
 
 }
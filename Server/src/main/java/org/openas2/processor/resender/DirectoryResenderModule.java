@@ -7,6 +7,7 @@ import org.openas2.Session;
 import org.openas2.WrappedException;
 import org.openas2.message.Message;
 import org.openas2.params.InvalidParameterException;
+import org.openas2.partner.Partnership;
 import org.openas2.processor.sender.MDNSenderModule;
 import org.openas2.processor.sender.SenderModule;
 import org.openas2.util.AS2Util;
@@ -19,13 +20,22 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,10 +44,39 @@ public class DirectoryResenderModule extends BaseResenderModule {
     public static final String PARAM_RESEND_DIRECTORY = "resenddir";
     public static final String PARAM_ERROR_DIRECTORY = "errordir";
     public static final String PARAM_RESEND_DELAY = "resenddelay"; // in seconds
+    public static final String PARAM_RESEND_MAX_DELAY = "resend_max_delay"; // in seconds
+    public static final String PARAM_RESEND_BACKOFF_FACTOR = "resend_backoff_factor";
+    public static final String PARAM_RESEND_JITTER = "resend_jitter"; // fraction of the delay
+    public static final String PARAM_RESEND_THREADS = "resend_threads";
+    public static final String PARAM_MAX_RESENDS_PER_PARTNERSHIP = "max_parallel_resends_per_partnership";
+    public static final String PARAM_RESCAN_INTERVAL = "rescan_interval"; // in seconds
 
-    private String resendDirPath;
+    private static final String DUE_TIME_FORMAT = "MM-dd-yy-HH-mm-ss";
+    // Queue for resend files that do not name their partnership. These are not limited per partnership.
+    private static final String UNKNOWN_PARTNERSHIP = "";
 
-    // TODO Resend set to 15 minutes. Implement a scaling resend time with eventual permanent failure of transmission
+    private String resendDirPath;
+    private long resendDelay;
+    private long resendMaxDelay;
+    private double backoffFactor;
+    private double jitter;
+    private int resendThreads;
+    private int maxResendsPerPartnership;
+    private long rescanInterval;
+
+    // Queued resend files and resends in progress for each partnership
+    private final Map<String, PartnershipQueue> partnershipQueues = new HashMap<String, PartnershipQueue>();
+    // Partnerships with queued files that may start another resend, ordered by their earliest due file.
+    // A queue is taken out of the set before its earliest file or resend count changes.
+    private final TreeSet<PartnershipQueue> readyQueues = new TreeSet<PartnershipQueue>();
+    // Names of the files that are queued or being sent so rescans do not add them twice
+    private final Set<String> indexedFiles = new HashSet<String>();
+    private int queuedCount = 0;
+    private int inFlightCount = 0;
+    private long lastScanTime = 0;
+    private ExecutorService dispatchExecutor = null;
+
+    // Delay before the first retry when resenddelay is not set. Later retries back off from this delay.
     public static final long DEFAULT_RESEND_DELAY = 15 * 60 * 1000; // 15 minutes
 
     private Log logger = LogFactory.getLog(DirectoryResenderModule.class.getSimpleName());
@@ -58,16 +97,21 @@ public class DirectoryResenderModule extends BaseResenderModule {
         ObjectOutputStream oos = null;
         try {
             File resendDir = IOUtil.getDirectoryFile(resendDirPath);
-            File resendFile = IOUtil.getUnique(resendDir, getFilename());
-            oos = new ObjectOutputStream(new FileOutputStream(resendFile));
             String method = (String) options.get(ResenderModule.OPTION_RESEND_METHOD);
             if (method == null) {
                 method = SenderModule.DO_SEND;
             }
             int retries = Integer.parseInt((String)options.get(ResenderModule.OPTION_RETRIES));
+            long dueTime = System.currentTimeMillis() + getResendDelay(retries);
+            String partnershipKey = getPartnershipKey(msg);
+            File resendFile = IOUtil.getUnique(resendDir, getFilename(dueTime, partnershipKey));
+            oos = new ObjectOutputStream(new FileOutputStream(resendFile));
             oos.writeObject(method);
             oos.writeObject("" + retries);
             oos.writeObject(msg);
+            oos.close();
+            oos = null;
+            addToIndex(new ResendEntry(resendFile, getDueTime(resendFile), partnershipKey));
 
             logger.info("Message put in resend queue" + msg.getLogMsgID());
             if (logger.isTraceEnabled()) {
@@ -92,31 +136,196 @@ public class DirectoryResenderModule extends BaseResenderModule {
         super.init(session, options);
         resendDirPath = getParameter(PARAM_RESEND_DIRECTORY, true);
         getParameter(PARAM_ERROR_DIRECTORY, true);
+        String cfgResendDelay = getParameter(PARAM_RESEND_DELAY, false);
+        if (cfgResendDelay == null) {
+            resendDelay = DEFAULT_RESEND_DELAY;
+        } else {
+            resendDelay = Integer.parseInt(cfgResendDelay) * 1000L;
+        }
+        resendMaxDelay = Math.max(resendDelay, getParameterInt(PARAM_RESEND_MAX_DELAY, false, 3600) * 1000L);
+        try {
+            backoffFactor = Double.parseDouble(getParameter(PARAM_RESEND_BACKOFF_FACTOR, "2"));
+            jitter = Double.parseDouble(getParameter(PARAM_RESEND_JITTER, "0.1"));
+        } catch (NumberFormatException e) {
+            throw new OpenAS2Exception("Invalid resend backoff factor or jitter: " + e.getMessage());
+        }
+        if (backoffFactor < 1 || jitter < 0 || jitter >= 1) {
+            throw new OpenAS2Exception("Resend backoff factor must be at least 1 and jitter must be from 0 to less than 1.");
+        }
+        resendThreads = getParameterInt(PARAM_RESEND_THREADS, false, 4);
+        maxResendsPerPartnership = getParameterInt(PARAM_MAX_RESENDS_PER_PARTNERSHIP, false, 2);
+        rescanInterval = getParameterInt(PARAM_RESCAN_INTERVAL, false, 300) * 1000L;
+        if (resendThreads < 1 || maxResendsPerPartnership < 1) {
+            throw new OpenAS2Exception("Resend threads and maximum parallel resends per partnership must be greater than zero.");
+        }
     }
 
-    public void resend() {
-        try {
-            try {
-                // get a list of files that need to be sent now
-                List<File> sendFiles = scanDirectory();
+    @Override
+    public void doStart() throws OpenAS2Exception {
+        dispatchExecutor = Executors.newFixedThreadPool(resendThreads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, getName() + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        synchronized (partnershipQueues) {
+            // Force a full directory scan on the first tick to pick up entries queued before a restart
+            lastScanTime = 0;
+        }
+        super.doStart();
+    }
 
-                // iterator through and send each file
-                Iterator<File> fileIt = sendFiles.iterator();
-                File currentFile;
+    @Override
+    public void doStop() throws OpenAS2Exception {
+        super.doStop();
+        if (dispatchExecutor != null) {
+            dispatchExecutor.shutdown();
+            try {
+                if (!dispatchExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warn("Resends still in progress after 30 seconds. They will be retried on the next start.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            dispatchExecutor = null;
+        }
+        synchronized (partnershipQueues) {
+            partnershipQueues.clear();
+            readyQueues.clear();
+            indexedFiles.clear();
+            queuedCount = 0;
+        }
+    }
 
-                while (fileIt.hasNext()) {
-                    currentFile = fileIt.next();
-                    processFile(currentFile);
+    public void resend() {
+        try {
+            boolean rescan;
+            synchronized (partnershipQueues) {
+                rescan = System.currentTimeMillis() - lastScanTime >= rescanInterval;
+            }
+            if (rescan) {
+                try {
+                    scanDirectory();
+                } catch (IOException ioe) {
+                    throw new WrappedException(ioe);
                 }
-            } catch (IOException ioe) {
-                throw new WrappedException(ioe);
             }
+            dispatchDue();
         } catch (OpenAS2Exception oae) {
             oae.log();
             //forceStop(oae);
         }
     }
 
+    /**
+     * Hands due entries to the dispatch threads, earliest first, from the partnerships that have fewer than the
+     * maximum number of resends in progress. Called on each tick and whenever a resend completes.
+     */
+    protected void dispatchDue() {
+        long now = System.currentTimeMillis();
+        synchronized (partnershipQueues) {
+            if (dispatchExecutor == null) {
+                return;
+            }
+            while (inFlightCount < resendThreads && !readyQueues.isEmpty() && readyQueues.first().entries.peek().dueTime <= now) {
+                PartnershipQueue queue = readyQueues.pollFirst();
+                queue.ready = false;
+                ResendEntry entry = queue.entries.poll();
+                queuedCount--;
+                queue.inFlight++;
+                inFlightCount++;
+                updateReady(queue);
+                try {
+                    dispatchExecutor.execute(new ResendTask(entry));
+                } catch (RejectedExecutionException e) {
+                    // Shutting down so leave the file for the next start
+                    releaseInFlight(entry);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void releaseInFlight(ResendEntry entry) {
+        synchronized (partnershipQueues) {
+            inFlightCount--;
+            indexedFiles.remove(entry.file.getName());
+            PartnershipQueue queue = partnershipQueues.get(getQueueKey(entry));
+            if (queue != null) {
+                removeReady(queue);
+                queue.inFlight--;
+                if (queue.entries.isEmpty() && queue.inFlight <= 0) {
+                    partnershipQueues.remove(queue.key);
+                } else {
+                    updateReady(queue);
+                }
+            }
+        }
+    }
+
+    private void addToIndex(ResendEntry entry) {
+        synchronized (partnershipQueues) {
+            if (indexedFiles.add(entry.file.getName())) {
+                String key = getQueueKey(entry);
+                PartnershipQueue queue = partnershipQueues.get(key);
+                if (queue == null) {
+                    queue = new PartnershipQueue(key);
+                    partnershipQueues.put(key, queue);
+                } else {
+                    removeReady(queue);
+                }
+                queue.entries.add(entry);
+                queuedCount++;
+                updateReady(queue);
+            }
+        }
+    }
+
+    /**
+     * Puts the queue in the ready set if it has a queued file and may start another resend.
+     * Must be called holding the queues lock with the queue not in the ready set.
+     */
+    private void updateReady(PartnershipQueue queue) {
+        boolean hasCapacity = UNKNOWN_PARTNERSHIP.equals(queue.key) || queue.inFlight < maxResendsPerPartnership;
+        if (hasCapacity && !queue.entries.isEmpty()) {
+            queue.ready = true;
+            readyQueues.add(queue);
+        }
+    }
+
+    private void removeReady(PartnershipQueue queue) {
+        if (queue.ready) {
+            readyQueues.remove(queue);
+            queue.ready = false;
+        }
+    }
+
+    private static String getQueueKey(ResendEntry entry) {
+        return entry.partnershipKey == null ? UNKNOWN_PARTNERSHIP : entry.partnershipKey;
+    }
+
+    /**
+     * @return the number of resends waiting in the queue, excluding those in progress
+     */
+    public int getQueuedCount() {
+        synchronized (partnershipQueues) {
+            return queuedCount;
+        }
+    }
+
+    /**
+     * @return the number of resends in progress
+     */
+    public int getInFlightCount() {
+        synchronized (partnershipQueues) {
+            return inFlightCount;
+        }
+    }
+
     @Override
     public boolean healthcheck(List<String> failures) {
         try {
@@ -131,29 +340,70 @@ public class DirectoryResenderModule extends BaseResenderModule {
         return true;
     }
 
-    protected String getFilename() throws InvalidParameterException {
-        long resendDelay;
-        String cfgResendDelay = getParameter(PARAM_RESEND_DELAY, false);
-        if (cfgResendDelay == null) {
-            resendDelay = DEFAULT_RESEND_DELAY;
-        } else {
-            resendDelay = Integer.parseInt(cfgResendDelay) * 1000;
+    /**
+     * Calculates the delay before the next resend attempt. The delay grows by the backoff factor for each
+     * retry already made up to the maximum delay and is spread by the jitter so that messages queued together
+     * during a partner outage are not all resent at the same moment.
+     *
+     * @param retries the number of retries already made
+     * @return the delay in milliseconds
+     */
+    protected long getResendDelay(int retries) {
+        double delay = resendDelay * Math.pow(backoffFactor, Math.min(Math.max(retries - 1, 0), 30));
+        delay = Math.min(delay, resendMaxDelay);
+        if (jitter > 0) {
+            delay = delay * (1 + jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
         }
-        long resendTime = new Date().getTime() + resendDelay;
+        return (long) delay;
+    }
 
-        return DateUtil.formatDate("MM-dd-yy-HH-mm-ss", new Date(resendTime));
+    /**
+     * @param dueTime        the time the message is due to be resent
+     * @param partnershipKey the partnership the message belongs to. Can be null.
+     * @return the name of the resend file without the unique suffix
+     */
+    protected String getFilename(long dueTime, String partnershipKey) {
+        String filename = DateUtil.formatDate(DUE_TIME_FORMAT, new Date(dueTime));
+        if (partnershipKey != null) {
+            filename += "." + partnershipKey;
+        }
+        return filename;
     }
 
-    protected boolean isTimeToSend(File currentFile) {
+    /**
+     * @param currentFile the resend file
+     * @return the due time encoded in the file name or the current time if it cannot be parsed
+     */
+    protected long getDueTime(File currentFile) {
         try {
             StringTokenizer fileTokens = new StringTokenizer(currentFile.getName(), ".", false);
 
-            Date timestamp = DateUtil.parseDate("MM-dd-yy-HH-mm-ss", fileTokens.nextToken());
-
-            return timestamp.before(new Date());
+            return DateUtil.parseDate(DUE_TIME_FORMAT, fileTokens.nextToken()).getTime();
         } catch (Exception e) {
-            return true;
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Builds the key used to limit the number of parallel resends to a partnership.
+     * Only characters that are safe in a file name and are not the "." separator are kept.
+     *
+     * @param msg the message to be resent
+     * @return the partnership key or null if the partnership IDs are not known
+     */
+    protected String getPartnershipKey(Message msg) {
+        String sender = msg.getPartnership().getSenderID(Partnership.PID_AS2);
+        String receiver = msg.getPartnership().getReceiverID(Partnership.PID_AS2);
+        if (sender == null || receiver == null) {
+            return null;
         }
+        return (sender + "~" + receiver).replaceAll("[^A-Za-z0-9_~-]", "_");
+    }
+
+    private static String getPartnershipKey(File file) {
+        // New style names are <due time>.<partnership>.<uuid>, older ones only <due time>.<uuid>
+        String[] tokens = file.getName().split("\\.");
+        return tokens.length == 3 ? tokens[1] : null;
     }
 
     protected void processFile(File file) throws OpenAS2Exception {
@@ -212,9 +462,15 @@ public class DirectoryResenderModule extends BaseResenderModule {
         }
     }
 
-    protected List<File> scanDirectory() throws OpenAS2Exception, IOException {
+    /**
+     * Adds resend files that are not yet in the due time index. This picks up files queued before a restart
+     * and files copied into the resend directory by hand.
+     *
+     * @throws OpenAS2Exception - the resend directory cannot be listed
+     * @throws IOException - the resend directory cannot be created
+     */
+    protected void scanDirectory() throws OpenAS2Exception, IOException {
         File resendDir = IOUtil.getDirectoryFile(getParameter(PARAM_RESEND_DIRECTORY, true));
-        List<File> sendFiles = new ArrayList<File>();
 
         File[] files = resendDir.listFiles();
 
@@ -222,20 +478,93 @@ public class DirectoryResenderModule extends BaseResenderModule {
             throw new InvalidParameterException("Error getting list of files in directory", this, PARAM_RESEND_DIRECTORY, resendDir.getAbsolutePath());
         }
 
-        if (files.length > 0) {
-            File currentFile;
-
-            for (int i = 0; i < files.length; i++) {
-                currentFile = files[i];
+        int added = 0;
+        for (int i = 0; i < files.length; i++) {
+            File currentFile = files[i];
 
-                if (currentFile.exists() && currentFile.isFile() && currentFile.canWrite()) {
-                    if (isTimeToSend(currentFile)) {
-                        sendFiles.add(currentFile);
+            if (currentFile.isFile() && currentFile.canWrite()) {
+                synchronized (partnershipQueues) {
+                    if (!indexedFiles.contains(currentFile.getName())) {
+                        addToIndex(new ResendEntry(currentFile, getDueTime(currentFile), getPartnershipKey(currentFile)));
+                        added++;
                     }
                 }
             }
         }
+        synchronized (partnershipQueues) {
+            lastScanTime = System.currentTimeMillis();
+        }
+        if (added > 0 && logger.isInfoEnabled()) {
+            logger.info("Resend directory scan added " + added + " entries to the resend queue. Queued: " + getQueuedCount());
+        }
+    }
+
+    /**
+     * A queued resend file and the time it is due to be sent.
+     */
+    private static class ResendEntry implements Comparable<ResendEntry> {
+        private final File file;
+        private final long dueTime;
+        private final String partnershipKey;
+
+        ResendEntry(File file, long dueTime, String partnershipKey) {
+            this.file = file;
+            this.dueTime = dueTime;
+            this.partnershipKey = partnershipKey;
+        }
+
+        @Override
+        public int compareTo(ResendEntry o) {
+            if (dueTime != o.dueTime) {
+                return dueTime < o.dueTime ? -1 : 1;
+            }
+            return file.getName().compareTo(o.file.getName());
+        }
+    }
+
+    /**
+     * The queued resend files of one partnership and the number of its resends in progress.
+     */
+    private static class PartnershipQueue implements Comparable<PartnershipQueue> {
+        private final String key;
+        private final PriorityQueue<ResendEntry> entries = new PriorityQueue<ResendEntry>();
+        private int inFlight = 0;
+        private boolean ready = false;
+
+        PartnershipQueue(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(PartnershipQueue o) {
+            // Only queues with entries are compared since only they are in the ready set
+            int result = entries.peek().compareTo(o.entries.peek());
+            return result != 0 ? result : key.compareTo(o.key);
+        }
+    }
+
+    private class ResendTask implements Runnable {
+        private final ResendEntry entry;
+
+        ResendTask(ResendEntry entry) {
+            this.entry = entry;
+        }
 
-        return sendFiles;
+        @Override
+        public void run() {
+            try {
+                // The file may have been handled by hand since it was indexed
+                if (entry.file.exists()) {
+                    processFile(entry.file);
+                }
+            } catch (OpenAS2Exception e) {
+                e.log();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error resending " + entry.file.getAbsolutePath(), e);
+            } finally {
+                releaseInFlight(entry);
+                dispatchDue();
+            }
+        }
     }
 }
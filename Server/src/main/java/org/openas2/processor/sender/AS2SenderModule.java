@@ -1,14 +1,17 @@
 package org.openas2.processor.sender;
 
-import org.apache.commons.io.filefilter.AgeFileFilter;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openas2.ComponentNotFoundException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentProducer;
 import org.openas2.OpenAS2Exception;
 import org.openas2.Session;
 import org.openas2.cert.CertificateFactory;
 import org.openas2.lib.helper.ICryptoHelper;
+import org.openas2.lib.helper.MicCalculator;
 import org.openas2.lib.util.MimeUtil;
+import org.openas2.logging.LogMessage;
 import org.openas2.message.AS2Message;
 import org.openas2.message.AS2MessageMDN;
 import org.openas2.message.DataHistoryItem;
@@ -28,7 +31,6 @@ import org.openas2.util.AS2Util;
 import org.openas2.util.DateUtil;
 import org.openas2.util.DispositionOptions;
 import org.openas2.util.HTTPUtil;
-import org.openas2.util.IOUtil;
 import org.openas2.util.Properties;
 import org.openas2.util.ResponseWrapper;
 
@@ -37,23 +39,28 @@ import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.net.ssl.SSLHandshakeException;
 
-import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public class AS2SenderModule extends HttpSenderModule implements HasSchedule {
 
+    public static final String MDN_TIMEOUT_ACTION_FAIL = "fail";
+    public static final String MDN_TIMEOUT_ACTION_RESEND = "resend";
+
+    private MdnTimeoutTracker mdnTimeoutTracker;
+    private final PartnerSendLimiter sendLimiter = new PartnerSendLimiter();
+
     private Log logger = LogFactory.getLog(AS2SenderModule.class.getSimpleName());
 
     /** TODO: Remove this when module config enforces setting the action so that the super method does all the work
@@ -188,7 +195,19 @@ public class AS2SenderModule extends HttpSenderModule implements HasSchedule {
         httpOptions.put(HTTPUtil.PARAM_HTTP_PWD, msg.getPartnership().getAttribute(HTTPUtil.PARAM_HTTP_PWD));
         long maxSize = msg.getPartnership().getNoChunkedMaxSize();
         boolean preventChunking = msg.getPartnership().isPreventChunking(false);
-        ResponseWrapper resp = HTTPUtil.execRequest(HTTPUtil.Method.POST, url, ih, null, securedData.getInputStream(), httpOptions, maxSize, preventChunking);
+        // Wait until the partner limits allow another request
+        PartnerSendLimiter.Permit permit = sendLimiter.acquire(msg.getPartnership(), url);
+        ResponseWrapper resp;
+        boolean overloaded = false;
+        try {
+            resp = HTTPUtil.execRequest(HTTPUtil.Method.POST, url, ih, null, getContentProducer(securedData), httpOptions, maxSize, preventChunking, getConnectionPool());
+            overloaded = resp.getStatusCode() >= 500 || resp.getStatusCode() == 429;
+        } catch (SocketTimeoutException | ConnectTimeoutException e) {
+            overloaded = true;
+            throw e;
+        } finally {
+            permit.release(overloaded);
+        }
         if (logger.isInfoEnabled()) {
             logger.info("Message sent and response received in " + resp.getTransferTimeMs() + msg.getLogMsgID());
         }
@@ -204,6 +223,27 @@ public class AS2SenderModule extends HttpSenderModule implements HasSchedule {
         processResponse(msg, resp);
     }
 
+    /**
+     * The secured part is not materialised until it is written: compression, signing and encryption are
+     * performed by the streaming CMS generators behind each nested part as the data is written to the
+     * connection (or a spool file when a Content-Length is needed) so the message is never held in memory.
+     *
+     * @param securedData the outermost part as returned by {@link #secure(Message)}
+     * @return a producer writing the content of the part exactly as it would be read from its input stream
+     */
+    private ContentProducer getContentProducer(final MimeBodyPart securedData) {
+        return new ContentProducer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try {
+                    securedData.getDataHandler().writeTo(out);
+                } catch (MessagingException e) {
+                    throw new IOException("Failed to write the secured message content: " + e.getMessage(), e);
+                }
+            }
+        };
+    }
+
     private void processResponse(Message msg, ResponseWrapper response) {
         if (logger.isTraceEnabled()) {
             logger.trace("Message sent. Checking if MDN is expected..." + msg.getLogMsgID());
@@ -526,7 +566,7 @@ public class AS2SenderModule extends HttpSenderModule implements HasSchedule {
     }
 
     /**
-     * Stores metadata into pending information file and storing message object from
+     * Stores metadata into the pending MDN information store and stores the message object from
      * first send attempt. The message object is written to a separate file to avoid
      * repeated rewrites of possibly very large objects since it contains the
      * original file data
@@ -540,10 +580,13 @@ public class AS2SenderModule extends HttpSenderModule implements HasSchedule {
         ObjectOutputStream oos = null;
 
         try {
-            String pendingInfoFile = AS2Util.buildPendingFileName(msg, getSession().getProcessor(), "pendingmdninfo");
+            if (msg.getMessageID() == null || msg.getMessageID().length() < 1) {
+                msg.setMessageID(AS2Util.generateMessageID(msg, false));
+            }
+            PendingMdnStore store = AS2Util.getPendingMdnStore(getSession().getProcessor());
+            String pendingInfoLocator = store.getLocator(msg.getMessageID());
             String pendingFile = msg.getAttribute(FileAttribute.MA_PENDINGFILE);
-            msg.setAttribute(FileAttribute.MA_PENDINGFILE, pendingFile);
-            msg.setAttribute(FileAttribute.MA_PENDINGINFO, pendingInfoFile);
+            msg.setAttribute(FileAttribute.MA_PENDINGINFO, pendingInfoLocator);
             if (!isResend) {
                 // Write the object to a file to keep a lot of the original
                 // static metadata intact for resends
@@ -553,32 +596,22 @@ public class AS2SenderModule extends HttpSenderModule implements HasSchedule {
                 oos.flush();
                 oos.close();
             }
-            oos = new ObjectOutputStream(new FileOutputStream(pendingInfoFile));
-            oos.writeObject(msg.getCalculatedMIC());
-            int retries = Integer.parseInt((String)msg.getOption(ResenderModule.OPTION_RETRIES));
-            oos.writeObject("" + retries);
+            PendingMdnInfo info = PendingMdnInfo.fromMessage(msg, getMdnDeadline(msg, System.currentTimeMillis()));
+            store.put(info);
+            if (mdnTimeoutTracker != null) {
+                mdnTimeoutTracker.track(info.getDeadline());
+            }
 
             if (logger.isInfoEnabled()) {
-                logger.info("Save Original mic & message id information into file: " + pendingInfoFile + msg.getLogMsgID());
+                logger.info("Saved original mic & message id information into pending MDN store: " + pendingInfoLocator + msg.getLogMsgID());
             }
-            oos.writeObject(msg.getPayloadFilename());
-            oos.writeObject(msg.getAttribute(FileAttribute.MA_FILENAME));
-            oos.writeObject(pendingFile);
-            oos.writeObject(msg.getAttribute(FileAttribute.MA_ERROR_DIR));
-            String sentDir = msg.getAttribute(FileAttribute.MA_SENT_DIR);
-            oos.writeObject((sentDir == null ? "" : sentDir));
-            oos.writeObject(msg.getAttributes());
             if (logger.isTraceEnabled()) {
-                logger.trace("Pending info file written to:" + pendingInfoFile + "\n\tOriginal MIC: " + msg.getCalculatedMIC() + "\n\tRetry Count: " + retries + "\n\tOriginal file name : " + msg.getAttribute(FileAttribute.MA_FILENAME) + "\n\tPending message file : " + pendingFile + "\n\tError directory: " + msg.getAttribute(FileAttribute.MA_ERROR_DIR) + "\n\tSent directory: " + msg.getAttribute(FileAttribute.MA_SENT_DIR) + "\n\tAttributes: " + msg.getAttributes() + msg.getLogMsgID());
+                // Only built if a logger writes trace entries
+                logger.trace(LogMessage.format("Pending MDN information stored for:{}\n\tOriginal MIC: {}\n\tRetry Count: {}\n\tOriginal file name : {}\n\tPending message file : {}\n\tError directory: {}\n\tSent directory: {}\n\tAttributes: {}{}",
+                        pendingInfoLocator, info.getMic(), info.getRetries(), info.getFilename(), pendingFile, info.getErrorDir(), info.getSentDir(), info.getAttributes(), msg.getLogMsgID()));
             }
 
             msg.setAttribute(FileAttribute.MA_STATUS, FileAttribute.MA_PENDING);
-            // If ASYNC MDN is requested, set up a file watcher in case partner MDN is not received
-            if (msg.isConfiguredForAsynchMDN()) {
-                // TODO: Create a listener that will force resend if the pendinginfo file is still
-                // there after set amount of time
-
-            }
         } catch (Exception e) {
             msg.setLogMsg("Error setting up pending information files: " + org.openas2.logging.Log.getExceptionMsg(e));
             logger.error(msg, e);
@@ -605,74 +638,123 @@ public class AS2SenderModule extends HttpSenderModule implements HasSchedule {
             return;
         }
         DispositionOptions dispOptions = new DispositionOptions(mdnOptions);
-        msg.setCalculatedMIC(AS2Util.getCryptoHelper().calculateMIC(mbp, dispOptions.getMicalg(), includeHeaders, msg.getPartnership().isPreventCanonicalization()));
-        if (logger.isTraceEnabled()) {
+        ICryptoHelper ch = AS2Util.getCryptoHelper();
+        boolean preventCanonicalization = msg.getPartnership().isPreventCanonicalization();
+        if (!logger.isTraceEnabled()) {
+            msg.setCalculatedMIC(ch.calculateMIC(mbp, dispOptions.getMicalg(), includeHeaders, preventCanonicalization));
+        } else {
             // Generate some alternative MIC's to see if the partner is somehow using a
-            // different default
-            String tmic = AS2Util.getCryptoHelper().calculateMIC(mbp, dispOptions.getMicalg(), includeHeaders, !msg.getPartnership().isPreventCanonicalization());
+            // different default. The reversed canonicalization MIC is worked out in the same pass over the data
+            MicCalculator micCalc = ch.createMicCalculator(mbp, dispOptions.getMicalg(), preventCanonicalization);
+            MicCalculator reversedMicCalc = ch.createMicCalculator(mbp, dispOptions.getMicalg(), !preventCanonicalization);
+            ch.writeMicContent(mbp, includeHeaders, new TeeOutputStream(micCalc.getOutputStream(), reversedMicCalc.getOutputStream()));
+            msg.setCalculatedMIC(micCalc.getMic());
+            String tmic = reversedMicCalc.getMic();
             logger.trace("MIC outbound with forced reversed prevent canocalization: " + tmic + msg.getLogMsgID());
-            tmic = AS2Util.getCryptoHelper().calculateMIC(msg.getData(), dispOptions.getMicalg(), false, msg.getPartnership().isPreventCanonicalization());
+            tmic = ch.calculateMIC(msg.getData(), dispOptions.getMicalg(), false, preventCanonicalization);
             logger.trace("MIC outbound with forced exclude headers flag: " + tmic + msg.getLogMsgID());
 
         }
     }
 
-    protected void detectFailedSentMessages() {
-        String dir;
-        try {
-            dir = getSession().getProcessor().getParameters().get("pendingmdninfo");
-        } catch (ComponentNotFoundException e) {
-            logger.warn("Failed to retrieve the name of the pending info folder for sent messages in trying to run the failed message detection method.", e);
-            return;
-        }
-        File pendingDir=null;
-        try {
-            pendingDir = IOUtil.getDirectoryFile(dir);
-        } catch (IOException e) {
-            logger.warn("Failed to open the pending info folder for sent messages in trying to run the failed message detection method.", e);
-            return;
-        } catch (InvalidParameterException ex) {
-            Logger.getLogger(AS2SenderModule.class.getName()).log(Level.SEVERE, null, ex);
-            return;
-        }
-        // We are interested in files older than configured seconds
-        int maxWaitMdnResponseSecs = Integer.parseInt(Properties.getProperty(Properties.AS2_MDN_RESP_MAX_WAIT_SECS, "4560"));
-        long cutoff = System.currentTimeMillis() - (maxWaitMdnResponseSecs * 1000);
-        String[] files = pendingDir.list(new AgeFileFilter(cutoff));
-        for (int i = 0; i < files.length; i++) {
-            File inFile = new File(pendingDir + File.separator + files[i]);
-            // Check if the file still exists in case it gets processed during the loop
-            if (!inFile.exists()) {
-                continue;
+    /**
+     * @param msg      the message being sent
+     * @param fromMillis the time the message is sent
+     * @return the time after which the MDN for the message is no longer expected
+     */
+    protected long getMdnDeadline(Message msg, long fromMillis) {
+        String maxWaitSecs = msg.getPartnership().getAttributeOrProperty(Properties.AS2_MDN_RESP_MAX_WAIT_SECS, "4560");
+        return fromMillis + Long.parseLong(maxWaitSecs) * 1000;
+    }
+
+    /**
+     * Called when the MDN for a sent message has not arrived by its deadline. The message is resent if the
+     * partnership's mdn_timeout_action is "resend" and the resend limit allows it, otherwise it is failed.
+     *
+     * @param info the pending MDN information of the message
+     * @throws OpenAS2Exception the pending MDN information could not be updated
+     */
+    protected void handleMdnTimeout(PendingMdnInfo info) throws OpenAS2Exception {
+        PendingMdnStore store = AS2Util.getPendingMdnStore(getSession().getProcessor());
+        AS2Message msg = new AS2Message();
+        msg.setMessageID(info.getMessageId());
+        msg.setAttribute(FileAttribute.MA_PENDINGINFO, store.getLocator(info.getMessageId()));
+        info.applyTo(msg);
+        if (info.getSenderId() != null && info.getReceiverId() != null) {
+            msg.getPartnership().setSenderID(Partnership.PID_AS2, info.getSenderId());
+            msg.getPartnership().setReceiverID(Partnership.PID_AS2, info.getReceiverId());
+            try {
+                getSession().getPartnershipFactory().updatePartnership(msg, false);
+            } catch (OpenAS2Exception e) {
+                logger.warn("Failed to find the partnership for message " + info.getMessageId() + " whose MDN did not arrive in time", e);
             }
-            AS2Message msg = new AS2Message();
+        }
+        String action = msg.getPartnership().getAttributeOrProperty(Partnership.PA_MDN_TIMEOUT_ACTION, MDN_TIMEOUT_ACTION_FAIL);
+        if (MDN_TIMEOUT_ACTION_RESEND.equalsIgnoreCase(action)) {
+            msg.setLogMsg("No MDN received within the maximum wait time. Resending the message.");
+            logger.warn(msg);
+            // Push the deadline out so it does not time out again while queued for resend.
+            // The resend replaces it with a deadline from the time it is actually sent.
+            info.setDeadline(getMdnDeadline(msg, System.currentTimeMillis()));
+            store.put(info);
             try {
-                AS2Util.getMetaData(msg, inFile);
-            } catch (Exception e) {
-                // Log the message
-                logger.warn("Exception occurred processing stale pending info file: " + inFile.getAbsolutePath() + " Error was: " + e.getMessage(), e);
-            } finally {
-                String msgStr = "Pending information file detected that is past max wait time, Failure most likely due to not receiving MDN response in Async mode: " + inFile.getAbsolutePath();
-                msg.setLogMsg(msgStr);
-                msg.setStatus(Message.MSG_STATUS_MSG_TERMINATED_IN_ERROR);
-                logger.error(msg, null);
-                AS2Util.cleanupFiles(msg, true);
-                // Log significant msg state
-                msg.setOption("STATE", Message.MSG_STATE_MDN_ASYNC_RECEIVE_FAIL);
-                msg.trackMsgState(getSession());                
+                AS2Util.resend(getSession(), this.getClass(), SenderModule.DO_SEND, msg, new OpenAS2Exception("No MDN received within the maximum wait time"), true, false);
+                return;
+            } catch (OpenAS2Exception e) {
+                // Most likely the resend limit was reached so fail the message
+                logger.debug("Resend after MDN timeout was not possible: " + e.getMessage());
             }
         }
+        msg.setLogMsg("Pending MDN information detected that is past max wait time, Failure most likely due to not receiving MDN response in Async mode: " + info.getMessageId());
+        msg.setStatus(Message.MSG_STATUS_MSG_TERMINATED_IN_ERROR);
+        logger.error(msg, null);
+        AS2Util.cleanupFiles(msg, true);
+        // Log significant msg state
+        msg.setOption("STATE", Message.MSG_STATE_MDN_ASYNC_RECEIVE_FAIL);
+        msg.trackMsgState(getSession());
+    }
+
+    /**
+     * @return the number of messages waiting for an MDN keyed by the AS2 ID of the partner they were sent to
+     */
+    public Map<String, Long> getOutstandingMdnCounts() {
+        if (mdnTimeoutTracker == null) {
+            return new HashMap<String, Long>();
+        }
+        return mdnTimeoutTracker.getOutstandingCounts();
+    }
+
+    /**
+     * @return the number of messages waiting for the send limits keyed by partnership name or URL
+     */
+    public Map<String, Long> getSendQueueDepths() {
+        return sendLimiter.getQueueDepths();
+    }
+
+    /**
+     * @return the send limits and counters keyed by partnership name or URL
+     */
+    public Map<String, Map<String, Long>> getSendLimiterStats() {
+        return sendLimiter.getStats();
     }
 
     @Override
-    public void schedule(ScheduledExecutorService executor) {
-        String delayStr = Properties.getProperty(Properties.AS2_MDN_RESP_MAX_WAIT_SECS, "4560");
-        Long delay = Long.parseLong(delayStr) / 4 * 1000;
-        executor.scheduleWithFixedDelay(new Runnable() {
+    public void schedule(ScheduledExecutorService executor) throws OpenAS2Exception {
+        // The pending MDN store is rebuilt from disk when opened so MDNs outstanding before a restart still time out
+        mdnTimeoutTracker = new MdnTimeoutTracker(AS2Util.getPendingMdnStore(getSession().getProcessor()), executor, new MdnTimeoutTracker.TimeoutHandler() {
             @Override
-            public void run() {
-                detectFailedSentMessages();
+            public void mdnTimedOut(PendingMdnInfo info) throws Exception {
+                handleMdnTimeout(info);
             }
-        }, delay, delay, TimeUnit.MILLISECONDS);
+        });
+        mdnTimeoutTracker.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (mdnTimeoutTracker != null) {
+            mdnTimeoutTracker.stop();
+        }
+        super.destroy();
     }
 }
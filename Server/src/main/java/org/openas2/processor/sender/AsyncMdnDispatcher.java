@@ -0,0 +1,407 @@
+package org.openas2.processor.sender;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openas2.OpenAS2Exception;
+import org.openas2.message.AS2Message;
+
+import javax.mail.internet.MimeBodyPart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends asynchronous MDNs from a queue on a pool of worker threads so the connection the message was received
+ * on is released as soon as the HTTP 200 response has been written.
+ * <p>
+ * When a queue directory is configured each MDN is written to a file in it before it is queued and the file is
+ * only removed once the MDN was sent or handed to the resender, so MDNs queued before a restart are sent when
+ * the dispatcher starts again. The message is queued without its payload, which the MDN does not need.
+ * <p>
+ * MDNs are queued per URL. At most a configured number of MDNs is sent to the same URL at a time so a slow
+ * partner cannot hold every worker. After a failed send the URL waits before the next MDN is tried, doubling
+ * the wait on each consecutive failure, and then sends one MDN at a time until one gets through.
+ */
+public class AsyncMdnDispatcher {
+    public static final String QUEUE_FILE_EXTENSION = ".mdn";
+    public static final String FAILED_FILE_EXTENSION = ".failed";
+
+    /**
+     * Sends one queued MDN.
+     */
+    public interface MdnSender {
+        /**
+         * @return true if the MDN was sent or false if it failed and was handed to the resender
+         */
+        boolean send(AS2Message msg, String url) throws Exception;
+    }
+
+    private final File queueDir;
+    private final int maxPerUrl;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final MdnSender sender;
+    private final Map<String, UrlQueue> queues = new HashMap<String, UrlQueue>();
+    private ScheduledExecutorService executor;
+    // Files in the queue directory when the dispatcher started. Only these are queued by recover() since
+    // files written after the start are already queued by enqueue().
+    private List<File> leftoverFiles = Collections.emptyList();
+    private int queued;
+    private int inFlight;
+    private long sent;
+    private long failed;
+
+    private Log logger = LogFactory.getLog(AsyncMdnDispatcher.class.getSimpleName());
+
+    /**
+     * @param queueDir         the directory to keep queued MDNs in or null to only queue them in memory
+     * @param maxPerUrl        the maximum number of MDNs sent to the same URL at the same time
+     * @param backoffMillis    the wait after the first failed send to a URL
+     * @param maxBackoffMillis the longest wait after consecutive failed sends to a URL
+     * @param sender           sends the MDNs
+     */
+    public AsyncMdnDispatcher(File queueDir, int maxPerUrl, long backoffMillis, long maxBackoffMillis, MdnSender sender) {
+        this.queueDir = queueDir;
+        this.maxPerUrl = maxPerUrl;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = Math.max(backoffMillis, maxBackoffMillis);
+        this.sender = sender;
+    }
+
+    /**
+     * Starts the workers. MDNs left in the queue directory are found before any MDN can be queued but are only
+     * queued by {@link #recover()}.
+     *
+     * @param threads    the number of MDNs sent at the same time across all URLs
+     * @param threadName the prefix for the names of the worker threads
+     */
+    public void start(int threads, final String threadName) throws OpenAS2Exception {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadName + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.setRemoveOnCancelPolicy(true);
+        List<File> leftover = new ArrayList<File>();
+        if (queueDir != null) {
+            if (!queueDir.isDirectory() && !queueDir.mkdirs()) {
+                pool.shutdown();
+                throw new OpenAS2Exception("Failed to create the async MDN queue directory: " + queueDir.getAbsolutePath());
+            }
+            File[] files = queueDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(QUEUE_FILE_EXTENSION)) {
+                        leftover.add(file);
+                    }
+                }
+            }
+            // The file names start with the time they were queued
+            Collections.sort(leftover);
+        }
+        synchronized (this) {
+            leftoverFiles = leftover;
+            executor = pool;
+        }
+    }
+
+    /**
+     * Stops the workers after the MDNs being sent complete. MDNs still waiting stay in the queue directory.
+     */
+    public void stop() {
+        ScheduledExecutorService pool;
+        synchronized (this) {
+            pool = executor;
+            executor = null;
+            queues.clear();
+            queued = 0;
+        }
+        if (pool != null) {
+            pool.shutdown();
+            try {
+                if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
+                    logger.warn("Async MDNs still being sent after 30 seconds.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queues an MDN. The message is copied so it can be changed or disposed of once this returns.
+     *
+     * @param msg the received message with the MDN to send
+     * @param url the URL to send the MDN to
+     * @return false if the dispatcher is not running and the MDN must be sent by the caller
+     * @throws OpenAS2Exception the MDN could not be written to the queue
+     */
+    public boolean enqueue(AS2Message msg, String url) throws OpenAS2Exception {
+        synchronized (this) {
+            if (executor == null) {
+                return false;
+            }
+        }
+        byte[] content = serialize(msg, url);
+        QueuedMdn entry;
+        if (queueDir == null) {
+            entry = new QueuedMdn(url, null, content);
+        } else {
+            File file = null;
+            try {
+                file = File.createTempFile("mdn-" + System.currentTimeMillis() + "-", QUEUE_FILE_EXTENSION, queueDir);
+                try (OutputStream out = new FileOutputStream(file)) {
+                    out.write(content);
+                }
+            } catch (IOException e) {
+                if (file != null) {
+                    file.delete();
+                }
+                throw new OpenAS2Exception("Failed to write the async MDN to the queue directory: " + queueDir.getAbsolutePath(), e);
+            }
+            entry = new QueuedMdn(url, file, null);
+        }
+        add(entry);
+        return true;
+    }
+
+    /**
+     * @return the number of MDNs queued and being sent, the number of URLs waiting after a failure and the totals
+     * sent and failed since the dispatcher was created
+     */
+    public synchronized Map<String, Long> getStats() {
+        long backingOff = 0;
+        long now = System.currentTimeMillis();
+        for (UrlQueue queue : queues.values()) {
+            if (queue.notBefore > now) {
+                backingOff++;
+            }
+        }
+        Map<String, Long> stats = new HashMap<String, Long>();
+        stats.put("queued", (long) queued);
+        stats.put("inFlight", (long) inFlight);
+        stats.put("backingOffUrls", backingOff);
+        stats.put("sent", sent);
+        stats.put("failed", failed);
+        return stats;
+    }
+
+    /**
+     * Queues the MDNs left in the queue directory by an earlier run. Each is only queued once however often this
+     * is called.
+     */
+    public void recover() {
+        List<File> files;
+        synchronized (this) {
+            files = leftoverFiles;
+            leftoverFiles = Collections.emptyList();
+        }
+        int recovered = 0;
+        for (File file : files) {
+            if (!file.exists()) {
+                continue;
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+                add(new QueuedMdn((String) in.readObject(), file, null));
+                recovered++;
+            } catch (Exception e) {
+                logger.error("Failed to read queued async MDN " + file.getAbsolutePath() + " - it will not be sent", e);
+                markFailed(file);
+            }
+        }
+        if (recovered > 0) {
+            logger.info("Queued " + recovered + " async MDN(s) left in " + queueDir.getAbsolutePath());
+        }
+    }
+
+    private synchronized void add(QueuedMdn entry) {
+        UrlQueue queue = queues.get(entry.url);
+        if (queue == null) {
+            queue = new UrlQueue(entry.url);
+            queues.put(entry.url, queue);
+        }
+        queue.entries.add(entry);
+        queued++;
+        drain(queue);
+    }
+
+    private synchronized void drain(final UrlQueue queue) {
+        if (executor == null) {
+            return;
+        }
+        // Probe a failing URL with one MDN at a time
+        int limit = queue.failures > 0 ? 1 : maxPerUrl;
+        while (queue.inFlight < limit && !queue.entries.isEmpty()) {
+            long wait = queue.notBefore - System.currentTimeMillis();
+            if (wait > 0) {
+                if (!queue.wakeScheduled) {
+                    queue.wakeScheduled = true;
+                    executor.schedule(new Runnable() {
+                        public void run() {
+                            synchronized (AsyncMdnDispatcher.this) {
+                                queue.wakeScheduled = false;
+                                drain(queue);
+                            }
+                        }
+                    }, wait, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            final QueuedMdn entry = queue.entries.poll();
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        send(queue, entry);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down so leave it in the queue directory for the next start
+                queue.entries.addFirst(entry);
+                return;
+            }
+            queued--;
+            queue.inFlight++;
+            inFlight++;
+        }
+    }
+
+    private void send(UrlQueue queue, QueuedMdn entry) {
+        boolean ok = false;
+        AS2Message msg = null;
+        try {
+            msg = entry.load();
+        } catch (Exception e) {
+            logger.error("Failed to read queued async MDN for " + entry.url + " - it will not be sent", e);
+            if (entry.file != null) {
+                markFailed(entry.file);
+            }
+        }
+        if (msg != null) {
+            try {
+                ok = sender.send(msg, entry.url);
+            } catch (Exception e) {
+                logger.error("Failed to send async MDN to " + entry.url + msg.getLogMsgID(), e);
+            }
+            // Sent or handed to the resender so the queue is done with it either way
+            if (entry.file != null && !entry.file.delete() && entry.file.exists()) {
+                logger.warn("Failed to remove the queued async MDN file " + entry.file.getAbsolutePath());
+            }
+        }
+        finished(queue, ok);
+    }
+
+    private synchronized void finished(UrlQueue queue, boolean ok) {
+        queue.inFlight--;
+        inFlight--;
+        if (ok) {
+            sent++;
+            queue.failures = 0;
+            queue.notBefore = 0;
+        } else {
+            failed++;
+            queue.failures++;
+            long wait = backoffMillis << Math.min(queue.failures - 1, 20);
+            queue.notBefore = System.currentTimeMillis() + Math.min(wait, maxBackoffMillis);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Async MDNs to " + queue.url + " wait " + Math.min(wait, maxBackoffMillis) + "ms after " + queue.failures + " failed send(s)");
+            }
+        }
+        drain(queue);
+        if (queue.entries.isEmpty() && queue.inFlight == 0 && queue.failures == 0) {
+            queues.remove(queue.url);
+        }
+    }
+
+    private void markFailed(File file) {
+        if (!file.renameTo(new File(file.getPath() + FAILED_FILE_EXTENSION))) {
+            logger.warn("Failed to rename unreadable async MDN file " + file.getAbsolutePath());
+        }
+    }
+
+    private static byte[] serialize(AS2Message msg, String url) throws OpenAS2Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (Map.Entry<String, Object> option : msg.getOptions().entrySet()) {
+            if (option.getValue() instanceof String) {
+                options.put(option.getKey(), (String) option.getValue());
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // The payload may be large or disposed of when the receiver finishes and is not needed for the MDN
+        MimeBodyPart data = msg.getData();
+        msg.setData(null, null);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(url);
+            out.writeObject(msg);
+            out.writeObject(options);
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Failed to queue the async MDN" + msg.getLogMsgID(), e);
+        } finally {
+            msg.setData(data, null);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class UrlQueue {
+        private final String url;
+        private final Deque<QueuedMdn> entries = new ArrayDeque<QueuedMdn>();
+        private int inFlight;
+        private int failures;
+        private long notBefore;
+        private boolean wakeScheduled;
+
+        UrlQueue(String url) {
+            this.url = url;
+        }
+    }
+
+    private static class QueuedMdn {
+        private final String url;
+        private final File file;
+        private final byte[] content;
+
+        QueuedMdn(String url, File file, byte[] content) {
+            this.url = url;
+            this.file = file;
+            this.content = content;
+        }
+
+        @SuppressWarnings("unchecked")
+        AS2Message load() throws Exception {
+            InputStream source = file == null ? new ByteArrayInputStream(content) : new FileInputStream(file);
+            try (ObjectInputStream in = new ObjectInputStream(source)) {
+                in.readObject();
+                AS2Message msg = (AS2Message) in.readObject();
+                Map<String, String> options = (Map<String, String>) in.readObject();
+                for (Map.Entry<String, String> option : options.entrySet()) {
+                    msg.setOption(option.getKey(), option.getValue());
+                }
+                return msg;
+            }
+        }
+    }
+}
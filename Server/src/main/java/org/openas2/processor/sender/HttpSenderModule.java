@@ -4,7 +4,10 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
+import org.openas2.params.InvalidParameterException;
 import org.openas2.util.HTTPUtil;
+import org.openas2.util.HttpClientPool;
 
 public abstract class HttpSenderModule extends BaseSenderModule {
 
@@ -12,8 +15,44 @@ public abstract class HttpSenderModule extends BaseSenderModule {
     public static final String PARAM_CONNECT_TIMEOUT = "connecttimeout";
     public static final String PARAM_SOCKET_TIMEOUT = "sockettimeout";
 
+    private HttpClientPool connectionPool = null;
+
     // private Log logger = LogFactory.getLog(HttpSenderModule.class.getSimpleName());
 
+    @Override
+    public void init(Session session, Map<String, String> options) throws OpenAS2Exception {
+        super.init(session, options);
+        if ("true".equalsIgnoreCase(getParameter(HttpClientPool.PARAM_POOL_ENABLED, "false"))) {
+            int maxTotal = getParameterInt(HttpClientPool.PARAM_POOL_MAX_TOTAL, false, 50);
+            int maxPerRoute = getParameterInt(HttpClientPool.PARAM_POOL_MAX_PER_ROUTE, false, 5);
+            int idleTimeout = getParameterInt(HttpClientPool.PARAM_POOL_IDLE_TIMEOUT, false, 60);
+            int validateAfter = getParameterInt(HttpClientPool.PARAM_POOL_VALIDATE_AFTER_INACTIVITY, false, 2000);
+            if (maxTotal < 1) {
+                throw new InvalidParameterException("Must be greater than zero.", this, HttpClientPool.PARAM_POOL_MAX_TOTAL, "" + maxTotal);
+            }
+            if (maxPerRoute < 1) {
+                throw new InvalidParameterException("Must be greater than zero.", this, HttpClientPool.PARAM_POOL_MAX_PER_ROUTE, "" + maxPerRoute);
+            }
+            connectionPool = HttpClientPool.acquire(maxTotal, maxPerRoute, idleTimeout, validateAfter);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (connectionPool != null) {
+            connectionPool.release();
+            connectionPool = null;
+        }
+        super.destroy();
+    }
+
+    /**
+     * @return The keep-alive connection pool shared with other HTTP sender modules or null if pooling is not enabled
+     */
+    public HttpClientPool getConnectionPool() {
+        return connectionPool;
+    }
+
     public Map<String, String> getHttpOptions() throws OpenAS2Exception {
         Map<String, String> options = new HashMap<String, String>();
         options.put(HTTPUtil.PARAM_READ_TIMEOUT, getParameter(PARAM_READ_TIMEOUT, "60000"));
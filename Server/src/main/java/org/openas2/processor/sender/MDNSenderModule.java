@@ -4,14 +4,17 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.protocol.HTTP;
 import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
 import org.openas2.WrappedException;
 import org.openas2.message.AS2Message;
 import org.openas2.message.AS2MessageMDN;
 import org.openas2.message.Message;
 import org.openas2.message.MessageMDN;
+import org.openas2.params.InvalidParameterException;
 import org.openas2.processor.msgtracking.BaseMsgTrackingModule.FIELDS;
 import org.openas2.processor.resender.ResenderModule;
 import org.openas2.processor.storage.StorageModule;
+import org.openas2.schedule.HasSchedule;
 import org.openas2.util.AS2Util;
 import org.openas2.util.DispositionType;
 import org.openas2.util.HTTPUtil;
@@ -22,18 +25,30 @@ import javax.mail.internet.MimeBodyPart;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 
-public class MDNSenderModule extends HttpSenderModule {
+public class MDNSenderModule extends HttpSenderModule implements HasSchedule {
 
     public static final String MDN_TYPE_OPT = "mdn-type-option";
     public static final String MDN_TYPE_VAL_SYNC = "Synchronous";
     public static final String MDN_TYPE_VAL_ASYNC = "Asynchronous";
 
+    // Directory to keep queued async MDNs in so they survive a restart. Queued in memory only if not set
+    public static final String PARAM_ASYNC_MDN_QUEUE_DIR = "async_mdn_queue_dir";
+    // Number of async MDNs sent at the same time. 0 sends them on the thread that received the message
+    public static final String PARAM_ASYNC_MDN_THREADS = "async_mdn_threads";
+    public static final String PARAM_ASYNC_MDN_MAX_PER_URL = "async_mdn_max_per_url";
+    public static final String PARAM_ASYNC_MDN_BACKOFF = "async_mdn_backoff_secs";
+    public static final String PARAM_ASYNC_MDN_MAX_BACKOFF = "async_mdn_max_backoff_secs";
+
+    private AsyncMdnDispatcher asyncMdnDispatcher;
+
     private Log logger = LogFactory.getLog(MDNSenderModule.class.getSimpleName());
 
     /** TODO: Remove this when module config enforces setting the action so that the super method does all the work
@@ -47,6 +62,56 @@ public class MDNSenderModule extends HttpSenderModule {
        return action;
    }
 
+    @Override
+    public void init(Session session, Map<String, String> options) throws OpenAS2Exception {
+        super.init(session, options);
+        int threads = getParameterInt(PARAM_ASYNC_MDN_THREADS, false, 4);
+        if (threads > 0) {
+            String queueDir = getParameter(PARAM_ASYNC_MDN_QUEUE_DIR, false);
+            int maxPerUrl = getParameterInt(PARAM_ASYNC_MDN_MAX_PER_URL, false, 2);
+            if (maxPerUrl < 1) {
+                throw new InvalidParameterException("Must be greater than zero.", this, PARAM_ASYNC_MDN_MAX_PER_URL, "" + maxPerUrl);
+            }
+            long backoff = getParameterInt(PARAM_ASYNC_MDN_BACKOFF, false, 5) * 1000L;
+            long maxBackoff = getParameterInt(PARAM_ASYNC_MDN_MAX_BACKOFF, false, 300) * 1000L;
+            asyncMdnDispatcher = new AsyncMdnDispatcher(queueDir == null ? null : new File(queueDir), maxPerUrl, backoff, maxBackoff, new AsyncMdnDispatcher.MdnSender() {
+                @Override
+                public boolean send(AS2Message msg, String url) throws Exception {
+                    return sendQueuedMDN(msg, url);
+                }
+            });
+            asyncMdnDispatcher.start(threads, getName() + "-async");
+        }
+    }
+
+    @Override
+    public void schedule(ScheduledExecutorService executor) throws OpenAS2Exception {
+        // Send MDNs queued before a restart once all the modules they need are loaded
+        if (asyncMdnDispatcher != null) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    asyncMdnDispatcher.recover();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (asyncMdnDispatcher != null) {
+            asyncMdnDispatcher.stop();
+        }
+        super.destroy();
+    }
+
+    /**
+     * @return the number of async MDNs queued and being sent and the totals sent and failed or null if async MDNs
+     * are sent on the thread that received the message
+     */
+    public Map<String, Long> getAsyncMdnStats() {
+        return asyncMdnDispatcher == null ? null : asyncMdnDispatcher.getStats();
+    }
+
     public boolean canHandle(String action, Message msg, Map<String, Object> options) {
         if (!super.canHandle(action, msg, options)) {
             return false;
@@ -84,6 +149,16 @@ public class MDNSenderModule extends HttpSenderModule {
                 // Not sure of best action here. For now just ignore and try to send MDN.
                 e.printStackTrace();
             }
+            if (!isResend && asyncMdnDispatcher != null) {
+                // Store options on the message object so they are queued with it
+                msg.getOptions().putAll(options);
+                if (asyncMdnDispatcher.enqueue((AS2Message) msg, ((AS2Message) msg).getAsyncMDNurl())) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Queued async MDN for " + ((AS2Message) msg).getAsyncMDNurl() + msg.getLogMsgID());
+                    }
+                    return;
+                }
+            }
             if (logger.isTraceEnabled()) {
                 logger.trace("Calling asynch MDN sender....");
             }
@@ -122,6 +197,10 @@ public class MDNSenderModule extends HttpSenderModule {
                 }
             }
         }
+        storeSentMDN(msg, disposition);
+    }
+
+    private void storeSentMDN(Message msg, DispositionType disposition) throws OpenAS2Exception {
         // Save sent MDN for later examination
         getSession().getProcessor().handle(StorageModule.DO_STOREMDN, msg, null);
         if (logger.isInfoEnabled()) {
@@ -129,6 +208,22 @@ public class MDNSenderModule extends HttpSenderModule {
         }
     }
 
+    /**
+     * Sends an MDN taken from the async MDN queue.
+     *
+     * @return true if the MDN was sent or false if it failed and was handed to the resender
+     */
+    boolean sendQueuedMDN(AS2Message msg, String url) throws OpenAS2Exception {
+        MessageMDN mdn = msg.getMDN();
+        DispositionType disposition = new DispositionType(mdn.getAttribute(AS2MessageMDN.MDNA_DISPOSITION));
+        Map<String, Object> options = new HashMap<String, Object>(msg.getOptions());
+        if (!sendAsyncMDN(mdn, url, disposition, options)) {
+            return false;
+        }
+        storeSentMDN(msg, disposition);
+        return true;
+    }
+
     private boolean sendAsyncMDN(MessageMDN mdn, String url, DispositionType disposition, Map<String, Object> options) throws OpenAS2Exception {
 
         AS2Message msg = (AS2Message) mdn.getMessage();
@@ -160,7 +255,7 @@ public class MDNSenderModule extends HttpSenderModule {
             // make sure to set the content-length header to avoid transferring as chunked which some AS2 software implementations do not support
             mdn.setHeader(HTTP.CONTENT_LEN, Integer.toString(data.length));
             boolean preventChunking = msg.getPartnership().isPreventChunking(false);
-            ResponseWrapper resp = HTTPUtil.execRequest(HTTPUtil.Method.POST, url, mdn.getHeaders(), null, new ByteArrayInputStream(data), httpOptions, maxSize, preventChunking);
+            ResponseWrapper resp = HTTPUtil.execRequest(HTTPUtil.Method.POST, url, mdn.getHeaders(), null, new ByteArrayInputStream(data), httpOptions, maxSize, preventChunking, getConnectionPool());
 
             int respCode = resp.getStatusCode();
             // Check the HTTP Response code
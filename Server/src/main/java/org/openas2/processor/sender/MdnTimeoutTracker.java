@@ -0,0 +1,153 @@
+package org.openas2.processor.sender;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openas2.OpenAS2Exception;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires a timeout for each sent message whose MDN has not arrived by its deadline.
+ * <p>
+ * The outstanding messages and their deadlines come from the deadline ordered index of the
+ * {@link PendingMdnStore}, which is rebuilt from disk when the store is opened, so messages sent before a
+ * restart still time out. Only one task is ever scheduled: it wakes at the earliest deadline, hands every
+ * overdue message to the handler and schedules itself for the next deadline. A new message with an
+ * earlier deadline than the one waited for moves the task forward.
+ */
+public class MdnTimeoutTracker {
+    /**
+     * Decides what happens to a message whose MDN did not arrive in time. The handler is expected to remove
+     * the pending MDN information or replace it with a later deadline.
+     */
+    public interface TimeoutHandler {
+        void mdnTimedOut(PendingMdnInfo info) throws Exception;
+    }
+
+    private static final long RETRY_DELAY_MILLIS = 60000;
+
+    private final PendingMdnStore store;
+    private final ScheduledExecutorService executor;
+    private final TimeoutHandler handler;
+    private ScheduledFuture<?> future;
+    private long scheduledDeadline = Long.MAX_VALUE;
+    private boolean running;
+    private long timeouts;
+
+    private Log logger = LogFactory.getLog(MdnTimeoutTracker.class.getSimpleName());
+
+    public MdnTimeoutTracker(PendingMdnStore store, ScheduledExecutorService executor, TimeoutHandler handler) {
+        this.store = store;
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts waiting for the earliest deadline in the store. Messages already overdue time out straight away.
+     */
+    public synchronized void start() {
+        running = true;
+        scheduleNext(0);
+        if (logger.isInfoEnabled()) {
+            logger.info("Tracking " + store.size() + " outstanding MDN(s): " + store.getOutstandingCounts());
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        scheduledDeadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * Makes sure a newly stored deadline fires on time.
+     *
+     * @param deadline the time in milliseconds the MDN is expected by
+     */
+    public synchronized void track(long deadline) {
+        if (running && deadline < scheduledDeadline) {
+            schedule(deadline);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting for an MDN keyed by the AS2 ID of the partner they were sent to
+     */
+    public Map<String, Long> getOutstandingCounts() {
+        return store.getOutstandingCounts();
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeouts;
+    }
+
+    private void schedule(long deadline) {
+        if (future != null) {
+            future.cancel(false);
+        }
+        scheduledDeadline = deadline;
+        long delay = Math.max(0, deadline - System.currentTimeMillis());
+        future = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fireTimeouts();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void scheduleNext(long notBefore) {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        scheduledDeadline = Long.MAX_VALUE;
+        long next = store.getNextDeadline();
+        if (running && next != Long.MAX_VALUE) {
+            schedule(Math.max(next, notBefore));
+        }
+    }
+
+    private void fireTimeouts() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+        }
+        long now = System.currentTimeMillis();
+        long notBefore = 0;
+        try {
+            List<PendingMdnInfo> expired = store.getExpired(now);
+            for (PendingMdnInfo info : expired) {
+                try {
+                    handler.mdnTimedOut(info);
+                } catch (Throwable t) {
+                    logger.error("Failed to handle MDN timeout for message " + info.getMessageId(), t);
+                }
+                synchronized (this) {
+                    timeouts++;
+                }
+                // Never leave an overdue entry behind or it would time out again straight away
+                PendingMdnInfo remaining = store.get(info.getMessageId());
+                if (remaining != null && remaining.getDeadline() <= now) {
+                    logger.warn("Discarding pending MDN information left behind by the timeout handling for message " + info.getMessageId());
+                    store.remove(info.getMessageId());
+                }
+            }
+            if (!expired.isEmpty() && logger.isDebugEnabled()) {
+                logger.debug(expired.size() + " MDN timeout(s) handled. Outstanding MDNs: " + store.getOutstandingCounts());
+            }
+        } catch (OpenAS2Exception e) {
+            logger.error("Failed to read overdue pending MDN information. Trying again in " + RETRY_DELAY_MILLIS / 1000 + " seconds.", e);
+            notBefore = now + RETRY_DELAY_MILLIS;
+        } finally {
+            scheduleNext(notBefore);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.openas2.processor.sender;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openas2.OpenAS2Exception;
+import org.openas2.partner.Partnership;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Controls how many messages are sent to each partner at the same time and how quickly.
+ * <p>
+ * Every send first takes a permit for the partnership, or for the partner URL when
+ * {@link Partnership#PA_SEND_LIMIT_SCOPE} is "url", and waits while the partner is at its limits:
+ * <ul>
+ * <li>{@link Partnership#PA_SEND_MAX_CONCURRENCY} caps the number of requests in flight.</li>
+ * <li>{@link Partnership#PA_SEND_RATE_LIMIT} and {@link Partnership#PA_SEND_RATE_BURST} configure a token
+ * bucket limiting the number of requests started per second.</li>
+ * <li>{@link Partnership#PA_SEND_ADAPTIVE_CONCURRENCY} lowers the concurrency limit when the partner shows it is
+ * overloaded. The limit is halved on a 5xx or 429 response or a timeout and grows back by one after a full
+ * limit's worth of successful sends, up to the configured maximum.</li>
+ * </ul>
+ * A send that cannot start within {@link Partnership#PA_SEND_ADMISSION_TIMEOUT} seconds fails so the message is
+ * handed to the resender. The limits are read from the partnership on every send so changes take effect
+ * without a restart. Partnerships without any limit configured are not tracked at all.
+ */
+public class PartnerSendLimiter {
+    public static final String SCOPE_URL = "url";
+    public static final int DEFAULT_ADMISSION_TIMEOUT = 300;
+
+    private final ConcurrentMap<String, PartnerState> states = new ConcurrentHashMap<String, PartnerState>();
+
+    private Log logger = LogFactory.getLog(PartnerSendLimiter.class.getSimpleName());
+
+    /**
+     * Waits until the partner can take another request.
+     *
+     * @param partnership the partnership the message is sent with
+     * @param url         the URL the message is sent to
+     * @return the permit to release once the response has been received
+     * @throws OpenAS2Exception the send could not start in time or the thread was interrupted
+     */
+    public Permit acquire(Partnership partnership, String url) throws OpenAS2Exception {
+        Limits limits = new Limits(partnership);
+        if (!limits.isLimited()) {
+            return Permit.UNLIMITED;
+        }
+        String key = SCOPE_URL.equalsIgnoreCase(partnership.getAttributeOrProperty(Partnership.PA_SEND_LIMIT_SCOPE, null)) ? url : partnership.getName();
+        PartnerState state = states.get(key);
+        if (state == null) {
+            states.putIfAbsent(key, new PartnerState());
+            state = states.get(key);
+        }
+        boolean throttled;
+        try {
+            throttled = state.acquire(limits, System.currentTimeMillis() + limits.admissionTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OpenAS2Exception("Interrupted waiting to send to partner: " + key);
+        }
+        if (throttled && logger.isDebugEnabled()) {
+            logger.debug("Send to partner " + key + " was held back by its limits: " + state.getStats());
+        }
+        return new Permit(state);
+    }
+
+    /**
+     * @return the number of sends waiting for each partner keyed by partnership name or URL
+     */
+    public Map<String, Long> getQueueDepths() {
+        Map<String, Long> depths = new HashMap<String, Long>();
+        for (Map.Entry<String, PartnerState> entry : states.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().getStats().get("queued"));
+        }
+        return depths;
+    }
+
+    /**
+     * @return the current limits and counters for each partner keyed by partnership name or URL
+     */
+    public Map<String, Map<String, Long>> getStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+        for (Map.Entry<String, PartnerState> entry : states.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Admission to send one request. Must be released exactly once with the outcome of the request.
+     */
+    public static class Permit {
+        static final Permit UNLIMITED = new Permit(null);
+
+        private final PartnerState state;
+        private boolean released;
+
+        Permit(PartnerState state) {
+            this.state = state;
+        }
+
+        /**
+         * @param overloaded true if the partner answered with a 5xx or 429 status or did not answer in time
+         */
+        public void release(boolean overloaded) {
+            if (state != null && !released) {
+                released = true;
+                state.release(overloaded);
+            }
+        }
+    }
+
+    static class Limits {
+        final int maxConcurrency;
+        final double ratePerSecond;
+        final double burst;
+        final boolean adaptive;
+        final long admissionTimeoutMillis;
+
+        Limits(Partnership partnership) throws OpenAS2Exception {
+            maxConcurrency = (int) getNumber(partnership, Partnership.PA_SEND_MAX_CONCURRENCY, 0);
+            ratePerSecond = getNumber(partnership, Partnership.PA_SEND_RATE_LIMIT, 0);
+            burst = Math.max(1, getNumber(partnership, Partnership.PA_SEND_RATE_BURST, Math.ceil(ratePerSecond)));
+            adaptive = "true".equalsIgnoreCase(partnership.getAttributeOrProperty(Partnership.PA_SEND_ADAPTIVE_CONCURRENCY, "false"));
+            admissionTimeoutMillis = (long) (getNumber(partnership, Partnership.PA_SEND_ADMISSION_TIMEOUT, DEFAULT_ADMISSION_TIMEOUT) * 1000);
+        }
+
+        boolean isLimited() {
+            return maxConcurrency > 0 || ratePerSecond > 0 || adaptive;
+        }
+
+        private static double getNumber(Partnership partnership, String name, double defaultValue) throws OpenAS2Exception {
+            String value = partnership.getAttributeOrProperty(name, null);
+            if (value == null || value.trim().length() == 0) {
+                return defaultValue;
+            }
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                throw new OpenAS2Exception("Invalid value for partnership attribute " + name + ": " + value);
+            }
+        }
+    }
+
+    static class PartnerState {
+        private int maxConcurrency = Integer.MAX_VALUE;
+        private boolean adaptive;
+        private int limit = Integer.MAX_VALUE;
+        private int successesSinceIncrease;
+        private int active;
+        private int queued;
+        private double tokens = -1;
+        private long lastRefill;
+        private long admitted;
+        private long timedOut;
+        private long backoffs;
+
+        /**
+         * @return true if the send had to wait
+         */
+        synchronized boolean acquire(Limits limits, long deadline) throws InterruptedException, OpenAS2Exception {
+            configure(limits);
+            boolean throttled = false;
+            queued++;
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    long wait;
+                    if (active >= limit) {
+                        wait = deadline - now;
+                    } else {
+                        wait = takeToken(limits, now);
+                        if (wait == 0) {
+                            active++;
+                            admitted++;
+                            return throttled;
+                        }
+                        wait = Math.min(wait, deadline - now);
+                    }
+                    if (now >= deadline) {
+                        timedOut++;
+                        throw new OpenAS2Exception("Timed out after " + limits.admissionTimeoutMillis / 1000 + " seconds waiting for the partner send limits to allow another message: " + getStats());
+                    }
+                    throttled = true;
+                    wait(Math.max(1, wait));
+                    configure(limits);
+                }
+            } finally {
+                queued--;
+            }
+        }
+
+        synchronized void release(boolean overloaded) {
+            int inFlight = active;
+            active--;
+            if (adaptive) {
+                if (overloaded) {
+                    // Multiplicative decrease from what was actually in flight when the partner struggled
+                    limit = Math.max(1, Math.min(limit, inFlight) / 2);
+                    successesSinceIncrease = 0;
+                    backoffs++;
+                } else if (limit < maxConcurrency && ++successesSinceIncrease >= limit) {
+                    limit++;
+                    successesSinceIncrease = 0;
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized Map<String, Long> getStats() {
+            Map<String, Long> stats = new HashMap<String, Long>();
+            stats.put("active", (long) active);
+            stats.put("queued", (long) queued);
+            stats.put("limit", limit == Integer.MAX_VALUE ? -1L : limit);
+            stats.put("maxConcurrency", maxConcurrency == Integer.MAX_VALUE ? -1L : maxConcurrency);
+            stats.put("admitted", admitted);
+            stats.put("timedOut", timedOut);
+            stats.put("backoffs", backoffs);
+            return stats;
+        }
+
+        private void configure(Limits limits) {
+            int max = limits.maxConcurrency > 0 ? limits.maxConcurrency : Integer.MAX_VALUE;
+            if (max != maxConcurrency || limits.adaptive != adaptive) {
+                maxConcurrency = max;
+                adaptive = limits.adaptive;
+                limit = max;
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return 0 if a token was taken or the milliseconds until the next token is available
+         */
+        private long takeToken(Limits limits, long now) {
+            if (limits.ratePerSecond <= 0) {
+                return 0;
+            }
+            if (tokens < 0) {
+                tokens = limits.burst;
+            } else {
+                tokens = Math.min(limits.burst, tokens + (now - lastRefill) * limits.ratePerSecond / 1000);
+            }
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 1000 / limits.ratePerSecond);
+        }
+    }
+}
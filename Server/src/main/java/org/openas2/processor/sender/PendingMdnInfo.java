@@ -0,0 +1,177 @@
+package org.openas2.processor.sender;
+
+import org.openas2.message.AS2Message;
+import org.openas2.message.FileAttribute;
+import org.openas2.partner.Partnership;
+import org.openas2.processor.resender.ResenderModule;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What needs to be known about a sent message to process its MDN: the MIC to compare, the retry count and
+ * where the files go once the MDN arrives or the wait for it times out.
+ */
+public class PendingMdnInfo {
+    private String messageId;
+    private long createdAt;
+    private long deadline;
+    private String mic;
+    private int retries;
+    private String payloadFilename;
+    private String filename;
+    private String pendingFile;
+    private String errorDir;
+    private String sentDir;
+    private String senderId;
+    private String receiverId;
+    private Map<String, String> attributes = new HashMap<String, String>();
+
+    /**
+     * Captures the pending information of a message that is about to be sent.
+     *
+     * @param msg      the message
+     * @param deadline the time in milliseconds after which the MDN is no longer expected
+     * @return the pending information
+     */
+    public static PendingMdnInfo fromMessage(AS2Message msg, long deadline) {
+        PendingMdnInfo info = new PendingMdnInfo();
+        info.messageId = msg.getMessageID();
+        info.createdAt = System.currentTimeMillis();
+        info.deadline = deadline;
+        info.mic = msg.getCalculatedMIC();
+        info.retries = Integer.parseInt((String) msg.getOption(ResenderModule.OPTION_RETRIES));
+        info.payloadFilename = msg.getPayloadFilename();
+        info.filename = msg.getAttribute(FileAttribute.MA_FILENAME);
+        info.pendingFile = msg.getAttribute(FileAttribute.MA_PENDINGFILE);
+        info.errorDir = msg.getAttribute(FileAttribute.MA_ERROR_DIR);
+        String sentDir = msg.getAttribute(FileAttribute.MA_SENT_DIR);
+        info.sentDir = sentDir == null ? "" : sentDir;
+        if (msg.getPartnership() != null) {
+            info.senderId = msg.getPartnership().getSenderID(Partnership.PID_AS2);
+            info.receiverId = msg.getPartnership().getReceiverID(Partnership.PID_AS2);
+        }
+        info.attributes = new HashMap<String, String>(msg.getAttributes());
+        return info;
+    }
+
+    /**
+     * Restores the pending information into a message being processed for its MDN.
+     *
+     * @param msg the message
+     */
+    public void applyTo(AS2Message msg) {
+        msg.setCalculatedMIC(mic);
+        msg.setOption(ResenderModule.OPTION_RETRIES, "" + retries);
+        msg.setPayloadFilename(payloadFilename);
+        msg.setAttribute(FileAttribute.MA_FILENAME, filename);
+        msg.setAttribute(FileAttribute.MA_PENDINGFILE, pendingFile);
+        msg.setAttribute(FileAttribute.MA_ERROR_DIR, errorDir);
+        msg.setAttribute(FileAttribute.MA_SENT_DIR, sentDir);
+        msg.getAttributes().putAll(attributes);
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public String getMic() {
+        return mic;
+    }
+
+    public void setMic(String mic) {
+        this.mic = mic;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public String getPayloadFilename() {
+        return payloadFilename;
+    }
+
+    public void setPayloadFilename(String payloadFilename) {
+        this.payloadFilename = payloadFilename;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public String getPendingFile() {
+        return pendingFile;
+    }
+
+    public void setPendingFile(String pendingFile) {
+        this.pendingFile = pendingFile;
+    }
+
+    public String getErrorDir() {
+        return errorDir;
+    }
+
+    public void setErrorDir(String errorDir) {
+        this.errorDir = errorDir;
+    }
+
+    public String getSentDir() {
+        return sentDir;
+    }
+
+    public void setSentDir(String sentDir) {
+        this.sentDir = sentDir;
+    }
+
+    public String getSenderId() {
+        return senderId;
+    }
+
+    public void setSenderId(String senderId) {
+        this.senderId = senderId;
+    }
+
+    public String getReceiverId() {
+        return receiverId;
+    }
+
+    public void setReceiverId(String receiverId) {
+        this.receiverId = receiverId;
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(Map<String, String> attributes) {
+        this.attributes = attributes;
+    }
+}
@@ -0,0 +1,596 @@
+package org.openas2.processor.sender;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openas2.OpenAS2Exception;
+import org.openas2.message.AS2Message;
+import org.openas2.util.AS2Util;
+import org.openas2.util.IOUtil;
+import org.openas2.util.Properties;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the pending MDN information of sent messages in a single append-only log file in the pending MDN
+ * information directory instead of a Java serialised file per message.
+ * <p>
+ * Each change is appended as a length prefixed, checksummed record. An in-memory index of the live records
+ * is rebuilt from the log when the store is opened so a lookup is one positional read. Records are keyed
+ * by the message ID without angle brackets so an MDN quoting the ID with or without them finds the record.
+ * The index is also ordered by the deadline for the MDN so stale entries are found without listing or
+ * reading anything. The log is rewritten with only the live records once most of it is superseded.
+ * Records are not forced to disk one by one unless the pending_mdn_store_sync_writes property is true since
+ * every put and remove holds the store while it waits for the disk.
+ * <p>
+ * Pending information files written by earlier versions are imported into the log when the store is opened.
+ */
+public class PendingMdnStore {
+    public static final String LOG_FILE_NAME = "pending-mdn.log";
+    public static final String PROP_SYNC_WRITES = "pending_mdn_store_sync_writes";
+    public static final String UNKNOWN_PARTNER = "unknown";
+
+    private static final byte[] MAGIC = "OAS2PMDN".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 4;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte PUT_RECORD_VERSION = 1;
+    // Length, type and checksum around each payload
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    private static final long MIN_COMPACT_BYTES = 4 * 1024 * 1024;
+
+    private static final Map<String, PendingMdnStore> stores = new HashMap<String, PendingMdnStore>();
+
+    private final File directory;
+    private final File logFile;
+    private final boolean syncWrites;
+    private final Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+    private final TreeSet<IndexEntry> deadlines = new TreeSet<IndexEntry>();
+    private FileChannel channel;
+    private long logEnd;
+    private long deadBytes;
+    private long compactions;
+
+    private Log logger = LogFactory.getLog(PendingMdnStore.class.getSimpleName());
+
+    /**
+     * @param directory the pending MDN information directory
+     * @return the store for the directory, opened on first use
+     * @throws OpenAS2Exception if the log cannot be opened
+     */
+    public static PendingMdnStore forDirectory(String directory) throws OpenAS2Exception {
+        File dir;
+        String storeKey;
+        try {
+            dir = IOUtil.getDirectoryFile(directory);
+            storeKey = dir.getCanonicalPath();
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Failed to access the pending MDN information directory: " + directory, e);
+        }
+        synchronized (stores) {
+            PendingMdnStore store = stores.get(storeKey);
+            if (store == null) {
+                store = new PendingMdnStore(dir, "true".equalsIgnoreCase(Properties.getProperty(PROP_SYNC_WRITES, "false")));
+                store.open();
+                stores.put(storeKey, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Removes the record a message's pending information attribute points at.
+     *
+     * @param locator the value of the pending information attribute as returned by {@link #getLocator(String)}
+     * @return true if there was a record to remove
+     * @throws OpenAS2Exception if the log cannot be written
+     */
+    public static boolean removeByLocator(String locator) throws OpenAS2Exception {
+        File location = new File(locator);
+        return forDirectory(location.getParent()).remove(location.getName());
+    }
+
+    /**
+     * @param messageId the message ID with or without angle brackets
+     * @return the key the record is stored under
+     */
+    public static String toKey(String messageId) {
+        return IOUtil.cleanFilename(messageId.trim().replaceAll("^<([^>]+)>$", "$1"));
+    }
+
+    /**
+     * @param fromMillis the time the message was sent
+     * @return the time after which the MDN for the message is no longer expected
+     */
+    public static long getDeadline(long fromMillis) {
+        long maxWaitSecs = Long.parseLong(Properties.getProperty(Properties.AS2_MDN_RESP_MAX_WAIT_SECS, "4560"));
+        return fromMillis + maxWaitSecs * 1000;
+    }
+
+    PendingMdnStore(File directory, boolean syncWrites) {
+        this.directory = directory;
+        this.logFile = new File(directory, LOG_FILE_NAME);
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * @param messageId the message ID
+     * @return the value to keep in the message's pending information attribute to find the record again
+     */
+    public String getLocator(String messageId) {
+        return new File(directory, toKey(messageId)).getPath();
+    }
+
+    /**
+     * Stores the pending information, replacing any earlier record for the same message ID.
+     */
+    public synchronized void put(PendingMdnInfo info) throws OpenAS2Exception {
+        String key = toKey(info.getMessageId());
+        try {
+            long offset = append(TYPE_PUT, encode(key, info));
+            IndexEntry replaced = index.remove(key);
+            if (replaced != null) {
+                deadlines.remove(replaced);
+                deadBytes += replaced.length;
+            }
+            IndexEntry entry = new IndexEntry(key, offset, (int) (logEnd - offset), info.getDeadline(), info.getReceiverId());
+            index.put(key, entry);
+            deadlines.add(entry);
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Failed to store pending MDN information for message " + info.getMessageId() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param messageId the message ID with or without angle brackets
+     * @return the pending information or null if there is none for the message
+     */
+    public synchronized PendingMdnInfo get(String messageId) throws OpenAS2Exception {
+        IndexEntry entry = index.get(toKey(messageId));
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return read(entry);
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Failed to read pending MDN information for message " + messageId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param messageId the message ID with or without angle brackets
+     * @return true if there was a record to remove
+     */
+    public synchronized boolean remove(String messageId) throws OpenAS2Exception {
+        String key = toKey(messageId);
+        IndexEntry entry = index.get(key);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeString(new DataOutputStream(bytes), key);
+            long offset = append(TYPE_REMOVE, bytes.toByteArray());
+            index.remove(key);
+            deadlines.remove(entry);
+            deadBytes += entry.length + (logEnd - offset);
+            if (deadBytes > MIN_COMPACT_BYTES && deadBytes > logEnd - HEADER_LENGTH - deadBytes) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // The record was removed so keep using the uncompacted log and try again on a later remove
+                    logger.warn("Failed to compact the pending MDN information log: " + logFile.getAbsolutePath(), e);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Failed to remove pending MDN information for message " + messageId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Moves the pending information to a new message ID when a message is resent under a new ID.
+     *
+     * @return true if there was a record to move
+     */
+    public synchronized boolean rename(String oldMessageId, String newMessageId) throws OpenAS2Exception {
+        PendingMdnInfo info = get(oldMessageId);
+        if (info == null) {
+            return false;
+        }
+        info.setMessageId(newMessageId);
+        put(info);
+        remove(oldMessageId);
+        return true;
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return the pending information of the messages whose MDN deadline has passed, oldest deadline first
+     */
+    public synchronized List<PendingMdnInfo> getExpired(long now) throws OpenAS2Exception {
+        List<PendingMdnInfo> expired = new ArrayList<PendingMdnInfo>();
+        for (IndexEntry entry : deadlines) {
+            if (entry.deadline > now) {
+                break;
+            }
+            try {
+                expired.add(read(entry));
+            } catch (IOException e) {
+                throw new OpenAS2Exception("Failed to read pending MDN information for message " + entry.key + ": " + e.getMessage(), e);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return the earliest MDN deadline of all pending messages or Long.MAX_VALUE if nothing is pending
+     */
+    public synchronized long getNextDeadline() {
+        return deadlines.isEmpty() ? Long.MAX_VALUE : deadlines.first().deadline;
+    }
+
+    /**
+     * @return the number of messages waiting for an MDN keyed by the AS2 ID of the partner they were sent to
+     */
+    public synchronized Map<String, Long> getOutstandingCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (IndexEntry entry : index.values()) {
+            Long count = counts.get(entry.partner);
+            counts.put(entry.partner, count == null ? 1L : count + 1);
+        }
+        return counts;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of live records, the size of the log and how much of it is superseded
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("entries", (long) index.size());
+        stats.put("logBytes", logEnd);
+        stats.put("deadBytes", deadBytes);
+        stats.put("compactions", compactions);
+        return stats;
+    }
+
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        synchronized (stores) {
+            stores.values().remove(this);
+        }
+    }
+
+    private void open() throws OpenAS2Exception {
+        try {
+            if (logFile.exists()) {
+                load();
+            } else {
+                channel = new RandomAccessFile(logFile, "rw").getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.put(MAGIC).putInt(FORMAT_VERSION).flip();
+                writeFully(header, 0);
+                channel.force(true);
+                logEnd = HEADER_LENGTH;
+            }
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Failed to open the pending MDN information log: " + logFile.getAbsolutePath(), e);
+        }
+        importLegacyFiles();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Pending MDN information store opened: " + logFile.getAbsolutePath() + " " + getStats());
+        }
+    }
+
+    /**
+     * Rebuilds the index from the log. A torn or corrupt record at the end, left by a crash during a write,
+     * is cut off so later records are appended after the last good one.
+     */
+    private void load() throws IOException, OpenAS2Exception {
+        long position = HEADER_LENGTH;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 65536))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new OpenAS2Exception("Not a pending MDN information log: " + logFile.getAbsolutePath());
+            }
+            int version = in.readInt();
+            if (version > FORMAT_VERSION) {
+                throw new OpenAS2Exception("Pending MDN information log " + logFile.getAbsolutePath() + " was written by a newer version. Format version: " + version);
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    logger.warn("Invalid record length " + length + " in pending MDN information log at offset " + position + ". Discarding the rest of the log.");
+                    break;
+                }
+                byte type;
+                byte[] payload = new byte[length];
+                int checksum;
+                try {
+                    type = in.readByte();
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    logger.warn("Incomplete record in pending MDN information log at offset " + position + ". Discarding it.");
+                    break;
+                }
+                if (checksum != checksum(type, payload)) {
+                    logger.warn("Corrupt record in pending MDN information log at offset " + position + ". Discarding the rest of the log.");
+                    break;
+                }
+                String key = readString(new DataInputStream(new ByteArrayInputStream(payload)));
+                int recordLength = RECORD_OVERHEAD + length;
+                IndexEntry previous = index.remove(key);
+                if (previous != null) {
+                    deadlines.remove(previous);
+                    deadBytes += previous.length;
+                }
+                if (type == TYPE_PUT) {
+                    PendingMdnInfo info = decode(payload);
+                    IndexEntry entry = new IndexEntry(key, position, recordLength, info.getDeadline(), info.getReceiverId());
+                    index.put(key, entry);
+                    deadlines.add(entry);
+                } else {
+                    deadBytes += recordLength;
+                }
+                position += recordLength;
+            }
+        }
+        channel = new RandomAccessFile(logFile, "rw").getChannel();
+        if (channel.size() > position) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        logEnd = position;
+    }
+
+    /**
+     * Moves pending information files written by earlier versions into the log.
+     */
+    private void importLegacyFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.isFile() || file.getName().startsWith(LOG_FILE_NAME)) {
+                continue;
+            }
+            try {
+                AS2Message msg = new AS2Message();
+                AS2Util.getMetaData(msg, file);
+                msg.setMessageID(file.getName());
+                PendingMdnInfo info = PendingMdnInfo.fromMessage(msg, getDeadline(file.lastModified()));
+                info.setCreatedAt(file.lastModified());
+                put(info);
+                IOUtil.deleteFile(file);
+                if (logger.isInfoEnabled()) {
+                    logger.info("Imported pending MDN information file into the pending MDN log: " + file.getAbsolutePath());
+                }
+            } catch (Exception e) {
+                logger.warn("Failed to import pending MDN information file. It will be left in place: " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmpFile = new File(directory, LOG_FILE_NAME + ".tmp");
+        List<IndexEntry> live = new ArrayList<IndexEntry>(index.values());
+        Map<IndexEntry, Long> newOffsets = new HashMap<IndexEntry, Long>();
+        try (FileChannel out = new RandomAccessFile(tmpFile, "rw").getChannel()) {
+            out.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC).putInt(FORMAT_VERSION).flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            for (IndexEntry entry : live) {
+                newOffsets.put(entry, out.position());
+                long copied = 0;
+                while (copied < entry.length) {
+                    copied += channel.transferTo(entry.offset + copied, entry.length - copied, out);
+                }
+            }
+            out.force(true);
+        }
+        channel.close();
+        boolean replaced = false;
+        try {
+            Files.move(tmpFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            replaced = true;
+        } finally {
+            // Reopen whichever log is in place so the store keeps working if the move failed
+            channel = new RandomAccessFile(logFile, "rw").getChannel();
+            if (!replaced) {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        }
+        logEnd = channel.size();
+        for (Map.Entry<IndexEntry, Long> moved : newOffsets.entrySet()) {
+            moved.getKey().offset = moved.getValue();
+        }
+        deadBytes = 0;
+        compactions++;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Compacted pending MDN information log: " + getStats());
+        }
+    }
+
+    private long append(byte type, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+        record.putInt(payload.length).put(type).put(payload).putInt(checksum(type, payload)).flip();
+        long offset = logEnd;
+        writeFully(record, offset);
+        if (syncWrites) {
+            channel.force(false);
+        }
+        logEnd = offset + record.limit();
+        return offset;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private PendingMdnInfo read(IndexEntry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(entry.length);
+        long position = entry.offset;
+        while (record.hasRemaining()) {
+            int count = channel.read(record, position);
+            if (count < 0) {
+                throw new EOFException("Pending MDN information log ends inside the record for " + entry.key);
+            }
+            position += count;
+        }
+        record.flip();
+        byte[] payload = new byte[record.getInt()];
+        record.get();
+        record.get(payload);
+        return decode(payload);
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(String key, PendingMdnInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, key);
+        out.writeByte(PUT_RECORD_VERSION);
+        writeString(out, info.getMessageId());
+        out.writeLong(info.getCreatedAt());
+        out.writeLong(info.getDeadline());
+        writeString(out, info.getMic());
+        out.writeInt(info.getRetries());
+        writeString(out, info.getPayloadFilename());
+        writeString(out, info.getFilename());
+        writeString(out, info.getPendingFile());
+        writeString(out, info.getErrorDir());
+        writeString(out, info.getSentDir());
+        writeString(out, info.getSenderId());
+        writeString(out, info.getReceiverId());
+        Map<String, String> attributes = info.getAttributes();
+        out.writeInt(attributes.size());
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            writeString(out, attribute.getKey());
+            writeString(out, attribute.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static PendingMdnInfo decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        readString(in);
+        byte version = in.readByte();
+        if (version > PUT_RECORD_VERSION) {
+            throw new IOException("Unsupported pending MDN record version: " + version);
+        }
+        PendingMdnInfo info = new PendingMdnInfo();
+        info.setMessageId(readString(in));
+        info.setCreatedAt(in.readLong());
+        info.setDeadline(in.readLong());
+        info.setMic(readString(in));
+        info.setRetries(in.readInt());
+        info.setPayloadFilename(readString(in));
+        info.setFilename(readString(in));
+        info.setPendingFile(readString(in));
+        info.setErrorDir(readString(in));
+        info.setSentDir(readString(in));
+        info.setSenderId(readString(in));
+        info.setReceiverId(readString(in));
+        int attributeCount = in.readInt();
+        Map<String, String> attributes = new HashMap<String, String>();
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.put(readString(in), readString(in));
+        }
+        info.setAttributes(attributes);
+        return info;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class IndexEntry implements Comparable<IndexEntry> {
+        private final String key;
+        private long offset;
+        private final int length;
+        private final long deadline;
+        private final String partner;
+
+        IndexEntry(String key, long offset, int length, long deadline, String partner) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.deadline = deadline;
+            this.partner = partner == null ? UNKNOWN_PARTNER : partner;
+        }
+
+        @Override
+        public int compareTo(IndexEntry o) {
+            if (deadline != o.deadline) {
+                return deadline < o.deadline ? -1 : 1;
+            }
+            return key.compareTo(o.key);
+        }
+    }
+}
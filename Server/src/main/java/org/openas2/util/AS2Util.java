@@ -19,6 +19,8 @@ import org.openas2.processor.Processor;
 import org.openas2.processor.msgtracking.BaseMsgTrackingModule;
 import org.openas2.processor.receiver.MessageBuilderModule;
 import org.openas2.processor.resender.ResenderModule;
+import org.openas2.processor.sender.PendingMdnInfo;
+import org.openas2.processor.sender.PendingMdnStore;
 import org.openas2.processor.sender.SenderModule;
 import org.openas2.processor.storage.StorageModule;
 
@@ -378,38 +380,30 @@ public class AS2Util {
              * new one for each resend, for backwards compatibility the default is the
              * reverse Systems like Mendelson require a new Message-Id
              */
-            // Resend requires a new Message-Id and we need to update the pendinginfo file
-            // name to match....
-            // The actual file that is pending can remain the same name since it is pointed
-            // to by line in pendinginfo file
+            // Resend requires a new Message-Id so the pending MDN information has to be moved to the new
+            // Message-Id. The actual file that is pending can remain the same name since it is pointed
+            // to by the pending MDN information
             String oldMsgId = msg.getMessageID();
             msg.setAttribute(BaseMsgTrackingModule.FIELDS.PRIOR_MSG_ID, oldMsgId);
-            String oldPendingInfoFileName = msg.getAttribute(FileAttribute.MA_PENDINGINFO);
             String newMsgId = msg.generateMessageID();
-            // Set new Id in Message object so we can generate new file name
+            // Set new Id in Message object
             msg.setMessageID(newMsgId);
             // msg.setHeader("Original-Message-Id", oldMsgId); // Not sure about this so leave out for now
-            String newPendingInfoFileName = buildPendingFileName(msg, session.getProcessor(), "pendingmdninfo");
             if (logger.isDebugEnabled()) {
-                logger.debug("" + "\n        Old Msg Id: " + oldMsgId + "\n        Old Info File: " + oldPendingInfoFileName + "\n        New Info File: " + newPendingInfoFileName + msg.getLogMsgID());
-            }
-            // Update the pending file to new name
-            File oldPendInfFile = new File(oldPendingInfoFileName);
-            File newPendInfFile = new File(newPendingInfoFileName);
-            if (logger.isTraceEnabled()) {
-                logger.trace("Attempting to rename pending info file : " + oldPendInfFile.getName() + " :::: New name: " + newPendInfFile.getName() + msg.getLogMsgID());
+                logger.debug("" + "\n        Old Msg Id: " + oldMsgId + "\n        New Msg Id: " + newMsgId + msg.getLogMsgID());
             }
             try {
-                newPendInfFile = IOUtil.moveFile(oldPendInfFile, newPendInfFile, false);
-                // Update the name of the file in the message object
-                msg.setAttribute(FileAttribute.MA_PENDINGINFO, newPendingInfoFileName);
-                if (logger.isInfoEnabled()) {
-                    logger.info("Renamed pending info file : " + oldPendInfFile.getName() + " :::: New name: " + newPendInfFile.getName() + msg.getLogMsgID());
+                PendingMdnStore store = getPendingMdnStore(session.getProcessor());
+                if (store.rename(oldMsgId, newMsgId)) {
+                    // Update the pending info locator in the message object
+                    msg.setAttribute(FileAttribute.MA_PENDINGINFO, store.getLocator(newMsgId));
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Moved pending MDN information from " + oldMsgId + " to new message ID " + newMsgId + msg.getLogMsgID());
+                    }
                 }
-
-            } catch (IOException iose) {
-                msg.setLogMsg("Error renaming file: " + org.openas2.logging.Log.getExceptionMsg(iose));
-                logger.error(msg, iose);
+            } catch (OpenAS2Exception e) {
+                msg.setLogMsg("Error moving pending MDN information to the new message ID: " + org.openas2.logging.Log.getExceptionMsg(e));
+                logger.error(msg, e);
             }
         }
         Map<String, Object> options = new HashMap<String, Object>();
@@ -562,36 +556,36 @@ public class AS2Util {
 
     public static void getMetaData(AS2Message msg, Session session) throws OpenAS2Exception {
         Log logger = LogFactory.getLog(AS2Util.class.getSimpleName());
-        // use original message ID to open the pending information file from pendinginfo
-        // folder.
+        // use original message ID to look up the pending MDN information. The store ignores
+        // angle brackets so partners adding or dropping them are handled
         String originalMsgId = msg.getMDN().getAttribute(AS2MessageMDN.MDNA_ORIG_MESSAGEID);
+        if (originalMsgId == null) {
+            throw new OpenAS2Exception("Original message ID missing in MDN so pending MDN information cannot be found");
+        }
+        PendingMdnStore store = getPendingMdnStore(session.getProcessor());
+        PendingMdnInfo info = store.get(originalMsgId);
+        if (info == null) {
+            throw new OpenAS2Exception("Pending MDN information missing for message: " + originalMsgId);
+        }
+        msg.setMessageID(info.getMessageId());
+        msg.setAttribute(FileAttribute.MA_PENDINGINFO, store.getLocator(info.getMessageId()));
+        info.applyTo(msg);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Data retrieved from pending MDN information:" + "\n        Original MIC: " + msg.getCalculatedMIC() + "\n        Retry Count: " + info.getRetries() + "\n        Original file name : " + msg.getPayloadFilename() + "\n        Sent file name : " + msg.getAttribute(FileAttribute.MA_FILENAME) + "\n        Pending message file : " + msg.getAttribute(FileAttribute.MA_PENDINGFILE) + "\n        Error directory: " + msg.getAttribute(FileAttribute.MA_ERROR_DIR) + "\n        Sent directory: " + msg.getAttribute(FileAttribute.MA_SENT_DIR) + "\n        Attributes: " + msg.getAttributes() + msg.getLogMsgID());
+        }
+    }
 
-        msg.setMessageID(originalMsgId);
-        String pendinginfofile = buildPendingFileName(msg, session.getProcessor(), "pendingmdninfo");
-
-        if (logger.isDebugEnabled()) {
-            logger.debug("Pending info file to retrieve data from in MDN receiver: " + pendinginfofile);
-        }
-        // Get the pending information file based on original message ID
-        File iFile = new File(pendinginfofile);
-        if (!iFile.exists()) {
-            // try without the angle brackets in case they were added
-            String oMsgIdStripped = removeAngleBrackets(originalMsgId);
-            if (oMsgIdStripped == null || originalMsgId.equals(oMsgIdStripped)) {
-                // No difference so...
-                throw new OpenAS2Exception("Pending info file missing: " + pendinginfofile);
-            }
-            msg.setMessageID(oMsgIdStripped);
-            pendinginfofile = buildPendingFileName(msg, session.getProcessor(), "pendingmdninfo");
-            iFile = new File(pendinginfofile);
-            if (!iFile.exists()) {
-                throw new OpenAS2Exception("Pending info file missing: " + pendinginfofile);
-            }
-        }
-        msg.setAttribute(FileAttribute.MA_PENDINGINFO, pendinginfofile);
-        getMetaData(msg, iFile);
+    /**
+     * @param processor the processor holding the pending MDN information directory parameter
+     * @return the pending MDN information store for the directory
+     */
+    public static PendingMdnStore getPendingMdnStore(Processor processor) throws OpenAS2Exception {
+        return PendingMdnStore.forDirectory(processor.getParameters().get("pendingmdninfo"));
     }
 
+    /**
+     * Reads a pending information file written by versions before the pending MDN store.
+     */
     public static void getMetaData(AS2Message msg, File inFile) throws OpenAS2Exception {
         Log logger = LogFactory.getLog(AS2Util.class.getSimpleName());
         ObjectInputStream pifois;
@@ -649,24 +643,21 @@ public class AS2Util {
         }
         String pendingInfoFileName = msg.getAttribute(FileAttribute.MA_PENDINGINFO);
         if (pendingInfoFileName != null) {
-            File fPendingInfoFile = new File(pendingInfoFileName);
-            if (fPendingInfoFile.exists()) {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Deleting pendinginfo file : " + fPendingInfoFile.getAbsolutePath() + msg.getLogMsgID());
-                }
-
-                try {
-                    IOUtil.deleteFile(fPendingInfoFile);
+            if (logger.isTraceEnabled()) {
+                logger.trace("Removing pending MDN information : " + pendingInfoFileName + msg.getLogMsgID());
+            }
+            try {
+                if (PendingMdnStore.removeByLocator(pendingInfoFileName)) {
                     if (logger.isTraceEnabled()) {
-                        logger.trace("deleted " + pendingInfoFileName + msg.getLogMsgID());
+                        logger.trace("removed " + pendingInfoFileName + msg.getLogMsgID());
                     }
-                } catch (Exception e) {
-                    msg.setLogMsg("File was successfully sent but info file not deleted: " + pendingInfoFileName);
-                    logger.warn(msg, e);
+                } else {
+                    msg.setLogMsg("Cleanup could not find pending MDN information: " + pendingInfoFileName);
+                    logger.warn(msg);
                 }
-            } else {
-                msg.setLogMsg("Cleanup could not find pendinginfo file: " + pendingInfoFileName);
-                logger.warn(msg);
+            } catch (Exception e) {
+                msg.setLogMsg("File was successfully sent but pending MDN information not removed: " + pendingInfoFileName);
+                logger.warn(msg, e);
             }
         }
 
@@ -735,10 +726,6 @@ public class AS2Util {
         msg.setFileCleanupCompleted(true);
     }
 
-    private static String removeAngleBrackets(String srcString) {
-        return (srcString == null ? null : srcString.replaceAll("^<([^>]+)>$", "$1"));
-    }
-
     public static boolean attributeEnhancer(Map<String, String> attribs) throws OpenAS2Exception {
         Pattern PATTERN = Pattern.compile("\\$attribute\\.([^\\$]++)\\$|\\$properties\\.([^\\$]++)\\$");
         boolean valuesWereEnhanced = false;
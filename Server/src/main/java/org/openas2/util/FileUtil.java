@@ -1,21 +1,31 @@
 package org.openas2.util;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openas2.OpenAS2Exception;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class FileUtil {
 
-    //private static final Log logger = LogFactory.getLog(FileUtil.class.getSimpleName());
+    private static final Log logger = LogFactory.getLog(FileUtil.class.getSimpleName());
+
+    private static final int SPLIT_SCAN_BUFFER_SIZE = 64 * 1024;
 
     public static Properties loadProperties(String filename) throws IOException {
         Properties fileProps = new java.util.Properties();
@@ -45,102 +55,237 @@ public class FileUtil {
         return filename.substring(filename.lastIndexOf(".") + 1);
     }
 
+    /**
+     * Splits a line based file into files smaller than the given size, repeating the header row in each of them.
+     * Equivalent to {@link #splitLineBasedFile(File, String, long, boolean, String, String, Executor, int)}
+     * writing the files one after another on the calling thread.
+     */
     public static void splitLineBasedFile(File sourceFile, String outputDir, long maxFileSize, boolean containsHeaderRow, String newFileBaseName, String filenamePrefix) throws OpenAS2Exception {
-        FileReader fileReader;
+        splitLineBasedFile(sourceFile, outputDir, maxFileSize, containsHeaderRow, newFileBaseName, filenamePrefix, null, 1);
+    }
+
+    /**
+     * Splits a line based file into files smaller than the given size, repeating the header row in each of them.
+     * <p>
+     * The file is split on the bytes of the line feeds so the line endings and the character set are kept exactly
+     * as they are in the source file. Each part is copied from the source file by the file channel without being
+     * decoded, written under a temporary name next to the source file and then moved into the output directory
+     * so anything watching that directory only ever sees complete files, as soon as each one is ready.
+     * A single line that does not fit in the size limit is written to a part of its own.
+     *
+     * @param sourceFile        the file to split
+     * @param outputDir         the directory to move the parts to
+     * @param maxFileSize       the parts, including the header row, are smaller than this number of bytes
+     * @param containsHeaderRow true if the first line is a header row to copy to every part
+     * @param newFileBaseName   the name of each part after the prefix and the sequence number
+     * @param filenamePrefix    the prefix for the name of each part
+     * @param executor          runs additional writers when more than one part is written at a time. May be null
+     * @param parallelism       the maximum number of parts written at the same time including the calling thread
+     * @throws OpenAS2Exception the file could not be read or a part could not be written
+     */
+    public static void splitLineBasedFile(File sourceFile, String outputDir, long maxFileSize, boolean containsHeaderRow, String newFileBaseName, String filenamePrefix, Executor executor, int parallelism) throws OpenAS2Exception {
+        FileChannel source;
         try {
-            fileReader = new FileReader(sourceFile);
-        } catch (FileNotFoundException e2) {
-            throw new OpenAS2Exception("Source file for splitting not found: " + sourceFile.getAbsolutePath());
+            source = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Source file for splitting not found: " + sourceFile.getAbsolutePath(), e);
         }
-        BufferedReader bufferedReader = new BufferedReader(fileReader);
         try {
-            byte[] headerRow = new byte[0];
+            long size = source.size();
+            long headerRowByteCount = 0;
             if (containsHeaderRow) {
-                try {
-                    String headerLine = bufferedReader.readLine();
-                    if (headerLine != null) {
-                        headerRow = (headerLine + "\n").getBytes();
-                    }
-                } catch (IOException e1) {
-                    throw new OpenAS2Exception("Failed to read header row from input file: " + sourceFile.getAbsolutePath(), e1);
-                }
+                long headerEnd = indexOfLineFeed(source, 0, size);
+                headerRowByteCount = headerEnd < 0 ? size : headerEnd + 1;
             }
-            long headerRowByteCount = headerRow.length;
-            if (maxFileSize < headerRowByteCount) {
+            if (maxFileSize <= headerRowByteCount) {
                 // Would just write header repeatedly so throw error
                 throw new OpenAS2Exception("Split file size is less than the header row size " + sourceFile.getAbsolutePath());
             }
-            long expectedFileCnt = Math.floorDiv(sourceFile.length(), maxFileSize);
+            List<long[]> parts = findSplitPoints(source, headerRowByteCount, size, maxFileSize - headerRowByteCount - 1);
+            long expectedFileCnt = Math.floorDiv(size, maxFileSize);
             // Figure out how many digits to pad the filename with - add 1 to cater for header row
-            int fileCntDigits = Long.toString(expectedFileCnt).length() +1;
-            int fileCount = 0;
-            boolean notEof = true;
-            byte[] lineBytes = null;
-            while (notEof) {
-                fileCount += 1;
-                long fileSize = 0;
-                String newFilename = filenamePrefix + StringUtil.padLeftZeros(Integer.toString(fileCount), fileCntDigits) + "-" + newFileBaseName;
+            int fileCntDigits = Long.toString(expectedFileCnt).length() + 1;
+            List<SplitPart> splitParts = new ArrayList<SplitPart>(parts.size());
+            for (int i = 0; i < parts.size(); i++) {
+                String newFilename = filenamePrefix + StringUtil.padLeftZeros(Integer.toString(i + 1), fileCntDigits) + "-" + newFileBaseName;
+                File tempFile = new File(sourceFile.getParentFile(), newFilename + ".part");
                 File outFile = new File(outputDir + File.separator + newFilename);
-                BufferedOutputStream fos = null;
-                try {
+                splitParts.add(new SplitPart(source, headerRowByteCount, parts.get(i), tempFile, outFile, i + 1));
+            }
+            writeSplitParts(splitParts, executor, parallelism);
+        } catch (IOException e) {
+            throw new OpenAS2Exception("Failed to read input file for file splitting: " + sourceFile.getAbsolutePath(), e);
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+                throw new OpenAS2Exception("Failed to close reader for input file.", e);
+            }
+        }
+    }
+
+    /**
+     * @return the start and end offsets of the body of each part ending just after a line feed
+     */
+    private static List<long[]> findSplitPoints(FileChannel source, long start, long size, long maxBodySize) throws IOException {
+        List<long[]> parts = new ArrayList<long[]>();
+        if (start >= size) {
+            // Only a header row so keep it as the single part
+            parts.add(new long[]{start, start});
+            return parts;
+        }
+        while (start < size) {
+            long end;
+            if (size - start <= maxBodySize) {
+                end = size;
+            } else {
+                long lineEnd = lastIndexOfLineFeed(source, start, start + maxBodySize);
+                if (lineEnd < 0) {
+                    lineEnd = indexOfLineFeed(source, start + maxBodySize, size);
+                    logger.warn("Line longer than the split file size found at offset " + start + " - writing it to a part of its own");
+                }
+                end = lineEnd < 0 ? size : lineEnd + 1;
+            }
+            parts.add(new long[]{start, end});
+            start = end;
+        }
+        return parts;
+    }
+
+    private static long indexOfLineFeed(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SPLIT_SCAN_BUFFER_SIZE);
+        long pos = from;
+        while (pos < to) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), to - pos));
+            int read = channel.read(buf, pos);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i;
+                }
+            }
+            pos += read;
+        }
+        return -1;
+    }
+
+    private static long lastIndexOfLineFeed(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SPLIT_SCAN_BUFFER_SIZE);
+        long end = to;
+        while (end > from) {
+            long pos = Math.max(from, end - buf.capacity());
+            buf.clear();
+            buf.limit((int) (end - pos));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, pos + buf.position()) < 0) {
+                    throw new EOFException("File truncated while being split");
+                }
+            }
+            for (int i = buf.limit() - 1; i >= 0; i--) {
+                if (buf.get(i) == '\n') {
+                    return pos + i;
+                }
+            }
+            end = pos;
+        }
+        return -1;
+    }
+
+    private static void writeSplitParts(final List<SplitPart> parts, Executor executor, int parallelism) throws OpenAS2Exception {
+        final AtomicInteger nextPart = new AtomicInteger();
+        final AtomicReference<OpenAS2Exception> failure = new AtomicReference<OpenAS2Exception>();
+        final CountDownLatch written = new CountDownLatch(parts.size());
+        Runnable writer = new Runnable() {
+            public void run() {
+                int index;
+                while ((index = nextPart.getAndIncrement()) < parts.size()) {
                     try {
-                        fos = new BufferedOutputStream(new FileOutputStream(outFile));
-                    } catch (IOException e) {
-                        throw new OpenAS2Exception("Failed to initialise output file for file splitting on file " + fileCount, e);
-                    }
-                    if (containsHeaderRow) {
-                        try {
-                            fos.write(headerRow);
-                        } catch (IOException e) {
-                            throw new OpenAS2Exception("Failed to write header row to output file for file splitting on file " + fileCount, e);
-                        }
-                        fileSize += headerRowByteCount;
-                    }
-                    String line = null;
-                    if (lineBytes == null) {
-                        // Get the next line before going into the loop to ensure we can stay under the threshold
-                        line = bufferedReader.readLine();
-                        if (line == null) {
-                            notEof = false;
-                            break;
+                        if (failure.get() == null) {
+                            parts.get(index).write();
                         }
-                        lineBytes = (line + "\n").getBytes();
+                    } catch (OpenAS2Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        written.countDown();
                     }
-                    fileSize += lineBytes.length;
-                    while (fileSize < maxFileSize) {                      
-                        fos.write(lineBytes);
-                        fos.flush(); // Flush on each loop to keep memory usage low
-                        line = bufferedReader.readLine();
-                        if (line == null) {
-                            notEof = false;
-                            break;
-                        }
-                        lineBytes = (line + "\n").getBytes();
-                        fileSize += lineBytes.length;
-                    }
-                    fos.flush();
-                    fos.close();
-                    if (line == null) {
-                        notEof = false;
-                    }
-                } catch (IOException e) {
-                    throw new OpenAS2Exception("Failed to write output file for file splitting on file " + fileCount, e);
+                }
+            }
+        };
+        if (executor != null) {
+            // The calling thread writes parts as well so the split completes even if the executor never gets to the helpers
+            for (int i = 1; i < Math.min(parallelism, parts.size()); i++) {
+                try {
+                    executor.execute(writer);
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+        }
+        writer.run();
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OpenAS2Exception("Interrupted waiting for split files to be written", e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static class SplitPart {
+        private final FileChannel source;
+        private final long headerRowByteCount;
+        private final long start;
+        private final long end;
+        private final File tempFile;
+        private final File outFile;
+        private final int fileCount;
+
+        SplitPart(FileChannel source, long headerRowByteCount, long[] range, File tempFile, File outFile, int fileCount) {
+            this.source = source;
+            this.headerRowByteCount = headerRowByteCount;
+            this.start = range[0];
+            this.end = range[1];
+            this.tempFile = tempFile;
+            this.outFile = outFile;
+            this.fileCount = fileCount;
+        }
+
+        void write() throws OpenAS2Exception {
+            try {
+                FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                try {
+                    transferFully(source, 0, headerRowByteCount, out);
+                    transferFully(source, start, end - start, out);
                 } finally {
-                    try {
-                        if (fos != null) {
-                            fos.close();
-                        }
-                    } catch (IOException e) {
-                    }
+                    out.close();
                 }
+            } catch (IOException e) {
+                tempFile.delete();
+                throw new OpenAS2Exception("Failed to write output file for file splitting on file " + fileCount, e);
             }
-        } finally {
             try {
-                bufferedReader.close();
+                IOUtil.moveFile(tempFile, outFile, false);
             } catch (IOException e) {
-                throw new OpenAS2Exception("Failed to close reader for input file.", e);
+                tempFile.delete();
+                throw new OpenAS2Exception("Failed to move split file to the output directory: " + outFile.getAbsolutePath(), e);
+            }
+        }
+
+        private static void transferFully(FileChannel source, long position, long count, FileChannel target) throws IOException {
+            long done = 0;
+            while (done < count) {
+                long transferred = source.transferTo(position + done, count - done, target);
+                if (transferred <= 0) {
+                    throw new EOFException("File truncated while being split");
+                }
+                done += transferred;
             }
-        }        
+        }
     }
 
 }
\ No newline at end of file
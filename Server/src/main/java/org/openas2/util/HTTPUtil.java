@@ -4,6 +4,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpMessage;
 import org.apache.http.NameValuePair;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
@@ -12,6 +13,7 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
@@ -20,6 +22,9 @@ import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicCredentialsProvider;
@@ -27,7 +32,6 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
-import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.ssl.SSLContexts;
 import org.openas2.OpenAS2Exception;
@@ -67,6 +71,8 @@ public class HTTPUtil {
     public static final String HEADER_USER_AGENT = "User-Agent";
     public static final String HEADER_CONNECTION = "Connection";
 
+    private static final int IO_BUFFER_SIZE = 8192;
+
     public abstract static class Method {
         public static final String GET = "GET";
         public static final String HEAD = "HEAD";
@@ -130,7 +136,59 @@ public class HTTPUtil {
     }
 
     public static byte[] readHTTP(InputStream inStream, OutputStream outStream, InternetHeaders headerCache, List<String> httpRequest) throws IOException, MessagingException {
-        byte[] data = null;
+        Log logger = LogFactory.getLog(HTTPUtil.class.getSimpleName());
+        DataInputStream dataIn = readRequestAndHeaders(inStream, headerCache, httpRequest);
+
+        // Retrieve the message content
+        if (headerCache.getHeader(HTTP.CONTENT_LEN) == null) {
+            ByteArrayOutputStream dataOut = new ByteArrayOutputStream();
+            if (readChunkedData(dataIn, outStream, headerCache, dataOut) < 0) {
+                return null;
+            }
+            return dataOut.toByteArray();
+        }
+        // Receive the transmission's data
+        int contentSize = Integer.parseInt(headerCache.getHeader("Content-Length", ","));
+        byte[] data = new byte[contentSize];
+        if (logger.isTraceEnabled()) {
+            logger.trace("Reading fixed byte count from HTTP stream based on Content-Length: " + contentSize + " - Receiver will wait until full byte count is received unless an IO exception is triggered....");
+        }
+        dataIn.readFully(data);
+        return data;
+    }
+
+    /**
+     * Reads the HTTP request line and headers and then copies the request body to the supplied output stream
+     * using a fixed size buffer so that the memory used is independent of the size of the body.
+     *
+     * @param inStream    The HTTP input stream
+     * @param outStream   The HTTP output stream used to send an error response if the transfer encoding is not supported. Can be null
+     * @param headerCache Receives the HTTP headers
+     * @param httpRequest Receives the parts of the HTTP request line
+     * @param dataOut     The stream the body is written to
+     * @return The number of bytes written to the data stream or -1 if the request contained no body
+     * @throws IOException        - the connection failed or the body is shorter than advertised
+     * @throws MessagingException - the HTTP headers could not be parsed
+     */
+    public static long readHTTP(InputStream inStream, OutputStream outStream, InternetHeaders headerCache, List<String> httpRequest, OutputStream dataOut) throws IOException, MessagingException {
+        Log logger = LogFactory.getLog(HTTPUtil.class.getSimpleName());
+        DataInputStream dataIn = readRequestAndHeaders(inStream, headerCache, httpRequest);
+
+        if (headerCache.getHeader(HTTP.CONTENT_LEN) == null) {
+            return readChunkedData(dataIn, outStream, headerCache, dataOut);
+        }
+        long contentSize = Long.parseLong(headerCache.getHeader("Content-Length", ","));
+        if (logger.isTraceEnabled()) {
+            logger.trace("Streaming fixed byte count from HTTP stream based on Content-Length: " + contentSize + " - Receiver will wait until full byte count is received unless an IO exception is triggered....");
+        }
+        long length = IOUtils.copyLarge(dataIn, dataOut, 0L, contentSize, new byte[IO_BUFFER_SIZE]);
+        if (length < contentSize) {
+            throw new EOFException("HTTP stream ended after " + length + " bytes but Content-Length is " + contentSize);
+        }
+        return length;
+    }
+
+    private static DataInputStream readRequestAndHeaders(InputStream inStream, InternetHeaders headerCache, List<String> httpRequest) throws IOException, MessagingException {
         Log logger = LogFactory.getLog(HTTPUtil.class.getSimpleName());
 
         // Get the stream and read in the HTTP request and headers
@@ -143,73 +201,63 @@ public class HTTPUtil {
         if (logger.isTraceEnabled()) {
             logger.trace("HTTP received request: " + request[0] + "  " + request[1] + "\n\tHeaders: " + printHeaders(headerCache.getAllHeaders(), "==", ";;"));
         }
+        return new DataInputStream(in);
+    }
 
-        DataInputStream dataIn = new DataInputStream(in);
-        // Retrieve the message content
-        if (headerCache.getHeader(HTTP.CONTENT_LEN) == null) {
-            String transfer_encoding = headerCache.getHeader(HTTP.TRANSFER_ENCODING, ",");
-
-            if (transfer_encoding != null) {
-                if (transfer_encoding.replaceAll("\\s+", "").equalsIgnoreCase("chunked")) {
-                    int length = 0;
-                    data = null;
-                    for (; ; ) {
-                        // First get hex chunk length; followed by CRLF
-                        int blocklen = 0;
-                        for (; ; ) {
-                            int ch = dataIn.readByte();
-                            if (ch == '\n') {
-                                break;
-                            }
-                            if (ch >= 'a' && ch <= 'f') {
-                                ch -= ('a' - 10);
-                            } else if (ch >= 'A' && ch <= 'F') {
-                                ch -= ('A' - 10);
-                            } else if (ch >= '0' && ch <= '9') {
-                                ch -= '0';
-                            } else {
-                                continue;
-                            }
-                            blocklen = (blocklen * 16) + ch;
-                        }
-                        // Zero length is end of chunks
-                        if (blocklen == 0) {
-                            break;
-                        }
-                        // Ok, now read new chunk
-                        int newlen = length + blocklen;
-                        byte[] newdata = new byte[newlen];
-                        if (length > 0) {
-                            System.arraycopy(data, 0, newdata, 0, length);
-                        }
-                        dataIn.readFully(newdata, length, blocklen);
-                        data = newdata;
-                        length = newlen;
-                        // And now the CRLF after the chunk;
-                        while (dataIn.readByte() != '\n') {
-                            ;
-                        }
-                    }
-                    headerCache.setHeader("Content-Length", Integer.toString(length));
+    /**
+     * Decodes a chunked transfer encoded body into the data stream one chunk at a time.
+     *
+     * @return The decoded length or -1 if there is no Transfer-Encoding header
+     */
+    private static long readChunkedData(DataInputStream dataIn, OutputStream outStream, InternetHeaders headerCache, OutputStream dataOut) throws IOException {
+        String transfer_encoding = headerCache.getHeader(HTTP.TRANSFER_ENCODING, ",");
+
+        if (transfer_encoding == null) {
+            return -1;
+        }
+        if (!transfer_encoding.replaceAll("\\s+", "").equalsIgnoreCase("chunked")) {
+            if (outStream != null) {
+                HTTPUtil.sendHTTPResponse(outStream, HttpURLConnection.HTTP_LENGTH_REQUIRED, null);
+            }
+            throw new IOException("Transfer-Encoding unimplemented: " + transfer_encoding);
+        }
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        long length = 0;
+        for (; ; ) {
+            // First get hex chunk length; followed by CRLF
+            long blocklen = 0;
+            for (; ; ) {
+                int ch = dataIn.readByte();
+                if (ch == '\n') {
+                    break;
+                }
+                if (ch >= 'a' && ch <= 'f') {
+                    ch -= ('a' - 10);
+                } else if (ch >= 'A' && ch <= 'F') {
+                    ch -= ('A' - 10);
+                } else if (ch >= '0' && ch <= '9') {
+                    ch -= '0';
                 } else {
-                    if (outStream != null) {
-                        HTTPUtil.sendHTTPResponse(outStream, HttpURLConnection.HTTP_LENGTH_REQUIRED, null);
-                    }
-                    throw new IOException("Transfer-Encoding unimplemented: " + transfer_encoding);
+                    continue;
                 }
-            } else {
-                return null;
+                blocklen = (blocklen * 16) + ch;
             }
-        } else {
-            // Receive the transmission's data
-            int contentSize = Integer.parseInt(headerCache.getHeader("Content-Length", ","));
-            data = new byte[contentSize];
-            if (logger.isTraceEnabled()) {
-                logger.trace("Reading fixed byte count from HTTP stream based on Content-Length: " + contentSize + " - Receiver will wait until full byte count is received unless an IO exception is triggered....");
+            // Zero length is end of chunks
+            if (blocklen == 0) {
+                break;
+            }
+            // Ok, now copy the chunk to the output
+            if (IOUtils.copyLarge(dataIn, dataOut, 0L, blocklen, buffer) < blocklen) {
+                throw new EOFException("HTTP stream ended in the middle of a chunk");
+            }
+            length += blocklen;
+            // And now the CRLF after the chunk;
+            while (dataIn.readByte() != '\n') {
+                ;
             }
-            dataIn.readFully(data);
         }
-        return data;
+        headerCache.setHeader("Content-Length", Long.toString(length));
+        return length;
     }
 
     /*
@@ -220,27 +268,55 @@ public class HTTPUtil {
         List<String> request = new ArrayList<String>(2);
         byte[] data = readHTTP(inStream, outStream, msg.getHeaders(), request);
 
+        if (!processDataRequest(outStream, msg, request, data != null)) {
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Streaming equivalent of {@link #readData(InputStream, OutputStream, Message)} that writes the body
+     * to the supplied output stream instead of returning it as a byte array.
+     *
+     * @param inStream  The HTTP input stream
+     * @param outStream The HTTP output stream
+     * @param msg       The message receiving the HTTP headers and request attributes
+     * @param dataOut   The stream the body is written to
+     * @return The number of bytes received or -1 if there was no data
+     * @throws IOException        - the connection failed
+     * @throws MessagingException - the HTTP headers could not be parsed
+     */
+    public static long readData(InputStream inStream, OutputStream outStream, Message msg, OutputStream dataOut) throws IOException, MessagingException {
+        List<String> request = new ArrayList<String>(2);
+        long length = readHTTP(inStream, outStream, msg.getHeaders(), request, dataOut);
+
+        if (!processDataRequest(outStream, msg, request, length >= 0)) {
+            return -1;
+        }
+        return length;
+    }
+
+    private static boolean processDataRequest(OutputStream outStream, Message msg, List<String> request, boolean hasData) throws IOException {
         msg.setAttribute(MA_HTTP_REQ_TYPE, request.get(0));
         msg.setAttribute(MA_HTTP_REQ_URL, request.get(1));
-        if (data == null) {
+        if (!hasData) {
             String healthCheckUri = Properties.getProperty("health_check_uri", "healthcheck");
             if ("GET".equalsIgnoreCase(request.get(0)) && request.get(1).matches("^[/]{0,1}" + healthCheckUri + "*")) {
                 if (outStream != null) {
                     HTTPUtil.sendHTTPResponse(outStream, HttpURLConnection.HTTP_OK, null);
                     msg.setAttribute("isHealthCheck", "true"); // provide means for caller to know what happened
                 }
-                return null;
             } else {
                 HTTPUtil.sendHTTPResponse(outStream, HttpURLConnection.HTTP_LENGTH_REQUIRED, null);
                 if ("true".equals(Properties.getProperty(Properties.LOG_INVALID_HTTP_REQUEST, "true"))) {
                   Log logger = LogFactory.getLog(HTTPUtil.class.getSimpleName());
                   logger.warn("The request either contained no data or has issues with the Transfer-Encoding or Content-Length: : " + request.get(0) + " " + request.get(1) + "\n\tHeaders: " + printHeaders(msg.getHeaders().getAllHeaders(), "==", ";;"));
                 }
-                return null;
             }
+            return false;
         }
         cleanIdHeaders(msg.getHeaders());
-        return data;
+        return true;
     }
 
     /**
@@ -312,46 +388,29 @@ public class HTTPUtil {
      * @throws Exception
      */
     public static ResponseWrapper execRequest(String method, String url, InternetHeaders headers, NameValuePair[] params, InputStream inputStream, Map<String, String> options, long noChunkMaxSize, boolean preventChunking) throws Exception {
+        return execRequest(method, url, headers, params, inputStream, options, noChunkMaxSize, preventChunking, null);
+    }
 
-        HttpClientBuilder httpBuilder = HttpClientBuilder.create();
-        //org.apache.http.protocol.RequestContent
-        URL urlObj = new URL(url);
-        /*
-         * httpClient is used for this request only,
-         * set a connection manager that manages just one connection.
-         */
-        if (urlObj.getProtocol().equalsIgnoreCase("https")) {
-            /*
-             * Note: registration of a custom SSLSocketFactory via httpBuilder.setSSLSocketFactory is ignored when a connection manager is set.
-             * The custom SSLSocketFactory needs to be registered together with the connection manager.
-             */
-            SSLConnectionSocketFactory sslCsf = buildSslFactory(urlObj, options);
-            httpBuilder.setConnectionManager(new BasicHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslCsf).build()));
-        } else {
-            httpBuilder.setConnectionManager(new BasicHttpClientConnectionManager());
-        }
-
-        // Check if Content-Length was added and remove it so it as it is managed by the HttpRequest when processing the entity
-        long contentLength = -1; // Initialise as unknown
-        String[] contentLengthValues = headers==null?null:headers.getHeader(HTTP.CONTENT_LEN);
-        if (contentLengthValues != null && contentLengthValues.length > 0) {
-            contentLength = Long.parseLong(contentLengthValues[0]);
-            headers.removeHeader(HTTP.CONTENT_LEN);
-        }
-        RequestBuilder rb = getRequestBuilder(method, urlObj, params, headers);
-        RequestConfig.Builder rcBuilder = buildRequestConfig(options);
-        setProxyConfig(httpBuilder, rcBuilder, urlObj.getProtocol());
-        rb.setConfig(rcBuilder.build());
-
-        String httpUser = options.get(HTTPUtil.PARAM_HTTP_USER);
-        String httpPwd = options.get(HTTPUtil.PARAM_HTTP_PWD);
-        if (httpUser != null) {
-            CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(httpUser, httpPwd));
-            httpBuilder.setDefaultCredentialsProvider(credentialsProvider);
-        }
+    /**
+     * Execute a request via HTTP optionally using a pooled keep-alive connection
+     *
+     * @param method          GET, PUT, POST, DELETE, etc
+     * @param url             The remote connection string
+     * @param headers         HTTP headers to be sent
+     * @param params          Parameters for the get. Can be null.
+     * @param inputStream     Source stream for retrieving request data
+     * @param options         Any additional options for affecting request behaviour. Can NOT be null.
+     * @param noChunkMaxSize  The maximum size before chunking would need to be utilised. 0 disables check for chunking
+     * @param preventChunking Send the content with a Content-Length header instead of chunked
+     * @param pool            The connection pool to use. If null a dedicated connection is opened and closed for this request.
+     * @return ResponseWrapper
+     * @throws Exception
+     */
+    public static ResponseWrapper execRequest(String method, String url, InternetHeaders headers, NameValuePair[] params, InputStream inputStream, Map<String, String> options, long noChunkMaxSize, boolean preventChunking, HttpClientPool pool) throws Exception {
+        long contentLength = removeContentLength(headers);
+        AbstractHttpEntity httpEntity = null;
         if (inputStream != null) {
-            AbstractHttpEntity httpEntity = new InputStreamEntity(inputStream, contentLength);
+            httpEntity = new InputStreamEntity(inputStream, contentLength);
             // the default is to use chunking for transfer encoding - allow override
             if (preventChunking) {
                 if (noChunkMaxSize > 0L) {
@@ -369,6 +428,112 @@ public class HTTPUtil {
                 // Tell the HTTP client to try to send unchunked - the Content-Length will be extracted from the entity
                 httpEntity.setChunked(false);
             }
+        }
+        return execRequest(method, url, headers, params, httpEntity, options, pool);
+    }
+
+    /**
+     * Execute a request via HTTP writing the request data straight to the connection as it is produced.
+     * <p>
+     * The content is streamed using chunked transfer encoding. When the request must be sent with a
+     * Content-Length or has to be repeatable for basic authentication, the content is instead written
+     * once to a temporary spool file that is sent from disk and deleted afterwards so the request data is
+     * never held in memory.
+     *
+     * @param method          GET, PUT, POST, DELETE, etc
+     * @param url             The remote connection string
+     * @param headers         HTTP headers to be sent
+     * @param params          Parameters for the get. Can be null.
+     * @param producer        Writes the request data
+     * @param options         Any additional options for affecting request behaviour. Can NOT be null.
+     * @param noChunkMaxSize  The maximum size before chunking would need to be utilised. 0 disables check for chunking
+     * @param preventChunking Send the content with a Content-Length header instead of chunked
+     * @param pool            The connection pool to use. If null a dedicated connection is opened and closed for this request.
+     * @return ResponseWrapper
+     * @throws Exception
+     */
+    public static ResponseWrapper execRequest(String method, String url, InternetHeaders headers, NameValuePair[] params, ContentProducer producer, Map<String, String> options, long noChunkMaxSize, boolean preventChunking, HttpClientPool pool) throws Exception {
+        removeContentLength(headers);
+        if (!preventChunking && options.get(HTTPUtil.PARAM_HTTP_USER) == null) {
+            AbstractHttpEntity httpEntity = new EntityTemplate(producer);
+            httpEntity.setChunked(true);
+            return execRequest(method, url, headers, params, httpEntity, options, pool);
+        }
+        File spoolFile = File.createTempFile("openas2-", ".spool");
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spoolFile))) {
+                producer.writeTo(out);
+            }
+            if (preventChunking && noChunkMaxSize > 0L && spoolFile.length() > noChunkMaxSize) {
+                throw new IOException("Data too big to send unchunked (more than " + noChunkMaxSize + " bytes).");
+            }
+            AbstractHttpEntity httpEntity = new FileEntity(spoolFile);
+            // the default is to use chunking for transfer encoding - allow override
+            httpEntity.setChunked(!preventChunking);
+            return execRequest(method, url, headers, params, httpEntity, options, pool);
+        } finally {
+            if (!spoolFile.delete() && spoolFile.exists()) {
+                Log logger = LogFactory.getLog(HTTPUtil.class.getSimpleName());
+                logger.warn("Failed to delete spool file: " + spoolFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Removes any Content-Length header as it is managed by the HttpRequest when processing the entity.
+     *
+     * @return the removed content length or -1 if there was none
+     */
+    private static long removeContentLength(InternetHeaders headers) {
+        long contentLength = -1; // Initialise as unknown
+        String[] contentLengthValues = headers==null?null:headers.getHeader(HTTP.CONTENT_LEN);
+        if (contentLengthValues != null && contentLengthValues.length > 0) {
+            contentLength = Long.parseLong(contentLengthValues[0]);
+            headers.removeHeader(HTTP.CONTENT_LEN);
+        }
+        return contentLength;
+    }
+
+    private static ResponseWrapper execRequest(String method, String url, InternetHeaders headers, NameValuePair[] params, AbstractHttpEntity httpEntity, Map<String, String> options, HttpClientPool pool) throws Exception {
+
+        HttpClientBuilder httpBuilder = null;
+        //org.apache.http.protocol.RequestContent
+        URL urlObj = new URL(url);
+        // A pooled client is configured with its connection manager and proxy when it is created
+        if (pool == null) {
+            httpBuilder = HttpClientBuilder.create();
+            /*
+             * httpClient is used for this request only,
+             * set a connection manager that manages just one connection.
+             */
+            if (urlObj.getProtocol().equalsIgnoreCase("https")) {
+                /*
+                 * Note: registration of a custom SSLSocketFactory via httpBuilder.setSSLSocketFactory is ignored when a connection manager is set.
+                 * The custom SSLSocketFactory needs to be registered together with the connection manager.
+                 */
+                SSLConnectionSocketFactory sslCsf = buildSslFactory(urlObj, options);
+                httpBuilder.setConnectionManager(new BasicHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslCsf).build()));
+            } else {
+                httpBuilder.setConnectionManager(new BasicHttpClientConnectionManager());
+            }
+        }
+
+        RequestBuilder rb = getRequestBuilder(method, urlObj, params, headers);
+        RequestConfig.Builder rcBuilder = buildRequestConfig(options);
+        setProxyConfig(httpBuilder, rcBuilder, urlObj.getProtocol());
+        rb.setConfig(rcBuilder.build());
+
+        String httpUser = options.get(HTTPUtil.PARAM_HTTP_USER);
+        String httpPwd = options.get(HTTPUtil.PARAM_HTTP_PWD);
+        CredentialsProvider credentialsProvider = null;
+        if (httpUser != null) {
+            credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(httpUser, httpPwd));
+            if (httpBuilder != null) {
+                httpBuilder.setDefaultCredentialsProvider(credentialsProvider);
+            }
+        }
+        if (httpEntity != null) {
             // Use a BufferedEntity for BasicAuth connections to avoid the NonRepeatableRequestException
             if (httpUser != null) {
                 rb.setEntity(new BufferedHttpEntity(httpEntity));
@@ -378,25 +543,87 @@ public class HTTPUtil {
         }
             
         final HttpUriRequest request = rb.build();
+        if (pool != null) {
+            removeConnectionCloseToken(request);
+        }
 
-        BasicHttpContext localcontext = new BasicHttpContext();
+        HttpClientContext localcontext = HttpClientContext.create();
         BasicScheme basicAuth = new BasicScheme();
         localcontext.setAttribute("preemptive-auth", basicAuth);
+        if (pool != null) {
+            // Credentials are per partner so they cannot be set on the shared client
+            if (credentialsProvider != null) {
+                localcontext.setCredentialsProvider(credentialsProvider);
+            }
+            return execute(pool.getClient(urlObj, options), request, localcontext);
+        }
         try (CloseableHttpClient httpClient = httpBuilder.build()) {
-            ProfilerStub transferStub = Profiler.startProfile();
-            try (CloseableHttpResponse response = httpClient.execute(request, localcontext)) {
-                ResponseWrapper resp = new ResponseWrapper(response);
-                Profiler.endProfile(transferStub);
-                resp.setTransferTimeMs(transferStub.getMilliseconds());
-                for (org.apache.http.Header header : response.getAllHeaders()) {
-                    resp.addHeaderLine(header.toString());
+            return execute(httpClient, request, localcontext);
+        }
+    }
+
+    private static ResponseWrapper execute(CloseableHttpClient httpClient, HttpUriRequest request, HttpClientContext localcontext) throws Exception {
+        ProfilerStub transferStub = Profiler.startProfile();
+        // Closing the response releases the connection back to the pool once the entity has been consumed
+        try (CloseableHttpResponse response = httpClient.execute(request, localcontext)) {
+            ResponseWrapper resp = new ResponseWrapper(response);
+            Profiler.endProfile(transferStub);
+            resp.setTransferTimeMs(transferStub.getMilliseconds());
+            for (org.apache.http.Header header : response.getAllHeaders()) {
+                resp.addHeaderLine(header.toString());
+            }
+            return resp;
+        }
+    }
+
+    /**
+     * Removes the "close" token from the Connection header so that the connection can be kept alive for reuse.
+     *
+     * @param request The request to be sent
+     */
+    static void removeConnectionCloseToken(HttpMessage request) {
+        org.apache.http.Header[] values = request.getHeaders(HTTP.CONN_DIRECTIVE);
+        if (values.length == 0) {
+            return;
+        }
+        StringBuilder keep = new StringBuilder();
+        for (org.apache.http.Header value : values) {
+            for (String token : value.getValue().split(",")) {
+                token = token.trim();
+                if (token.length() > 0 && !HTTP.CONN_CLOSE.equalsIgnoreCase(token)) {
+                    if (keep.length() > 0) {
+                        keep.append(", ");
+                    }
+                    keep.append(token);
                 }
-                return resp;
             }
         }
+        request.removeHeaders(HTTP.CONN_DIRECTIVE);
+        if (keep.length() > 0) {
+            request.setHeader(HTTP.CONN_DIRECTIVE, keep.toString());
+        }
+    }
+
+    /**
+     * Determines how the SSL connection to the given URL is trusted so that SSL socket factories can be reused
+     * for URLs that share the same trust setup.
+     *
+     * @param urlObj  The target URL
+     * @param options The request options
+     * @return "override" if SSL checks are disabled, "selfsigned" if self-signed certificates are trusted for the host, otherwise "default"
+     */
+    static String getSslTrustMode(URL urlObj, Map<String, String> options) {
+        if ("true".equalsIgnoreCase(options.get(HTTPUtil.HTTP_PROP_OVERRIDE_SSL_CHECKS))) {
+            return "override";
+        }
+        String selfSignedCN = System.getProperty("org.openas2.cert.TrustSelfSignedCN");
+        if (selfSignedCN != null && selfSignedCN.contains(urlObj.getHost())) {
+            return "selfsigned";
+        }
+        return "default";
     }
 
-    private static SSLConnectionSocketFactory buildSslFactory(URL urlObj, Map<String, String> options) throws Exception {
+    static SSLConnectionSocketFactory buildSslFactory(URL urlObj, Map<String, String> options) throws Exception {
 
         boolean overrideSslChecks = "true".equalsIgnoreCase(options.get(HTTPUtil.HTTP_PROP_OVERRIDE_SSL_CHECKS));
         SSLContext sslcontext;
@@ -507,6 +734,7 @@ public class HTTPUtil {
         response.append(httpResponse);
         out.write(response.toString().getBytes());
         String header;
+        boolean hasConnectionHeader = false;
 
         if (headers != null) {
             boolean removeHeaderFolding = "true".equals(Properties.getProperty("remove_http_header_folding", "true"));
@@ -518,8 +746,15 @@ public class HTTPUtil {
                     header = header.replaceAll("\r\n[ \t]*", " ");
                 }
                 out.write((header + "\r\n").getBytes());
+                if (header.regionMatches(true, 0, HTTP.CONN_DIRECTIVE + ":", 0, HTTP.CONN_DIRECTIVE.length() + 1)) {
+                    hasConnectionHeader = true;
+                }
             }
         }
+        if (!hasConnectionHeader) {
+            // The connection is always closed after the response so tell keep-alive clients not to reuse it
+            out.write((HTTP.CONN_DIRECTIVE + ": " + HTTP.CONN_CLOSE + "\r\n").getBytes());
+        }
 
         if (data == null || data.size() < 1) {
             // if no data will be sent, write the HTTP code or zero Content-Length
@@ -688,7 +923,15 @@ public class HTTPUtil {
         }
     }
 
-    private static void setProxyConfig(HttpClientBuilder builder, RequestConfig.Builder rcBuilder, String protocol) throws OpenAS2Exception {
+    /**
+     * Sets the proxy on the request config and the proxy credentials and route planner on the client builder.
+     *
+     * @param builder   The client builder. If null only the request config is set up.
+     * @param rcBuilder The request config builder
+     * @param protocol  The protocol of the target URL
+     * @throws OpenAS2Exception - the proxy port is not configured
+     */
+    static void setProxyConfig(HttpClientBuilder builder, RequestConfig.Builder rcBuilder, String protocol) throws OpenAS2Exception {
         String proxyHost = Properties.getProperty(protocol + ".proxyHost", null);
         if (proxyHost == null) {
             proxyHost = System.getProperty(protocol + ".proxyHost");
@@ -707,6 +950,9 @@ public class HTTPUtil {
         HttpHost proxy = new HttpHost(proxyHost, port);
 
         rcBuilder.setProxy(proxy);
+        if (builder == null) {
+            return;
+        }
 
         String proxyUser1 = Properties.getProperty("http.proxyUser", null);
         final String proxyUser = proxyUser1 == null ? System.getProperty("http.proxyUser") : proxyUser1;
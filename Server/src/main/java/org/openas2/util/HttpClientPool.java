@@ -0,0 +1,187 @@
+package org.openas2.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of keep-alive HTTP connections shared by the HTTP based sender modules.
+ * <p>
+ * A client is created for each protocol and SSL trust mode combination since these determine the socket factory
+ * and proxy setup. Each client has its own pooling connection manager that keeps connections per route
+ * (partner host and port) so repeated sends to the same partner URL reuse the TCP connection and the
+ * SSL context (and therefore its TLS session cache) instead of doing a full handshake for every message.
+ * <p>
+ * Pools are shared between modules configured with the same pool parameters and are closed when the last
+ * module using them releases them.
+ */
+public class HttpClientPool {
+    public static final String PARAM_POOL_ENABLED = "http_pool_enabled";
+    public static final String PARAM_POOL_MAX_TOTAL = "http_pool_max_total";
+    public static final String PARAM_POOL_MAX_PER_ROUTE = "http_pool_max_per_route";
+    public static final String PARAM_POOL_IDLE_TIMEOUT = "http_pool_idle_timeout_secs";
+    public static final String PARAM_POOL_VALIDATE_AFTER_INACTIVITY = "http_pool_validate_after_inactivity_ms";
+
+    private static final Log LOG = LogFactory.getLog(HttpClientPool.class.getSimpleName());
+
+    private static final Map<String, HttpClientPool> sharedPools = new HashMap<String, HttpClientPool>();
+
+    private final String poolKey;
+    private final int maxTotal;
+    private final int maxPerRoute;
+    private final int idleTimeoutSecs;
+    private final int validateAfterInactivityMs;
+    private final Map<String, PooledClient> clients = new HashMap<String, PooledClient>();
+    private int refCount = 0;
+
+    private HttpClientPool(String poolKey, int maxTotal, int maxPerRoute, int idleTimeoutSecs, int validateAfterInactivityMs) {
+        this.poolKey = poolKey;
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute;
+        this.idleTimeoutSecs = idleTimeoutSecs;
+        this.validateAfterInactivityMs = validateAfterInactivityMs;
+    }
+
+    /**
+     * Returns the pool for the given limits, creating it if no module has requested one with the same limits yet.
+     * Each call must be matched by a call to {@link #release()}.
+     *
+     * @param maxTotal                  Maximum number of connections across all partner routes
+     * @param maxPerRoute               Maximum number of connections to a single partner host and port
+     * @param idleTimeoutSecs           Connections idle for longer than this are closed
+     * @param validateAfterInactivityMs Connections idle for longer than this are checked before reuse
+     * @return the shared pool
+     */
+    public static synchronized HttpClientPool acquire(int maxTotal, int maxPerRoute, int idleTimeoutSecs, int validateAfterInactivityMs) {
+        String key = maxTotal + ":" + maxPerRoute + ":" + idleTimeoutSecs + ":" + validateAfterInactivityMs;
+        HttpClientPool pool = sharedPools.get(key);
+        if (pool == null) {
+            pool = new HttpClientPool(key, maxTotal, maxPerRoute, idleTimeoutSecs, validateAfterInactivityMs);
+            sharedPools.put(key, pool);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Created HTTP connection pool: " + pool);
+            }
+        }
+        pool.refCount++;
+        return pool;
+    }
+
+    /**
+     * Releases a reference obtained from {@link #acquire(int, int, int, int)} and closes all pooled connections
+     * when no module is using the pool any more.
+     */
+    public void release() {
+        synchronized (HttpClientPool.class) {
+            if (--refCount > 0) {
+                return;
+            }
+            sharedPools.remove(poolKey);
+        }
+        close();
+    }
+
+    /**
+     * Returns the pooled client that should be used for the given URL.
+     *
+     * @param urlObj  The target URL
+     * @param options The request options that determine the SSL trust mode
+     * @return A client that must NOT be closed by the caller
+     * @throws Exception - the SSL socket factory could not be created
+     */
+    public synchronized CloseableHttpClient getClient(URL urlObj, Map<String, String> options) throws Exception {
+        String protocol = urlObj.getProtocol().toLowerCase();
+        String sslMode = "";
+        if ("https".equals(protocol)) {
+            sslMode = HTTPUtil.getSslTrustMode(urlObj, options);
+        }
+        String clientKey = protocol + ":" + sslMode;
+        PooledClient client = clients.get(clientKey);
+        if (client == null) {
+            client = createClient(urlObj, options, protocol);
+            clients.put(clientKey, client);
+        }
+        return client.httpClient;
+    }
+
+    private PooledClient createClient(URL urlObj, Map<String, String> options, String protocol) throws Exception {
+        RegistryBuilder<ConnectionSocketFactory> registryBuilder = RegistryBuilder.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.getSocketFactory());
+        if ("https".equals(protocol)) {
+            registryBuilder.register("https", HTTPUtil.buildSslFactory(urlObj, options));
+        }
+        Registry<ConnectionSocketFactory> registry = registryBuilder.build();
+        PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager(registry);
+        connManager.setMaxTotal(maxTotal);
+        connManager.setDefaultMaxPerRoute(maxPerRoute);
+        connManager.setValidateAfterInactivity(validateAfterInactivityMs);
+
+        HttpClientBuilder httpBuilder = HttpClientBuilder.create();
+        httpBuilder.setConnectionManager(connManager);
+        httpBuilder.evictExpiredConnections();
+        httpBuilder.evictIdleConnections(idleTimeoutSecs, TimeUnit.SECONDS);
+        // Proxy settings are global so the builder level parts can be set once per client
+        HTTPUtil.setProxyConfig(httpBuilder, RequestConfig.custom(), protocol);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Created pooled HTTP client for " + protocol + " connections in pool: " + this);
+        }
+        return new PooledClient(httpBuilder.build(), connManager);
+    }
+
+    /**
+     * @return The total number of leased, available and pending connections across all clients in the pool
+     */
+    public synchronized PoolStats getTotalStats() {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        for (PooledClient client : clients.values()) {
+            PoolStats stats = client.connManager.getTotalStats();
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+        }
+        return new PoolStats(leased, pending, available, maxTotal);
+    }
+
+    private synchronized void close() {
+        for (Map.Entry<String, PooledClient> entry : clients.entrySet()) {
+            try {
+                entry.getValue().httpClient.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close pooled HTTP client: " + entry.getKey(), e);
+            }
+        }
+        clients.clear();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Closed HTTP connection pool: " + this);
+        }
+    }
+
+    public String toString() {
+        return "HttpClientPool[maxTotal=" + maxTotal + ", maxPerRoute=" + maxPerRoute + ", idleTimeoutSecs=" + idleTimeoutSecs + ", validateAfterInactivityMs=" + validateAfterInactivityMs + "]";
+    }
+
+    private static class PooledClient {
+        private final CloseableHttpClient httpClient;
+        private final PoolingHttpClientConnectionManager connManager;
+
+        PooledClient(CloseableHttpClient httpClient, PoolingHttpClientConnectionManager connManager) {
+            this.httpClient = httpClient;
+            this.connManager = connManager;
+        }
+    }
+
+}
@@ -75,7 +75,7 @@ public class IOUtil {
         return dir;
     }
 
-    public static String getTransferRate(int bytes, ProfilerStub stub) {
+    public static String getTransferRate(long bytes, ProfilerStub stub) {
         StringBuffer buf = new StringBuffer();
         buf.append(bytes).append(" bytes in ");
         buf.append(stub.getCombined()).append(" at ");
@@ -9,9 +9,16 @@ import org.openas2.partner.Partnership;
 import org.openas2.util.HTTPUtil;
 
 import javax.mail.internet.InternetHeaders;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @ExtendWith(MockitoExtension.class)
 
@@ -38,4 +45,38 @@ public class HTTPUtilTest {
         assertThat("Duplicate FROM headers have been removed", msg.getPartnership().getSenderID(Partnership.PID_AS2), equalTo(fromId));
         assertThat("Duplicate TO headers have been removed", msg.getPartnership().getReceiverID(Partnership.PID_AS2), equalTo(toId));
     }
+
+    @Test
+    public void streamsChunkedBodyToOutputStream() throws Exception {
+        String request = "POST /as2 HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nHello\r\n" + "7\r\n, World\r\n" + "0\r\n\r\n";
+        InternetHeaders hdrs = new InternetHeaders();
+        List<String> httpRequest = new ArrayList<String>();
+        ByteArrayOutputStream dataOut = new ByteArrayOutputStream();
+
+        long length = HTTPUtil.readHTTP(new ByteArrayInputStream(request.getBytes(StandardCharsets.US_ASCII)), null, hdrs, httpRequest, dataOut);
+
+        assertThat("Decoded length is returned", length, equalTo(12L));
+        assertThat("Chunks are concatenated", dataOut.toString("US-ASCII"), equalTo("Hello, World"));
+        assertThat("Content-Length is set after decoding", hdrs.getHeader("Content-Length", ","), equalTo("12"));
+        assertThat("Request line is returned", httpRequest.get(0), equalTo("POST"));
+    }
+
+    @Test
+    public void streamsFixedLengthBodyToOutputStream() throws Exception {
+        String request = "POST /as2 HTTP/1.1\r\nContent-Length: 5\r\n\r\nHello";
+        ByteArrayOutputStream dataOut = new ByteArrayOutputStream();
+
+        long length = HTTPUtil.readHTTP(new ByteArrayInputStream(request.getBytes(StandardCharsets.US_ASCII)), null, new InternetHeaders(), new ArrayList<String>(), dataOut);
+
+        assertThat("Content-Length bytes are copied", length, equalTo(5L));
+        assertThat("Body is copied", dataOut.toString("US-ASCII"), equalTo("Hello"));
+    }
+
+    @Test
+    public void rejectsTruncatedFixedLengthBody() {
+        String request = "POST /as2 HTTP/1.1\r\nContent-Length: 10\r\n\r\nHello";
+
+        assertThrows(EOFException.class, () -> HTTPUtil.readHTTP(new ByteArrayInputStream(request.getBytes(StandardCharsets.US_ASCII)), null, new InternetHeaders(), new ArrayList<String>(), new ByteArrayOutputStream()));
+    }
 }
@@ -0,0 +1,73 @@
+package org.openas2.cert;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openas2.Session;
+import org.openas2.lib.helper.BCCryptoHelper;
+import org.openas2.util.AS2Util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+public class PKCS12CertificateFactoryTest {
+
+    @TempDir
+    public File tempDir;
+
+    private PKCS12CertificateFactory factory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        File keystore = new File(tempDir, "as2_certs.p12");
+        Files.copy(Paths.get("src/test/resources/SingleServerTest/MyCompany/config/as2_certs.p12"), keystore.toPath());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(PKCS12CertificateFactory.PARAM_FILENAME, keystore.getAbsolutePath());
+        params.put(PKCS12CertificateFactory.PARAM_PASSWORD, "testas2");
+        factory = new PKCS12CertificateFactory();
+        factory.init(mock(Session.class), params);
+    }
+
+    @Test
+    public void reusesCertificatesAndKeysUntilTheKeystoreIsReloaded() throws Exception {
+        X509Certificate cert = factory.getCertificate("mycompany");
+        PrivateKey key = factory.getPrivateKey("mycompany");
+        assertThat(factory.getCertificate("mycompany"), sameInstance(cert));
+        assertThat(factory.getPrivateKey("mycompany"), sameInstance(key));
+
+        BCCryptoHelper helper = (BCCryptoHelper) AS2Util.getCryptoHelper();
+        helper.getContextCache().getKeyParameter(key);
+        helper.getContextCache().getVerifier(cert);
+        assertThat(helper.getContextCache().size(), greaterThan(0));
+
+        factory.load();
+
+        assertThat(helper.getContextCache().size(), equalTo(0));
+        assertThat(factory.getCertificate("mycompany"), not(sameInstance(cert)));
+        assertThat(factory.getCertificate("mycompany"), equalTo(cert));
+        assertThat(factory.getPrivateKey("mycompany"), not(sameInstance(key)));
+    }
+
+    @Test
+    public void forgetsRemovedCertificates() throws Exception {
+        factory.getCertificate("partnera");
+
+        factory.removeCertificate("partnera");
+
+        assertThrows(CertificateNotFoundException.class, () -> factory.getCertificate("partnera"));
+        assertThrows(CertificateNotFoundException.class, () -> factory.getCertificate(null));
+    }
+}
@@ -0,0 +1,124 @@
+package org.openas2.lib.helper;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.mail.smime.util.FileBackedMimeBodyPart;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openas2.message.AS2Message;
+import org.openas2.util.AS2Util;
+import org.openas2.util.ByteArrayDataSource;
+
+import javax.activation.DataHandler;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.SharedFileInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+
+public class BCCryptoHelperSpoolTest {
+
+    private static BCCryptoHelper helper;
+    private static X509Certificate cert;
+    private static PrivateKey key;
+
+    @TempDir
+    public File tempDir;
+
+    // Parts read from a file only hold a sub stream. The file is closed when the root stream is garbage collected.
+    private final List<SharedFileInputStream> receivedStreams = new ArrayList<SharedFileInputStream>();
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        helper = (BCCryptoHelper) AS2Util.getCryptoHelper();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12", "BC");
+        try (InputStream in = new FileInputStream("src/test/resources/SingleServerTest/MyCompany/config/as2_certs.p12")) {
+            keyStore.load(in, "testas2".toCharArray());
+        }
+        cert = (X509Certificate) keyStore.getCertificate("mycompany");
+        key = (PrivateKey) keyStore.getKey("mycompany", "testas2".toCharArray());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (SharedFileInputStream in : receivedStreams) {
+            in.close();
+        }
+    }
+
+    @Test
+    public void decryptsIntoTheSpoolFile() throws Exception {
+        MimeBodyPart part = createPart();
+        MimeBodyPart encrypted = receive(helper.encrypt(part, cert, "aes128", "binary"));
+        File spoolFile = new File(tempDir, "decrypted.tmp");
+
+        MimeBodyPart decrypted = helper.decrypt(encrypted, cert, key, spoolFile);
+
+        assertThat("Backed by the spool file", decrypted, instanceOf(FileBackedMimeBodyPart.class));
+        assertThat("Decrypted data written to disk", spoolFile.length(), greaterThan(0L));
+        assertThat("Same content as in memory decryption", readContent(decrypted), equalTo(readContent(helper.decrypt(encrypted, cert, key))));
+        assertThat("Content is recovered", readContent(decrypted), equalTo(readContent(part)));
+        ((FileBackedMimeBodyPart) decrypted).dispose();
+    }
+
+    @Test
+    public void decompressesIntoTheSpoolFile() throws Exception {
+        MimeBodyPart part = createPart();
+        AS2Message msg = new AS2Message();
+        msg.setData(receive(helper.compress(msg, part, ICryptoHelper.COMPRESSION_ZLIB, "binary")));
+        File spoolFile = new File(tempDir, "decompressed.tmp");
+
+        helper.decompress(msg, spoolFile);
+
+        assertThat("Backed by the spool file", msg.getData(), instanceOf(FileBackedMimeBodyPart.class));
+        assertThat("Decompressed data written to disk", spoolFile.length(), greaterThan(0L));
+        assertThat("Content is recovered", readContent(msg.getData()), equalTo(readContent(part)));
+        ((FileBackedMimeBodyPart) msg.getData()).dispose();
+    }
+
+    private MimeBodyPart createPart() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            content.append("line ").append(i).append(" of the payload\r\n");
+        }
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(content.toString().getBytes(StandardCharsets.US_ASCII), "application/edi-x12", null)));
+        part.setHeader("Content-Type", "application/edi-x12");
+        part.setHeader("Content-Transfer-Encoding", "binary");
+        part.setHeader("Content-Disposition", "attachment; filename=test.edi");
+        return part;
+    }
+
+    /**
+     * Writes the part out and parses it back from a file the way a spooled inbound message is read.
+     */
+    private MimeBodyPart receive(MimeBodyPart part) throws Exception {
+        File received = new File(tempDir, "received-" + System.nanoTime() + ".tmp");
+        try (OutputStream out = new FileOutputStream(received)) {
+            part.writeTo(out);
+        }
+        SharedFileInputStream in = new SharedFileInputStream(received);
+        receivedStreams.add(in);
+        return new MimeBodyPart(in);
+    }
+
+    private byte[] readContent(MimeBodyPart part) throws Exception {
+        try (InputStream in = part.getInputStream()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.openas2.lib.helper;
+
+import org.bouncycastle.mail.smime.util.CRLFOutputStream;
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.openas2.util.AS2Util;
+
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class MicCalculatorTest {
+
+    private static BCCryptoHelper helper;
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        helper = (BCCryptoHelper) AS2Util.getCryptoHelper();
+    }
+
+    @Test
+    public void matchesTheBufferedCalculation() throws Exception {
+        String[] contents = {"line one\nline two\r\nline three\n", "\r\n\r\nafter blank lines\n", "\r\n\r", "\r\r\nx", "\r", ""};
+        String[] encodings = {"7bit", "binary"};
+        for (String content : contents) {
+            for (String encoding : encodings) {
+                MimeBodyPart part = createPart(content, encoding);
+                for (boolean includeHeaders : new boolean[]{true, false}) {
+                    for (boolean noCanonicalize : new boolean[]{true, false}) {
+                        String expected = bufferedMic(part, "sha-256", includeHeaders, "binary".equals(encoding) || noCanonicalize);
+                        assertThat("Content: " + content + " encoding: " + encoding + " headers: " + includeHeaders + " no canonicalize: " + noCanonicalize,
+                                helper.calculateMIC(part, "sha-256", includeHeaders, noCanonicalize), equalTo(expected));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void trimsLeadingCRLFPairsAcrossWrites() throws Exception {
+        MicCalculator calculator = new MicCalculator(MessageDigest.getInstance("SHA-256"), "sha-256", false);
+        OutputStream out = calculator.getOutputStream();
+        out.write('\r');
+        out.write("\n\r".getBytes(StandardCharsets.US_ASCII));
+        out.write("\ndata".getBytes(StandardCharsets.US_ASCII), 0, 5);
+
+        String expected = new String(Base64.encode(MessageDigest.getInstance("SHA-256").digest("data".getBytes(StandardCharsets.US_ASCII)))) + ", sha-256";
+        assertThat(calculator.getMic(), equalTo(expected));
+    }
+
+    private MimeBodyPart createPart(String content, String encoding) throws Exception {
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", "application/edi-x12");
+        headers.setHeader("Content-Transfer-Encoding", encoding);
+        return new MimeBodyPart(headers, content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * The calculation as it was done before streaming: buffer, canonicalize, trim leading CRLFs, digest.
+     */
+    private String bufferedMic(MimeBodyPart part, String digest, boolean includeHeaders, boolean noCanonicalize) throws Exception {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        OutputStream os = noCanonicalize ? bOut : new CRLFOutputStream(bOut);
+        if (includeHeaders) {
+            part.writeTo(os);
+        } else {
+            org.apache.commons.io.IOUtils.copy(part.getInputStream(), os);
+        }
+        byte[] data = bOut.toByteArray();
+        int start = 0;
+        while (start < data.length - 1 && data[start] == '\r' && data[start + 1] == '\n') {
+            start += 2;
+        }
+        MessageDigest md = MessageDigest.getInstance(helper.convertAlgorithm(digest, true), "BC");
+        md.update(data, start, data.length - start);
+        return new String(Base64.encode(md.digest())) + ", " + digest;
+    }
+}
@@ -0,0 +1,142 @@
+package org.openas2.logging;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
+import org.openas2.message.AS2Message;
+import org.openas2.partner.Partnership;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+
+public class EmailLoggerTest {
+
+    private CapturingEmailLogger logger;
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (logger != null) {
+            logger.destroy();
+        }
+    }
+
+    @Test
+    public void sendsOneDigestPerWindow() throws Exception {
+        logger = createLogger("300", "2", "3");
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            logger.doLog(Level.ERROR, "Connection refused", createMessage("A-to-B"));
+        }
+        logger.doLog(Level.ERROR, "Connection refused", createMessage("A-to-C"));
+        logger.doLog(Level.ERROR, "Decryption failed\nat line 1", createMessage("A-to-B"));
+        logger.doLog(Level.WARNING, "Not emailed", createMessage("A-to-B"));
+        assertThat("Logging does not wait for the mail server", System.currentTimeMillis() - start, lessThanOrEqualTo(1000L));
+
+        assertThat(waitFor(() -> logger.sent.size() == 1), equalTo(true));
+        Thread.sleep(400);
+        assertThat(logger.sent.size(), equalTo(1));
+        String[] email = logger.sent.get(0);
+        assertThat(email[0], startsWith("OpenAS2 Log Digest: 52 errors"));
+        assertThat(email[1], containsString("Partnership: A-to-B\nError: Connection refused\nOccurrences: 50"));
+        assertThat(email[1], containsString("48 more not shown"));
+        assertThat(email[1], containsString("Partnership: A-to-C\nError: Connection refused\nOccurrences: 1"));
+        assertThat(email[1], containsString("Partnership: A-to-B\nError: Decryption failed\nOccurrences: 1"));
+        assertThat(email[1], not(containsString("Not emailed")));
+        assertThat(logger.getStats().get("reported"), equalTo(52L));
+    }
+
+    @Test
+    public void sendsASingleErrorAsBefore() throws Exception {
+        logger = createLogger("0", "5", "3");
+        logger.doLog(new OpenAS2Exception("Disk full"), true);
+
+        assertThat(waitFor(() -> logger.sent.size() == 1), equalTo(true));
+        assertThat(logger.sent.get(0)[0], equalTo("OpenAS2 Exception: org.openas2.OpenAS2Exception: Disk full"));
+        assertThat(logger.sent.get(0)[1], containsString("Disk full"));
+    }
+
+    @Test
+    public void stopsTryingAnUnreachableMailServer() throws Exception {
+        logger = createLogger("0", "5", "2");
+        logger.failing.set(true);
+        logger.doLog(Level.ERROR, "first", null);
+        assertThat(waitFor(() -> logger.getStats().get("circuitOpen") == 1L), equalTo(true));
+        assertThat(logger.attempts.size(), equalTo(2));
+
+        for (int i = 0; i < 20; i++) {
+            logger.doLog(Level.ERROR, "while down " + i, null);
+        }
+        logger.failing.set(false);
+        assertThat("Errors are kept while the circuit is open", waitFor(() -> logger.getStats().get("pending") == 21L), equalTo(true));
+        assertThat(logger.attempts.size(), equalTo(2));
+
+        assertThat(waitFor(() -> logger.sent.size() == 1), equalTo(true));
+        assertThat(logger.sent.get(0)[0], startsWith("OpenAS2 Log Digest: 21 errors"));
+        Map<String, Long> stats = logger.getStats();
+        assertThat(stats.get("circuitOpen"), equalTo(0L));
+        assertThat(stats.get("circuitOpened"), equalTo(1L));
+        assertThat(stats.get("failed"), equalTo(2L));
+        assertThat(stats.get("pending"), equalTo(0L));
+    }
+
+    private CapturingEmailLogger createLogger(String window, String maxExamples, String failureThreshold) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(EmailLogger.PARAM_FROM, "as2@example.com");
+        params.put(EmailLogger.PARAM_TO, "admin@example.com");
+        params.put(EmailLogger.PARAM_SMTPSERVER, "localhost");
+        params.put(EmailLogger.PARAM_DIGEST_WINDOW, window);
+        params.put(EmailLogger.PARAM_MAX_EXAMPLES, maxExamples);
+        params.put(EmailLogger.PARAM_CIRCUIT_FAILURE_THRESHOLD, failureThreshold);
+        params.put(EmailLogger.PARAM_CIRCUIT_OPEN, "500");
+        CapturingEmailLogger emailLogger = new CapturingEmailLogger();
+        emailLogger.init(mock(Session.class), params);
+        return emailLogger;
+    }
+
+    private AS2Message createMessage(String partnershipName) {
+        AS2Message msg = new AS2Message();
+        Partnership partnership = new Partnership();
+        partnership.setName(partnershipName);
+        msg.setPartnership(partnership);
+        return msg;
+    }
+
+    private boolean waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static class CapturingEmailLogger extends EmailLogger {
+        private final List<String[]> sent = Collections.synchronizedList(new ArrayList<String[]>());
+        private final List<String> attempts = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicBoolean failing = new AtomicBoolean();
+
+        @Override
+        protected void sendMessage(String subject, String text) throws OpenAS2Exception {
+            attempts.add(subject);
+            if (failing.get()) {
+                throw new OpenAS2Exception("Connection refused");
+            }
+            sent.add(new String[]{subject, text.replace(System.getProperty("line.separator"), "\n")});
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.openas2.logging;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openas2.Session;
+import org.openas2.params.InvalidParameterException;
+import org.openas2.params.ParameterParser;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+
+public class FileLoggerTest {
+
+    @TempDir
+    public File tempDir;
+
+    private volatile String day = "1";
+    private FileLogger logger;
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (logger != null) {
+            logger.destroy();
+        }
+    }
+
+    @Test
+    public void writesAllQueuedEntriesInOrder() throws Exception {
+        logger = createLogger("true");
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int threadId = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        logger.doLog(Level.FINE, "thread-" + threadId + " line-" + i, null);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        logger.destroy();
+
+        List<String> lines = readLines("1");
+        assertThat(lines.size(), equalTo(2000));
+        int[] nextLine = new int[4];
+        for (String line : lines) {
+            int threadId = Integer.parseInt(line.replaceAll(".*thread-(\\d+) .*", "$1"));
+            assertThat("Entries from one thread keep their order", line.endsWith("line-" + nextLine[threadId]), is(true));
+            nextLine[threadId]++;
+        }
+        assertThat(logger.getStats().get("written"), equalTo(2000L));
+        logger = null;
+    }
+
+    @Test
+    public void rollsOverWhenFileNameChanges() throws Exception {
+        for (String async : new String[]{"true", "false"}) {
+            day = "1";
+            logger = createLogger(async);
+            logger.doLog(Level.FINE, "first day", null);
+            waitForWritten(1);
+            day = "2";
+            // The file name is resolved at most once a second
+            Thread.sleep(1100);
+            logger.doLog(Level.FINE, "second day", null);
+            logger.destroy();
+
+            assertThat(readLines("1").size(), equalTo(1));
+            assertThat(readLines("2").get(0).endsWith("second day"), is(true));
+            assertThat(logger.getStats().get("rollovers"), equalTo(1L));
+            new File(tempDir, "log-1.txt").delete();
+            new File(tempDir, "log-2.txt").delete();
+        }
+        logger = null;
+    }
+
+    @Test
+    public void writesDirectlyAfterDestroy() throws Exception {
+        logger = createLogger("true");
+        logger.destroy();
+        logger.doLog(Level.WARNING, "late entry", null);
+        logger.destroy();
+        assertThat(readLines("1").size(), equalTo(1));
+        logger = null;
+    }
+
+    @Test
+    public void ringBufferRejectsEntriesWhenFull() {
+        LogRingBuffer<Integer> buffer = new LogRingBuffer<Integer>(3);
+        assertThat("Rounded up to a power of two", buffer.capacity(), equalTo(4));
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertThat(buffer.offer(i), is(true));
+            }
+            assertThat(buffer.offer(4), is(false));
+            assertThat(buffer.offer(4, 10), is(false));
+            assertThat(buffer.size(), equalTo(4));
+            for (int i = 0; i < 4; i++) {
+                assertThat(buffer.poll(), equalTo(i));
+            }
+            assertThat(buffer.poll(), nullValue());
+        }
+        buffer.close();
+        assertThat(buffer.offer(1), is(false));
+    }
+
+    private FileLogger createLogger(String async) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FileLogger.PARAM_FILENAME, new File(tempDir, "log-$day$.txt").getAbsolutePath());
+        params.put(FileLogger.PARAM_ASYNC, async);
+        params.put(FileLogger.PARAM_FSYNC_POLICY, FileLogger.FSYNC_BATCH);
+        FileLogger fileLogger = new FileLogger() {
+            @Override
+            protected ParameterParser createParser() {
+                return new ParameterParser() {
+                    @Override
+                    public void setParameter(String key, String value) throws InvalidParameterException {
+                    }
+
+                    @Override
+                    public String getParameter(String key) throws InvalidParameterException {
+                        return day;
+                    }
+                };
+            }
+        };
+        fileLogger.init(mock(Session.class), params);
+        return fileLogger;
+    }
+
+    private void waitForWritten(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (logger.getStats().get("written") < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private List<String> readLines(String fileDay) throws Exception {
+        return Files.readAllLines(new File(tempDir, "log-" + fileDay + ".txt").toPath());
+    }
+}
@@ -0,0 +1,209 @@
+package org.openas2.logging;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
+import org.openas2.message.AS2Message;
+import org.openas2.message.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+public class LogManagerTest {
+
+    private static final String OVERRIDE_PROPERTY = Session.LOG_LEVEL_OVERRIDE_KEY + ".LogManagerTestClass";
+
+    private LogDispatcher dispatcher;
+
+    @AfterEach
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.stop(5000);
+        }
+        System.clearProperty(OVERRIDE_PROPERTY);
+        Log.refreshLevelOverrides();
+    }
+
+    @Test
+    public void buildsTheTextOnlyForLoggersThatWantTheLevel() throws Exception {
+        RecordingLogger warnLogger = createLogger("warn");
+        RecordingLogger allLogger = createLogger(null);
+        LogManager manager = new LogManager();
+        final AtomicInteger built = new AtomicInteger();
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                built.incrementAndGet();
+                return "arg";
+            }
+        };
+
+        manager.setLoggers(Collections.singletonList((Logger) warnLogger));
+        manager.log(Level.FINE, "Test", LogMessage.format("info {}", arg), null);
+        assertThat("Message is not built when no logger wants it", built.get(), equalTo(0));
+        assertThat(warnLogger.entries.size(), equalTo(0));
+
+        manager.addLogger(allLogger);
+        manager.log(Level.WARNING, "Test", LogMessage.format("warn {}", arg), null);
+        assertThat("Message is built once for all loggers", built.get(), equalTo(1));
+        assertThat(warnLogger.entries, contains("Test: warn arg"));
+        assertThat(allLogger.entries, contains("Test: warn arg"));
+    }
+
+    @Test
+    public void rejectsAnUnknownLevel() {
+        assertThrows(OpenAS2Exception.class, () -> createLogger("loud"));
+    }
+
+    @Test
+    public void dispatchesEntriesInOrderOnTheSharedThread() throws Exception {
+        dispatcher = new LogDispatcher(64);
+        dispatcher.start("test-log-dispatch");
+        RecordingLogger first = createLogger(null);
+        RecordingLogger second = createLogger(null);
+        first.setDispatcher(dispatcher);
+        second.setDispatcher(dispatcher);
+        LogManager manager = new LogManager();
+        manager.setLoggers(Arrays.asList((Logger) first, second));
+
+        for (int i = 0; i < 10; i++) {
+            manager.log(Level.FINE, "Test", "entry " + i, null);
+        }
+        dispatcher.stop(5000);
+
+        assertThat(first.entries.size(), equalTo(10));
+        assertThat(first.entries.get(9), equalTo("Test: entry 9"));
+        assertThat(second.entries, equalTo(first.entries));
+        assertThat(first.threads, everyItem(equalTo("test-log-dispatch")));
+        assertThat(dispatcher.getStats().get("dispatched"), equalTo(20L));
+    }
+
+    @Test
+    public void keepsTheMessageIdAndTimeOfQueuedEntries() throws Exception {
+        dispatcher = new LogDispatcher(64);
+        dispatcher.start("test-log-dispatch");
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingLogger logger = new RecordingLogger() {
+            @Override
+            protected void doLog(Level level, String msgText, Message message) {
+                if ("block".equals(msgText)) {
+                    blocked.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.doLog(level, msgText, message);
+            }
+        };
+        logger.init(mock(Session.class), new HashMap<String, String>());
+        logger.setDispatcher(dispatcher);
+        AS2Message msg = new AS2Message();
+        msg.setMessageID("original-id");
+
+        logger.log(Level.FINE, "block", null, null);
+        assertThat(blocked.await(5, TimeUnit.SECONDS), equalTo(true));
+        long before = System.currentTimeMillis();
+        logger.log(Level.FINE, "sending", msg, null);
+        long after = System.currentTimeMillis();
+        msg.setMessageID("changed-id");
+        Thread.sleep(50);
+        release.countDown();
+        dispatcher.stop(5000);
+
+        assertThat(logger.entries, contains("block", "sending [original-id]"));
+        assertThat(logger.timestamps.get(1), allOf(greaterThanOrEqualTo(before), lessThanOrEqualTo(after)));
+    }
+
+    @Test
+    public void logsOnTheCallerWhenTheDispatcherCannotQueue() throws Exception {
+        dispatcher = new LogDispatcher(16);
+        RecordingLogger logger = createLogger(null);
+        logger.setDispatcher(dispatcher);
+
+        logger.log(Level.FINE, "not queued", null, null);
+
+        assertThat(logger.entries, contains("not queued"));
+        assertThat(logger.threads, contains(Thread.currentThread().getName()));
+        assertThat(dispatcher.getStats().get("overflow"), equalTo(1L));
+    }
+
+    @Test
+    public void readsLevelOverridesAgainWhenRefreshed() {
+        Log log = new Log("LogManagerTestClass");
+        log.setLevel(Log.LOG_LEVEL_INFO);
+        assertThat(log.isDebugEnabled(), equalTo(false));
+
+        System.setProperty(OVERRIDE_PROPERTY, "debug");
+        Log.refreshLevelOverrides();
+        assertThat(log.isDebugEnabled(), equalTo(true));
+
+        System.clearProperty(OVERRIDE_PROPERTY);
+        Log.refreshLevelOverrides();
+        assertThat(log.isDebugEnabled(), equalTo(false));
+    }
+
+    @Test
+    public void fillsInMessageArguments() {
+        assertThat(LogMessage.format("a {} b {}", 1, "x").toString(), equalTo("a 1 b x"));
+        assertThat(LogMessage.format("a {} b {}", 1).toString(), equalTo("a 1 b {}"));
+        assertThat(LogMessage.format("no args", 1).toString(), equalTo("no args"));
+        assertThat(LogMessage.format("{}{}", null, "y").toString(), equalTo("nully"));
+    }
+
+    private RecordingLogger createLogger(String level) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        if (level != null) {
+            params.put(BaseLogger.PARAM_LEVEL, level);
+        }
+        RecordingLogger logger = new RecordingLogger();
+        logger.init(mock(Session.class), params);
+        return logger;
+    }
+
+    private static class RecordingLogger extends BaseLogger {
+        private final List<String> entries = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Long> timestamps = Collections.synchronizedList(new ArrayList<Long>());
+
+        protected String getShowDefaults() {
+            return VALUE_SHOW_ALL;
+        }
+
+        protected void doLog(Throwable throwable, boolean terminated) {
+            entries.add(throwable.getMessage());
+            threads.add(Thread.currentThread().getName());
+        }
+
+        protected void doLog(Level level, String msgText, Message message) {
+            entries.add(msgText);
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        protected void doLog(Level level, String msgText, String logMsgId, long timestamp) {
+            timestamps.add(timestamp);
+            super.doLog(level, msgText, logMsgId, timestamp);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.openas2.logging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openas2.Session;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.Mockito.mock;
+
+public class SocketLoggerTest {
+
+    private SocketLogger logger;
+    private ServerSocket collector;
+    private final List<String> receivedLines = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> connections = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (logger != null) {
+            logger.destroy();
+        }
+        if (collector != null) {
+            collector.close();
+        }
+    }
+
+    @Test
+    public void sendsAllEntriesOverOneConnection() throws Exception {
+        startCollector();
+        logger = createLogger(collector.getLocalPort(), SocketLogger.FRAMING_RAW, "1000");
+        for (int i = 0; i < 200; i++) {
+            logger.doLog(Level.FINE, "line-" + i, null);
+        }
+        waitForLines(200);
+        logger.destroy();
+
+        assertThat(receivedLines.get(199).endsWith("line-199"), equalTo(true));
+        assertThat(connections.size(), equalTo(1));
+        Map<String, Long> stats = logger.getStats();
+        assertThat(stats.get("sent"), equalTo(200L));
+        assertThat(stats.get("dropped"), equalTo(0L));
+        logger = null;
+    }
+
+    @Test
+    public void framesEntriesAsJsonLines() throws Exception {
+        startCollector();
+        logger = createLogger(collector.getLocalPort(), SocketLogger.FRAMING_NDJSON, "100");
+        logger.doLog(Level.WARNING, "multi\nline \"quoted\"", null);
+        waitForLines(1);
+
+        JsonNode entry = new ObjectMapper().readTree(receivedLines.get(0));
+        assertThat(entry.get("level").asText(), equalTo("warning"));
+        assertThat(entry.get("message").asText(), equalTo("multi\nline \"quoted\""));
+        assertThat(entry.has("timestamp"), equalTo(true));
+    }
+
+    @Test
+    public void dropsEntriesWhenCollectorIsUnavailable() throws Exception {
+        int unusedPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            unusedPort = probe.getLocalPort();
+        }
+        logger = createLogger(unusedPort, SocketLogger.FRAMING_RAW, "8");
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            logger.doLog(Level.FINE, "line-" + i, null);
+        }
+        assertThat("Logging does not wait for the collector", System.currentTimeMillis() - start, lessThanOrEqualTo(2000L));
+        Map<String, Long> stats = logger.getStats();
+        assertThat(stats.get("queued"), lessThanOrEqualTo(8L));
+        assertThat(stats.get("dropped"), greaterThan(0L));
+    }
+
+    private SocketLogger createLogger(int port, String framing, String queueSize) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(SocketLogger.PARAM_IPADDDR, "127.0.0.1");
+        params.put(SocketLogger.PARAM_PORTID, Integer.toString(port));
+        params.put(SocketLogger.PARAM_FRAMING, framing);
+        params.put(SocketLogger.PARAM_QUEUE_SIZE, queueSize);
+        SocketLogger socketLogger = new SocketLogger();
+        socketLogger.init(mock(Session.class), params);
+        return socketLogger;
+    }
+
+    private void startCollector() throws Exception {
+        collector = new ServerSocket(0);
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = collector.accept();
+                        connections.add(socket.getPort());
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                                    String line;
+                                    while ((line = reader.readLine()) != null) {
+                                        receivedLines.add(line);
+                                    }
+                                } catch (Exception e) {
+                                    // connection closed
+                                }
+                            }
+                        }).start();
+                    }
+                } catch (Exception e) {
+                    // collector closed
+                }
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private void waitForLines(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (receivedLines.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(receivedLines.size(), equalTo(count));
+    }
+}
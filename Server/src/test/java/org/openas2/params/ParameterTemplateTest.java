@@ -0,0 +1,74 @@
+package org.openas2.params;
+
+import org.junit.jupiter.api.Test;
+import org.openas2.util.Properties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ParameterTemplateTest {
+
+    @Test
+    public void compilesEachFormatOnce() throws Exception {
+        String format = "$test.a$-$test.b.c$.edi";
+        assertThat(ParameterTemplate.compile(format), sameInstance(ParameterTemplate.compile(format)));
+    }
+
+    @Test
+    public void fillsInLiteralsAndParameters() throws Exception {
+        CompositeParameters params = new CompositeParameters(false).add("test", new MapParameters());
+        Properties.setProperty("template.test.prop", "fromProps");
+
+        assertThat(params.format("pre$test.a$mid$test.b.c$post"), equalTo("preAmidBCpost"));
+        assertThat(params.format("$test.a$$test.a$"), equalTo("AA"));
+        assertThat("Escaped delimiter", params.format("cost $$10 $test.a$"), equalTo("cost $10 A"));
+        assertThat("Empty key parts are dropped", params.format("$test..b..c.$"), equalTo("BC"));
+        assertThat(params.format("$properties.template.test.prop$"), equalTo("fromProps"));
+        assertThat(params.format("no parameters"), equalTo("no parameters"));
+        assertThat(params.format(""), equalTo(""));
+    }
+
+    @Test
+    public void handlesMissingParsersAsBefore() throws Exception {
+        CompositeParameters strict = new CompositeParameters(false).add("test", new MapParameters());
+        assertThrows(InvalidParameterException.class, () -> strict.format("$other.a$"));
+        assertThrows(InvalidParameterException.class, () -> strict.format("$test$"));
+        assertThrows(InvalidParameterException.class, () -> strict.format("$test.a"));
+
+        CompositeParameters lenient = new CompositeParameters(true).add("test", new MapParameters());
+        assertThat(lenient.format("x$other.a$y"), equalTo("xy"));
+        lenient.setReturnParamStringForMissingParsers(true);
+        assertThat(lenient.format("x$other.a$y"), equalTo("x$other.a$y"));
+    }
+
+    @Test
+    public void resolvesThroughPlainParsers() throws Exception {
+        assertThat(new MapParameters().format("[$a$|$b.c$]"), equalTo("[A|BC]"));
+    }
+
+    private static class MapParameters extends ParameterParser {
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        MapParameters() {
+            values.put("a", "A");
+            values.put("b.c", "BC");
+        }
+
+        public void setParameter(String key, String value) {
+            values.put(key, value);
+        }
+
+        public String getParameter(String key) throws InvalidParameterException {
+            String value = values.get(key);
+            if (value == null) {
+                throw new InvalidParameterException("Invalid key", this, key, null);
+            }
+            return value;
+        }
+    }
+}
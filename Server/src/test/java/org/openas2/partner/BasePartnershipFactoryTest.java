@@ -0,0 +1,110 @@
+package org.openas2.partner;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openas2.OpenAS2Exception;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BasePartnershipFactoryTest {
+
+    private BasePartnershipFactory partnershipFactory;
+    private Partnership aToB;
+    private Partnership aToBByEmail;
+    private Partnership bToA;
+
+    @BeforeEach
+    public void setUp() {
+        partnershipFactory = new BasePartnershipFactory() {
+            @Override
+            public Map<String, Object> getPartners() {
+                return new HashMap<String, Object>();
+            }
+        };
+        aToB = createPartnership("A-to-B", "A", "B");
+        aToBByEmail = createPartnership("A-to-B-email", "A", "B");
+        aToBByEmail.setSenderID(Partnership.PID_EMAIL, "a@example.com");
+        bToA = createPartnership("B-to-A", "B", "A");
+        List<Partnership> partnerships = new ArrayList<Partnership>();
+        partnerships.add(aToB);
+        partnerships.add(aToBByEmail);
+        partnerships.add(bToA);
+        partnershipFactory.setPartnerships(partnerships);
+    }
+
+    @Test
+    public void findsFirstPartnershipForAS2Ids() {
+        assertThat(partnershipFactory.getPartnership(ids("A", null), ids("B", null)), sameInstance(aToB));
+        assertThat(partnershipFactory.getPartnership(ids("B", null), ids("A", null)), sameInstance(bToA));
+        assertThat(partnershipFactory.getPartnership(ids("A", null), ids("C", null)), nullValue());
+    }
+
+    @Test
+    public void comparesAllSearchIdsForAS2IdMatches() {
+        assertThat(partnershipFactory.getPartnership(ids("A", "a@example.com"), ids("B", null)), sameInstance(aToBByEmail));
+        assertThat(partnershipFactory.getPartnership(ids("A", "x@example.com"), ids("B", null)), nullValue());
+    }
+
+    @Test
+    public void fallsBackToScanWithoutAS2Ids() {
+        Map<String, Object> senderIds = new HashMap<String, Object>();
+        senderIds.put(Partnership.PID_EMAIL, "a@example.com");
+        assertThat(partnershipFactory.getPartnership(senderIds, ids("B", null)), sameInstance(aToBByEmail));
+    }
+
+    @Test
+    public void findsPartnershipByNameAndReverseLookup() throws OpenAS2Exception {
+        Partnership search = new Partnership();
+        search.setName("B-to-A");
+        assertThat(partnershipFactory.getPartnership(search, false), sameInstance(bToA));
+
+        Partnership mdnSearch = new Partnership();
+        mdnSearch.setSenderID(Partnership.PID_AS2, "B");
+        mdnSearch.setReceiverID(Partnership.PID_AS2, "A");
+        assertThat(partnershipFactory.getPartnership(mdnSearch, true), sameInstance(aToB));
+
+        Partnership unknown = new Partnership();
+        unknown.setName("unknown");
+        unknown.setSenderID(Partnership.PID_AS2, "X");
+        unknown.setReceiverID(Partnership.PID_AS2, "Y");
+        assertThrows(PartnershipNotFoundException.class, () -> partnershipFactory.getPartnership(unknown, false));
+    }
+
+    @Test
+    public void lookupsUseSnapshotFromLastSet() {
+        List<Partnership> partnerships = new ArrayList<Partnership>(partnershipFactory.getPartnerships());
+        partnerships.remove(aToB);
+        assertThat("Pending changes are not visible", partnershipFactory.getPartnership(ids("A", null), ids("B", null)), sameInstance(aToB));
+        assertThrows(UnsupportedOperationException.class, () -> partnershipFactory.getPartnerships().clear());
+
+        partnershipFactory.setPartnerships(partnerships);
+        assertThat(partnershipFactory.getPartnerships().size(), equalTo(2));
+        assertThat(partnershipFactory.getPartnership(ids("A", null), ids("B", null)), sameInstance(aToBByEmail));
+    }
+
+    private static Partnership createPartnership(String name, String senderId, String receiverId) {
+        Partnership partnership = new Partnership();
+        partnership.setName(name);
+        partnership.setSenderID(Partnership.PID_AS2, senderId);
+        partnership.setReceiverID(Partnership.PID_AS2, receiverId);
+        return partnership;
+    }
+
+    private static Map<String, Object> ids(String as2Id, String email) {
+        Map<String, Object> ids = new HashMap<String, Object>();
+        ids.put(Partnership.PID_AS2, as2Id);
+        if (email != null) {
+            ids.put(Partnership.PID_EMAIL, email);
+        }
+        return ids;
+    }
+}
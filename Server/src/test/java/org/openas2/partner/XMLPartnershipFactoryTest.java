@@ -0,0 +1,174 @@
+package org.openas2.partner;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
+import org.openas2.XMLSession;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class XMLPartnershipFactoryTest {
+
+    @TempDir
+    public File tempDir;
+
+    private File partnershipsFile;
+    private XMLSession session;
+    private XMLPartnershipFactory factory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        partnershipsFile = new File(tempDir, "partnerships.xml");
+        session = mock(XMLSession.class);
+        Node basePollerConfig = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream("<pollerConfig classname=\"org.openas2.processor.receiver.AS2DirectoryPollingModule\" interval=\"5\"/>".getBytes(StandardCharsets.UTF_8)))
+                .getDocumentElement();
+        when(session.getBasePartnershipPollerConfig()).thenReturn(basePollerConfig);
+
+        writePartnerships(partnership("A-to-B", "A", "B", "aes128", true), partnership("A-to-C", "A", "C", "aes128", true), partnership("A-to-D", "A", "D", "aes128", true));
+        factory = new XMLPartnershipFactory();
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(XMLPartnershipFactory.PARAM_FILENAME, partnershipsFile.getAbsolutePath());
+        factory.init(session, parameters);
+    }
+
+    @Test
+    public void reloadsOnlyChangedPartnerships() throws Exception {
+        Partnership unchanged = factory.getPartnership("A-to-B");
+        Partnership changed = factory.getPartnership("A-to-C");
+        clearInvocations(session);
+
+        writePartnerships(partnership("A-to-B", "A", "B", "aes128", true), partnership("A-to-C", "A", "C", "3des", true), partnership("A-to-E", "A", "E", "aes128", true));
+        factory.refresh();
+
+        assertThat("Unchanged partnership is kept", factory.getPartnership("A-to-B"), sameInstance(unchanged));
+        assertThat(factory.getPartnership("A-to-C"), not(sameInstance(changed)));
+        assertThat(factory.getPartnership("A-to-C").getAttribute(Partnership.PA_ENCRYPTION_ALGORITHM), equalTo("3des"));
+        assertThat("Removed partnership is gone", factory.getPartnership("A-to-D"), nullValue());
+        assertThat(factory.getPartnership("A-to-E").getName(), equalTo("A-to-E"));
+
+        verify(session, never()).destroyPartnershipPollers(anyString());
+        verify(session, never()).destroyPartnershipPoller(eq("A-to-B"), anyString());
+        verify(session, never()).loadPartnershipPoller(any(Node.class), eq("A-to-B"), anyString());
+        verify(session, never()).destroyPartnershipPoller(eq("A-to-C"), anyString());
+        verify(session, never()).loadPartnershipPoller(any(Node.class), eq("A-to-C"), anyString());
+        verify(session).destroyPartnershipPoller("A-to-D", Session.PARTNERSHIP_POLLER);
+        verify(session).loadPartnershipPoller(any(Node.class), eq("A-to-E"), eq(Session.PARTNERSHIP_POLLER));
+
+        Map<String, Long> stats = factory.getReloadStats();
+        assertThat(stats.get("reloads"), equalTo(2L));
+        assertThat(stats.get("added"), equalTo(1L));
+        assertThat(stats.get("removed"), equalTo(1L));
+        assertThat(stats.get("changed"), equalTo(1L));
+        assertThat(stats.get("unchanged"), equalTo(1L));
+    }
+
+    @Test
+    public void replacesThePollerWhenItsConfigurationChanges() throws Exception {
+        clearInvocations(session);
+
+        writePartnerships(partnership("A-to-B", "A", "B", "aes128", true), partnership("A-to-C", "A", "C", "aes128", true), partnership("A-to-D", "A", "D", "aes128", false));
+        factory.refresh();
+
+        verify(session).destroyPartnershipPoller("A-to-D", Session.PARTNERSHIP_POLLER);
+        verify(session, never()).loadPartnershipPoller(any(Node.class), anyString(), anyString());
+        assertThat(factory.getReloadStats().get("changed"), equalTo(1L));
+
+        writePartnerships(partnership("A-to-B", "A", "B", "aes128", true), partnership("A-to-C", "A", "C", "aes128", true), partnership("A-to-D", "A", "D", "aes128", true));
+        factory.refresh();
+
+        verify(session).loadPartnershipPoller(any(Node.class), eq("A-to-D"), eq(Session.PARTNERSHIP_POLLER));
+    }
+
+    @Test
+    public void restoresThePollersWhenAChangedPollerFailsToLoad() throws Exception {
+        Partnership loaded = factory.getPartnership("A-to-D");
+        doAnswer(invocation -> {
+            if (((Element) invocation.getArgument(0)).getAttribute("outboxdir").startsWith("broken")) {
+                throw new OpenAS2Exception("Partnership poller cannot be loaded because there is a configuration error");
+            }
+            return null;
+        }).when(session).loadPartnershipPoller(any(Node.class), anyString(), anyString());
+        clearInvocations(session);
+
+        String brokenPoller = partnership("A-to-D", "A", "D", "aes128", true).replace("outbox/", "broken/");
+        writePartnerships(partnership("A-to-B", "A", "B", "aes128", true), brokenPoller);
+        assertThrows(OpenAS2Exception.class, () -> factory.refresh());
+
+        assertThat(factory.getPartnership("A-to-D"), sameInstance(loaded));
+        assertThat(factory.getPartnership("A-to-C"), not(nullValue()));
+        verify(session).destroyPartnershipPoller("A-to-C", Session.PARTNERSHIP_POLLER);
+        verify(session).destroyPartnershipPoller("A-to-D", Session.PARTNERSHIP_POLLER);
+        verify(session).loadPartnershipPoller(any(Node.class), eq("A-to-C"), eq(Session.PARTNERSHIP_POLLER));
+        verify(session, times(2)).loadPartnershipPoller(any(Node.class), eq("A-to-D"), eq(Session.PARTNERSHIP_POLLER));
+        verify(session).startPartnershipPollers();
+
+        // The restored pollers are tracked again so putting the old file back changes nothing
+        clearInvocations(session);
+        writePartnerships(partnership("A-to-B", "A", "B", "aes128", true), partnership("A-to-C", "A", "C", "aes128", true), partnership("A-to-D", "A", "D", "aes128", true));
+        factory.refresh();
+
+        verify(session, never()).destroyPartnershipPoller(anyString(), anyString());
+        verify(session, never()).loadPartnershipPoller(any(Node.class), anyString(), anyString());
+        assertThat(factory.getReloadStats().get("unchanged"), equalTo(3L));
+    }
+
+    @Test
+    public void keepsLoadedPartnershipsWhenTheFileIsInvalid() throws Exception {
+        Partnership loaded = factory.getPartnership("A-to-B");
+        clearInvocations(session);
+
+        writePartnerships(partnership("A-to-B", "A", "B", "3des", true), partnership("A-to-B", "A", "B", "aes128", true));
+        assertThrows(OpenAS2Exception.class, () -> factory.refresh());
+
+        assertThat(factory.getPartnership("A-to-B"), sameInstance(loaded));
+        verify(session, never()).destroyPartnershipPoller(anyString(), anyString());
+    }
+
+    private String partnership(String name, String sender, String receiver, String encrypt, boolean poller) {
+        return "<partnership name=\"" + name + "\">"
+                + "<sender name=\"" + sender + "\"/><receiver name=\"" + receiver + "\"/>"
+                + "<attribute name=\"" + Partnership.PA_ENCRYPTION_ALGORITHM + "\" value=\"" + encrypt + "\"/>"
+                + (poller ? "<pollerConfig enabled=\"true\" outboxdir=\"outbox/$partnership.name$\"/>" : "")
+                + "</partnership>";
+    }
+
+    private void writePartnerships(String... partnerships) throws Exception {
+        StringBuilder xml = new StringBuilder("<partnerships>");
+        for (String partner : new String[]{"A", "B", "C", "D", "E"}) {
+            xml.append("<partner name=\"").append(partner).append("\" as2_id=\"").append(partner).append("\"/>");
+        }
+        for (String partnership : partnerships) {
+            xml.append(partnership);
+        }
+        xml.append("</partnerships>");
+        Files.write(partnershipsFile.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,210 @@
+package org.openas2.processor.msgtracking;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openas2.Session;
+import org.openas2.message.AS2Message;
+import org.openas2.message.Message;
+import org.openas2.processor.msgtracking.BaseMsgTrackingModule.FIELDS;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DbTrackingModuleTest {
+    private static final String JDBC_URL = "jdbc:h2:mem:trackingtest;DB_CLOSE_DELAY=-1";
+
+    private Connection keepAlive;
+    private DbTrackingModule module;
+    private final Message msg = new AS2Message();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        keepAlive = DriverManager.getConnection(JDBC_URL, "sa", "");
+        try (Statement s = keepAlive.createStatement()) {
+            s.execute("DROP TABLE IF EXISTS msg_metadata");
+            s.execute("CREATE TABLE msg_metadata (ID INTEGER NOT NULL AUTO_INCREMENT, MSG_ID VARCHAR NOT NULL,"
+                    + " SENDER_ID VARCHAR(255) NOT NULL, RECEIVER_ID VARCHAR(255) NOT NULL, STATE VARCHAR(255),"
+                    + " STATUS VARCHAR(255), RESEND_COUNT INTEGER, DIRECTION VARCHAR(25), FILE_NAME VARCHAR(255),"
+                    + " ENCRYPTION_ALGORITHM VARCHAR(255), SIGNATURE_ALGORITHM VARCHAR(255), MDN_MODE VARCHAR(255),"
+                    + " CREATE_DT TIMESTAMP, UPDATE_DT TIMESTAMP, PRIMARY KEY (ID))");
+            s.execute("CREATE UNIQUE INDEX MSG_ID_UNIQUE ON msg_metadata (MSG_ID)");
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (module != null) {
+            module.stop();
+        }
+        keepAlive.close();
+    }
+
+    @Test
+    public void coalescesQueuedEventsForSameMessage() throws Exception {
+        module = createModule("true");
+        module.persist(msg, event("msg-1", "msg_sent", "pending", null));
+        module.persist(msg, event("msg-2", "msg_sent", "pending", null));
+        module.persist(msg, event("msg-1", "mdn_received", null, "2"));
+        module.stop();
+
+        Map<String, Long> stats = module.getWriterStats();
+        assertThat("One event merged into the queued record", stats.get("coalesced"), equalTo(1L));
+        assertThat("Both messages written", stats.get("written"), equalTo(2L));
+        Map<String, String> row = selectRow("msg-1");
+        assertThat(row.get("STATE"), equalTo("mdn_received"));
+        assertThat("Missing value does not clear earlier one", row.get("STATUS"), equalTo("pending"));
+        assertThat(row.get("RESEND_COUNT"), equalTo("2"));
+        assertThat(row.get("CREATE_DT"), notNullValue());
+        assertThat("Record went through more than one state", row.get("UPDATE_DT"), notNullValue());
+        assertThat(selectRow("msg-2").get("UPDATE_DT"), nullValue());
+        module = null;
+    }
+
+    @Test
+    public void updatesExistingRecordWhenWritingSynchronously() throws Exception {
+        module = createModule("false");
+        module.persist(msg, event("msg-1", "msg_sent", "pending", "null"));
+        Map<String, String> inserted = selectRow("msg-1");
+        assertThat("Non numeric value stored as NULL", inserted.get("RESEND_COUNT"), nullValue());
+        assertThat(inserted.get("UPDATE_DT"), nullValue());
+
+        module.persist(msg, event("msg-1", "msg_o'sent", null, null));
+        Map<String, String> updated = selectRow("msg-1");
+        assertThat("Quotes are bound not concatenated", updated.get("STATE"), equalTo("msg_o'sent"));
+        assertThat(updated.get("STATUS"), equalTo("pending"));
+        assertThat(updated.get("CREATE_DT"), equalTo(inserted.get("CREATE_DT")));
+        assertThat(updated.get("UPDATE_DT"), notNullValue());
+    }
+
+    @Test
+    public void pagesFilteredMessagesNewestFirst() throws Exception {
+        module = createModule("false");
+        for (int i = 1; i <= 5; i++) {
+            insertRow("msg-" + i, i % 2 == 0 ? "C" : "B", "SEND", "2024-03-0" + i + " 10:00:00");
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(MessageQuery.PARAM_RECEIVER, "B");
+        params.put(MessageQuery.PARAM_LIMIT, "2");
+        MessagePage first = module.listMessages(MessageQuery.fromParams(params));
+        assertThat(msgIds(first), contains("msg-5", "msg-3"));
+        assertThat(first.getNextCursor(), notNullValue());
+
+        params.put(MessageQuery.PARAM_CURSOR, first.getNextCursor());
+        MessagePage second = module.listMessages(MessageQuery.fromParams(params));
+        assertThat(msgIds(second), contains("msg-1"));
+        assertThat("Last page", second.getNextCursor(), nullValue());
+
+        params.clear();
+        params.put(MessageQuery.PARAM_START_DATE, "2024-03-02");
+        params.put(MessageQuery.PARAM_END_DATE, "2024-03-03");
+        params.put(MessageQuery.PARAM_DIRECTION, "SEND");
+        assertThat("End date includes the whole day", msgIds(module.listMessages(MessageQuery.fromParams(params))), contains("msg-3", "msg-2"));
+    }
+
+    @Test
+    public void countsMessagesPerDayAndState() throws Exception {
+        module = createModule("false");
+        insertRow("msg-1", "B", "SEND", "2024-03-01 08:00:00");
+        insertRow("msg-2", "B", "SEND", "2024-03-01 18:00:00");
+        insertRow("msg-3", "B", "SEND", "2024-03-02 09:00:00");
+        insertRow("msg-4", "B", "SEND", "2024-04-01 09:00:00");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(MessageQuery.PARAM_START_DATE, "2024-03-01");
+        params.put(MessageQuery.PARAM_END_DATE, "2024-03-31");
+        List<HashMap<String, String>> counts = module.getMessageCounts(MessageQuery.fromParams(params));
+
+        assertThat(counts.size(), equalTo(2));
+        assertThat(counts.get(0).get("DAY"), equalTo("2024-03-01"));
+        assertThat(counts.get(0).get("STATE"), equalTo("msg_sent"));
+        assertThat(counts.get(0).get("COUNT"), equalTo("2"));
+        assertThat(counts.get(1).get("COUNT"), equalTo("1"));
+    }
+
+    @Test
+    public void dropsEventWhenQueueIsFull() throws Exception {
+        TrackingEventQueue queue = new TrackingEventQueue(1);
+        assertThat(queue.offer(event("msg-1", "a", null, null), 0), is(true));
+        assertThat("Same message is merged even when full", queue.offer(event("msg-1", "b", null, null), 0), is(true));
+        assertThat(queue.offer(event("msg-2", "a", null, null), 10), is(false));
+        assertThat(queue.getBackpressureCount(), equalTo(1L));
+        assertThat(queue.getDroppedCount(), equalTo(1L));
+        assertThat(queue.take(1, 10, 0).size(), equalTo(1));
+        assertThat(queue.offer(event("msg-2", "a", null, null), 0), is(true));
+    }
+
+    private DbTrackingModule createModule(String asyncWrite) throws Exception {
+        Session session = mock(Session.class);
+        when(session.getBaseDirectory()).thenReturn(".");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(DbTrackingModule.PARAM_DB_USER, "sa");
+        params.put(DbTrackingModule.PARAM_DB_PWD, "");
+        params.put(DbTrackingModule.PARAM_JDBC_CONNECT_STRING, JDBC_URL);
+        params.put(DbTrackingModule.PARAM_USE_EMBEDDED_DB, "false");
+        params.put(DbTrackingModule.PARAM_ASYNC_WRITE, asyncWrite);
+        // Long enough that the test events are all queued before the first flush
+        params.put(DbTrackingModule.PARAM_FLUSH_INTERVAL, "60000");
+        DbTrackingModule trackingModule = new DbTrackingModule();
+        trackingModule.init(session, params);
+        trackingModule.start();
+        return trackingModule;
+    }
+
+    private static Map<String, String> event(String msgId, String state, String status, String resendCount) {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(FIELDS.MSG_ID, msgId);
+        map.put(FIELDS.SENDER_ID, "A");
+        map.put(FIELDS.RECEIVER_ID, "B");
+        map.put(FIELDS.STATE, state);
+        map.put(FIELDS.STATUS, status);
+        map.put(FIELDS.RESEND_COUNT, resendCount);
+        return map;
+    }
+
+    private void insertRow(String msgId, String receiverId, String direction, String createDt) throws Exception {
+        try (PreparedStatement ps = keepAlive.prepareStatement("INSERT INTO msg_metadata (MSG_ID, SENDER_ID, RECEIVER_ID, STATE, DIRECTION, CREATE_DT) VALUES (?, 'A', ?, 'msg_sent', ?, ?)")) {
+            ps.setString(1, msgId);
+            ps.setString(2, receiverId);
+            ps.setString(3, direction);
+            ps.setTimestamp(4, Timestamp.valueOf(createDt));
+            ps.executeUpdate();
+        }
+    }
+
+    private static List<String> msgIds(MessagePage page) {
+        List<String> ids = new ArrayList<String>();
+        for (Map<String, String> row : page.getRows()) {
+            ids.add(row.get("MSG_ID"));
+        }
+        return ids;
+    }
+
+    private Map<String, String> selectRow(String msgId) throws Exception {
+        Map<String, String> row = new HashMap<String, String>();
+        try (Statement s = keepAlive.createStatement();
+             ResultSet rs = s.executeQuery("SELECT * FROM msg_metadata WHERE MSG_ID = '" + msgId + "'")) {
+            assertThat("Row exists for " + msgId, rs.next(), is(true));
+            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                row.put(rs.getMetaData().getColumnLabel(i), rs.getString(i));
+            }
+        }
+        return row;
+    }
+}
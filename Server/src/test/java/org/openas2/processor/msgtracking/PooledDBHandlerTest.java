@@ -0,0 +1,127 @@
+package org.openas2.processor.msgtracking;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PooledDBHandlerTest {
+    private static final String JDBC_URL = "jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1";
+
+    private PooledDBHandler pool;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(DbTrackingModule.PARAM_POOL_MIN_SIZE, "1");
+        params.put(DbTrackingModule.PARAM_POOL_MAX_SIZE, "2");
+        params.put(DbTrackingModule.PARAM_POOL_BORROW_TIMEOUT, "100");
+        params.put(DbTrackingModule.PARAM_POOL_VALIDATE_AFTER_IDLE, "0");
+        pool = new PooledDBHandler();
+        pool.start(JDBC_URL, "sa", "", params);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pool.stop();
+    }
+
+    @Test
+    public void reusesConnectionsAndStatements() throws Exception {
+        assertThat("Minimum size opened at start", pool.getPoolStats().get("total"), equalTo(1L));
+        for (int i = 0; i < 3; i++) {
+            try (Connection conn = pool.getConnection(); PreparedStatement ps = conn.prepareStatement("SELECT ?")) {
+                ps.setInt(1, i);
+                try (ResultSet rs = ps.executeQuery()) {
+                    assertThat(rs.next(), is(true));
+                    assertThat(rs.getInt(1), equalTo(i));
+                }
+            }
+        }
+        Map<String, Long> stats = pool.getPoolStats();
+        assertThat(stats.get("created"), equalTo(1L));
+        assertThat(stats.get("borrowed"), equalTo(3L));
+        assertThat(stats.get("idle"), equalTo(1L));
+        assertThat(stats.get("statementCacheMisses"), equalTo(1L));
+        assertThat(stats.get("statementCacheHits"), equalTo(2L));
+    }
+
+    @Test
+    public void closedConnectionCannotBeUsed() throws Exception {
+        Connection conn = pool.getConnection();
+        PreparedStatement ps = conn.prepareStatement("SELECT 1");
+        conn.close();
+        assertThat(conn.isClosed(), is(true));
+        assertThat("Statements of a returned connection are closed", ps.isClosed(), is(true));
+        assertThrows(SQLException.class, () -> conn.createStatement());
+        assertThrows(SQLException.class, () -> ps.executeQuery());
+    }
+
+    @Test
+    public void closesUncachedStatementsWhenConnectionReturned() throws Exception {
+        Connection conn = pool.getConnection();
+        Statement created = conn.createStatement();
+        ResultSet rs = created.executeQuery("SELECT 1");
+        PreparedStatement cached = conn.prepareStatement("SELECT 2");
+        PreparedStatement duplicate = conn.prepareStatement("SELECT 2");
+        conn.close();
+        assertThat(created.isClosed(), is(true));
+        assertThat(rs.isClosed(), is(true));
+        assertThat(duplicate.isClosed(), is(true));
+        assertThat(cached.isClosed(), is(true));
+    }
+
+    @Test
+    public void closesIdleConnectionsWithoutWaitingForAReturn() throws Exception {
+        pool.stop();
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(DbTrackingModule.PARAM_POOL_MIN_SIZE, "0");
+        params.put(DbTrackingModule.PARAM_POOL_IDLE_TIMEOUT, "1");
+        pool = new PooledDBHandler();
+        pool.start(JDBC_URL, "sa", "", params);
+        pool.getConnection().close();
+        assertThat(pool.getPoolStats().get("idle"), equalTo(1L));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getPoolStats().get("total") > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(pool.getPoolStats().get("total"), equalTo(0L));
+        assertThat(pool.getPoolStats().get("destroyed"), equalTo(1L));
+    }
+
+    @Test
+    public void timesOutWhenPoolExhausted() throws Exception {
+        try (Connection conn1 = pool.getConnection(); Connection conn2 = pool.getConnection()) {
+            assertThrows(SQLException.class, () -> pool.getConnection());
+            assertThat(pool.getPoolStats().get("borrowTimeouts"), equalTo(1L));
+        }
+        assertThat(pool.getPoolStats().get("idle"), equalTo(2L));
+    }
+
+    @Test
+    public void replacesConnectionThatFailsValidation() throws Exception {
+        try (Connection conn = pool.getConnection()) {
+            // Break the physical connection underneath the pool
+            conn.unwrap(Connection.class).close();
+        }
+        try (Connection conn = pool.getConnection()) {
+            assertThat(conn.isValid(1), is(true));
+        }
+        Map<String, Long> stats = pool.getPoolStats();
+        assertThat(stats.get("validationFailures") + stats.get("destroyed") > 0, is(true));
+        assertThat(stats.get("total"), equalTo(1L));
+    }
+}
@@ -0,0 +1,307 @@
+package org.openas2.processor.receiver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openas2.OpenAS2Exception;
+import org.openas2.Session;
+import org.openas2.message.AS2Message;
+import org.openas2.message.Message;
+import org.openas2.processor.Processor;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DirectoryPollingModuleTest {
+
+    @TempDir
+    public File tempDir;
+
+    private File outboxDir;
+    private Session session;
+    private DirectoryPollingModule poller;
+    private final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private final CountDownLatch slowRelease = new CountDownLatch(1);
+    private final List<DirectoryPollingModule> otherPollers = new ArrayList<DirectoryPollingModule>();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        outboxDir = new File(tempDir, "outbox");
+        outboxDir.mkdirs();
+        session = mock(Session.class);
+        Processor processor = mock(Processor.class);
+        Map<String, String> processorParams = new HashMap<String, String>();
+        processorParams.put("pendingmdninfo", new File(tempDir, "pendinginfo").getAbsolutePath());
+        processorParams.put("pendingmdn", new File(tempDir, "pending").getAbsolutePath());
+        when(session.getProcessor()).thenReturn(processor);
+        when(processor.getParameters()).thenReturn(processorParams);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        release.countDown();
+        slowRelease.countDown();
+        if (poller != null && poller.isRunning()) {
+            poller.stop();
+        }
+        for (DirectoryPollingModule other : otherPollers) {
+            if (other.isRunning()) {
+                other.stop();
+            }
+        }
+    }
+
+    @Test
+    public void neverDispatchesFileTwiceWhileItIsBeingSent() throws Exception {
+        release = new CountDownLatch(1);
+        poller = createPoller("2", "10", "false");
+        for (int i = 0; i < 3; i++) {
+            writeFile("A-B-file" + i + ".edi", i);
+        }
+        poller.start();
+        pollUntil(2, 3000);
+        // Keep polling while the slow sends are still in progress
+        for (int i = 0; i < 10; i++) {
+            poller.poll();
+        }
+        release.countDown();
+        pollUntil(3, 5000);
+        assertThat(processed, containsInAnyOrder("A-B-file0.edi", "A-B-file1.edi", "A-B-file2.edi"));
+        assertThat(poller.getPipelineStats().get("completed"), equalTo(3L));
+    }
+
+    @Test
+    public void limitsFilesInWorkQueue() throws Exception {
+        release = new CountDownLatch(1);
+        poller = createPoller("1", "1", "false");
+        for (int i = 0; i < 4; i++) {
+            writeFile("A-B-file" + i + ".edi", i);
+        }
+        poller.start();
+        pollUntil(1, 3000);
+        poller.poll();
+        Map<String, Long> stats = poller.getPipelineStats();
+        assertThat("One file in progress and one queued", stats.get("dispatched"), equalTo(2L));
+        assertThat(stats.get("waiting"), equalTo(2L));
+
+        release.countDown();
+        pollUntil(4, 5000);
+        assertThat(processed.size(), equalTo(4));
+    }
+
+    @Test
+    public void sendsFilesForSameReceiverInOrder() throws Exception {
+        poller = createPoller("4", "10", "true");
+        writeFile("A-B-first.edi", 0);
+        writeFile("A-C-other.edi", 0);
+        writeFile("A-B-second.edi", 1);
+        writeFile("A-B-third.edi", 2);
+        poller.start();
+        pollUntil(4, 5000);
+
+        List<String> toB = new ArrayList<String>();
+        for (String name : processed) {
+            if (name.startsWith("A-B")) {
+                toB.add(name);
+            }
+        }
+        assertThat(toB, contains("A-B-first.edi", "A-B-second.edi", "A-B-third.edi"));
+        assertThat("Other receivers are not held up", maxRunning.get(), greaterThanOrEqualTo(2));
+    }
+
+    @Test
+    public void sendsFilesOneAtATimeOffThePollingThreadWhenNotParallel() throws Exception {
+        release = new CountDownLatch(1);
+        poller = createPoller("4", "10", "false");
+        poller.getParameters().put(DirectoryPollingModule.PARAM_PROCESS_IN_PARALLEL, "false");
+        poller.init(session, poller.getParameters());
+        writeFile("A-B-first.edi", 0);
+        writeFile("A-C-second.edi", 1);
+        writeFile("A-B-third.edi", 2);
+        poller.start();
+        long start = System.currentTimeMillis();
+        pollUntil(1, 3000);
+        poller.poll();
+        assertThat("Polling does not wait for the send", System.currentTimeMillis() - start < 3000, equalTo(true));
+        assertThat(poller.getPipelineStats().get("dispatched"), equalTo(3L));
+
+        release.countDown();
+        pollUntil(3, 5000);
+        assertThat(processed, contains("A-B-first.edi", "A-C-second.edi", "A-B-third.edi"));
+        assertThat(maxRunning.get(), equalTo(1));
+    }
+
+    @Test
+    public void sharesBoundedSendThreadsBetweenPollers() throws Exception {
+        int maxSendThreads = PollingEngine.getInstance().getMaxSendThreads();
+        int pollerCount = maxSendThreads * 2;
+        int threadsBefore = Thread.activeCount();
+        for (int i = 0; i < pollerCount; i++) {
+            File dir = new File(tempDir, "outbox" + i);
+            dir.mkdirs();
+            DirectoryPollingModule other = createPoller(dir, "4", "10", "false", "3600");
+            other.getParameters().put(DirectoryPollingModule.PARAM_PROCESS_IN_PARALLEL, "false");
+            other.init(session, other.getParameters());
+            writeFile(dir, (i == 0 ? "A-B-slow" : "A-B-file") + i + ".edi", 0);
+            otherPollers.add(other);
+            other.start();
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (processed.size() < pollerCount - 1 && System.currentTimeMillis() < deadline) {
+            for (DirectoryPollingModule other : otherPollers) {
+                other.poll();
+            }
+            Thread.sleep(20);
+        }
+        assertThat("A slow partner only holds up its own directory", processed.size(), equalTo(pollerCount - 1));
+        int sendThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("PollingEngine-send-")) {
+                sendThreads++;
+            }
+        }
+        assertThat(sendThreads, lessThanOrEqualTo(maxSendThreads));
+        // The polling engine's own threads may also have started but no thread is added per poller
+        int engineThreads = Math.max(4, Runtime.getRuntime().availableProcessors()) + 1;
+        assertThat(Thread.activeCount() - threadsBefore, lessThanOrEqualTo(maxSendThreads + engineThreads));
+    }
+
+    @Test
+    public void picksUpNewFilesFromWatchEventsWithoutRescanning() throws Exception {
+        poller = createPoller("2", "10", "false", "1");
+        poller.start();
+        waitForPolls(1);
+        writeFile("A-B-late.edi", 0);
+        waitForProcessed(1, 10000);
+
+        assertThat(processed, contains("A-B-late.edi"));
+        Map<String, Long> pollStats = poller.getPollStats();
+        assertThat(pollStats.get("watched"), equalTo(1L));
+        assertThat("Only the initial full scan", pollStats.get("fullScans"), equalTo(1L));
+        assertThat(pollStats.get("events"), greaterThanOrEqualTo(1L));
+    }
+
+    @Test
+    public void scansEveryIntervalWhenNotWatched() throws Exception {
+        poller = createPoller("2", "10", "false", "1");
+        poller.getParameters().put(PollingModule.PARAM_USE_WATCH_SERVICE, "false");
+        poller.start();
+        waitForPolls(3);
+
+        Map<String, Long> pollStats = poller.getPollStats();
+        assertThat(pollStats.get("watched"), equalTo(0L));
+        assertThat(pollStats.get("fullScans"), greaterThanOrEqualTo(3L));
+        poller.stop();
+        assertThat(PollingEngine.getInstance().isRegistered(poller), equalTo(false));
+    }
+
+    private DirectoryPollingModule createPoller(String maxParallel, String maxQueued, String fifoPerReceiver) throws Exception {
+        return createPoller(maxParallel, maxQueued, fifoPerReceiver, "3600");
+    }
+
+    private DirectoryPollingModule createPoller(String maxParallel, String maxQueued, String fifoPerReceiver, String interval) throws Exception {
+        return createPoller(outboxDir, maxParallel, maxQueued, fifoPerReceiver, interval);
+    }
+
+    private DirectoryPollingModule createPoller(File outbox, String maxParallel, String maxQueued, String fifoPerReceiver, String interval) throws Exception {
+        DirectoryPollingModule module = new DirectoryPollingModule() {
+            @Override
+            protected Message createMessage() {
+                return new AS2Message();
+            }
+
+            @Override
+            protected void processFile(File file) throws OpenAS2Exception {
+                int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                try {
+                    if (file.getName().startsWith("A-B-slow")) {
+                        slowRelease.await(10, TimeUnit.SECONDS);
+                    }
+                    release.await(10, TimeUnit.SECONDS);
+                    // Long enough for files of other receivers to overlap
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.add(file.getName());
+                file.delete();
+                running.decrementAndGet();
+            }
+        };
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(DirectoryPollingModule.PARAM_OUTBOX_DIRECTORY, outbox.getAbsolutePath());
+        params.put(DirectoryPollingModule.PARAM_ERROR_DIRECTORY, new File(tempDir, "error").getAbsolutePath());
+        params.put("interval", interval);
+        params.put(MessageBuilderModule.PARAM_FORMAT, "sender.as2_id, receiver.as2_id, attributes.filename");
+        params.put(MessageBuilderModule.PARAM_DELIMITERS, "-");
+        params.put(DirectoryPollingModule.PARAM_PROCESS_IN_PARALLEL, "true");
+        params.put(DirectoryPollingModule.PARAM_MAX_PARALLEL_FILES, maxParallel);
+        params.put(DirectoryPollingModule.PARAM_MAX_QUEUED_FILES, maxQueued);
+        params.put(DirectoryPollingModule.PARAM_FIFO_PER_RECEIVER, fifoPerReceiver);
+        module.init(session, params);
+        return module;
+    }
+
+    private void writeFile(String name, int age) throws Exception {
+        writeFile(outboxDir, name, age);
+    }
+
+    private void writeFile(File dir, String name, int age) throws Exception {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), name.getBytes());
+        // Oldest file first
+        file.setLastModified(System.currentTimeMillis() - 60000 + age * 1000L);
+    }
+
+    private void waitForPolls(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (poller.getPollStats().get("polls") < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(poller.getPollStats().get("polls"), greaterThanOrEqualTo(count));
+    }
+
+    private void waitForProcessed(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (processed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    private void pollUntil(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (processed.size() + running.get() < count && System.currentTimeMillis() < deadline) {
+            poller.poll();
+            Thread.sleep(20);
+        }
+        if (processed.size() + running.get() >= count) {
+            // Wait for the started files to finish
+            while (processed.size() < count && release.getCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.openas2.processor.receiver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openas2.Session;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+public class NetModuleTest {
+
+    private final CountDownLatch handlerStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseHandler = new CountDownLatch(1);
+    private NetModule module;
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        releaseHandler.countDown();
+        if (module != null && module.isRunning()) {
+            module.stop();
+        }
+    }
+
+    @Test
+    public void answersBusyWhenAllWorkersAreTaken() throws Exception {
+        int port = findFreePort();
+        module = createModule(port);
+        module.start();
+
+        try (Socket first = new Socket("localhost", port); Socket second = new Socket("localhost", port)) {
+            assertThat(handlerStarted.await(5, TimeUnit.SECONDS), is(true));
+            second.setSoTimeout(5000);
+            OutputStream out = second.getOutputStream();
+            out.write("GET / HTTP/1.1\r\n\r\n".getBytes());
+            out.flush();
+            List<String> response = readResponse(second);
+            assertThat(response.get(0), startsWith("HTTP/1.1 503"));
+            assertThat(response, hasItem("Retry-After: 7"));
+
+            Map<String, Long> stats = module.getConnectionStats();
+            assertThat(stats.get("active"), equalTo(1L));
+            assertThat(stats.get("rejected"), equalTo(1L));
+
+            List<String> failures = new ArrayList<String>();
+            assertThat(module.healthcheck(failures), is(false));
+            assertThat(failures.get(0), containsString("Rejected 1 connection(s)"));
+        }
+        releaseHandler.countDown();
+    }
+
+    @Test
+    public void limitsWorkersAndQueue() throws Exception {
+        ConnectionExecutor executor = new ConnectionExecutor("test", 1, 1, 60, false);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        executor.execute(blocking);
+        executor.execute(blocking);
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(blocking));
+        assertThat(executor.getRejectedCount(), equalTo(1L));
+        assertThat(executor.getQueuedCount() + executor.getActiveCount(), equalTo(2));
+        release.countDown();
+        executor.shutdown();
+    }
+
+    private NetModule createModule(int port) throws Exception {
+        NetModule netModule = new NetModule() {
+            @Override
+            protected NetModuleHandler getHandler() {
+                return new NetModuleHandler() {
+                    @Override
+                    public void handle(NetModule owner, Socket s) {
+                        handlerStarted.countDown();
+                        try {
+                            releaseHandler.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                };
+            }
+        };
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(NetModule.PARAM_PORT, Integer.toString(port));
+        params.put(NetModule.PARAM_ADDRESS, "localhost");
+        params.put(NetModule.PARAM_MAX_WORKERS, "1");
+        params.put(NetModule.PARAM_MAX_QUEUED_CONNECTIONS, "0");
+        params.put(NetModule.PARAM_RETRY_AFTER, "7");
+        netModule.init(mock(Session.class), params);
+        return netModule;
+    }
+
+    private static List<String> readResponse(Socket socket) throws Exception {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static int findFreePort() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}
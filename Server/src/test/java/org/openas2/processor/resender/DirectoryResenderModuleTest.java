@@ -0,0 +1,213 @@
+package org.openas2.processor.resender;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openas2.Session;
+import org.openas2.message.AS2Message;
+import org.openas2.message.Message;
+import org.openas2.partner.Partnership;
+import org.openas2.processor.Processor;
+import org.openas2.processor.sender.SenderModule;
+
+import javax.mail.internet.InternetHeaders;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DirectoryResenderModuleTest {
+
+    @TempDir
+    public File tempDir;
+
+    private File resendDir;
+    private Session session;
+    private Processor processor;
+    private final List<String> resentPartnerships = Collections.synchronizedList(new ArrayList<String>());
+    private DirectoryResenderModule module;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        resendDir = new File(tempDir, "resend");
+        session = mock(Session.class);
+        processor = mock(Processor.class);
+        when(session.getProcessor()).thenReturn(processor);
+        when(session.getBaseDirectory()).thenReturn(tempDir.getAbsolutePath());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (module != null && module.isRunning()) {
+            module.stop();
+        }
+    }
+
+    @Test
+    public void backsOffExponentiallyUpToMaximumDelay() throws Exception {
+        Map<String, String> params = params("10");
+        params.put(DirectoryResenderModule.PARAM_RESEND_MAX_DELAY, "60");
+        params.put(DirectoryResenderModule.PARAM_RESEND_JITTER, "0");
+        module = createModule(params);
+        assertThat(module.getResendDelay(1), equalTo(10000L));
+        assertThat(module.getResendDelay(2), equalTo(20000L));
+        assertThat(module.getResendDelay(3), equalTo(40000L));
+        assertThat(module.getResendDelay(4), equalTo(60000L));
+        assertThat("Large retry counts do not overflow", module.getResendDelay(1000), equalTo(60000L));
+
+        params.put(DirectoryResenderModule.PARAM_RESEND_JITTER, "0.5");
+        module = createModule(params);
+        for (int i = 0; i < 20; i++) {
+            long delay = module.getResendDelay(2);
+            assertThat(delay, greaterThanOrEqualTo(10000L));
+            assertThat(delay, lessThanOrEqualTo(30000L));
+        }
+    }
+
+    @Test
+    public void rebuildsQueueFromDirectoryOnStart() throws Exception {
+        recordResends(null);
+        module = createModule(params("0"));
+        module.handle(ResenderModule.DO_RESEND, message("A", "B"), options());
+        module.handle(ResenderModule.DO_RESEND, message("A", "C"), options());
+        assertThat(module.getQueuedCount(), equalTo(2));
+        // A file queued by an older version without the partnership in the name
+        writeResendFile(new File(resendDir, "01-01-20-00-00-00.legacy"), message("B", "A"));
+        File notYetDue = new File(resendDir, module.getFilename(System.currentTimeMillis() + 3600000L, "C~A") + ".later");
+        writeResendFile(notYetDue, message("C", "A"));
+
+        // Simulate a restart with a new instance that only knows about the files
+        module = createModule(params("0"));
+        assertThat(module.getQueuedCount(), equalTo(0));
+        module.start();
+        waitFor(3);
+
+        assertThat(resentPartnerships, containsInAnyOrder("A~B", "A~C", "B~A"));
+        assertThat("Message not yet due is left queued", module.getQueuedCount(), equalTo(1));
+        assertThat(notYetDue.exists(), is(true));
+        assertThat(resendDir.listFiles(File::isFile).length, equalTo(1));
+    }
+
+    @Test
+    public void limitsParallelResendsPerPartnership() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger active = new AtomicInteger();
+        recordResends(new Runnable() {
+            @Override
+            public void run() {
+                active.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                active.decrementAndGet();
+            }
+        });
+        Map<String, String> params = params("0");
+        params.put(DirectoryResenderModule.PARAM_MAX_RESENDS_PER_PARTNERSHIP, "1");
+        params.put(DirectoryResenderModule.PARAM_RESEND_THREADS, "4");
+        module = createModule(params);
+        for (int i = 0; i < 3; i++) {
+            module.handle(ResenderModule.DO_RESEND, message("A", "B"), options());
+        }
+        module.handle(ResenderModule.DO_RESEND, message("C", "D"), options());
+        module.start();
+
+        waitForActive(active, 2);
+        Thread.sleep(200);
+        assertThat("One resend per partnership in progress", module.getInFlightCount(), equalTo(2));
+        assertThat(module.getQueuedCount(), equalTo(2));
+        assertThat(resentPartnerships, containsInAnyOrder("A~B", "C~D"));
+
+        release.countDown();
+        waitFor(4);
+        assertThat(module.getInFlightCount(), equalTo(0));
+        assertThat(module.getQueuedCount(), equalTo(0));
+    }
+
+    private void recordResends(final Runnable onResend) throws Exception {
+        doAnswer(invocation -> {
+            Message msg = invocation.getArgument(1);
+            resentPartnerships.add(msg.getPartnership().getSenderID(Partnership.PID_AS2) + "~" + msg.getPartnership().getReceiverID(Partnership.PID_AS2));
+            if (onResend != null) {
+                onResend.run();
+            }
+            return null;
+        }).when(processor).handle(anyString(), any(Message.class), anyMap());
+    }
+
+    private void waitFor(int resendCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((resentPartnerships.size() < resendCount || module.getInFlightCount() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(resentPartnerships.size(), equalTo(resendCount));
+    }
+
+    private static void waitForActive(AtomicInteger active, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (active.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(active.get(), equalTo(count));
+    }
+
+    private DirectoryResenderModule createModule(Map<String, String> params) throws Exception {
+        DirectoryResenderModule resender = new DirectoryResenderModule();
+        resender.init(session, params);
+        return resender;
+    }
+
+    private Map<String, String> params(String resendDelay) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(DirectoryResenderModule.PARAM_RESEND_DIRECTORY, resendDir.getAbsolutePath());
+        params.put(DirectoryResenderModule.PARAM_ERROR_DIRECTORY, new File(resendDir, "error").getAbsolutePath());
+        params.put(DirectoryResenderModule.PARAM_RESEND_DELAY, resendDelay);
+        return params;
+    }
+
+    private static Map<String, Object> options() {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(ResenderModule.OPTION_RESEND_METHOD, SenderModule.DO_SEND);
+        options.put(ResenderModule.OPTION_RETRIES, "1");
+        return options;
+    }
+
+    private static Message message(String senderId, String receiverId) {
+        Message msg = new AS2Message();
+        msg.setHeaders(new InternetHeaders());
+        msg.getPartnership().setSenderID(Partnership.PID_AS2, senderId);
+        msg.getPartnership().setReceiverID(Partnership.PID_AS2, receiverId);
+        return msg;
+    }
+
+    private static void writeResendFile(File file, Message msg) throws Exception {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+            oos.writeObject(SenderModule.DO_SEND);
+            oos.writeObject("1");
+            oos.writeObject(msg);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.openas2.processor.sender;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openas2.message.AS2Message;
+import org.openas2.message.AS2MessageMDN;
+import org.openas2.processor.resender.ResenderModule;
+
+import javax.mail.internet.MimeBodyPart;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+
+public class AsyncMdnDispatcherTest {
+
+    private static final String URL = "http://localhost:10080/mdn";
+
+    @TempDir
+    public File tempDir;
+
+    private final List<AsyncMdnDispatcher> dispatchers = new ArrayList<AsyncMdnDispatcher>();
+
+    @AfterEach
+    public void tearDown() {
+        for (AsyncMdnDispatcher dispatcher : dispatchers) {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void sendsOnAWorkerWithoutThePayload() throws Exception {
+        final List<AS2Message> sentMessages = Collections.synchronizedList(new ArrayList<AS2Message>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch sent = new CountDownLatch(1);
+        AsyncMdnDispatcher dispatcher = start(null, 2, (msg, url) -> {
+            sentMessages.add(msg);
+            threads.add(Thread.currentThread().getName());
+            sent.countDown();
+            return true;
+        });
+        AS2Message msg = createMessage("msg-1");
+        MimeBodyPart payload = new MimeBodyPart();
+        msg.setData(payload, null);
+
+        assertThat(dispatcher.enqueue(msg, URL), equalTo(true));
+
+        assertThat(sent.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat("Caller keeps its payload", msg.getData(), sameInstance(payload));
+        AS2Message queued = sentMessages.get(0);
+        assertThat(queued, not(sameInstance(msg)));
+        assertThat(queued.getMessageID(), equalTo("msg-1"));
+        assertThat(queued.getData(), nullValue());
+        assertThat(queued.getMDN().getMessage(), sameInstance(queued));
+        assertThat("Options are queued with the message", queued.getOption(ResenderModule.OPTION_RETRIES), equalTo("0"));
+        assertThat(threads.get(0), startsWith("test-async-"));
+    }
+
+    @Test
+    public void sendsMdnsLeftInTheQueueDirectory() throws Exception {
+        File queueDir = new File(tempDir, "queue");
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sentIds = Collections.synchronizedList(new ArrayList<String>());
+        AsyncMdnDispatcher first = start(queueDir, 1, (msg, url) -> {
+            release.await(5, TimeUnit.SECONDS);
+            sentIds.add(msg.getMessageID());
+            return true;
+        });
+        first.enqueue(createMessage("msg-1"), URL);
+        first.enqueue(createMessage("msg-2"), URL);
+        assertThat(queueDir.list().length, equalTo(2));
+        release.countDown();
+        first.stop();
+        dispatchers.remove(first);
+
+        File[] left = queueDir.listFiles();
+        assertThat("Only the MDN that was sent is removed", left.length, equalTo(1));
+
+        final CountDownLatch sent = new CountDownLatch(1);
+        AsyncMdnDispatcher second = start(queueDir, 1, (msg, url) -> {
+            sentIds.add(msg.getMessageID());
+            sent.countDown();
+            return true;
+        });
+        second.recover();
+        assertThat(sent.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(sentIds, contains("msg-1", "msg-2"));
+        waitForEmptyQueue(second);
+        assertThat(queueDir.list().length, equalTo(0));
+    }
+
+    @Test
+    public void recoversOnlyMdnsLeftBeforeTheStart() throws Exception {
+        File queueDir = new File(tempDir, "queue");
+        final CountDownLatch firstRelease = new CountDownLatch(1);
+        AsyncMdnDispatcher first = start(queueDir, 1, (msg, url) -> {
+            firstRelease.await(5, TimeUnit.SECONDS);
+            return true;
+        });
+        first.enqueue(createMessage("msg-sent"), URL);
+        first.enqueue(createMessage("msg-left"), URL);
+        firstRelease.countDown();
+        first.stop();
+        dispatchers.remove(first);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sentIds = Collections.synchronizedList(new ArrayList<String>());
+        AsyncMdnDispatcher second = start(queueDir, 2, (msg, url) -> {
+            release.await(5, TimeUnit.SECONDS);
+            sentIds.add(msg.getMessageID());
+            return true;
+        });
+        // Queued before the modules are loaded and recover() runs
+        second.enqueue(createMessage("msg-live"), URL);
+        second.recover();
+        second.recover();
+        release.countDown();
+        waitForEmptyQueue(second);
+
+        assertThat(sentIds.size(), equalTo(2));
+        assertThat(sentIds.contains("msg-live"), equalTo(true));
+        assertThat(sentIds.contains("msg-left"), equalTo(true));
+        assertThat(second.getStats().get("failed"), equalTo(0L));
+        assertThat(queueDir.list().length, equalTo(0));
+    }
+
+    @Test
+    public void backsOffAfterAFailedSend() throws Exception {
+        final List<Long> sendTimes = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch sent = new CountDownLatch(2);
+        AsyncMdnDispatcher dispatcher = start(null, 2, (msg, url) -> {
+            sendTimes.add(System.currentTimeMillis());
+            sent.countDown();
+            return sendTimes.size() > 1;
+        });
+        dispatcher.enqueue(createMessage("msg-1"), URL);
+        assertThat(waitFor(() -> dispatcher.getStats().get("failed") == 1L), equalTo(true));
+        dispatcher.enqueue(createMessage("msg-2"), URL);
+
+        assertThat(sent.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat("Second MDN waited for the backoff", sendTimes.get(1) - sendTimes.get(0), greaterThanOrEqualTo(300L));
+        waitForEmptyQueue(dispatcher);
+        assertThat(dispatcher.getStats().get("sent"), equalTo(1L));
+    }
+
+    @Test
+    public void refusesMdnsWhenStopped() throws Exception {
+        AsyncMdnDispatcher dispatcher = new AsyncMdnDispatcher(null, 1, 100, 100, (msg, url) -> true);
+
+        assertThat(dispatcher.enqueue(createMessage("msg-1"), URL), equalTo(false));
+    }
+
+    private AsyncMdnDispatcher start(File queueDir, int maxPerUrl, AsyncMdnDispatcher.MdnSender sender) throws Exception {
+        AsyncMdnDispatcher dispatcher = new AsyncMdnDispatcher(queueDir, maxPerUrl, 300, 1000, sender);
+        dispatcher.start(2, "test-async");
+        dispatchers.add(dispatcher);
+        return dispatcher;
+    }
+
+    private AS2Message createMessage(String messageId) {
+        AS2Message msg = new AS2Message();
+        msg.setMessageID(messageId);
+        msg.setHeader("AS2-From", "A");
+        msg.setHeader("AS2-To", "B");
+        msg.setOption(ResenderModule.OPTION_RETRIES, "0");
+        msg.setMDN(new AS2MessageMDN(msg, false));
+        return msg;
+    }
+
+    private void waitForEmptyQueue(AsyncMdnDispatcher dispatcher) throws InterruptedException {
+        assertThat(waitFor(() -> dispatcher.getStats().get("queued") == 0L && dispatcher.getStats().get("inFlight") == 0L), equalTo(true));
+    }
+
+    private boolean waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+package org.openas2.processor.sender;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class MdnTimeoutTrackerTest {
+
+    @TempDir
+    public File tempDir;
+
+    private File storeDir;
+    private PendingMdnStore store;
+    private ScheduledExecutorService executor;
+    private MdnTimeoutTracker tracker;
+    private final List<String> timedOut = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Long> firedAt = Collections.synchronizedList(new ArrayList<Long>());
+    private volatile CountDownLatch fired;
+    private volatile boolean removeOnTimeout = true;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        storeDir = new File(tempDir, "pendinginfo");
+        store = PendingMdnStore.forDirectory(storeDir.getAbsolutePath());
+        executor = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (tracker != null) {
+            tracker.stop();
+        }
+        executor.shutdownNow();
+        store.close();
+    }
+
+    @Test
+    public void timesOutMessagesOverdueBeforeARestart() throws Exception {
+        long now = System.currentTimeMillis();
+        store.put(createInfo("<second@example.com>", "partnerA", now - 1000));
+        store.put(createInfo("<first@example.com>", "partnerB", now - 2000));
+        store.put(createInfo("<later@example.com>", "partnerA", now + 60000));
+        store.close();
+        store = PendingMdnStore.forDirectory(storeDir.getAbsolutePath());
+
+        startTracker(2);
+
+        assertThat(fired.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(timedOut, contains("<first@example.com>", "<second@example.com>"));
+        assertThat(tracker.getOutstandingCounts().get("partnerA"), equalTo(1L));
+        assertThat(tracker.getOutstandingCounts().get("partnerB"), nullValue());
+    }
+
+    @Test
+    public void firesANewEarlierDeadlineOnTime() throws Exception {
+        long now = System.currentTimeMillis();
+        store.put(createInfo("<slow@example.com>", "partnerA", now + 60000));
+        startTracker(1);
+
+        long deadline = System.currentTimeMillis() + 300;
+        store.put(createInfo("<fast@example.com>", "partnerA", deadline));
+        tracker.track(deadline);
+
+        assertThat(fired.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(timedOut, contains("<fast@example.com>"));
+        assertThat(firedAt.get(0), greaterThanOrEqualTo(deadline));
+        assertThat(store.size(), equalTo(1));
+    }
+
+    @Test
+    public void discardsEntriesTheHandlerLeavesOverdue() throws Exception {
+        removeOnTimeout = false;
+        store.put(createInfo("<stuck@example.com>", "partnerA", System.currentTimeMillis() - 1000));
+
+        startTracker(1);
+
+        assertThat(fired.await(5, TimeUnit.SECONDS), equalTo(true));
+        // Give the tracker time to fire again if the entry had been left behind
+        Thread.sleep(200);
+        assertThat(timedOut, contains("<stuck@example.com>"));
+        assertThat(store.size(), equalTo(0));
+        assertThat(tracker.getTimeoutCount(), equalTo(1L));
+    }
+
+    private void startTracker(int expectedTimeouts) {
+        fired = new CountDownLatch(expectedTimeouts);
+        tracker = new MdnTimeoutTracker(store, executor, new MdnTimeoutTracker.TimeoutHandler() {
+            @Override
+            public void mdnTimedOut(PendingMdnInfo info) throws Exception {
+                firedAt.add(System.currentTimeMillis());
+                timedOut.add(info.getMessageId());
+                if (removeOnTimeout) {
+                    store.remove(info.getMessageId());
+                }
+                fired.countDown();
+            }
+        });
+        tracker.start();
+    }
+
+    private PendingMdnInfo createInfo(String messageId, String receiverId, long deadline) {
+        PendingMdnInfo info = new PendingMdnInfo();
+        info.setMessageId(messageId);
+        info.setCreatedAt(deadline - 1000);
+        info.setDeadline(deadline);
+        info.setMic("mic");
+        info.setSenderId("sender");
+        info.setReceiverId(receiverId);
+        info.setSentDir("");
+        return info;
+    }
+}
@@ -0,0 +1,121 @@
+package org.openas2.processor.sender;
+
+import org.junit.jupiter.api.Test;
+import org.openas2.OpenAS2Exception;
+import org.openas2.partner.Partnership;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PartnerSendLimiterTest {
+
+    private static final String URL = "http://localhost:10080/as2";
+
+    private final PartnerSendLimiter limiter = new PartnerSendLimiter();
+
+    @Test
+    public void holdsBackSendsOverTheConcurrencyCap() throws Exception {
+        Partnership partnership = createPartnership("small");
+        partnership.setAttribute(Partnership.PA_SEND_MAX_CONCURRENCY, "1");
+        PartnerSendLimiter.Permit first = limiter.acquire(partnership, URL);
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final AtomicReference<PartnerSendLimiter.Permit> second = new AtomicReference<PartnerSendLimiter.Permit>();
+        Thread sender = new Thread(() -> {
+            try {
+                second.set(limiter.acquire(partnership, URL));
+                admitted.countDown();
+            } catch (OpenAS2Exception e) {
+                // counted as not admitted
+            }
+        });
+        sender.start();
+
+        assertThat("Second send waits", admitted.await(200, TimeUnit.MILLISECONDS), equalTo(false));
+        assertThat("Waiting send is reported", limiter.getQueueDepths().get("small"), equalTo(1L));
+        first.release(false);
+        assertThat("Second send starts after the first completes", admitted.await(5, TimeUnit.SECONDS), equalTo(true));
+        second.get().release(false);
+        assertThat(limiter.getStats().get("small").get("admitted"), equalTo(2L));
+    }
+
+    @Test
+    public void failsSendsThatCannotStartInTime() throws Exception {
+        Partnership partnership = createPartnership("slow");
+        partnership.setAttribute(Partnership.PA_SEND_MAX_CONCURRENCY, "1");
+        partnership.setAttribute(Partnership.PA_SEND_ADMISSION_TIMEOUT, "0.1");
+        PartnerSendLimiter.Permit permit = limiter.acquire(partnership, URL);
+
+        assertThrows(OpenAS2Exception.class, () -> limiter.acquire(partnership, URL));
+        permit.release(false);
+        assertThat(limiter.getStats().get("slow").get("timedOut"), equalTo(1L));
+        assertThat(limiter.getQueueDepths().get("slow"), equalTo(0L));
+    }
+
+    @Test
+    public void backsOffOnOverloadAndRecovers() throws Exception {
+        Partnership partnership = createPartnership("adaptive");
+        partnership.setAttribute(Partnership.PA_SEND_MAX_CONCURRENCY, "8");
+        partnership.setAttribute(Partnership.PA_SEND_ADAPTIVE_CONCURRENCY, "true");
+        PartnerSendLimiter.Permit[] permits = new PartnerSendLimiter.Permit[4];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = limiter.acquire(partnership, URL);
+        }
+
+        permits[0].release(true);
+        assertThat("Limit halved from the sends in flight", limiter.getStats().get("adaptive").get("limit"), equalTo(2L));
+
+        for (int i = 1; i < permits.length; i++) {
+            permits[i].release(false);
+        }
+        // Three successes at a limit of 2 raise it once
+        assertThat(limiter.getStats().get("adaptive").get("limit"), equalTo(3L));
+        assertThat(limiter.getStats().get("adaptive").get("backoffs"), equalTo(1L));
+    }
+
+    @Test
+    public void limitsTheSendRate() throws Exception {
+        Partnership partnership = createPartnership("rated");
+        partnership.setAttribute(Partnership.PA_SEND_RATE_LIMIT, "10");
+        partnership.setAttribute(Partnership.PA_SEND_RATE_BURST, "1");
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire(partnership, URL).release(false);
+        }
+        assertThat("Two sends waited for a token", System.currentTimeMillis() - start, greaterThanOrEqualTo(180L));
+    }
+
+    @Test
+    public void sharesLimitsPerUrlWhenConfigured() throws Exception {
+        Partnership first = createPartnership("first");
+        Partnership second = createPartnership("second");
+        for (Partnership partnership : new Partnership[]{first, second}) {
+            partnership.setAttribute(Partnership.PA_SEND_MAX_CONCURRENCY, "2");
+            partnership.setAttribute(Partnership.PA_SEND_LIMIT_SCOPE, "url");
+        }
+        limiter.acquire(first, URL);
+        limiter.acquire(second, URL);
+
+        assertThat(limiter.getStats().get(URL).get("active"), equalTo(2L));
+    }
+
+    @Test
+    public void doesNotTrackUnlimitedPartners() throws Exception {
+        limiter.acquire(createPartnership("open"), URL).release(false);
+
+        assertThat(limiter.getStats().isEmpty(), equalTo(true));
+    }
+
+    private Partnership createPartnership(String name) {
+        Partnership partnership = new Partnership();
+        partnership.setName(name);
+        return partnership;
+    }
+}
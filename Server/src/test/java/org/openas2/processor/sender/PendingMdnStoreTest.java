@@ -0,0 +1,191 @@
+package org.openas2.processor.sender;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PendingMdnStoreTest {
+
+    @TempDir
+    public File tempDir;
+
+    private File storeDir;
+    private PendingMdnStore store;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        storeDir = new File(tempDir, "pendinginfo");
+        store = PendingMdnStore.forDirectory(storeDir.getAbsolutePath());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void findsInfoWithOrWithoutAngleBracketsAfterReopening() throws Exception {
+        store.put(createInfo("<abc@example.com>", 1000));
+        store.put(createInfo("def@example.com", 2000));
+
+        reopen();
+
+        assertThat(store.size(), equalTo(2));
+        PendingMdnInfo info = store.get("abc@example.com");
+        assertThat(info, notNullValue());
+        assertThat(info.getMessageId(), equalTo("<abc@example.com>"));
+        assertThat(info.getMic(), equalTo("mic-<abc@example.com>"));
+        assertThat(info.getRetries(), equalTo(3));
+        assertThat(info.getSentDir(), equalTo(""));
+        assertThat(info.getErrorDir(), nullValue());
+        assertThat(info.getAttributes().get("attr"), equalTo("value-<abc@example.com>"));
+        assertThat(store.get("<def@example.com>").getDeadline(), equalTo(2000L));
+        assertThat(store.getLocator("<abc@example.com>"), equalTo(new File(storeDir, "abc@example.com").getPath()));
+    }
+
+    @Test
+    public void removesAndRenamesEntries() throws Exception {
+        store.put(createInfo("<one@example.com>", 1000));
+        store.put(createInfo("<two@example.com>", 1000));
+
+        assertThat(store.remove("<one@example.com>"), equalTo(true));
+        assertThat(store.remove("<one@example.com>"), equalTo(false));
+        assertThat(store.rename("<two@example.com>", "<three@example.com>"), equalTo(true));
+        assertThat(PendingMdnStore.removeByLocator(store.getLocator("<three@example.com>")), equalTo(true));
+        store.put(createInfo("<four@example.com>", 1000));
+
+        reopen();
+
+        assertThat(store.size(), equalTo(1));
+        assertThat(store.get("<one@example.com>"), nullValue());
+        assertThat(store.get("<two@example.com>"), nullValue());
+        assertThat(store.get("<three@example.com>"), nullValue());
+        assertThat(store.get("<four@example.com>"), notNullValue());
+    }
+
+    @Test
+    public void returnsOnlyExpiredEntriesInDeadlineOrder() throws Exception {
+        store.put(createInfo("<late@example.com>", 3000));
+        store.put(createInfo("<early@example.com>", 1000));
+        store.put(createInfo("<future@example.com>", 9000));
+        // Replacing an entry moves its deadline
+        store.put(createInfo("<moved@example.com>", 500));
+        store.put(createInfo("<moved@example.com>", 8000));
+
+        List<String> expired = new ArrayList<String>();
+        for (PendingMdnInfo info : store.getExpired(5000)) {
+            expired.add(info.getMessageId());
+        }
+
+        assertThat(expired, contains("<early@example.com>", "<late@example.com>"));
+    }
+
+    @Test
+    public void compactsWhenMostOfTheLogIsSuperseded() throws Exception {
+        store.put(createInfo("<kept@example.com>", 1000));
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 64 * 1024; i++) {
+            large.append('x');
+        }
+        for (int i = 0; i < 80; i++) {
+            PendingMdnInfo info = createInfo("<removed" + i + "@example.com>", 1000);
+            info.getAttributes().put("large", large.toString());
+            store.put(info);
+            store.remove(info.getMessageId());
+        }
+
+        assertThat(store.getStats().get("compactions"), greaterThan(0L));
+        assertThat(new File(storeDir, PendingMdnStore.LOG_FILE_NAME).length(), lessThan(4L * 1024 * 1024));
+        reopen();
+        assertThat(store.size(), equalTo(1));
+        assertThat(store.get("<kept@example.com>").getMic(), equalTo("mic-<kept@example.com>"));
+    }
+
+    @Test
+    public void discardsATornRecordAtTheEndOfTheLog() throws Exception {
+        store.put(createInfo("<first@example.com>", 1000));
+        store.put(createInfo("<second@example.com>", 1000));
+        store.close();
+        File logFile = new File(storeDir, PendingMdnStore.LOG_FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        store = PendingMdnStore.forDirectory(storeDir.getAbsolutePath());
+        assertThat(store.size(), equalTo(1));
+        assertThat(store.get("<first@example.com>"), notNullValue());
+        store.put(createInfo("<third@example.com>", 1000));
+
+        reopen();
+        assertThat(store.size(), equalTo(2));
+        assertThat(store.get("<third@example.com>"), notNullValue());
+    }
+
+    @Test
+    public void importsPendingInfoFilesFromEarlierVersions() throws Exception {
+        store.close();
+        File legacyFile = new File(storeDir, "legacy@example.com");
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("attr", "legacy");
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(legacyFile))) {
+            oos.writeObject("legacy-mic");
+            oos.writeObject("2");
+            oos.writeObject("payload.txt");
+            oos.writeObject("file.txt");
+            oos.writeObject("/pending/file.txt");
+            oos.writeObject("/error");
+            oos.writeObject("/sent");
+            oos.writeObject(attributes);
+        }
+
+        store = PendingMdnStore.forDirectory(storeDir.getAbsolutePath());
+
+        assertThat(legacyFile.exists(), equalTo(false));
+        PendingMdnInfo info = store.get("<legacy@example.com>");
+        assertThat(info, notNullValue());
+        assertThat(info.getMic(), equalTo("legacy-mic"));
+        assertThat(info.getRetries(), equalTo(2));
+        assertThat(info.getPendingFile(), equalTo("/pending/file.txt"));
+        assertThat(info.getSentDir(), equalTo("/sent"));
+        assertThat(info.getAttributes().get("attr"), equalTo("legacy"));
+        assertThat(info.getDeadline(), greaterThan(info.getCreatedAt()));
+    }
+
+    private void reopen() throws Exception {
+        store.close();
+        store = PendingMdnStore.forDirectory(storeDir.getAbsolutePath());
+    }
+
+    private PendingMdnInfo createInfo(String messageId, long deadline) {
+        PendingMdnInfo info = new PendingMdnInfo();
+        info.setMessageId(messageId);
+        info.setCreatedAt(deadline - 100);
+        info.setDeadline(deadline);
+        info.setMic("mic-" + messageId);
+        info.setRetries(3);
+        info.setPayloadFilename("payload.txt");
+        info.setFilename("file.txt");
+        info.setPendingFile("/pending/" + messageId);
+        info.setSentDir("");
+        info.getAttributes().put("attr", "value-" + messageId);
+        return info;
+    }
+}
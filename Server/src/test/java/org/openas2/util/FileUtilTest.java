@@ -0,0 +1,120 @@
+package org.openas2.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openas2.OpenAS2Exception;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FileUtilTest {
+
+    private static final String HEADER = "id;name\r\n";
+
+    @TempDir
+    public File tempDir;
+
+    @Test
+    public void splitsOnLineBoundariesKeepingTheBytes() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append(i).append(";näme ").append(i).append(i % 3 == 0 ? "\n" : "\r\n");
+        }
+        byte[] bodyBytes = body.toString().getBytes(StandardCharsets.ISO_8859_1);
+        File source = writeSource(HEADER.getBytes(StandardCharsets.ISO_8859_1), bodyBytes);
+        File outputDir = new File(tempDir, "out");
+        outputDir.mkdirs();
+
+        FileUtil.splitLineBasedFile(source, outputDir.getPath(), 200, true, "data.csv", "pre-");
+
+        File[] parts = sortedFiles(outputDir);
+        assertThat(parts[0].getName(), equalTo("pre-001-data.csv"));
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (File part : parts) {
+            byte[] content = Files.readAllBytes(part.toPath());
+            assertThat("Part is under the size limit: " + part.getName(), content.length, lessThan(200));
+            assertThat(new String(content, StandardCharsets.ISO_8859_1), startsWith(HEADER));
+            assertThat("Part ends on a line feed", content[content.length - 1], equalTo((byte) '\n'));
+            joined.write(content, HEADER.length(), content.length - HEADER.length());
+        }
+        assertThat("Line endings and characters are unchanged", joined.toByteArray(), equalTo(bodyBytes));
+        assertThat("No temporary files are left behind", source.getParentFile().listFiles().length, equalTo(1));
+    }
+
+    @Test
+    public void writesPartsInParallel() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            body.append("line ").append(i).append('\n');
+        }
+        byte[] bodyBytes = body.toString().getBytes(StandardCharsets.US_ASCII);
+        File source = writeSource(new byte[0], bodyBytes);
+        File outputDir = new File(tempDir, "out");
+        outputDir.mkdirs();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            FileUtil.splitLineBasedFile(source, outputDir.getPath(), 1000, false, "data.txt", "", executor, 4);
+        } finally {
+            executor.shutdown();
+        }
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (File part : sortedFiles(outputDir)) {
+            joined.write(Files.readAllBytes(part.toPath()));
+        }
+        assertThat(joined.toByteArray(), equalTo(bodyBytes));
+    }
+
+    @Test
+    public void writesLongLinesToAPartOfTheirOwn() throws Exception {
+        char[] longLine = new char[500];
+        Arrays.fill(longLine, 'x');
+        String body = "short\n" + new String(longLine) + "\nlast line without line feed";
+        File source = writeSource(new byte[0], body.getBytes(StandardCharsets.US_ASCII));
+        File outputDir = new File(tempDir, "out");
+        outputDir.mkdirs();
+
+        FileUtil.splitLineBasedFile(source, outputDir.getPath(), 100, false, "data.txt", "");
+
+        File[] parts = sortedFiles(outputDir);
+        assertThat(parts.length, equalTo(3));
+        assertThat(new String(Files.readAllBytes(parts[0].toPath()), StandardCharsets.US_ASCII), equalTo("short\n"));
+        assertThat(parts[1].length(), equalTo(501L));
+        assertThat(new String(Files.readAllBytes(parts[2].toPath()), StandardCharsets.US_ASCII), equalTo("last line without line feed"));
+    }
+
+    @Test
+    public void rejectsSizeNotLargerThanTheHeader() throws Exception {
+        File source = writeSource(HEADER.getBytes(StandardCharsets.US_ASCII), "1;a\n".getBytes(StandardCharsets.US_ASCII));
+
+        assertThrows(OpenAS2Exception.class, () -> FileUtil.splitLineBasedFile(source, tempDir.getPath(), HEADER.length(), true, "data.csv", ""));
+    }
+
+    private File writeSource(byte[] header, byte[] body) throws Exception {
+        File sourceDir = new File(tempDir, "preprocess");
+        sourceDir.mkdirs();
+        File source = new File(sourceDir, "data.csv");
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(header);
+        content.write(body);
+        Files.write(source.toPath(), content.toByteArray());
+        return source;
+    }
+
+    private File[] sortedFiles(File dir) {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,167 @@
+package org.openas2.util;
+
+import org.apache.http.entity.ContentProducer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.internet.InternetHeaders;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HTTPUtilContentProducerTest {
+
+    private static final byte[] CONTENT = createContent();
+
+    private ServerSocket serverSocket;
+    private volatile String receivedHead;
+    private volatile byte[] receivedBody;
+    private int produced;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try (Socket s = serverSocket.accept()) {
+                        serve(s);
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        serverSocket.close();
+    }
+
+    @Test
+    public void streamsContentChunked() throws Exception {
+        ResponseWrapper resp = HTTPUtil.execRequest(HTTPUtil.Method.POST, getUrl(), new InternetHeaders(), null, getProducer(), getOptions(), 0L, false, null);
+
+        assertThat("Request succeeds", resp.getStatusCode(), equalTo(200));
+        assertThat("Sent chunked", receivedHead.toLowerCase(), containsString("transfer-encoding: chunked"));
+        assertThat("Content sent unchanged", receivedBody, equalTo(CONTENT));
+        assertThat("Content produced once", produced, equalTo(1));
+    }
+
+    @Test
+    public void spoolsContentToSendWithContentLength() throws Exception {
+        ResponseWrapper resp = HTTPUtil.execRequest(HTTPUtil.Method.POST, getUrl(), new InternetHeaders(), null, getProducer(), getOptions(), CONTENT.length, true, null);
+
+        assertThat("Request succeeds", resp.getStatusCode(), equalTo(200));
+        assertThat("Sent with a length", receivedHead.toLowerCase(), containsString("content-length: " + CONTENT.length));
+        assertThat("Not chunked", receivedHead.toLowerCase(), not(containsString("transfer-encoding")));
+        assertThat("Content sent unchanged", receivedBody, equalTo(CONTENT));
+        assertThat("Content produced once", produced, equalTo(1));
+    }
+
+    @Test
+    public void rejectsContentLargerThanUnchunkedMaximum() {
+        assertThrows(IOException.class, () -> HTTPUtil.execRequest(HTTPUtil.Method.POST, getUrl(), new InternetHeaders(), null, getProducer(), getOptions(), CONTENT.length - 1, true, null));
+    }
+
+    private ContentProducer getProducer() {
+        return new ContentProducer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                produced++;
+                // Write in small pieces as the CMS generators do
+                for (int i = 0; i < CONTENT.length; i += 1000) {
+                    out.write(CONTENT, i, Math.min(1000, CONTENT.length - i));
+                }
+            }
+        };
+    }
+
+    private String getUrl() {
+        return "http://localhost:" + serverSocket.getLocalPort() + "/as2";
+    }
+
+    private Map<String, String> getOptions() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(HTTPUtil.PARAM_CONNECT_TIMEOUT, "5000");
+        options.put(HTTPUtil.PARAM_SOCKET_TIMEOUT, "5000");
+        return options;
+    }
+
+    private static byte[] createContent() {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        return content;
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String head = readLine(in, true);
+        if (head == null) {
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (head.toLowerCase().contains("transfer-encoding: chunked")) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in, false).trim(), 16)) > 0) {
+                copy(in, body, size);
+                readLine(in, false);
+            }
+            readLine(in, false);
+        } else {
+            for (String line : head.split("\r\n")) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    copy(in, body, Integer.parseInt(line.substring(15).trim()));
+                }
+            }
+        }
+        receivedHead = head;
+        receivedBody = body.toByteArray();
+        OutputStream out = socket.getOutputStream();
+        out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nOK".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private void copy(InputStream in, OutputStream out, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of request");
+            }
+            out.write(b);
+        }
+    }
+
+    private String readLine(InputStream in, boolean wholeHead) throws IOException {
+        String terminator = wholeHead ? "\r\n\r\n" : "\r\n";
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            line.append((char) b);
+            if (line.length() >= terminator.length() && line.substring(line.length() - terminator.length()).equals(terminator)) {
+                return line.toString();
+            }
+        }
+        return null;
+    }
+}
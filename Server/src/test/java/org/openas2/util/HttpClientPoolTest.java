@@ -0,0 +1,165 @@
+package org.openas2.util;
+
+import org.apache.http.client.methods.HttpPost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.internet.InternetHeaders;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class HttpClientPoolTest {
+
+    private ServerSocket serverSocket;
+    private final AtomicInteger acceptedConnections = new AtomicInteger();
+    private final AtomicInteger servedRequests = new AtomicInteger();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        acceptedConnections.incrementAndGet();
+                        Thread worker = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serveKeepAlive(socket);
+                            }
+                        });
+                        worker.setDaemon(true);
+                        worker.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        serverSocket.close();
+    }
+
+    @Test
+    public void reusesConnectionForSameRoute() throws Exception {
+        HttpClientPool pool = HttpClientPool.acquire(10, 2, 60, 2000);
+        try {
+            String url = "http://localhost:" + serverSocket.getLocalPort() + "/as2";
+            for (int i = 0; i < 3; i++) {
+                byte[] body = ("message " + i).getBytes(StandardCharsets.UTF_8);
+                InternetHeaders headers = new InternetHeaders();
+                headers.addHeader("Connection", "close, TE");
+                headers.addHeader("Content-Length", Integer.toString(body.length));
+                ResponseWrapper resp = HTTPUtil.execRequest(HTTPUtil.Method.POST, url, headers, null, new ByteArrayInputStream(body), getOptions(), 0L, true, pool);
+                assertThat("Request succeeds", resp.getStatusCode(), equalTo(200));
+            }
+            assertThat("All requests served", servedRequests.get(), equalTo(3));
+            assertThat("Single connection reused", acceptedConnections.get(), equalTo(1));
+            assertThat("Connection returned to pool", pool.getTotalStats().getLeased(), equalTo(0));
+        } finally {
+            pool.release();
+        }
+    }
+
+    @Test
+    public void sharesPoolWithSameLimits() {
+        HttpClientPool pool1 = HttpClientPool.acquire(7, 3, 30, 1000);
+        HttpClientPool pool2 = HttpClientPool.acquire(7, 3, 30, 1000);
+        HttpClientPool pool3 = HttpClientPool.acquire(8, 3, 30, 1000);
+        try {
+            assertThat("Same limits share a pool", pool2, sameInstance(pool1));
+            assertThat("Different limits get their own pool", pool3, not(sameInstance(pool1)));
+        } finally {
+            pool1.release();
+            pool2.release();
+            pool3.release();
+        }
+        HttpClientPool pool4 = HttpClientPool.acquire(7, 3, 30, 1000);
+        try {
+            assertThat("Released pool is not handed out again", pool4, not(sameInstance(pool1)));
+        } finally {
+            pool4.release();
+        }
+    }
+
+    @Test
+    public void removesCloseTokenFromConnectionHeader() {
+        HttpPost request = new HttpPost("http://localhost/as2");
+        request.setHeader("Connection", "close, TE");
+        HTTPUtil.removeConnectionCloseToken(request);
+        assertThat("Other tokens kept", request.getFirstHeader("Connection").getValue(), equalTo("TE"));
+
+        request.setHeader("Connection", "Close");
+        HTTPUtil.removeConnectionCloseToken(request);
+        assertThat("Header removed when empty", request.getFirstHeader("Connection"), nullValue());
+    }
+
+    private Map<String, String> getOptions() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(HTTPUtil.PARAM_CONNECT_TIMEOUT, "5000");
+        options.put(HTTPUtil.PARAM_SOCKET_TIMEOUT, "5000");
+        return options;
+    }
+
+    private void serveKeepAlive(Socket socket) {
+        try (Socket s = socket; InputStream in = new BufferedInputStream(s.getInputStream()); OutputStream out = s.getOutputStream()) {
+            while (true) {
+                String head = readHead(in);
+                if (head == null) {
+                    return;
+                }
+                int contentLength = 0;
+                for (String line : head.split("\r\n")) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                for (int i = 0; i < contentLength; i++) {
+                    if (in.read() < 0) {
+                        return;
+                    }
+                }
+                servedRequests.incrementAndGet();
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection closed by client
+        }
+    }
+
+    private String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            head.append((char) b);
+            if (head.length() >= 4 && head.substring(head.length() - 4).equals("\r\n\r\n")) {
+                return head.toString();
+            }
+        }
+        return null;
+    }
+}
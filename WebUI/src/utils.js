@@ -28,6 +28,21 @@ const Utils = {
                 throw(`Error getting ${resource} list:\n${e}`);
             }
         },
+        getPage: async function(resource, cursor) {
+            var url =store.state.server +  `/${resource}/list` + (cursor ? `?cursor=${encodeURIComponent(cursor)}` : '');
+            try {
+                var response= await axios.get(url,{ auth: { username: store.state.username, password: store.state.password }});
+                if(response.data.type === 'OK') {
+                    // The cursor for the next page is only sent when there are more results
+                    return { results: response.data.results, nextCursor: response.headers['x-next-cursor'] || null };
+                }else{
+                    throw response.data.result;
+                }
+            }catch(e) {
+                console.log(e);
+                throw(`Error getting ${resource} list:\n${e}`);
+            }
+        },
         getListChart: async function(resource,range) {
             var url =store.state.server +  `/${resource}/data_charts?startDate=${range.startDate}&endDate=${range.endDate}`;
             try {